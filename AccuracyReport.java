@@ -0,0 +1,386 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+
+/**
+ * AccuracyReport runs an analogy question file like questions-words.txt against a store and counts how
+ *   many analogies come out right, section by section, the way compute-accuracy.c in the original word2vec
+ *   does. Each question is four words, "a b c d", and it's right if d is the best match for b - a + c, leaving
+ *   out a, b and c themselves. Lines starting with a colon start a new section.
+ *   <p>
+ *   Like compute-accuracy, only the most frequent words are used (the first maxRank rows of the store): a
+ *   question with a word outside them is skipped, and the answers come from them too. Unlike compute-accuracy,
+ *   the words aren't uppercased, since the store is case-sensitive. With maxRank as big as the vocabulary
+ *   the answers are exactly the ones getAnalogy gives with exact search.
+ *   <p>
+ *   Calling getAnalogy once per question makes one pass over the vectors per question. Here all the query
+ *   vectors are worked out first, and each pass over the vectors scores a whole block of them; the blocks
+ *   run in parallel on the scan pool.
+ *
+ * @author hulles
+ *
+ */
+final public class AccuracyReport {
+	private final static Level LOGLEVEL = Level.INFO;
+	// the number of questions that share one pass over the vectors
+	private final static int QUERY_BLOCK = 64;
+	// the number of rows we score at a time
+	private final static int SCAN_BLOCK = 1024;
+	// compute-accuracy counts sections whose names start with this as syntactic, the rest as semantic
+	private final static String SYNTACTIC_PREFIX = "gram";
+	private final static String SECTION_REPORT = "%s: ACCURACY TOP1: %.2f %% (%d / %d)";
+	private final static String TOTAL_REPORT = "Total accuracy: %.2f %%   Semantic accuracy: %.2f %%   Syntactic accuracy: %.2f %%";
+	private final static String SEEN_REPORT = "Questions seen / total: %d %d   %.2f %%";
+	private final List<String> sectionNames;
+	private final int[] sectionQuestions;
+	private final int[] sectionCorrect;
+	private final int totalQuestions;
+
+	private AccuracyReport(List<String> sectionNames, int[] sectionQuestions, int[] sectionCorrect,
+			int totalQuestions) {
+
+		this.sectionNames = sectionNames;
+		this.sectionQuestions = sectionQuestions;
+		this.sectionCorrect = sectionCorrect;
+		this.totalQuestions = totalQuestions;
+	}
+
+	/**
+	 * Evaluate a question file against a store
+	 *
+	 * @param store The store
+	 * @param fileName The question file, e.g. questions-words.txt
+	 * @param maxRank The number of most frequent words to use, e.g. 30000
+	 * @param pool The pool to evaluate in parallel with, or null to evaluate on the calling thread
+	 * @return The report
+	 */
+	static AccuracyReport evaluate(VectorStore store, String fileName, int maxRank, ForkJoinPool pool) {
+		List<String> sectionNames;
+		List<int[]> questions;
+		List<Integer> questionSections;
+		int totalQuestions;
+		int rowLimit;
+		String line;
+		String[] tokens;
+		int[] rows;
+		boolean seen;
+		float[][] vectors;
+		int[][] ignores;
+		List<QuestionTask> tasks;
+		int questionIx;
+		int[] sectionQuestions;
+		int[] sectionCorrect;
+		int section;
+		AccuracyReport report;
+		long startNanos;
+
+		SharedUtils.checkNotNull(store);
+		SharedUtils.checkNotNull(fileName);
+		if (maxRank < 1) {
+			throw new IllegalArgumentException("Max rank must be at least 1");
+		}
+		startNanos = System.nanoTime();
+		rowLimit = Math.min(maxRank, store.size());
+		sectionNames = new ArrayList<String>();
+		questions = new ArrayList<int[]>();
+		questionSections = new ArrayList<Integer>();
+		totalQuestions = 0;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.startsWith(":")) {
+					sectionNames.add(line.substring(1).trim());
+					continue;
+				}
+				tokens = line.split("\\s+");
+				if (tokens.length != 4) {
+					continue;
+				}
+				if (sectionNames.isEmpty()) {
+					sectionNames.add("");
+				}
+				totalQuestions++;
+				rows = new int[4];
+				seen = true;
+				for (int wordIx = 0; wordIx < 4; wordIx++) {
+					rows[wordIx] = store.getId(tokens[wordIx]);
+					if (rows[wordIx] < 0 || rows[wordIx] >= rowLimit) {
+						seen = false;
+					}
+				}
+				if (seen) {
+					questions.add(rows);
+					questionSections.add(sectionNames.size() - 1);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error reading question file " + fileName);
+		}
+		System.out.println(String.format("Evaluating %,d of %,d questions against the top %,d words",
+				questions.size(), totalQuestions, rowLimit));
+		vectors = new float[questions.size()][];
+		ignores = new int[questions.size()][];
+		for (questionIx = 0; questionIx < vectors.length; questionIx++) {
+			rows = questions.get(questionIx);
+			vectors[questionIx] = WordToVecModel.getAnalogyVector(store, rows[0], rows[1], rows[2]);
+			ignores[questionIx] = new int[] { rows[0], rows[1], rows[2] };
+		}
+		tasks = new ArrayList<QuestionTask>();
+		for (int fromQuery = 0; fromQuery < vectors.length; fromQuery += QUERY_BLOCK) {
+			tasks.add(new QuestionTask(store, vectors, ignores, fromQuery,
+					Math.min(vectors.length, fromQuery + QUERY_BLOCK), rowLimit));
+		}
+		sectionQuestions = new int[sectionNames.size()];
+		sectionCorrect = new int[sectionNames.size()];
+		questionIx = 0;
+		for (int[] answers : SharedUtils.runTasks(tasks, pool)) {
+			for (int answer : answers) {
+				section = questionSections.get(questionIx);
+				sectionQuestions[section]++;
+				if (answer == questions.get(questionIx)[3]) {
+					sectionCorrect[section]++;
+				}
+				questionIx++;
+			}
+		}
+		report = new AccuracyReport(sectionNames, sectionQuestions, sectionCorrect, totalQuestions);
+		WordToVecMetrics.stopTimer("accuracy", startNanos);
+		SharedUtils.log(LOGLEVEL, "AccuracyReport: " + report.getSummary());
+		return report;
+	}
+
+	/**
+	 * Get the number of sections
+	 *
+	 * @return The section count
+	 */
+	public int getSectionCount() {
+
+		return sectionNames.size();
+	}
+
+	/**
+	 * Get the name of a section, e.g. capital-common-countries
+	 *
+	 * @param section The section index
+	 * @return The name
+	 */
+	public String getSectionName(int section) {
+
+		return sectionNames.get(section);
+	}
+
+	/**
+	 * Get the number of questions in a section that were asked, i.e. not skipped
+	 *
+	 * @param section The section index
+	 * @return The question count
+	 */
+	public int getSectionQuestionCount(int section) {
+
+		return sectionQuestions[section];
+	}
+
+	/**
+	 * Get the number of questions in a section that came out right
+	 *
+	 * @param section The section index
+	 * @return The correct count
+	 */
+	public int getSectionCorrectCount(int section) {
+
+		return sectionCorrect[section];
+	}
+
+	/**
+	 * Get the accuracy of a section
+	 *
+	 * @param section The section index
+	 * @return The fraction of the questions asked that came out right, from 0 to 1
+	 */
+	public double getSectionAccuracy(int section) {
+
+		return fraction(sectionCorrect[section], sectionQuestions[section]);
+	}
+
+	/**
+	 * Get the number of questions in the file, including the ones that were skipped
+	 *
+	 * @return The question count
+	 */
+	public int getTotalQuestionCount() {
+
+		return totalQuestions;
+	}
+
+	/**
+	 * Get the number of questions that were asked, i.e. not skipped
+	 *
+	 * @return The question count
+	 */
+	public int getQuestionCount() {
+
+		return sum(sectionQuestions, null);
+	}
+
+	/**
+	 * Get the number of questions that came out right
+	 *
+	 * @return The correct count
+	 */
+	public int getCorrectCount() {
+
+		return sum(sectionCorrect, null);
+	}
+
+	/**
+	 * Get the accuracy over all the questions asked
+	 *
+	 * @return The fraction that came out right, from 0 to 1
+	 */
+	public double getAccuracy() {
+
+		return fraction(getCorrectCount(), getQuestionCount());
+	}
+
+	/**
+	 * Get the accuracy over the semantic sections (the ones not starting with "gram")
+	 *
+	 * @return The fraction that came out right, from 0 to 1
+	 */
+	public double getSemanticAccuracy() {
+
+		return fraction(sum(sectionCorrect, Boolean.FALSE), sum(sectionQuestions, Boolean.FALSE));
+	}
+
+	/**
+	 * Get the accuracy over the syntactic sections (the ones starting with "gram")
+	 *
+	 * @return The fraction that came out right, from 0 to 1
+	 */
+	public double getSyntacticAccuracy() {
+
+		return fraction(sum(sectionCorrect, Boolean.TRUE), sum(sectionQuestions, Boolean.TRUE));
+	}
+
+	private int sum(int[] counts, Boolean syntactic) {
+		int total;
+
+		total = 0;
+		for (int section = 0; section < counts.length; section++) {
+			if (syntactic == null || syntactic.booleanValue() == sectionNames.get(section).startsWith(SYNTACTIC_PREFIX)) {
+				total += counts[section];
+			}
+		}
+		return total;
+	}
+
+	private static double fraction(int count, int total) {
+
+		return total == 0 ? 0 : (double) count / total;
+	}
+
+	private String getSummary() {
+
+		return String.format(TOTAL_REPORT, getAccuracy() * 100, getSemanticAccuracy() * 100,
+				getSyntacticAccuracy() * 100) + "\n" + String.format(SEEN_REPORT, getQuestionCount(),
+				totalQuestions, fraction(getQuestionCount(), totalQuestions) * 100);
+	}
+
+	/**
+	 * Get the report in the same layout as compute-accuracy, a line per section and then the totals
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb;
+
+		sb = new StringBuilder();
+		for (int section = 0; section < sectionNames.size(); section++) {
+			sb.append(String.format(SECTION_REPORT, sectionNames.get(section), getSectionAccuracy(section) * 100,
+					sectionCorrect[section], sectionQuestions[section]));
+			sb.append("\n");
+		}
+		sb.append(getSummary());
+		return sb.toString();
+	}
+
+	/**
+	 * Evaluate a BIN file from the command line, like compute-accuracy
+	 *
+	 * @param args The BIN file name, the question file name, and optionally the number of most frequent
+	 *   words to use (30000) and the number of threads (all of them)
+	 */
+	public static void main(String[] args) {
+		WordToVecSearch search;
+
+		if (args.length < 2) {
+			System.out.println("Usage: AccuracyReport binFileName questionFileName [maxRank [threadCount]]");
+			return;
+		}
+		search = new WordToVecSearch();
+		search.setParallelism(args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors());
+		search.mapFile(args[0]);
+		System.out.println(search.measureAccuracy(args[1], args.length > 2 ? Integer.parseInt(args[2]) : 30000));
+	}
+
+	/**
+	 * QuestionTask finds the best answer for a block of questions in one pass over the rows
+	 */
+	private static final class QuestionTask implements Callable<int[]> {
+		private final VectorStore store;
+		private final float[][] vectors;
+		private final int[][] ignores;
+		private final int rowLimit;
+
+		QuestionTask(VectorStore store, float[][] vectors, int[][] ignores, int fromQuery, int toQuery, int rowLimit) {
+
+			this.store = store;
+			this.vectors = Arrays.copyOfRange(vectors, fromQuery, toQuery);
+			this.ignores = Arrays.copyOfRange(ignores, fromQuery, toQuery);
+			this.rowLimit = rowLimit;
+		}
+
+		@Override
+		public int[] call() {
+			int[] bestRows;
+			float[] bestScores;
+			QueryBlock queries;
+			float[][] distances;
+			float[] queryDistances;
+			int blockSize;
+
+			bestRows = new int[vectors.length];
+			bestScores = new float[vectors.length];
+			Arrays.fill(bestRows, -1);
+			Arrays.fill(bestScores, Float.NEGATIVE_INFINITY);
+			queries = store.prepareQueries(vectors);
+			distances = new float[vectors.length][SCAN_BLOCK];
+			for (int row = 0; row < rowLimit; row += SCAN_BLOCK) {
+				blockSize = Math.min(SCAN_BLOCK, rowLimit - row);
+				store.scan(queries, row, row + blockSize, distances);
+				for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+					queryDistances = distances[queryIx];
+					for (int blockIx = 0; blockIx < blockSize; blockIx++) {
+						// a later row has to beat the best outright, so ties go to the lower row like getAnalogy
+						if (queryDistances[blockIx] > bestScores[queryIx] &&
+								!SearchBackend.isIgnored(ignores[queryIx], row + blockIx)) {
+							bestScores[queryIx] = queryDistances[blockIx];
+							bestRows[queryIx] = row + blockIx;
+						}
+					}
+				}
+			}
+			return bestRows;
+		}
+	}
+}
@@ -0,0 +1,316 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BinRecordReader streams the (word, vector) records of a word2vec BIN file through one small buffer, so
+ *   a file of any size can be read with the same few megabytes of memory. The loader used to read the
+ *   file into a direct buffer as big as the file (up to 2GB), and found the end of it by catching
+ *   BufferUnderflowExceptions and backing up to a mark; now the reader checks what's left in the buffer
+ *   before each read and tops it up from the file when it runs short, carrying the unread bytes over.
+ *   <p>
+ *   The words are UTF-8, so each one's bytes are collected and decoded in one go, instead of casting each
+ *   byte to a char, which got every non-ASCII word wrong.
+ *   <p>
+ *   Use it like an iterator, next then getWord and, if you want it, readVector (a vector you don't read is
+ *   skipped over without being decoded), or hand forEach a BinRecordVisitor. Either way the vectors are
+ *   as they are in the file, not normalized. A reader is for one thread.
+ *
+ * @author hulles
+ *
+ */
+final public class BinRecordReader implements AutoCloseable {
+	/** The default buffer size, 8MB */
+	public final static int DEFAULT_BUFFER_BYTES = 8 << 20;
+	// at least room for a header line and a few words
+	private final static int MIN_BUFFER_BYTES = 4096;
+	private final static int INITIAL_WORD_BYTES = 64;
+	private final static LongAdder refills = WordToVecMetrics.getCounter("loader.refills");
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+	private final int vocabSize;
+	private final int vectorSize;
+	private byte[] wordBytes;
+	private String word;
+	private int recordIx;
+	private boolean vectorPending;
+	private boolean endOfFile;
+
+	/**
+	 * Open a BIN file with the default buffer size
+	 *
+	 * @param fileName The BIN file
+	 */
+	public BinRecordReader(String fileName) {
+
+		this(fileName, DEFAULT_BUFFER_BYTES);
+	}
+
+	/**
+	 * Open a BIN file and read its header
+	 *
+	 * @param fileName The BIN file
+	 * @param bufferBytes The size of the read buffer, e.g. 8MB to 64MB; bigger means fewer reads, but the
+	 *   vectors don't have to fit in it
+	 */
+	public BinRecordReader(String fileName, int bufferBytes) {
+		int[] header;
+
+		SharedUtils.checkNotNull(fileName);
+		if (bufferBytes < MIN_BUFFER_BYTES) {
+			throw new IllegalArgumentException("Buffer must be at least " + MIN_BUFFER_BYTES + " bytes");
+		}
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to open file");
+		}
+		// direct, so the channel reads straight into it instead of through a temporary buffer of its own
+		buffer = ByteBuffer.allocateDirect(bufferBytes).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.flip();
+		wordBytes = new byte[INITIAL_WORD_BYTES];
+		endOfFile = false;
+		header = new int[2];
+		try {
+			readHeader(header);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		}
+		vocabSize = header[0];
+		vectorSize = header[1];
+		if (!(vocabSize > 0) || !(vectorSize > 0)) {
+			close();
+			throw new WordToVecException("Invalid vocab size and/or vector size");
+		}
+		recordIx = -1;
+		vectorPending = false;
+	}
+
+	/**
+	 * Winkle the first text line out of the file, which has the word and vector counts
+	 *
+	 * @param header Receives the vocabulary size and vector size
+	 */
+	private void readHeader(int[] header) {
+		String[] tokens;
+		int length;
+		byte b;
+
+		length = 0;
+		while ((b = nextByte()) != '\n') {
+			length = appendWordByte(length, b);
+		}
+		tokens = new String(wordBytes, 0, length, StandardCharsets.US_ASCII).trim().split(" ");
+		if (tokens.length < 2) {
+			throw new WordToVecException("Invalid BIN file header");
+		}
+		try {
+			header[0] = Integer.parseInt(tokens[0]);
+			header[1] = Integer.parseInt(tokens[1]);
+		} catch (NumberFormatException e) {
+			throw new WordToVecException("Invalid BIN file header");
+		}
+	}
+
+	/**
+	 * Get the number of records the header says the file has
+	 *
+	 * @return The vocabulary size
+	 */
+	public int getVocabSize() {
+
+		return vocabSize;
+	}
+
+	/**
+	 * Get the dimension of the vectors
+	 *
+	 * @return The vector size
+	 */
+	public int getVectorSize() {
+
+		return vectorSize;
+	}
+
+	/**
+	 * Move on to the next record, skipping the vector of the current one if it wasn't read
+	 *
+	 * @return True if there's another record, false after the last one
+	 */
+	public boolean next() {
+		int length;
+		byte b;
+
+		if (vectorPending) {
+			skip(vectorSize * 4L);
+			vectorPending = false;
+		}
+		if (recordIx + 1 >= vocabSize) {
+			return false;
+		}
+		length = 0;
+		while ((b = nextByte()) != ' ') {
+			// ignore newlines in front of words (some binary files have newline,
+			// some don't) [per Medallia Word2VecModel]
+			if (b != '\n') {
+				length = appendWordByte(length, b);
+			}
+		}
+		word = new String(wordBytes, 0, length, StandardCharsets.UTF_8).trim();
+		recordIx++;
+		vectorPending = true;
+		return true;
+	}
+
+	/**
+	 * Get the position of the current record in the file
+	 *
+	 * @return The record index, from 0
+	 */
+	public int getRecordIndex() {
+
+		return recordIx;
+	}
+
+	/**
+	 * Get the word of the current record
+	 *
+	 * @return The word
+	 */
+	public String getWord() {
+
+		if (recordIx < 0) {
+			throw new IllegalStateException("No current record; call next first");
+		}
+		return word;
+	}
+
+	/**
+	 * Read the vector of the current record; it can only be read once
+	 *
+	 * @param vector Receives the vector, as it is in the file
+	 */
+	public void readVector(float[] vector) {
+		int count;
+		int ix;
+
+		SharedUtils.checkNotNull(vector);
+		if (vector.length != vectorSize) {
+			throw new IllegalArgumentException("Vector size mismatch");
+		}
+		if (!vectorPending) {
+			throw new IllegalStateException("No vector to read; call next first");
+		}
+		ix = 0;
+		while (ix < vectorSize) {
+			count = Math.min(vectorSize - ix, buffer.remaining() / 4);
+			if (count == 0) {
+				fill(4);
+				continue;
+			}
+			for (int end = ix + count; ix < end; ix++) {
+				vector[ix] = buffer.getFloat();
+			}
+		}
+		vectorPending = false;
+	}
+
+	/**
+	 * Hand every record to a visitor, or until it says to stop
+	 *
+	 * @param visitor The visitor
+	 */
+	public void forEach(BinRecordVisitor visitor) {
+		float[] vector;
+
+		SharedUtils.checkNotNull(visitor);
+		vector = new float[vectorSize];
+		while (next()) {
+			if (visitor.accept(recordIx, word)) {
+				readVector(vector);
+				if (!visitor.visit(recordIx, word, vector)) {
+					return;
+				}
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+
+		try {
+			channel.close();
+		} catch (IOException e) {
+			System.err.println("Error closing channel");
+			e.printStackTrace();
+		}
+	}
+
+	private int appendWordByte(int length, byte b) {
+
+		if (length == wordBytes.length) {
+			wordBytes = Arrays.copyOf(wordBytes, wordBytes.length * 2);
+		}
+		wordBytes[length] = b;
+		return length + 1;
+	}
+
+	private byte nextByte() {
+
+		if (!buffer.hasRemaining()) {
+			fill(1);
+		}
+		return buffer.get();
+	}
+
+	private void skip(long byteCount) {
+		int step;
+
+		while (byteCount > 0) {
+			if (!buffer.hasRemaining()) {
+				fill(1);
+			}
+			step = (int) Math.min(byteCount, buffer.remaining());
+			buffer.position(buffer.position() + step);
+			byteCount -= step;
+		}
+	}
+
+	/**
+	 * Top up the buffer from the file, keeping the bytes that haven't been read yet
+	 *
+	 * @param needed The number of bytes that have to be there afterwards
+	 */
+	private void fill(int needed) {
+		int count;
+
+		refills.increment();
+		buffer.compact();
+		try {
+			while (buffer.position() < needed || (buffer.hasRemaining() && !endOfFile)) {
+				count = channel.read(buffer);
+				if (count < 0) {
+					endOfFile = true;
+					break;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error reading file");
+		} finally {
+			buffer.flip();
+		}
+		if (buffer.remaining() < needed) {
+			throw new WordToVecException("BIN file is truncated");
+		}
+	}
+}
@@ -0,0 +1,29 @@
+
+/**
+ * BinRecordVisitor is handed the records of a word2vec BIN file, one at a time, by BinRecordReader.forEach
+ *
+ * @author hulles
+ *
+ */
+public interface BinRecordVisitor {
+
+	/**
+	 * Decide whether to read a record's vector; if not, it's stepped over without being decoded
+	 *
+	 * @param recordIx The record's position in the file, from 0
+	 * @param word The record's word
+	 * @return True to have visit called with the vector
+	 */
+	boolean accept(int recordIx, String word);
+
+	/**
+	 * Take a record
+	 *
+	 * @param recordIx The record's position in the file, from 0
+	 * @param word The record's word
+	 * @param vector The record's vector as it is in the file, not normalized; the array is reused for the
+	 *   next record, so copy it to keep it
+	 * @return True to keep reading, false to stop
+	 */
+	boolean visit(int recordIx, String word, float[] vector);
+}
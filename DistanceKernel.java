@@ -0,0 +1,99 @@
+
+import java.nio.ByteBuffer;
+
+/**
+ * DistanceKernel is the innermost operation of every search: comparing two vectors. The vectors can be
+ *   whole arrays or rows of a flat store (an array plus an offset), or rows of a mapped file. Use
+ *   DistanceKernels.getDefault() to get the best kernel for the JVM we're running in.
+ *   <p>
+ *   The kernels don't all add things up in the same order, so their results can differ in the last few
+ *   bits; for normalized vectors of up to a few thousand dimensions they agree to within 1e-5.
+ *
+ * @author hulles
+ *
+ */
+interface DistanceKernel {
+
+	/**
+	 * Calculate the dot product of two vectors, which is the cosine distance if they're normalized
+	 *
+	 * @param a The array holding the first vector
+	 * @param aOffset The offset of the first vector in its array
+	 * @param b The array holding the second vector
+	 * @param bOffset The offset of the second vector in its array
+	 * @param length The vector size
+	 * @return The dot product
+	 */
+	float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * Calculate the dot product of a vector and a vector of little-endian floats in a byte buffer
+	 *
+	 * @param a The array holding the first vector
+	 * @param aOffset The offset of the first vector in its array
+	 * @param b The buffer holding the second vector
+	 * @param bOffset The byte offset of the second vector in its buffer
+	 * @param length The vector size
+	 * @return The dot product
+	 */
+	float dot(float[] a, int aOffset, ByteBuffer b, int bOffset, int length);
+
+	/**
+	 * Calculate the length (magnitude) of a vector of little-endian floats in a byte buffer
+	 *
+	 * @param b The buffer holding the vector
+	 * @param bOffset The byte offset of the vector in its buffer
+	 * @param length The vector size
+	 * @return The length of the vector
+	 */
+	float length(ByteBuffer b, int bOffset, int length);
+
+	/**
+	 * Calculate the dot product of two vectors of signed bytes, e.g. int8 codes, added up exactly in an int
+	 *
+	 * @param a The array holding the first vector
+	 * @param aOffset The offset of the first vector in its array
+	 * @param b The array holding the second vector
+	 * @param bOffset The offset of the second vector in its array
+	 * @param length The vector size; up to 133,000 or so, so the sum can't overflow
+	 * @return The dot product
+	 */
+	int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length);
+
+	/**
+	 * Calculate the dot product of two vectors of IEEE 754 half-precision floats. Infinities and NaNs aren't
+	 *   decoded properly, but there aren't any in normalized vectors.
+	 *
+	 * @param a The array holding the half-precision bits of the first vector
+	 * @param aOffset The offset of the first vector in its array
+	 * @param b The array holding the half-precision bits of the second vector
+	 * @param bOffset The offset of the second vector in its array
+	 * @param length The vector size
+	 * @return The dot product
+	 */
+	float dotHalves(short[] a, int aOffset, short[] b, int bOffset, int length);
+
+	/**
+	 * Calculate the cosine distance of two vectors that aren't necessarily normalized
+	 *
+	 * @param a The array holding the first vector
+	 * @param aOffset The offset of the first vector in its array
+	 * @param b The array holding the second vector
+	 * @param bOffset The offset of the second vector in its array
+	 * @param length The vector size
+	 * @return The cosine distance
+	 */
+	float cosine(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+	/**
+	 * Calculate the Euclidean distance between two vectors; unlike the others, smaller is closer
+	 *
+	 * @param a The array holding the first vector
+	 * @param aOffset The offset of the first vector in its array
+	 * @param b The array holding the second vector
+	 * @param bOffset The offset of the second vector in its array
+	 * @param length The vector size
+	 * @return The Euclidean distance
+	 */
+	float euclidean(float[] a, int aOffset, float[] b, int bOffset, int length);
+}
@@ -0,0 +1,69 @@
+
+import java.util.logging.Level;
+
+/**
+ * DistanceKernels picks the distance kernel to use. If the jdk.incubator.vector module is in the JVM
+ *   (run with --add-modules jdk.incubator.vector) we use the SIMD kernel, otherwise the scalar one. Set
+ *   the system property word2vec.kernel to "scalar" to force the scalar kernel anyway.
+ *
+ * @author hulles
+ *
+ */
+final class DistanceKernels {
+	private final static Level LOGLEVEL = Level.INFO;
+	private final static String KERNEL_PROPERTY = "word2vec.kernel";
+	private final static String VECTOR_MODULE = "jdk.incubator.vector";
+	private final static String SIMD_KERNEL = "SimdDistanceKernel";
+	private final static DistanceKernel scalarKernel = new ScalarDistanceKernel();
+	private final static DistanceKernel defaultKernel = selectKernel();
+
+	private DistanceKernels() {
+		// only static methods, no need to instantiate it
+	}
+
+	/**
+	 * Get the best kernel for this JVM
+	 *
+	 * @return The kernel
+	 */
+	static DistanceKernel getDefault() {
+
+		return defaultKernel;
+	}
+
+	/**
+	 * Get the scalar kernel, regardless of what's available
+	 *
+	 * @return The scalar kernel
+	 */
+	static DistanceKernel getScalar() {
+
+		return scalarKernel;
+	}
+
+	/**
+	 * Try to load the SIMD kernel, falling back to the scalar kernel if we can't
+	 *
+	 * @return The kernel
+	 */
+	private static DistanceKernel selectKernel() {
+		DistanceKernel kernel;
+
+		if ("scalar".equalsIgnoreCase(System.getProperty(KERNEL_PROPERTY))) {
+			SharedUtils.log(LOGLEVEL, "DistanceKernels: using scalar kernel by request");
+			return scalarKernel;
+		}
+		if (!ModuleLayer.boot().findModule(VECTOR_MODULE).isPresent()) {
+			SharedUtils.log(LOGLEVEL, "DistanceKernels: " + VECTOR_MODULE + " not available, using scalar kernel");
+			return scalarKernel;
+		}
+		try {
+			kernel = (DistanceKernel) Class.forName(SIMD_KERNEL).getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) {
+			SharedUtils.log(LOGLEVEL, "DistanceKernels: unable to load SIMD kernel, using scalar kernel");
+			return scalarKernel;
+		}
+		SharedUtils.log(LOGLEVEL, "DistanceKernels: using SIMD kernel");
+		return kernel;
+	}
+}
@@ -0,0 +1,16 @@
+
+/**
+ * EmbeddingWeighting is how a WordToVecEmbedder weighs the words of a document when it averages their vectors
+ *
+ * @author hulles
+ *
+ */
+public enum EmbeddingWeighting {
+	/** Every word counts the same; a plain average */
+	NONE,
+	/** Inverse document frequency, log((1 + N) / (1 + df)) + 1; needs WordToVecEmbedder.countCorpus first */
+	IDF,
+	/** Smooth inverse frequency, a / (a + p(word)), from Arora et al.; uses corpus counts if there are any,
+	 *  otherwise guesses p(word) from the word's rank in the file */
+	SIF
+}
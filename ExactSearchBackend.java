@@ -0,0 +1,160 @@
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ExactSearchBackend scans every row of the vector store, so it always finds the true best matches.
+ *   With a pool the rows are split into partitions which are scanned in parallel, and the best matches 
+ *   of the partitions are merged at the end; the results are exactly the same as a single-threaded scan.
+ *
+ * @author hulles
+ *
+ */
+final class ExactSearchBackend implements SearchBackend {
+	// the number of rows we score at a time
+	private final static int SCAN_BLOCK = 1024;
+	// partitions per scan thread, so the fork-join pool can balance the work
+	private final static int PARTITIONS_PER_THREAD = 4;
+	// what the scans get through, for WordToVecMetrics
+	private final static LongAdder vectorsScanned = WordToVecMetrics.getCounter("vectors.scanned");
+	private final static LongAdder candidatesAccepted = WordToVecMetrics.getCounter("candidates.accepted");
+	private final VectorStore store;
+
+	ExactSearchBackend(VectorStore store) {
+		
+		SharedUtils.checkNotNull(store);
+		this.store = store;
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		// it just scans the store
+		return 0;
+	}
+
+	@Override
+	public TopKHeap[] search(float[][] vectors, int[][] ignores, int maxNumberOfMatches, ForkJoinPool pool) {
+		TopKHeap[] bestMatches;
+		QueryBlock queries;
+		int size;
+		int partitionRows;
+		
+		SharedUtils.checkNotNull(vectors);
+		SharedUtils.checkNotNull(ignores);
+		size = store.size();
+		// once for the whole search, however many blocks and partitions it's scanned in
+		queries = store.prepareQueries(vectors);
+		if (pool == null) {
+			bestMatches = TopKHeap.newHeaps(vectors.length, maxNumberOfMatches);
+			scanRows(store, ignores, queries, bestMatches, 0, size);
+		} else {
+			partitionRows = Math.max(SCAN_BLOCK, size / (pool.getParallelism() * PARTITIONS_PER_THREAD) + 1);
+			bestMatches = pool.invoke(new ScanTask(store, ignores, queries, maxNumberOfMatches, 
+					0, size, partitionRows));
+		}
+		return bestMatches;
+	}
+	
+	/**
+	 * Scan a range of rows of the vector store a tile at a time for the best matches to a block of search 
+	 *   vectors. Nothing in here allocates except the one tile of distances.
+	 * 
+	 * @param store The vector store
+	 * @param ignores Row ids to ignore in the store for each search vector
+	 * @param queries The search vectors, ready to scan
+	 * @param bestMatches The heaps that collect the best matches for each search vector
+	 * @param fromRow The first row, inclusive
+	 * @param toRow The last row, exclusive
+	 */
+	private static void scanRows(VectorStore store, int[][] ignores, QueryBlock queries, 
+			TopKHeap[] bestMatches, int fromRow, int toRow) {
+		float[][] distances;
+		float[] queryDistances;
+		int[] queryIgnores;
+		TopKHeap heap;
+		int blockSize;
+		float distance;
+		float leastBestDistance;
+		int accepted;
+		
+		distances = new float[queries.size()][SCAN_BLOCK];
+		accepted = 0;
+		for (int row = fromRow; row < toRow; row += SCAN_BLOCK) {
+			blockSize = Math.min(SCAN_BLOCK, toRow - row);
+			store.scan(queries, row, row + blockSize, distances);
+			for (int queryIx = 0; queryIx < queries.size(); queryIx++) {
+				queryDistances = distances[queryIx];
+				queryIgnores = ignores[queryIx];
+				heap = bestMatches[queryIx];
+				leastBestDistance = heap.getLeastScore();
+				for (int blockIx = 0; blockIx < blockSize; blockIx++) {
+					distance = queryDistances[blockIx];
+					// the ignores only get checked for the (relatively few) rows that would make the list;
+					//   a later row has to beat the least best outright, so ties stay in row order
+					if (distance > leastBestDistance && !SearchBackend.isIgnored(queryIgnores, row + blockIx)) {
+						heap.offer(row + blockIx, distance);
+						leastBestDistance = heap.getLeastScore();
+						accepted++;
+					}
+				}
+			}
+		}
+		vectorsScanned.add((long) (toRow - fromRow) * queries.size());
+		candidatesAccepted.add(accepted);
+	}
+	
+	/**
+	 * ScanTask splits a range of rows in half until it's small enough to scan directly, then merges
+	 *   the halves' best matches for each search vector
+	 */
+	private static final class ScanTask extends RecursiveTask<TopKHeap[]> {
+		private static final long serialVersionUID = 2405867364818436617L;
+		private final VectorStore store;
+		private final int[][] ignores;
+		private final QueryBlock queries;
+		private final int maxNumberOfMatches;
+		private final int fromRow;
+		private final int toRow;
+		private final int partitionRows;
+		
+		ScanTask(VectorStore store, int[][] ignores, QueryBlock queries, int maxNumberOfMatches, 
+				int fromRow, int toRow, int partitionRows) {
+			
+			this.store = store;
+			this.ignores = ignores;
+			this.queries = queries;
+			this.maxNumberOfMatches = maxNumberOfMatches;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.partitionRows = partitionRows;
+		}
+		
+		@Override
+		protected TopKHeap[] compute() {
+			ScanTask firstHalf;
+			ScanTask secondHalf;
+			TopKHeap[] bestMatches;
+			TopKHeap[] laterMatches;
+			int middleRow;
+			
+			if (toRow - fromRow <= partitionRows) {
+				bestMatches = TopKHeap.newHeaps(queries.size(), maxNumberOfMatches);
+				scanRows(store, ignores, queries, bestMatches, fromRow, toRow);
+				return bestMatches;
+			}
+			middleRow = (fromRow + toRow) >>> 1;
+			firstHalf = new ScanTask(store, ignores, queries, maxNumberOfMatches, fromRow, middleRow, partitionRows);
+			secondHalf = new ScanTask(store, ignores, queries, maxNumberOfMatches, middleRow, toRow, partitionRows);
+			secondHalf.fork();
+			bestMatches = firstHalf.compute();
+			laterMatches = secondHalf.join();
+			// the heap orders ties by row id, so the merge comes out the same as a single scan
+			for (int queryIx = 0; queryIx < bestMatches.length; queryIx++) {
+				bestMatches[queryIx].merge(laterMatches[queryIx]);
+			}
+			return bestMatches;
+		}
+	}
+}
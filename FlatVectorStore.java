@@ -0,0 +1,275 @@
+
+/**
+ * FlatVectorStore keeps all the word vectors in one flat row-major block of floats instead of one
+ *   float[] per word. Since a Java array can't hold more than 2^31 elements, the block is split into
+ *   chunks, each of which holds a whole number of rows, so a row never straddles two chunks. The
+ *   words themselves live in a separate Vocabulary whose ids are the row numbers.
+ *
+ * @author hulles
+ *
+ */
+final class FlatVectorStore implements VectorStore {
+	// the largest array the JVMs will reliably give us
+	private final static int MAX_CHUNK_FLOATS = Integer.MAX_VALUE - 8;
+	private final static DistanceKernel kernel = DistanceKernels.getDefault();
+	private final int vectorSize;
+	private final int capacity;
+	private final int rowsPerChunk;
+	private final float[][] chunks;
+	private final Vocabulary vocabulary;
+
+	/**
+	 * Create a new store
+	 *
+	 * @param capacity The maximum number of rows (words) in the store
+	 * @param vectorSize The dimension of the vectors
+	 */
+	FlatVectorStore(int capacity, int vectorSize) {
+		this(capacity, vectorSize, MAX_CHUNK_FLOATS / Math.max(1, vectorSize));
+	}
+
+	/**
+	 * Create a new store with a given chunk size; mostly useful for trying out chunk boundaries on
+	 *   small files
+	 *
+	 * @param capacity The maximum number of rows (words) in the store
+	 * @param vectorSize The dimension of the vectors
+	 * @param rowsPerChunk The number of rows in each chunk
+	 */
+	FlatVectorStore(int capacity, int vectorSize, int rowsPerChunk) {
+
+		if (capacity < 0 || vectorSize < 1 || rowsPerChunk < 1) {
+			throw new IllegalArgumentException("Bad vector store dimensions");
+		}
+		if ((long) rowsPerChunk * vectorSize > MAX_CHUNK_FLOATS) {
+			throw new IllegalArgumentException("Chunk too large");
+		}
+		this.vectorSize = vectorSize;
+		this.capacity = capacity;
+		this.rowsPerChunk = rowsPerChunk;
+		chunks = allocateChunks(capacity, vectorSize, rowsPerChunk);
+		vocabulary = new Vocabulary(capacity);
+	}
+
+	/**
+	 * Create a new store for an existing vocabulary, with one row per word; the vectors still need to
+	 *   be filled in with setVector
+	 *
+	 * @param vocabulary The vocabulary
+	 * @param vectorSize The dimension of the vectors
+	 */
+	FlatVectorStore(Vocabulary vocabulary, int vectorSize) {
+
+		SharedUtils.checkNotNull(vocabulary);
+		if (vectorSize < 1) {
+			throw new IllegalArgumentException("Bad vector store dimensions");
+		}
+		this.vectorSize = vectorSize;
+		this.capacity = vocabulary.size();
+		this.rowsPerChunk = Math.max(1, MAX_CHUNK_FLOATS / vectorSize);
+		chunks = allocateChunks(capacity, vectorSize, rowsPerChunk);
+		this.vocabulary = vocabulary;
+	}
+
+	/**
+	 * Allocate the chunks for the given number of rows
+	 *
+	 * @param capacity The number of rows
+	 * @param vectorSize The dimension of the vectors
+	 * @param rowsPerChunk The number of rows in each chunk
+	 * @return The chunks
+	 */
+	private static float[][] allocateChunks(int capacity, int vectorSize, int rowsPerChunk) {
+		float[][] newChunks;
+		int chunkCount;
+		int rows;
+
+		chunkCount = (int) (((long) capacity + rowsPerChunk - 1) / rowsPerChunk);
+		newChunks = new float[chunkCount][];
+		for (int chunkIx = 0; chunkIx < chunkCount; chunkIx++) {
+			rows = Math.min(rowsPerChunk, capacity - chunkIx * rowsPerChunk);
+			newChunks[chunkIx] = new float[rows * vectorSize];
+		}
+		return newChunks;
+	}
+
+	/**
+	 * Put a word and its vector into the store, replacing the vector if the word is already there
+	 *   (just like Map.put)
+	 *
+	 * @param word The word
+	 * @param vector The vector for the word, which is copied into the store
+	 * @return True if the word was already in the store
+	 */
+	boolean put(String word, float[] vector) {
+		int oldSize;
+		int row;
+
+		SharedUtils.checkNotNull(word);
+		SharedUtils.checkNotNull(vector);
+		oldSize = vocabulary.size();
+		if (oldSize == capacity && vocabulary.getId(word) < 0) {
+			throw new WordToVecException("Vector store is full");
+		}
+		row = vocabulary.add(word);
+		setVector(row, vector);
+		return vocabulary.size() == oldSize;
+	}
+
+	/**
+	 * Copy a vector into the given row. Different rows can be set from different threads at the same time.
+	 *
+	 * @param row The row
+	 * @param vector The vector
+	 */
+	void setVector(int row, float[] vector) {
+
+		SharedUtils.checkNotNull(vector);
+		if (vector.length != vectorSize) {
+			throw new IllegalArgumentException("Vector size mismatch");
+		}
+		System.arraycopy(vector, 0, chunks[row / rowsPerChunk], (row % rowsPerChunk) * vectorSize, vectorSize);
+	}
+
+	@Override
+	public float[] getVector(int row) {
+		float[] vector;
+
+		checkRow(row);
+		vector = new float[vectorSize];
+		System.arraycopy(chunks[row / rowsPerChunk], (row % rowsPerChunk) * vectorSize, vector, 0, vectorSize);
+		return vector;
+	}
+
+	@Override
+	public void addVector(int row, float weight, float[] sum) {
+		float[] chunk;
+		int offset;
+
+		checkRow(row);
+		chunk = chunks[row / rowsPerChunk];
+		offset = (row % rowsPerChunk) * vectorSize;
+		for (int ix = 0; ix < vectorSize; ix++) {
+			sum[ix] += weight * chunk[offset + ix];
+		}
+	}
+
+	/**
+	 * Get the vector for a word
+	 *
+	 * @param word The word
+	 * @return A NEW float[] with the vector values, or null if the word isn't in the store
+	 */
+	float[] getVector(String word) {
+		int row;
+
+		row = vocabulary.getId(word);
+		return row < 0 ? null : getVector(row);
+	}
+
+	@Override
+	public int getId(CharSequence word) {
+
+		return vocabulary.getId(word);
+	}
+
+	@Override
+	public int getId(byte[] bytes, int offset, int length) {
+
+		return vocabulary.getId(bytes, offset, length);
+	}
+
+	@Override
+	public String getWord(int row) {
+
+		return vocabulary.getWord(row);
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		return (long) capacity * vectorSize * 4 + vocabulary.getMemoryBytes();
+	}
+
+	@Override
+	public int size() {
+
+		return vocabulary.size();
+	}
+
+	@Override
+	public int getVectorSize() {
+
+		return vectorSize;
+	}
+
+	@Override
+	public float score(float[] vector, int row) {
+
+		checkRow(row);
+		return kernel.dot(vector, 0, chunks[row / rowsPerChunk], (row % rowsPerChunk) * vectorSize, vectorSize);
+	}
+
+	@Override
+	public QueryBlock prepareQueries(float[][] vectors) {
+
+		return new QueryBlock(vectors);
+	}
+
+	/**
+	 * Walk the rows chunk by chunk, which keeps the reads sequential through memory, and score each row
+	 *   against every query before moving on
+	 */
+	@Override
+	public void scan(QueryBlock queries, int fromRow, int toRow, float[][] distances) {
+		float[][] vectors;
+		float[] chunk;
+		int row;
+		int lastRow;
+		int offset;
+		int distanceIx;
+
+		vectors = queries.getVectors();
+		distanceIx = 0;
+		row = fromRow;
+		while (row < toRow) {
+			chunk = chunks[row / rowsPerChunk];
+			lastRow = Math.min(toRow, (row / rowsPerChunk + 1) * rowsPerChunk);
+			offset = (row % rowsPerChunk) * vectorSize;
+			for (; row < lastRow; row++, offset += vectorSize, distanceIx++) {
+				for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+					distances[queryIx][distanceIx] = kernel.dot(vectors[queryIx], 0, chunk, offset, vectorSize);
+				}
+			}
+		}
+	}
+
+	int getRowsPerChunk() {
+
+		return rowsPerChunk;
+	}
+
+	int getChunkCount() {
+
+		return chunks.length;
+	}
+
+	/**
+	 * Get the raw chunk array; row r of the store starts at offset (r % rowsPerChunk) * vectorSize
+	 *   of chunk r / rowsPerChunk. This is for the search loops, so don't go modifying it.
+	 *
+	 * @param chunkIx The chunk index
+	 * @return The chunk
+	 */
+	float[] getChunk(int chunkIx) {
+
+		return chunks[chunkIx];
+	}
+
+	private void checkRow(int row) {
+
+		if (row < 0 || row >= vocabulary.size()) {
+			throw new IndexOutOfBoundsException("Bad row " + row);
+		}
+	}
+}
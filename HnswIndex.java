@@ -0,0 +1,884 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * HnswIndex is a Hierarchical Navigable Small World graph over the vectors of a store. Every word is
+ *   linked to a few of its nearest neighbours, and a few words are also in sparser upper layers that
+ *   link far-apart words, so a search can hop down from the top layer to the right neighbourhood and then
+ *   walk the bottom layer to the best matches, looking at a few thousand vectors instead of all of them.
+ *   <p>
+ *   M is the number of links per word (twice that in the bottom layer), efConstruction is how hard the
+ *   build looks for good links and efSearch how hard a search looks for matches; bigger is better recall
+ *   and slower. The index file is laid out so the bottom layer, which is nearly all of it, can be
+ *   memory-mapped instead of read in. The distances come from the store, so they're exact; it's only
+ *   possible to miss a match.
+ *
+ * @author hulles
+ *
+ */
+final class HnswIndex implements SearchBackend {
+	private final static int MAGIC = 0x57324857;
+	private final static int VERSION = 2;
+	private final static int HEADER_BYTES = 64;
+	private final static int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 8;
+	private final static int LOCK_STRIPES = 1 << 12;
+	// rows per build task
+	private final static int BUILD_BLOCK = 1024;
+	private final static int WRITE_BLOCK_INTS = 1 << 18;
+	private final static long RANDOM_SEED = 20131016L;
+	private final static LongAdder vectorsScanned = WordToVecMetrics.getCounter("vectors.scanned");
+	private final static LongAdder candidatesAccepted = WordToVecMetrics.getCounter("candidates.accepted");
+	private final VectorStore store;
+	private final int size;
+	private final int m;
+	private final int maxLinks0;
+	private final int efConstruction;
+	private final int efSearch;
+	private final int nodesPerChunk;
+	// the bottom layer: for each node, the link count and then maxLinks0 links
+	private final IntBuffer[] level0Chunks;
+	// the upper layers of the nodes that have them, level 1 first, each the link count and then m links;
+	//   null for nodes that are only in the bottom layer
+	private final int[][] upperLinks;
+	private final ThreadLocal<VisitedSet> visitedSets;
+	private final Object entryLock;
+	// only while building; the finished graph doesn't change
+	private Object[] locks;
+	private int entryPoint;
+	private int maxLevel;
+
+	private HnswIndex(VectorStore store, int m, int efConstruction, int efSearch, boolean allocate) {
+		int chunkCount;
+		int nodes;
+
+		if (m < 2) {
+			throw new IllegalArgumentException("M must be at least 2");
+		}
+		if (efConstruction < 1 || efSearch < 1) {
+			throw new IllegalArgumentException("ef must be at least 1");
+		}
+		this.store = store;
+		this.m = m;
+		this.efConstruction = efConstruction;
+		this.efSearch = efSearch;
+		size = store.size();
+		maxLinks0 = m * 2;
+		nodesPerChunk = MAX_CHUNK_BYTES / 4 / (maxLinks0 + 1);
+		chunkCount = (size + nodesPerChunk - 1) / nodesPerChunk;
+		level0Chunks = new IntBuffer[chunkCount];
+		if (allocate) {
+			for (int chunkIx = 0; chunkIx < chunkCount; chunkIx++) {
+				nodes = Math.min(nodesPerChunk, size - chunkIx * nodesPerChunk);
+				level0Chunks[chunkIx] = IntBuffer.wrap(new int[nodes * (maxLinks0 + 1)]);
+			}
+		}
+		upperLinks = new int[size][];
+		visitedSets = new ThreadLocal<VisitedSet>();
+		entryLock = new Object();
+		locks = null;
+		entryPoint = 0;
+		maxLevel = 0;
+	}
+
+	/**
+	 * Build the graph for the vectors of a store
+	 *
+	 * @param store The store
+	 * @param m The number of links per node
+	 * @param efConstruction The size of the candidate list while linking
+	 * @param efSearch The size of the candidate list while searching
+	 * @param pool The pool to build in parallel with, or null to build on the calling thread
+	 * @return The index
+	 */
+	static HnswIndex build(VectorStore store, int m, int efConstruction, int efSearch, ForkJoinPool pool) {
+		HnswIndex index;
+		List<Callable<Void>> tasks;
+		double levelMultiplier;
+		Random random;
+		int level;
+		int firstBlock;
+		long startNanos;
+
+		SharedUtils.checkNotNull(store);
+		if (store.size() < 1) {
+			throw new WordToVecException("Can't build an index of an empty store");
+		}
+		startNanos = System.nanoTime();
+		System.out.println("Building HNSW graph for " + store.size() + " word vectors, M " + m +
+				", efConstruction " + efConstruction);
+		index = new HnswIndex(store, m, efConstruction, efSearch, true);
+		index.locks = new Object[LOCK_STRIPES];
+		for (int lockIx = 0; lockIx < LOCK_STRIPES; lockIx++) {
+			index.locks[lockIx] = new Object();
+		}
+		// pick all the levels up front so a node's upper layers exist before anyone can link to them
+		levelMultiplier = 1.0 / Math.log(m);
+		random = new Random(RANDOM_SEED);
+		for (int node = 0; node < index.size; node++) {
+			level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+			if (level > 0) {
+				index.upperLinks[node] = new int[level * (m + 1)];
+			}
+		}
+		index.maxLevel = index.getLevel(0);
+		// the first block goes in one at a time so the parallel tasks have a graph to start from
+		firstBlock = Math.min(index.size, BUILD_BLOCK);
+		index.new BuildTask(1, firstBlock).call();
+		tasks = new ArrayList<Callable<Void>>();
+		for (int fromRow = firstBlock; fromRow < index.size; fromRow += BUILD_BLOCK) {
+			tasks.add(index.new BuildTask(fromRow, Math.min(index.size, fromRow + BUILD_BLOCK)));
+		}
+		SharedUtils.runTasks(tasks, pool);
+		index.locks = null;
+		WordToVecMetrics.stopTimer("build.hnsw", startNanos);
+		return index;
+	}
+
+	private int getLevel(int node) {
+
+		return upperLinks[node] == null ? 0 : upperLinks[node].length / (m + 1);
+	}
+
+	/**
+	 * Get the memory (or file) taken by the links, in bytes
+	 *
+	 * @return The size of the graph
+	 */
+	long getIndexBytes() {
+		long bytes;
+
+		bytes = (long) size * (maxLinks0 + 1) * 4;
+		for (int[] links : upperLinks) {
+			if (links != null) {
+				bytes += links.length * 4L;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Copy the links of a node in one layer
+	 *
+	 * @param node The node
+	 * @param level The layer
+	 * @param links Where to put the links
+	 * @return The number of links
+	 */
+	private int getLinks(int node, int level, int[] links) {
+		Object[] buildLocks;
+
+		buildLocks = locks;
+		if (buildLocks == null) {
+			return readLinks(node, level, links);
+		}
+		synchronized (buildLocks[node % LOCK_STRIPES]) {
+			return readLinks(node, level, links);
+		}
+	}
+
+	private int readLinks(int node, int level, int[] links) {
+		IntBuffer chunk;
+		int[] nodeLinks;
+		int base;
+		int count;
+
+		if (level == 0) {
+			chunk = level0Chunks[node / nodesPerChunk];
+			base = (node % nodesPerChunk) * (maxLinks0 + 1);
+			count = chunk.get(base);
+			for (int linkIx = 0; linkIx < count; linkIx++) {
+				links[linkIx] = chunk.get(base + 1 + linkIx);
+			}
+			return count;
+		}
+		nodeLinks = upperLinks[node];
+		base = (level - 1) * (m + 1);
+		count = nodeLinks[base];
+		System.arraycopy(nodeLinks, base + 1, links, 0, count);
+		return count;
+	}
+
+	/**
+	 * Replace the links of a node in one layer; the caller holds the node's lock
+	 *
+	 * @param node The node
+	 * @param level The layer
+	 * @param links The new links
+	 * @param count The number of links
+	 */
+	private void writeLinks(int node, int level, int[] links, int count) {
+		IntBuffer chunk;
+		int[] nodeLinks;
+		int base;
+
+		if (level == 0) {
+			chunk = level0Chunks[node / nodesPerChunk];
+			base = (node % nodesPerChunk) * (maxLinks0 + 1);
+			chunk.put(base, count);
+			for (int linkIx = 0; linkIx < count; linkIx++) {
+				chunk.put(base + 1 + linkIx, links[linkIx]);
+			}
+			return;
+		}
+		nodeLinks = upperLinks[node];
+		base = (level - 1) * (m + 1);
+		nodeLinks[base] = count;
+		System.arraycopy(links, 0, nodeLinks, base + 1, count);
+	}
+
+	private VisitedSet getVisitedSet() {
+		VisitedSet visited;
+
+		visited = visitedSets.get();
+		if (visited == null) {
+			visited = new VisitedSet(size);
+			visitedSets.set(visited);
+		}
+		return visited;
+	}
+
+	/**
+	 * Walk one of the upper layers greedily towards the vector
+	 *
+	 * @param vector The normalized vector
+	 * @param node The node to start from
+	 * @param score The score of the start node
+	 * @param level The layer
+	 * @param links Scratch space for links
+	 * @return The closest node found
+	 */
+	private int searchGreedy(float[] vector, int node, float score, int level, int[] links) {
+		boolean changed;
+		int count;
+		float linkScore;
+		long scanned;
+
+		changed = true;
+		scanned = 0;
+		while (changed) {
+			changed = false;
+			count = getLinks(node, level, links);
+			scanned += count;
+			for (int linkIx = 0; linkIx < count; linkIx++) {
+				linkScore = store.score(vector, links[linkIx]);
+				if (linkScore > score) {
+					score = linkScore;
+					node = links[linkIx];
+					changed = true;
+				}
+			}
+		}
+		vectorsScanned.add(scanned);
+		return node;
+	}
+
+	/**
+	 * Find the best nodes in one layer, starting from a given node
+	 *
+	 * @param vector The normalized vector
+	 * @param entry The node to start from
+	 * @param level The layer
+	 * @param results The heap to put the best nodes in, whose capacity is the ef for the search
+	 * @param candidates Scratch space for nodes still to look at
+	 * @param links Scratch space for links
+	 */
+	private void searchLayer(float[] vector, int entry, int level, TopKHeap results, CandidateQueue candidates,
+			int[] links) {
+		VisitedSet visited;
+		float score;
+		int node;
+		int count;
+		long scanned;
+		long accepted;
+
+		visited = getVisitedSet();
+		visited.clear();
+		visited.visit(entry);
+		score = store.score(vector, entry);
+		candidates.clear();
+		candidates.push(entry, score);
+		results.clear();
+		results.offer(entry, score);
+		scanned = 1;
+		accepted = 1;
+		while (candidates.size() > 0) {
+			if (candidates.peekScore() < results.getLeastScore()) {
+				break;
+			}
+			node = candidates.poll();
+			count = getLinks(node, level, links);
+			for (int linkIx = 0; linkIx < count; linkIx++) {
+				if (!visited.visit(links[linkIx])) {
+					continue;
+				}
+				score = store.score(vector, links[linkIx]);
+				scanned++;
+				if (score > results.getLeastScore()) {
+					candidates.push(links[linkIx], score);
+					results.offer(links[linkIx], score);
+					accepted++;
+				}
+			}
+		}
+		// once per layer search, so the counters aren't hammered from the inner loop
+		vectorsScanned.add(scanned);
+		candidatesAccepted.add(accepted);
+	}
+
+	/**
+	 * Pick the links for a node from its candidates, best first, skipping candidates that are closer to a
+	 *   link we already picked than they are to the node; that keeps some links going in other directions,
+	 *   which is what makes the graph navigable
+	 *
+	 * @param ids The candidates, best first
+	 * @param scores The candidates' scores against the node
+	 * @param count The number of candidates
+	 * @param node The node, which is skipped if it's among the candidates
+	 * @param maxLinks The most links to pick
+	 * @param links Where to put the links
+	 * @return The number of links picked
+	 */
+	private int selectLinks(int[] ids, float[] scores, int count, int node, int maxLinks, int[] links) {
+		float[][] linkVectors;
+		int linkCount;
+		boolean good;
+
+		linkVectors = new float[maxLinks][];
+		linkCount = 0;
+		for (int candidateIx = 0; candidateIx < count && linkCount < maxLinks; candidateIx++) {
+			if (ids[candidateIx] == node) {
+				continue;
+			}
+			good = true;
+			for (int linkIx = 0; linkIx < linkCount; linkIx++) {
+				if (store.score(linkVectors[linkIx], ids[candidateIx]) > scores[candidateIx]) {
+					good = false;
+					break;
+				}
+			}
+			if (good) {
+				links[linkCount] = ids[candidateIx];
+				linkVectors[linkCount] = store.getVector(ids[candidateIx]);
+				linkCount++;
+			}
+		}
+		return linkCount;
+	}
+
+	/**
+	 * Add a link to a node, picking the best links again if it already has as many as it can
+	 *
+	 * @param node The node
+	 * @param level The layer
+	 * @param newLink The node to link to
+	 */
+	private void addLink(int node, int level, int newLink) {
+		int maxLinks;
+		int[] ids;
+		float[] scores;
+		int count;
+		float[] vector;
+
+		maxLinks = level == 0 ? maxLinks0 : m;
+		ids = new int[maxLinks + 1];
+		synchronized (locks[node % LOCK_STRIPES]) {
+			count = readLinks(node, level, ids);
+			if (count < maxLinks) {
+				ids[count] = newLink;
+				writeLinks(node, level, ids, count + 1);
+				return;
+			}
+			ids[count++] = newLink;
+			vector = store.getVector(node);
+			scores = new float[count];
+			for (int linkIx = 0; linkIx < count; linkIx++) {
+				scores[linkIx] = store.score(vector, ids[linkIx]);
+			}
+			sortBestFirst(ids, scores, count);
+			writeLinks(node, level, ids, selectLinks(ids, scores, count, node, maxLinks, ids));
+		}
+	}
+
+	/**
+	 * Insertion sort, best score first and the lower id first for equal scores
+	 */
+	private static void sortBestFirst(int[] ids, float[] scores, int count) {
+		int id;
+		float score;
+		int sortIx;
+
+		for (int ix = 1; ix < count; ix++) {
+			id = ids[ix];
+			score = scores[ix];
+			sortIx = ix - 1;
+			while (sortIx >= 0 && (scores[sortIx] < score || (scores[sortIx] == score && ids[sortIx] > id))) {
+				ids[sortIx + 1] = ids[sortIx];
+				scores[sortIx + 1] = scores[sortIx];
+				sortIx--;
+			}
+			ids[sortIx + 1] = id;
+			scores[sortIx + 1] = score;
+		}
+	}
+
+	/**
+	 * Link a node into the graph
+	 *
+	 * @param node The node
+	 * @param results Scratch heap with capacity efConstruction
+	 * @param candidates Scratch candidate queue
+	 * @param links Scratch space for links
+	 */
+	private void insert(int node, TopKHeap results, CandidateQueue candidates, int[] links) {
+		float[] vector;
+		int[] ids;
+		float[] scores;
+		int[] newLinks;
+		int level;
+		int topLevel;
+		int current;
+		int count;
+		int linkCount;
+
+		vector = store.getVector(node);
+		level = getLevel(node);
+		synchronized (entryLock) {
+			current = entryPoint;
+			topLevel = maxLevel;
+		}
+		for (int layer = topLevel; layer > level; layer--) {
+			current = searchGreedy(vector, current, store.score(vector, current), layer, links);
+		}
+		ids = new int[efConstruction];
+		scores = new float[efConstruction];
+		newLinks = new int[maxLinks0];
+		for (int layer = Math.min(level, topLevel); layer >= 0; layer--) {
+			searchLayer(vector, current, layer, results, candidates, links);
+			count = results.drain(ids, scores);
+			linkCount = selectLinks(ids, scores, count, node, layer == 0 ? maxLinks0 : m, newLinks);
+			synchronized (locks[node % LOCK_STRIPES]) {
+				writeLinks(node, layer, newLinks, linkCount);
+			}
+			for (int linkIx = 0; linkIx < linkCount; linkIx++) {
+				addLink(newLinks[linkIx], layer, node);
+			}
+			current = ids[0];
+		}
+		if (level > topLevel) {
+			synchronized (entryLock) {
+				if (level > maxLevel) {
+					maxLevel = level;
+					entryPoint = node;
+				}
+			}
+		}
+	}
+
+	@Override
+	public long getMemoryBytes() {
+		long bytes;
+
+		bytes = getIndexBytes();
+		if (level0Chunks.length > 0 && level0Chunks[0] != null && level0Chunks[0].isDirect()) {
+			// layer 0 is mapped from the index file, only the upper layers are on the heap
+			bytes -= (long) size * (maxLinks0 + 1) * 4;
+		}
+		return bytes;
+	}
+
+	@Override
+	public TopKHeap[] search(float[][] vectors, int[][] ignores, int maxNumberOfMatches, ForkJoinPool pool) {
+		TopKHeap[] bestMatches;
+		List<Callable<TopKHeap>> tasks;
+
+		SharedUtils.checkNotNull(vectors);
+		SharedUtils.checkNotNull(ignores);
+		if (pool == null || vectors.length == 1) {
+			bestMatches = new TopKHeap[vectors.length];
+			for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+				bestMatches[queryIx] = searchOne(vectors[queryIx], ignores[queryIx], maxNumberOfMatches);
+			}
+			return bestMatches;
+		}
+		// a graph search is too short to split up, so the queries of a batch go in parallel instead
+		tasks = new ArrayList<Callable<TopKHeap>>(vectors.length);
+		for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+			tasks.add(new SearchTask(vectors[queryIx], ignores[queryIx], maxNumberOfMatches));
+		}
+		return SharedUtils.runTasks(tasks, pool).toArray(new TopKHeap[vectors.length]);
+	}
+
+	/**
+	 * Find the best matches for one search vector
+	 *
+	 * @param vector The normalized search vector
+	 * @param ignores Row ids to leave out of the matches
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A heap of the best matches
+	 */
+	private TopKHeap searchOne(float[] vector, int[] ignores, int maxNumberOfMatches) {
+		TopKHeap results;
+		TopKHeap bestMatches;
+		int[] links;
+		int[] ids;
+		float[] scores;
+		int current;
+		int count;
+
+		if (vector.length != store.getVectorSize()) {
+			throw new WordToVecException("Vector size mismatch");
+		}
+		links = new int[maxLinks0];
+		current = entryPoint;
+		for (int layer = maxLevel; layer > 0; layer--) {
+			current = searchGreedy(vector, current, store.score(vector, current), layer, links);
+		}
+		// look a bit further so the ignored words don't push out real matches
+		results = new TopKHeap(Math.max(efSearch, maxNumberOfMatches + ignores.length));
+		searchLayer(vector, current, 0, results, new CandidateQueue(results.capacity() * 2), links);
+		ids = new int[results.capacity()];
+		scores = new float[results.capacity()];
+		count = results.drain(ids, scores);
+		bestMatches = new TopKHeap(maxNumberOfMatches);
+		for (int resultIx = 0; resultIx < count; resultIx++) {
+			if (!SearchBackend.isIgnored(ignores, ids[resultIx])) {
+				bestMatches.offer(ids[resultIx], scores[resultIx]);
+			}
+		}
+		return bestMatches;
+	}
+
+	/**
+	 * Save the graph to a file
+	 *
+	 * @param fileName The file to write
+	 */
+	void save(String fileName) {
+		FileChannel channel;
+		ByteBuffer buffer;
+		IntBuffer source;
+		int upperCount;
+
+		SharedUtils.checkNotNull(fileName);
+		upperCount = 0;
+		for (int[] links : upperLinks) {
+			if (links != null) {
+				upperCount++;
+			}
+		}
+		buffer = ByteBuffer.allocate(WRITE_BLOCK_INTS * 4).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(size).putInt(store.getVectorSize());
+				buffer.putLong(NeighborTable.getVocabularyHash(store, size));
+				buffer.putInt(m).putInt(maxLinks0).putInt(efConstruction).putInt(entryPoint);
+				buffer.putInt(maxLevel).putInt(upperCount);
+				buffer.position(HEADER_BYTES);
+				for (IntBuffer chunk : level0Chunks) {
+					source = chunk.duplicate();
+					source.clear();
+					while (source.hasRemaining()) {
+						if (buffer.remaining() < 4) {
+							writeBuffer(channel, buffer);
+						}
+						buffer.putInt(source.get());
+					}
+				}
+				for (int node = 0; node < size; node++) {
+					if (upperLinks[node] == null) {
+						continue;
+					}
+					if (buffer.remaining() < (upperLinks[node].length + 2) * 4) {
+						writeBuffer(channel, buffer);
+					}
+					buffer.putInt(node).putInt(getLevel(node));
+					for (int link : upperLinks[node]) {
+						buffer.putInt(link);
+					}
+				}
+				writeBuffer(channel, buffer);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to write HNSW index");
+		}
+	}
+
+	private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Map a graph saved by save; it has to have been built from the same BIN file, loaded with the same
+	 *   load options, as the store
+	 *
+	 * @param fileName The file to map
+	 * @param store The store the graph goes with
+	 * @param efSearch The size of the candidate list while searching
+	 * @return The index
+	 */
+	static HnswIndex load(String fileName, VectorStore store, int efSearch) {
+		FileChannel channel;
+		ByteBuffer header;
+		ByteBuffer upper;
+		HnswIndex index;
+		int m;
+		int maxLinks0;
+		long position;
+		long length;
+		int nodes;
+		int upperCount;
+		int node;
+		int level;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(store);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			try {
+				header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				while (header.hasRemaining() && channel.read(header) >= 0) {
+					// keep reading
+				}
+				header.flip();
+				if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+					throw new WordToVecException("Not an HNSW index file: " + fileName);
+				}
+				if (header.getInt() != store.size() || header.getInt() != store.getVectorSize() ||
+						header.getLong() != NeighborTable.getVocabularyHash(store, store.size())) {
+					throw new WordToVecException("HNSW index doesn't match the loaded file");
+				}
+				m = header.getInt();
+				maxLinks0 = header.getInt();
+				if (maxLinks0 != m * 2) {
+					throw new WordToVecException("Bad HNSW index file: " + fileName);
+				}
+				index = new HnswIndex(store, m, header.getInt(), efSearch, false);
+				index.entryPoint = header.getInt();
+				index.maxLevel = header.getInt();
+				upperCount = header.getInt();
+				position = HEADER_BYTES;
+				for (int chunkIx = 0; chunkIx < index.level0Chunks.length; chunkIx++) {
+					nodes = Math.min(index.nodesPerChunk, index.size - chunkIx * index.nodesPerChunk);
+					length = (long) nodes * (index.maxLinks0 + 1) * 4;
+					index.level0Chunks[chunkIx] = channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+							.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+					position += length;
+				}
+				upper = channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				for (int upperIx = 0; upperIx < upperCount; upperIx++) {
+					node = upper.getInt();
+					level = upper.getInt();
+					index.upperLinks[node] = new int[level * (index.m + 1)];
+					upper.asIntBuffer().get(index.upperLinks[node]);
+					upper.position(upper.position() + index.upperLinks[node].length * 4);
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to read HNSW index");
+		}
+		return index;
+	}
+
+	/**
+	 * VisitedSet marks the nodes a search has already looked at. Rather than clearing the marks for every
+	 *   search it bumps the mark, so each thread keeps one around.
+	 */
+	private static final class VisitedSet {
+		private final int[] marks;
+		private int mark;
+
+		VisitedSet(int size) {
+
+			marks = new int[size];
+			mark = 0;
+		}
+
+		void clear() {
+
+			mark++;
+			if (mark == 0) {
+				Arrays.fill(marks, 0);
+				mark = 1;
+			}
+		}
+
+		/**
+		 * Mark a node
+		 *
+		 * @param node The node
+		 * @return False if the node was already marked
+		 */
+		boolean visit(int node) {
+
+			if (marks[node] == mark) {
+				return false;
+			}
+			marks[node] = mark;
+			return true;
+		}
+	}
+
+	/**
+	 * CandidateQueue is a growable max-heap of (node, score) primitives, for the nodes a layer search
+	 *   still has to look at, best first
+	 */
+	private static final class CandidateQueue {
+		private int[] ids;
+		private float[] scores;
+		private int size;
+
+		CandidateQueue(int capacity) {
+
+			ids = new int[Math.max(1, capacity)];
+			scores = new float[ids.length];
+			size = 0;
+		}
+
+		void clear() {
+
+			size = 0;
+		}
+
+		int size() {
+
+			return size;
+		}
+
+		float peekScore() {
+
+			return scores[0];
+		}
+
+		void push(int id, float score) {
+			int childIx;
+			int parentIx;
+
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				scores = Arrays.copyOf(scores, size * 2);
+			}
+			childIx = size++;
+			while (childIx > 0) {
+				parentIx = (childIx - 1) / 2;
+				if (scores[parentIx] >= score) {
+					break;
+				}
+				ids[childIx] = ids[parentIx];
+				scores[childIx] = scores[parentIx];
+				childIx = parentIx;
+			}
+			ids[childIx] = id;
+			scores[childIx] = score;
+		}
+
+		int poll() {
+			int best;
+			int id;
+			float score;
+			int parentIx;
+			int childIx;
+
+			best = ids[0];
+			size--;
+			id = ids[size];
+			score = scores[size];
+			parentIx = 0;
+			while (true) {
+				childIx = parentIx * 2 + 1;
+				if (childIx >= size) {
+					break;
+				}
+				if (childIx + 1 < size && scores[childIx + 1] > scores[childIx]) {
+					childIx++;
+				}
+				if (scores[childIx] <= score) {
+					break;
+				}
+				ids[parentIx] = ids[childIx];
+				scores[parentIx] = scores[childIx];
+				parentIx = childIx;
+			}
+			ids[parentIx] = id;
+			scores[parentIx] = score;
+			return best;
+		}
+	}
+
+	/**
+	 * BuildTask links a range of nodes into the graph
+	 */
+	private final class BuildTask implements Callable<Void> {
+		private final int fromRow;
+		private final int toRow;
+
+		BuildTask(int fromRow, int toRow) {
+
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		public Void call() {
+			TopKHeap results;
+			CandidateQueue candidates;
+			int[] links;
+
+			results = new TopKHeap(efConstruction);
+			candidates = new CandidateQueue(efConstruction * 2);
+			links = new int[maxLinks0];
+			for (int node = fromRow; node < toRow; node++) {
+				insert(node, results, candidates, links);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * SearchTask searches for one vector of a batch
+	 */
+	private final class SearchTask implements Callable<TopKHeap> {
+		private final float[] vector;
+		private final int[] ignores;
+		private final int maxNumberOfMatches;
+
+		SearchTask(float[] vector, int[] ignores, int maxNumberOfMatches) {
+
+			this.vector = vector;
+			this.ignores = ignores;
+			this.maxNumberOfMatches = maxNumberOfMatches;
+		}
+
+		@Override
+		public TopKHeap call() {
+
+			return searchOne(vector, ignores, maxNumberOfMatches);
+		}
+	}
+}
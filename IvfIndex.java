@@ -0,0 +1,569 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * IvfIndex is an inverted-file index: k-means splits the vectors into clusters, the index file keeps the
+ *   (normalized) vectors of each cluster together, and a search only scans the probeCount clusters whose
+ *   centroids are closest to the search vector. More probes is better recall and slower; probing every
+ *   cluster is the same as the exact scan. Unlike the HNSW graph it takes hardly any memory besides the
+ *   vectors themselves, which are memory-mapped from the index file and read straight through, cluster
+ *   by cluster.
+ *   <p>
+ *   The words come from the store it was built from, so it has to be used with the same BIN file.
+ *
+ * @author hulles
+ *
+ */
+final class IvfIndex implements SearchBackend {
+	private final static int MAGIC = 0x57324956;
+	private final static int VERSION = 2;
+	private final static int HEADER_BYTES = 64;
+	private final static int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 8;
+	// rows per task when assigning vectors to clusters
+	private final static int ASSIGN_BLOCK = 1 << 14;
+	private final static int WRITE_BLOCK_BYTES = 1 << 20;
+	private final static DistanceKernel kernel = DistanceKernels.getDefault();
+	// what the scans get through, for WordToVecMetrics
+	private final static LongAdder vectorsScanned = WordToVecMetrics.getCounter("vectors.scanned");
+	private final static LongAdder candidatesAccepted = WordToVecMetrics.getCounter("candidates.accepted");
+	private final int size;
+	private final int vectorSize;
+	private final int clusterCount;
+	private final int probeCount;
+	private final float[] centroids;
+	// cluster c is at positions clusterStarts[c] up to clusterStarts[c + 1]
+	private final int[] clusterStarts;
+	// the row id of each position
+	private final int[] rowIds;
+	private final int rowsPerChunk;
+	private final ByteBuffer[] vectorChunks;
+
+	private IvfIndex(int size, int vectorSize, int clusterCount, int probeCount, float[] centroids,
+			int[] clusterStarts, int[] rowIds, ByteBuffer[] vectorChunks) {
+
+		if (probeCount < 1) {
+			throw new IllegalArgumentException("Probe count must be at least 1");
+		}
+		this.size = size;
+		this.vectorSize = vectorSize;
+		this.clusterCount = clusterCount;
+		this.probeCount = probeCount;
+		this.centroids = centroids;
+		this.clusterStarts = clusterStarts;
+		this.rowIds = rowIds;
+		this.vectorChunks = vectorChunks;
+		rowsPerChunk = getRowsPerChunk(vectorSize);
+	}
+
+	private static int getRowsPerChunk(int vectorSize) {
+
+		return MAX_CHUNK_BYTES / (vectorSize * 4);
+	}
+
+	/**
+	 * Get a view of this index that probes a different number of clusters; it shares everything else
+	 *
+	 * @param newProbeCount The number of clusters to scan for each search
+	 * @return The view
+	 */
+	IvfIndex withProbeCount(int newProbeCount) {
+
+		return new IvfIndex(size, vectorSize, clusterCount, newProbeCount, centroids, clusterStarts, rowIds,
+				vectorChunks);
+	}
+
+	int getProbeCount() {
+
+		return probeCount;
+	}
+
+	int getClusterCount() {
+
+		return clusterCount;
+	}
+
+	/**
+	 * Cluster the (normalized) vectors of a store and write the index file. The clusters are
+	 *   spherical k-means, so the centroids are normalized and vectors go to the centroid with the best
+	 *   cosine distance.
+	 *
+	 * @param store The store
+	 * @param fileName The index file to write
+	 * @param clusterCount The number of clusters; around the square root of the vocabulary size is usual
+	 * @param trainingSize The number of vectors to train the centroids on
+	 * @param iterations The number of k-means iterations
+	 * @param pool The pool to build in parallel with, or null to build on the calling thread
+	 */
+	static void build(VectorStore store, String fileName, int clusterCount, int trainingSize, int iterations,
+			ForkJoinPool pool) {
+		float[][] training;
+		int[] trainingRows;
+		float[] centroids;
+		int[] assignments;
+		int[] clusterStarts;
+		int[] rowIds;
+		int[] fill;
+		double[] sums;
+		int[] counts;
+		int vectorSize;
+		int taskCount;
+		List<Callable<ClusterSums>> sumTasks;
+		List<Callable<Void>> assignTasks;
+		long startNanos;
+
+		SharedUtils.checkNotNull(store);
+		SharedUtils.checkNotNull(fileName);
+		if (store.size() < 1) {
+			throw new WordToVecException("Can't build an index of an empty store");
+		}
+		if (clusterCount < 1) {
+			throw new IllegalArgumentException("Cluster count must be at least 1");
+		}
+		startNanos = System.nanoTime();
+		vectorSize = store.getVectorSize();
+		trainingRows = ProductQuantizationIndex.sampleRows(store.size(),
+				Math.max(clusterCount, Math.min(trainingSize, store.size())));
+		clusterCount = Math.min(clusterCount, trainingRows.length);
+		training = new float[trainingRows.length][];
+		for (int sampleIx = 0; sampleIx < trainingRows.length; sampleIx++) {
+			training[sampleIx] = store.getVector(trainingRows[sampleIx]);
+		}
+		System.out.println("Clustering " + store.size() + " word vectors into " + clusterCount + " clusters, " +
+				training.length + " training vectors");
+		centroids = new float[clusterCount * vectorSize];
+		for (int clusterIx = 0; clusterIx < clusterCount; clusterIx++) {
+			System.arraycopy(training[clusterIx], 0, centroids, clusterIx * vectorSize, vectorSize);
+		}
+		taskCount = pool == null ? 1 : pool.getParallelism();
+		sumTasks = new ArrayList<Callable<ClusterSums>>(taskCount);
+		for (int taskIx = 0; taskIx < taskCount; taskIx++) {
+			sumTasks.add(new SumTask(training, centroids, clusterCount, taskIx * training.length / taskCount,
+					(taskIx + 1) * training.length / taskCount));
+		}
+		for (int iteration = 0; iteration < iterations; iteration++) {
+			sums = null;
+			counts = null;
+			for (ClusterSums partial : SharedUtils.runTasks(sumTasks, pool)) {
+				if (sums == null) {
+					sums = partial.sums;
+					counts = partial.counts;
+					continue;
+				}
+				for (int ix = 0; ix < sums.length; ix++) {
+					sums[ix] += partial.sums[ix];
+				}
+				for (int clusterIx = 0; clusterIx < clusterCount; clusterIx++) {
+					counts[clusterIx] += partial.counts[clusterIx];
+				}
+			}
+			updateCentroids(centroids, sums, counts, training, clusterCount, iteration);
+		}
+		System.out.println("Assigning vectors to clusters");
+		assignments = new int[store.size()];
+		assignTasks = new ArrayList<Callable<Void>>();
+		for (int fromRow = 0; fromRow < store.size(); fromRow += ASSIGN_BLOCK) {
+			assignTasks.add(new AssignTask(store, centroids, clusterCount, assignments, fromRow,
+					Math.min(store.size(), fromRow + ASSIGN_BLOCK)));
+		}
+		SharedUtils.runTasks(assignTasks, pool);
+		clusterStarts = new int[clusterCount + 1];
+		for (int cluster : assignments) {
+			clusterStarts[cluster + 1]++;
+		}
+		for (int clusterIx = 0; clusterIx < clusterCount; clusterIx++) {
+			clusterStarts[clusterIx + 1] += clusterStarts[clusterIx];
+		}
+		rowIds = new int[store.size()];
+		fill = Arrays.copyOf(clusterStarts, clusterCount);
+		for (int row = 0; row < assignments.length; row++) {
+			rowIds[fill[assignments[row]]++] = row;
+		}
+		write(store, fileName, clusterCount, centroids, clusterStarts, rowIds);
+		WordToVecMetrics.stopTimer("build.ivf", startNanos);
+	}
+
+	/**
+	 * Replace each centroid with the normalized mean of its vectors; an empty cluster starts over from
+	 *   another training vector
+	 */
+	private static void updateCentroids(float[] centroids, double[] sums, int[] counts, float[][] training,
+			int clusterCount, int iteration) {
+		int vectorSize;
+		double length;
+		float[] replacement;
+
+		vectorSize = training[0].length;
+		for (int clusterIx = 0; clusterIx < clusterCount; clusterIx++) {
+			if (counts[clusterIx] == 0) {
+				replacement = training[(clusterIx * 7919 + iteration * 104729) % training.length];
+				System.arraycopy(replacement, 0, centroids, clusterIx * vectorSize, vectorSize);
+				continue;
+			}
+			length = 0.0;
+			for (int ix = 0; ix < vectorSize; ix++) {
+				length += sums[clusterIx * vectorSize + ix] * sums[clusterIx * vectorSize + ix];
+			}
+			length = Math.sqrt(length);
+			for (int ix = 0; ix < vectorSize; ix++) {
+				centroids[clusterIx * vectorSize + ix] = length == 0.0 ? 0f :
+						(float) (sums[clusterIx * vectorSize + ix] / length);
+			}
+		}
+	}
+
+	/**
+	 * Find the centroid with the best cosine distance to a vector
+	 */
+	private static int nearestCentroid(float[] vector, float[] centroids, int clusterCount) {
+		int best;
+		float bestScore;
+		float score;
+
+		best = 0;
+		bestScore = Float.NEGATIVE_INFINITY;
+		for (int clusterIx = 0; clusterIx < clusterCount; clusterIx++) {
+			score = kernel.dot(vector, 0, centroids, clusterIx * vector.length, vector.length);
+			if (score > bestScore) {
+				bestScore = score;
+				best = clusterIx;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Write the index file; the vectors go in cluster order
+	 */
+	private static void write(VectorStore store, String fileName, int clusterCount, float[] centroids,
+			int[] clusterStarts, int[] rowIds) {
+		FileChannel channel;
+		ByteBuffer buffer;
+		float[] vector;
+
+		buffer = ByteBuffer.allocate(WRITE_BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(store.size()).putInt(store.getVectorSize());
+				buffer.putInt(clusterCount).putLong(NeighborTable.getVocabularyHash(store, store.size()));
+				buffer.position(HEADER_BYTES);
+				for (float value : centroids) {
+					if (buffer.remaining() < 4) {
+						writeBuffer(channel, buffer);
+					}
+					buffer.putFloat(value);
+				}
+				for (int value : clusterStarts) {
+					if (buffer.remaining() < 4) {
+						writeBuffer(channel, buffer);
+					}
+					buffer.putInt(value);
+				}
+				for (int value : rowIds) {
+					if (buffer.remaining() < 4) {
+						writeBuffer(channel, buffer);
+					}
+					buffer.putInt(value);
+				}
+				for (int row : rowIds) {
+					vector = store.getVector(row);
+					for (float value : vector) {
+						if (buffer.remaining() < 4) {
+							writeBuffer(channel, buffer);
+						}
+						buffer.putFloat(value);
+					}
+				}
+				writeBuffer(channel, buffer);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to write IVF index");
+		}
+	}
+
+	private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Map an index file written by build; it has to have been built from the same BIN file, loaded with the
+	 *   same load options, as the store. The file has a hash of the words to check that, since the row ids
+	 *   in it would give the wrong words for any other vocabulary of the same size.
+	 *
+	 * @param fileName The file to map
+	 * @param store The store the index goes with
+	 * @param probeCount The number of clusters to scan for each search
+	 * @return The index
+	 */
+	static IvfIndex load(String fileName, VectorStore store, int probeCount) {
+		FileChannel channel;
+		ByteBuffer prefix;
+		ByteBuffer[] vectorChunks;
+		float[] centroids;
+		int[] clusterStarts;
+		int[] rowIds;
+		int size;
+		int vectorSize;
+		int clusterCount;
+		long vocabularyHash;
+		int rowsPerChunk;
+		int rows;
+		long position;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(store);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			try {
+				prefix = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_BYTES))
+						.order(ByteOrder.LITTLE_ENDIAN);
+				if (prefix.remaining() < HEADER_BYTES || prefix.getInt() != MAGIC || prefix.getInt() != VERSION) {
+					throw new WordToVecException("Not an IVF index file: " + fileName);
+				}
+				size = prefix.getInt();
+				vectorSize = prefix.getInt();
+				clusterCount = prefix.getInt();
+				vocabularyHash = prefix.getLong();
+				if (size != store.size() || vectorSize != store.getVectorSize() ||
+						vocabularyHash != NeighborTable.getVocabularyHash(store, size)) {
+					throw new WordToVecException("IVF index doesn't match the loaded file");
+				}
+				position = HEADER_BYTES + ((long) clusterCount * vectorSize + clusterCount + 1 + size) * 4;
+				prefix = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, position - HEADER_BYTES)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				centroids = new float[clusterCount * vectorSize];
+				prefix.asFloatBuffer().get(centroids);
+				prefix.position(centroids.length * 4);
+				clusterStarts = new int[clusterCount + 1];
+				prefix.asIntBuffer().get(clusterStarts);
+				prefix.position(prefix.position() + clusterStarts.length * 4);
+				rowIds = new int[size];
+				prefix.asIntBuffer().get(rowIds);
+				rowsPerChunk = getRowsPerChunk(vectorSize);
+				vectorChunks = new ByteBuffer[(size + rowsPerChunk - 1) / rowsPerChunk];
+				for (int chunkIx = 0; chunkIx < vectorChunks.length; chunkIx++) {
+					rows = Math.min(rowsPerChunk, size - chunkIx * rowsPerChunk);
+					vectorChunks[chunkIx] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							(long) rows * vectorSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+					position += (long) rows * vectorSize * 4;
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to read IVF index");
+		}
+		System.out.println("IVF index with " + clusterCount + " clusters, probing " + probeCount);
+		return new IvfIndex(size, vectorSize, clusterCount, probeCount, centroids, clusterStarts, rowIds,
+				vectorChunks);
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		// the reordered vectors are mapped from the index file
+		return centroids.length * 4L + clusterStarts.length * 4L + rowIds.length * 4L;
+	}
+
+	@Override
+	public TopKHeap[] search(float[][] vectors, int[][] ignores, int maxNumberOfMatches, ForkJoinPool pool) {
+		TopKHeap[] bestMatches;
+		List<Callable<TopKHeap>> tasks;
+
+		SharedUtils.checkNotNull(vectors);
+		SharedUtils.checkNotNull(ignores);
+		if (pool == null || vectors.length == 1) {
+			bestMatches = new TopKHeap[vectors.length];
+			for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+				bestMatches[queryIx] = searchOne(vectors[queryIx], ignores[queryIx], maxNumberOfMatches);
+			}
+			return bestMatches;
+		}
+		tasks = new ArrayList<Callable<TopKHeap>>(vectors.length);
+		for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+			tasks.add(new SearchTask(vectors[queryIx], ignores[queryIx], maxNumberOfMatches));
+		}
+		return SharedUtils.runTasks(tasks, pool).toArray(new TopKHeap[vectors.length]);
+	}
+
+	/**
+	 * Find the best matches for one search vector in the closest clusters
+	 *
+	 * @param vector The normalized search vector
+	 * @param ignores Row ids to leave out of the matches
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A heap of the best matches
+	 */
+	private TopKHeap searchOne(float[] vector, int[] ignores, int maxNumberOfMatches) {
+		TopKHeap probes;
+		TopKHeap bestMatches;
+		int[] probeIds;
+		float[] probeScores;
+		int probeTotal;
+		ByteBuffer chunk;
+		float leastBestDistance;
+		float distance;
+		int cluster;
+		int scanned;
+		int accepted;
+
+		if (vector.length != vectorSize) {
+			throw new WordToVecException("Vector size mismatch");
+		}
+		probes = new TopKHeap(Math.min(probeCount, clusterCount));
+		for (int clusterIx = 0; clusterIx < clusterCount; clusterIx++) {
+			probes.offer(clusterIx, kernel.dot(vector, 0, centroids, clusterIx * vectorSize, vectorSize));
+		}
+		probeIds = new int[probes.capacity()];
+		probeScores = new float[probes.capacity()];
+		probeTotal = probes.drain(probeIds, probeScores);
+		bestMatches = new TopKHeap(maxNumberOfMatches);
+		leastBestDistance = bestMatches.getLeastScore();
+		scanned = 0;
+		accepted = 0;
+		for (int probeIx = 0; probeIx < probeTotal; probeIx++) {
+			cluster = probeIds[probeIx];
+			scanned += clusterStarts[cluster + 1] - clusterStarts[cluster];
+			for (int position = clusterStarts[cluster]; position < clusterStarts[cluster + 1]; position++) {
+				chunk = vectorChunks[position / rowsPerChunk];
+				distance = kernel.dot(vector, 0, chunk, (position % rowsPerChunk) * vectorSize * 4, vectorSize);
+				if (distance > leastBestDistance && !SearchBackend.isIgnored(ignores, rowIds[position])) {
+					bestMatches.offer(rowIds[position], distance);
+					leastBestDistance = bestMatches.getLeastScore();
+					accepted++;
+				}
+			}
+		}
+		vectorsScanned.add(scanned);
+		candidatesAccepted.add(accepted);
+		return bestMatches;
+	}
+
+	/**
+	 * ClusterSums is one task's share of a k-means iteration
+	 */
+	private static final class ClusterSums {
+		private final double[] sums;
+		private final int[] counts;
+
+		ClusterSums(double[] sums, int[] counts) {
+
+			this.sums = sums;
+			this.counts = counts;
+		}
+	}
+
+	/**
+	 * SumTask assigns a range of training vectors to their nearest centroids and adds them up by cluster
+	 */
+	private static final class SumTask implements Callable<ClusterSums> {
+		private final float[][] training;
+		private final float[] centroids;
+		private final int clusterCount;
+		private final int fromIx;
+		private final int toIx;
+
+		SumTask(float[][] training, float[] centroids, int clusterCount, int fromIx, int toIx) {
+
+			this.training = training;
+			this.centroids = centroids;
+			this.clusterCount = clusterCount;
+			this.fromIx = fromIx;
+			this.toIx = toIx;
+		}
+
+		@Override
+		public ClusterSums call() {
+			double[] sums;
+			int[] counts;
+			float[] vector;
+			int cluster;
+
+			sums = new double[centroids.length];
+			counts = new int[clusterCount];
+			for (int trainingIx = fromIx; trainingIx < toIx; trainingIx++) {
+				vector = training[trainingIx];
+				cluster = nearestCentroid(vector, centroids, clusterCount);
+				counts[cluster]++;
+				for (int ix = 0; ix < vector.length; ix++) {
+					sums[cluster * vector.length + ix] += vector[ix];
+				}
+			}
+			return new ClusterSums(sums, counts);
+		}
+	}
+
+	/**
+	 * AssignTask finds the cluster of each vector in a range of rows
+	 */
+	private static final class AssignTask implements Callable<Void> {
+		private final VectorStore store;
+		private final float[] centroids;
+		private final int clusterCount;
+		private final int[] assignments;
+		private final int fromRow;
+		private final int toRow;
+
+		AssignTask(VectorStore store, float[] centroids, int clusterCount, int[] assignments, int fromRow, int toRow) {
+
+			this.store = store;
+			this.centroids = centroids;
+			this.clusterCount = clusterCount;
+			this.assignments = assignments;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		public Void call() {
+
+			for (int row = fromRow; row < toRow; row++) {
+				assignments[row] = nearestCentroid(store.getVector(row), centroids, clusterCount);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * SearchTask searches for one vector of a batch
+	 */
+	private final class SearchTask implements Callable<TopKHeap> {
+		private final float[] vector;
+		private final int[] ignores;
+		private final int maxNumberOfMatches;
+
+		SearchTask(float[] vector, int[] ignores, int maxNumberOfMatches) {
+
+			this.vector = vector;
+			this.ignores = ignores;
+			this.maxNumberOfMatches = maxNumberOfMatches;
+		}
+
+		@Override
+		public TopKHeap call() {
+
+			return searchOne(vector, ignores, maxNumberOfMatches);
+		}
+	}
+}
@@ -0,0 +1,201 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram counts nanosecond latencies in buckets so we can get percentiles out of them. The buckets
+ *   are log-linear: each power of two is split into 16 equal buckets, so a percentile is never more than
+ *   about 6% off, and a few hundred buckets cover everything from a nanosecond to centuries. Recording a
+ *   latency is a handful of atomic adds and never locks or allocates, so it's cheap enough to leave on.
+ *
+ * @author hulles
+ *
+ */
+final public class LatencyHistogram {
+	private final static int SUB_BUCKET_BITS = 4;
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS per power of two up to 2^62
+	private final static int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+	private final String name;
+	private final AtomicLongArray counts;
+	private final LongAdder count;
+	private final LongAdder totalNanos;
+	private final AtomicLong maxNanos;
+
+	LatencyHistogram(String name) {
+
+		SharedUtils.checkNotNull(name);
+		this.name = name;
+		counts = new AtomicLongArray(BUCKET_COUNT);
+		count = new LongAdder();
+		totalNanos = new LongAdder();
+		maxNanos = new AtomicLong();
+	}
+
+	public String getName() {
+
+		return name;
+	}
+
+	/**
+	 * Record a latency
+	 *
+	 * @param nanos The latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long currentMax;
+
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(getBucket(nanos));
+		count.increment();
+		totalNanos.add(nanos);
+		currentMax = maxNanos.get();
+		while (nanos > currentMax && !maxNanos.compareAndSet(currentMax, nanos)) {
+			currentMax = maxNanos.get();
+		}
+	}
+
+	/**
+	 * Record the latency of something that started at startNanos and just finished
+	 *
+	 * @param startNanos The System.nanoTime() when it started
+	 * @return The latency in nanoseconds
+	 */
+	public long recordSince(long startNanos) {
+		long nanos;
+
+		nanos = System.nanoTime() - startNanos;
+		record(nanos);
+		return nanos;
+	}
+
+	/**
+	 * Get the number of latencies recorded
+	 *
+	 * @return The count
+	 */
+	public long getCount() {
+
+		return count.sum();
+	}
+
+	/**
+	 * Get the mean latency
+	 *
+	 * @return The mean in nanoseconds, or 0 if nothing's been recorded
+	 */
+	public long getMeanNanos() {
+		long countNow;
+
+		countNow = count.sum();
+		return countNow == 0 ? 0 : totalNanos.sum() / countNow;
+	}
+
+	/**
+	 * Get the longest latency
+	 *
+	 * @return The maximum in nanoseconds
+	 */
+	public long getMaxNanos() {
+
+		return maxNanos.get();
+	}
+
+	/**
+	 * Get a percentile of the latencies, e.g. 99 for p99 or 99.9 for p999. It's the top of the bucket the
+	 *   percentile falls in, so it can be a few percent high but never low (except that it's never more
+	 *   than the maximum).
+	 *
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The latency in nanoseconds, or 0 if nothing's been recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		long[] snapshot;
+		long total;
+		long target;
+		long seen;
+
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("Percentile must be from 0 to 100");
+		}
+		// copy the counts first so the total and the walk agree while other threads keep recording
+		snapshot = new long[BUCKET_COUNT];
+		total = 0;
+		for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+			snapshot[bucket] = counts.get(bucket);
+			total += snapshot[bucket];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		seen = 0;
+		for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+			seen += snapshot[bucket];
+			if (seen >= target) {
+				return Math.min(getBucketTop(bucket), maxNanos.get());
+			}
+		}
+		return maxNanos.get();
+	}
+
+	private static int getBucket(long nanos) {
+		int exponent;
+		int mantissa;
+
+		if (nanos < SUB_BUCKETS) {
+			return (int) nanos;
+		}
+		exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		mantissa = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+	}
+
+	private static long getBucketBottom(int bucket) {
+		int exponent;
+		int mantissa;
+
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		mantissa = bucket % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + mantissa) << (exponent - SUB_BUCKET_BITS);
+	}
+
+	private static long getBucketTop(int bucket) {
+
+		return bucket + 1 < BUCKET_COUNT ? getBucketBottom(bucket + 1) - 1 : Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format("%s: %,d, mean %s, p50 %s, p99 %s, p999 %s, max %s", name, getCount(),
+				formatNanos(getMeanNanos()), formatNanos(getPercentileNanos(50)), formatNanos(getPercentileNanos(99)),
+				formatNanos(getPercentileNanos(99.9)), formatNanos(getMaxNanos()));
+	}
+
+	/**
+	 * Format nanoseconds in whatever unit reads best
+	 *
+	 * @param nanos The nanoseconds
+	 * @return The formatted value, e.g. "12.3 ms"
+	 */
+	static String formatNanos(long nanos) {
+
+		if (nanos < 1000L) {
+			return nanos + " ns";
+		}
+		if (nanos < 1000000L) {
+			return String.format("%.1f us", nanos / 1e3);
+		}
+		if (nanos < 1000000000L) {
+			return String.format("%.1f ms", nanos / 1e6);
+		}
+		return String.format("%.2f s", nanos / 1e9);
+	}
+}
@@ -0,0 +1,156 @@
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * LoadOptions decides which records of a word2vec file get loaded. word2vec files are sorted by word
+ *   frequency, so a maximum rank keeps just the most common words, and an allowlist brings in other words
+ *   you need wherever they are in the file. The word filter replaces the built-in check (more than one
+ *   character) for the records within the maximum rank. Records that don't make it have their vectors
+ *   skipped over without being read, and the store is only as big as the words that can make it. The
+ *   options also set the size of the buffer loadFile streams a BIN file through.
+ *   <p>
+ *   Set the options before loading; the loaders only read them.
+ *
+ * @author hulles
+ *
+ */
+final public class LoadOptions {
+	private int maxRank;
+	private Set<String> allowlist;
+	private Predicate<String> wordFilter;
+	private int readBufferBytes;
+
+	/**
+	 * Create options that load every good word, which is what the loaders do by default
+	 */
+	public LoadOptions() {
+
+		maxRank = Integer.MAX_VALUE;
+		allowlist = new HashSet<String>();
+		wordFilter = new GoodWordFilter();
+		readBufferBytes = BinRecordReader.DEFAULT_BUFFER_BYTES;
+	}
+
+	/**
+	 * Only load the first maxRank records of the file (plus any allowlisted words after them)
+	 *
+	 * @param maxRank The number of records, e.g. 200000
+	 */
+	public void setMaxRank(int maxRank) {
+
+		if (maxRank < 0) {
+			throw new IllegalArgumentException("Negative maximum rank");
+		}
+		this.maxRank = maxRank;
+	}
+
+	public int getMaxRank() {
+
+		return maxRank;
+	}
+
+	/**
+	 * Always load these words, wherever they are in the file and whatever the word filter says
+	 *
+	 * @param words The words
+	 */
+	public void setAllowlist(Collection<String> words) {
+
+		SharedUtils.checkNotNull(words);
+		allowlist = new HashSet<String>(words);
+	}
+
+	/**
+	 * Replace the check that decides whether a word within the maximum rank is worth loading; the default
+	 *   rejects one-character words
+	 *
+	 * @param wordFilter The filter, which returns true to load the word
+	 */
+	public void setWordFilter(Predicate<String> wordFilter) {
+
+		SharedUtils.checkNotNull(wordFilter);
+		this.wordFilter = wordFilter;
+	}
+
+	/**
+	 * Set the size of the buffer a BIN file is read through by loadFile; the whole file never has to fit
+	 *   in memory, just this much of it
+	 *
+	 * @param readBufferBytes The buffer size; the default is 8MB
+	 */
+	public void setReadBufferBytes(int readBufferBytes) {
+
+		if (readBufferBytes < 4096) {
+			throw new IllegalArgumentException("Read buffer must be at least 4096 bytes");
+		}
+		this.readBufferBytes = readBufferBytes;
+	}
+
+	public int getReadBufferBytes() {
+
+		return readBufferBytes;
+	}
+
+	/**
+	 * See if these options are the default, load-everything ones
+	 *
+	 * @return True if nothing gets left out besides what goodWord rejects
+	 */
+	boolean isDefault() {
+
+		return maxRank == Integer.MAX_VALUE && allowlist.isEmpty() && wordFilter instanceof GoodWordFilter;
+	}
+
+	/**
+	 * Decide whether to load a record
+	 *
+	 * @param word The record's word
+	 * @param rank The record's position in the file, from 0
+	 * @return True to load the record
+	 */
+	boolean accept(String word, int rank) {
+
+		if (allowlist.contains(word)) {
+			return true;
+		}
+		return rank < maxRank && wordFilter.test(word);
+	}
+
+	/**
+	 * See if there's no point in reading any further
+	 *
+	 * @param rank The position of the next record
+	 * @return True if no record from here on can be accepted
+	 */
+	boolean isFinished(int rank) {
+
+		return rank >= maxRank && allowlist.isEmpty();
+	}
+
+	/**
+	 * Get the most words that can be accepted from a file, so we don't size the store for words we
+	 *   won't load
+	 *
+	 * @param recordCount The number of records in the file
+	 * @return The most rows the store will need
+	 */
+	int getCapacity(int recordCount) {
+
+		return (int) Math.min(recordCount, (long) maxRank + allowlist.size());
+	}
+
+	/**
+	 * GoodWordFilter is the default word filter, WordToVecLoader.goodWord
+	 */
+	private static final class GoodWordFilter implements Predicate<String> {
+
+		@Override
+		public boolean test(String word) {
+
+			return WordToVecLoader.goodWord(word);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.logging.Level;
+
+/**
+ * LogMetricsReporter writes the metrics to the log, one line per metric
+ *
+ * @author hulles
+ *
+ */
+final public class LogMetricsReporter implements MetricsReporter {
+	private final static Level LOGLEVEL = Level.INFO;
+
+	@Override
+	public void report(SortedMap<String, LatencyHistogram> histograms, SortedMap<String, Long> counters,
+			SortedMap<String, Long> gauges) {
+
+		for (LatencyHistogram histogram : histograms.values()) {
+			if (histogram.getCount() > 0) {
+				SharedUtils.log(LOGLEVEL, "Metrics: " + histogram);
+			}
+		}
+		for (Map.Entry<String, Long> counter : counters.entrySet()) {
+			SharedUtils.log(LOGLEVEL, String.format("Metrics: %s = %,d", counter.getKey(), counter.getValue()));
+		}
+		for (Map.Entry<String, Long> gauge : gauges.entrySet()) {
+			SharedUtils.log(LOGLEVEL, String.format("Metrics: %s = %,d", gauge.getKey(), gauge.getValue()));
+		}
+	}
+}
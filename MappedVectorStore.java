@@ -0,0 +1,328 @@
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * MappedVectorStore reads the vectors in place from a memory-mapped word2vec BIN file instead of copying
+ *   them onto the heap. A mapped buffer can't be bigger than 2GB, so the file is mapped as a series of
+ *   segments. Each segment starts SEGMENT_STEP bytes after the previous one but runs on for one vector's
+ *   worth of bytes past that, so any vector that starts in a segment can be read entirely from it.
+ *   <p>
+ *   Opening the store only has to find where each word's vector starts, so it is much faster than
+ *   loading, and since the mapping is read-only the OS page cache can share the file between JVMs.
+ *   The vectors in the file aren't normalized; we normalize lazily, working out the length of each vector
+ *   as we score it.
+ *
+ * @author hulles
+ *
+ */
+final class MappedVectorStore implements VectorStore {
+	private final static long SEGMENT_STEP = 1L << 30;
+	private final static DistanceKernel kernel = DistanceKernels.getDefault();
+	private final MappedByteBuffer[] segments;
+	private final long[] offsets;
+	private final Vocabulary vocabulary;
+	private final int vectorSize;
+	private int recordCount;
+	private int dupeCount;
+
+	/**
+	 * Map the BIN file and find all the vectors in it. The channel can be closed afterwards; the
+	 *   mapping stays valid until the store is garbage collected.
+	 *
+	 * @param channel The file channel for the BIN file
+	 * @throws IOException
+	 */
+	MappedVectorStore(FileChannel channel) throws IOException {
+
+		this(channel, new LoadOptions());
+	}
+
+	/**
+	 * Map the BIN file and find the vectors of the records the options accept
+	 *
+	 * @param channel The file channel for the BIN file
+	 * @param options Which records to use
+	 * @throws IOException
+	 */
+	MappedVectorStore(FileChannel channel, LoadOptions options) throws IOException {
+		long fileSize;
+		int segmentCount;
+		long segmentStart;
+		long segmentSize;
+		long position;
+		int[] header;
+		int vocabSize;
+
+		SharedUtils.checkNotNull(channel);
+		SharedUtils.checkNotNull(options);
+		fileSize = channel.size();
+		// map the first segment with no overlap so we can read the header
+		header = new int[2];
+		segmentCount = (int) ((fileSize + SEGMENT_STEP - 1) / SEGMENT_STEP);
+		segments = new MappedByteBuffer[Math.max(1, segmentCount)];
+		segments[0] = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(fileSize, SEGMENT_STEP));
+		position = readHeader(header);
+		vocabSize = header[0];
+		vectorSize = header[1];
+		if (!(vocabSize > 0) || !(vectorSize > 0)) {
+			throw new WordToVecException("Invalid vocab size and/or vector size");
+		}
+		for (int segmentIx = 0; segmentIx < segmentCount; segmentIx++) {
+			segmentStart = segmentIx * SEGMENT_STEP;
+			segmentSize = Math.min(fileSize - segmentStart, SEGMENT_STEP + vectorSize * 4L);
+			segments[segmentIx] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, segmentSize);
+			segments[segmentIx].order(ByteOrder.LITTLE_ENDIAN);
+		}
+		offsets = new long[options.getCapacity(vocabSize)];
+		vocabulary = new Vocabulary(offsets.length);
+		System.out.println("Mapping store for " + vocabSize + " word vectors, dimension " + vectorSize);
+		findVectors(position, vocabSize, fileSize, options);
+	}
+
+	/**
+	 * Read the first text line with the word and vector counts
+	 *
+	 * @param header Receives the vocabulary size and vector size
+	 * @return The file position just past the first line
+	 */
+	private long readHeader(int[] header) {
+		StringBuilder sb;
+		long position;
+		char c;
+		String[] tokens;
+
+		sb = new StringBuilder();
+		position = 0;
+		c = (char) getByte(position++);
+		while (c != '\n') {
+			sb.append(c);
+			c = (char) getByte(position++);
+		}
+		tokens = sb.toString().split(" ");
+		header[0] = Integer.parseInt(tokens[0]);
+		header[1] = Integer.parseInt(tokens[1]);
+		return position;
+	}
+
+	/**
+	 * Walk the records of the file, skipping over the vectors, and remember where each good word's vector
+	 *   starts. Like the loader, a duplicate word keeps its first row but gets the later vector. We stop
+	 *   as soon as the options can't accept anything more.
+	 *
+	 * @param position The file position of the first record
+	 * @param vocabSize The number of records
+	 * @param fileSize The size of the file
+	 * @param options Which records to use
+	 */
+	private void findVectors(long position, int vocabSize, long fileSize, LoadOptions options) {
+		byte[] wordBytes;
+		int length;
+		byte b;
+		String word;
+		int row;
+		int oldSize;
+		long vectorBytes;
+
+		wordBytes = new byte[64];
+		vectorBytes = vectorSize * 4L;
+		dupeCount = 0;
+		recordCount = 0;
+		for (int lineIx = 0; lineIx < vocabSize && !options.isFinished(lineIx); lineIx++) {
+			// this decodes exactly like BinRecordReader so both modes agree on the words
+			length = 0;
+			while ((b = getByte(position++)) != ' ') {
+				if (b != '\n') {
+					if (length == wordBytes.length) {
+						wordBytes = Arrays.copyOf(wordBytes, wordBytes.length * 2);
+					}
+					wordBytes[length++] = b;
+				}
+			}
+			word = new String(wordBytes, 0, length, StandardCharsets.UTF_8).trim();
+			if (position + vectorBytes > fileSize) {
+				throw new WordToVecException("BIN file is truncated");
+			}
+			if (options.accept(word, lineIx)) {
+				oldSize = vocabulary.size();
+				row = vocabulary.add(word);
+				if (vocabulary.size() == oldSize) {
+					dupeCount++;
+				}
+				offsets[row] = position;
+			}
+			position += vectorBytes;
+			recordCount++;
+		}
+	}
+
+	/**
+	 * Get the number of duplicate words found when the file was mapped
+	 *
+	 * @return The duplicate count
+	 */
+	int getDupeCount() {
+
+		return dupeCount;
+	}
+
+	/**
+	 * Get the number of records read from the file, including the rejected ones and duplicates
+	 *
+	 * @return The record count
+	 */
+	int getRecordCount() {
+
+		return recordCount;
+	}
+
+	private byte getByte(long position) {
+
+		return segments[(int) (position / SEGMENT_STEP)].get((int) (position % SEGMENT_STEP));
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		// the vectors stay in the page cache; we only hold the offsets and the words
+		return offsets.length * 8L + vocabulary.getMemoryBytes();
+	}
+
+	@Override
+	public int size() {
+
+		return vocabulary.size();
+	}
+
+	@Override
+	public int getVectorSize() {
+
+		return vectorSize;
+	}
+
+	@Override
+	public int getId(CharSequence word) {
+
+		return vocabulary.getId(word);
+	}
+
+	@Override
+	public int getId(byte[] bytes, int offset, int length) {
+
+		return vocabulary.getId(bytes, offset, length);
+	}
+
+	@Override
+	public String getWord(int row) {
+
+		return vocabulary.getWord(row);
+	}
+
+	/**
+	 * Get the vocabulary built when the file was mapped
+	 *
+	 * @return The vocabulary
+	 */
+	Vocabulary getVocabulary() {
+
+		return vocabulary;
+	}
+
+	@Override
+	public float[] getVector(int row) {
+		float[] vector;
+
+		vector = new float[vectorSize];
+		readVector(row, vector);
+		return WordToVecLoader.normalize(vector);
+	}
+
+	/**
+	 * The vectors in the file aren't normalized, so the weight is divided by the length of the row first
+	 */
+	@Override
+	public void addVector(int row, float weight, float[] sum) {
+		MappedByteBuffer segment;
+		int offset;
+		float len;
+
+		if (row < 0 || row >= vocabulary.size()) {
+			throw new IndexOutOfBoundsException("Bad row " + row);
+		}
+		segment = segments[(int) (offsets[row] / SEGMENT_STEP)];
+		offset = (int) (offsets[row] % SEGMENT_STEP);
+		len = kernel.length(segment, offset, vectorSize);
+		if (len == 0) {
+			return;
+		}
+		weight /= len;
+		for (int ix = 0; ix < vectorSize; ix++, offset += 4) {
+			sum[ix] += weight * segment.getFloat(offset);
+		}
+	}
+
+	/**
+	 * Read the raw (un-normalized) vector in the given row from the file
+	 *
+	 * @param row The row
+	 * @param vector Receives the vector values
+	 */
+	void readVector(int row, float[] vector) {
+		MappedByteBuffer segment;
+		int offset;
+
+		if (row < 0 || row >= vocabulary.size()) {
+			throw new IndexOutOfBoundsException("Bad row " + row);
+		}
+		segment = segments[(int) (offsets[row] / SEGMENT_STEP)];
+		offset = (int) (offsets[row] % SEGMENT_STEP);
+		for (int ix = 0; ix < vectorSize; ix++, offset += 4) {
+			vector[ix] = segment.getFloat(offset);
+		}
+	}
+
+	@Override
+	public float score(float[] vector, int row) {
+		MappedByteBuffer segment;
+		int offset;
+
+		if (row < 0 || row >= vocabulary.size()) {
+			throw new IndexOutOfBoundsException("Bad row " + row);
+		}
+		segment = segments[(int) (offsets[row] / SEGMENT_STEP)];
+		offset = (int) (offsets[row] % SEGMENT_STEP);
+		return kernel.dot(vector, 0, segment, offset, vectorSize) / kernel.length(segment, offset, vectorSize);
+	}
+
+	@Override
+	public QueryBlock prepareQueries(float[][] vectors) {
+
+		return new QueryBlock(vectors);
+	}
+
+	/**
+	 * The length of each row is worked out first, then the row is scored against every query while it's
+	 *   still in the cache
+	 */
+	@Override
+	public void scan(QueryBlock queries, int fromRow, int toRow, float[][] distances) {
+		float[][] vectors;
+		MappedByteBuffer segment;
+		int offset;
+		float len;
+
+		vectors = queries.getVectors();
+		for (int row = fromRow; row < toRow; row++) {
+			segment = segments[(int) (offsets[row] / SEGMENT_STEP)];
+			offset = (int) (offsets[row] % SEGMENT_STEP);
+			len = kernel.length(segment, offset, vectorSize);
+			for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+				distances[queryIx][row - fromRow] = kernel.dot(vectors[queryIx], 0, segment, offset, vectorSize) / len;
+			}
+		}
+	}
+}
@@ -0,0 +1,16 @@
+
+/**
+ * MetricsGauge is a value that's worked out when the metrics are read, e.g. how much memory a model takes
+ *
+ * @author hulles
+ *
+ */
+public interface MetricsGauge {
+
+	/**
+	 * Get the current value; it should be quick, and safe to call from any thread
+	 *
+	 * @return The value
+	 */
+	long getValue();
+}
@@ -0,0 +1,23 @@
+
+import java.util.SortedMap;
+
+/**
+ * MetricsReporter sends the metrics somewhere, e.g. to a log or a monitoring system. Hand one to
+ *   WordToVecMetrics.startReporting to have it called regularly.
+ *
+ * @author hulles
+ *
+ */
+public interface MetricsReporter {
+
+	/**
+	 * Report the metrics. The histograms are live and keep counting; the counters and gauges are the
+	 *   values when the report started.
+	 *
+	 * @param histograms The latency histograms by name
+	 * @param counters The counter values by name
+	 * @param gauges The gauge values by name
+	 */
+	void report(SortedMap<String, LatencyHistogram> histograms, SortedMap<String, Long> counters,
+			SortedMap<String, Long> gauges);
+}
@@ -0,0 +1,324 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * NeighborTable holds the best matches of the most frequent words, worked out ahead of time, so a word
+ *   match for one of them is a lookup instead of a scan. The matches for a word don't change unless the
+ *   vectors do, so there's no point in scanning 3 million vectors every time somebody asks about "king".
+ *   <p>
+ *   The table is built offline with an exact search of the full-precision vectors, the words a block at a
+ *   time so each pass over the vectors serves a whole block (in effect a blocked matrix product), and the
+ *   blocks in parallel on the pool. It's written to a file with the row ids and cosine distances of each
+ *   word's matches side by side, k of each, and the file is memory-mapped when it's loaded, so the table
+ *   takes no heap and opens instantly. The matches are exactly what an exact search would find.
+ *
+ * @author hulles
+ *
+ */
+final class NeighborTable {
+	private final static int MAGIC = 0x5732544E;
+	private final static int VERSION = 1;
+	private final static int HEADER_BYTES = 64;
+	private final static int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 8;
+	private final static int WRITE_BLOCK_BYTES = 1 << 20;
+	// the number of words that share one pass over the vectors
+	private final static int QUERY_BLOCK = 64;
+	// the number of query blocks searched between writes, so the whole table never has to be in memory
+	private final static int BLOCKS_PER_WRITE = 64;
+	// a row id that pads out the matches of a word that has fewer than k
+	private final static int NO_MATCH = -1;
+	private final int rowCount;
+	private final int maxNumberOfMatches;
+	private final int rowsPerChunk;
+	private final ByteBuffer[] chunks;
+
+	private NeighborTable(int rowCount, int maxNumberOfMatches, ByteBuffer[] chunks) {
+
+		this.rowCount = rowCount;
+		this.maxNumberOfMatches = maxNumberOfMatches;
+		this.rowsPerChunk = getRowsPerChunk(maxNumberOfMatches);
+		this.chunks = chunks;
+	}
+
+	private static int getRowsPerChunk(int maxNumberOfMatches) {
+
+		return MAX_CHUNK_BYTES / (maxNumberOfMatches * 8);
+	}
+
+	/**
+	 * Find the best matches for the first rowCount rows (the most frequent words) and write them to a file
+	 *
+	 * @param store The full-precision vectors
+	 * @param fileName The file to write the table to
+	 * @param rowCount The number of words to find matches for, e.g. 500000
+	 * @param maxNumberOfMatches The number of matches to keep for each word
+	 * @param pool The pool to search in parallel with, or null to search on the calling thread
+	 */
+	static void build(VectorStore store, String fileName, int rowCount, int maxNumberOfMatches, ForkJoinPool pool) {
+		SearchBackend exactBackend;
+		FileChannel channel;
+		ByteBuffer buffer;
+		List<BlockTask> tasks;
+		int[] ids;
+		float[] scores;
+		int count;
+		long startNanos;
+
+		SharedUtils.checkNotNull(store);
+		SharedUtils.checkNotNull(fileName);
+		if (rowCount < 1 || maxNumberOfMatches < 1) {
+			throw new IllegalArgumentException("Row count and number of matches must be at least 1");
+		}
+		startNanos = System.nanoTime();
+		rowCount = Math.min(rowCount, store.size());
+		System.out.println(String.format("Building neighbor table of %,d matches for %,d words",
+				maxNumberOfMatches, rowCount));
+		exactBackend = new ExactSearchBackend(store);
+		ids = new int[maxNumberOfMatches];
+		scores = new float[maxNumberOfMatches];
+		buffer = ByteBuffer.allocate(WRITE_BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		tasks = new ArrayList<BlockTask>(BLOCKS_PER_WRITE);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				buffer.putInt(MAGIC).putInt(VERSION).putInt(store.size()).putInt(store.getVectorSize());
+				buffer.putInt(rowCount).putInt(maxNumberOfMatches).putLong(getVocabularyHash(store, rowCount));
+				buffer.position(HEADER_BYTES);
+				for (int fromRow = 0; fromRow < rowCount; fromRow += QUERY_BLOCK * BLOCKS_PER_WRITE) {
+					tasks.clear();
+					for (int blockRow = fromRow; blockRow < Math.min(rowCount, fromRow + QUERY_BLOCK * BLOCKS_PER_WRITE);
+							blockRow += QUERY_BLOCK) {
+						tasks.add(new BlockTask(store, exactBackend, blockRow, Math.min(rowCount, blockRow + QUERY_BLOCK),
+								maxNumberOfMatches));
+					}
+					for (TopKHeap[] heaps : SharedUtils.runTasks(tasks, pool)) {
+						for (TopKHeap heap : heaps) {
+							count = heap.drain(ids, scores);
+							if (buffer.remaining() < maxNumberOfMatches * 8) {
+								writeBuffer(channel, buffer);
+							}
+							for (int matchIx = 0; matchIx < maxNumberOfMatches; matchIx++) {
+								buffer.putInt(matchIx < count ? ids[matchIx] : NO_MATCH);
+							}
+							for (int matchIx = 0; matchIx < maxNumberOfMatches; matchIx++) {
+								buffer.putFloat(matchIx < count ? scores[matchIx] : 0);
+							}
+						}
+					}
+				}
+				writeBuffer(channel, buffer);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to write neighbor table");
+		}
+		WordToVecMetrics.stopTimer("build.neighbors", startNanos);
+	}
+
+	private static void writeBuffer(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Work out a hash of the words the table covers, so a table built from a different file (or with
+	 *   different load options) is caught instead of answering with the wrong words. The index files use
+	 *   it too, over all the rows.
+	 *
+	 * @param store The store
+	 * @param rowCount The number of rows the table covers
+	 * @return The hash
+	 */
+	static long getVocabularyHash(VectorStore store, int rowCount) {
+		long hash;
+
+		hash = rowCount;
+		for (int row = 0; row < rowCount; row++) {
+			hash = hash * 31 + store.getWord(row).hashCode();
+		}
+		return hash;
+	}
+
+	/**
+	 * Map a table file written by build; it has to have been built from the same BIN file, loaded with the
+	 *   same load options, as the store
+	 *
+	 * @param fileName The file to map
+	 * @param store The store the table goes with
+	 * @return The table
+	 */
+	static NeighborTable load(String fileName, VectorStore store) {
+		FileChannel channel;
+		ByteBuffer header;
+		ByteBuffer[] chunks;
+		int size;
+		int vectorSize;
+		int rowCount;
+		int maxNumberOfMatches;
+		long vocabularyHash;
+		int rowsPerChunk;
+		int rows;
+		long position;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(store);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			try {
+				header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), HEADER_BYTES))
+						.order(ByteOrder.LITTLE_ENDIAN);
+				if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+					throw new WordToVecException("Not a neighbor table file: " + fileName);
+				}
+				size = header.getInt();
+				vectorSize = header.getInt();
+				rowCount = header.getInt();
+				maxNumberOfMatches = header.getInt();
+				vocabularyHash = header.getLong();
+				if (size != store.size() || vectorSize != store.getVectorSize() ||
+						vocabularyHash != getVocabularyHash(store, rowCount)) {
+					throw new WordToVecException("Neighbor table doesn't match the loaded file");
+				}
+				if (channel.size() < HEADER_BYTES + (long) rowCount * maxNumberOfMatches * 8) {
+					throw new WordToVecException("Neighbor table file is truncated: " + fileName);
+				}
+				rowsPerChunk = getRowsPerChunk(maxNumberOfMatches);
+				chunks = new ByteBuffer[(rowCount + rowsPerChunk - 1) / rowsPerChunk];
+				position = HEADER_BYTES;
+				for (int chunkIx = 0; chunkIx < chunks.length; chunkIx++) {
+					rows = Math.min(rowsPerChunk, rowCount - chunkIx * rowsPerChunk);
+					chunks[chunkIx] = channel.map(FileChannel.MapMode.READ_ONLY, position,
+							(long) rows * maxNumberOfMatches * 8).order(ByteOrder.LITTLE_ENDIAN);
+					position += (long) rows * maxNumberOfMatches * 8;
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to read neighbor table");
+		}
+		System.out.println(String.format("Neighbor table of %,d matches for %,d words", maxNumberOfMatches, rowCount));
+		return new NeighborTable(rowCount, maxNumberOfMatches, chunks);
+	}
+
+	/**
+	 * Get the number of words the table has matches for
+	 *
+	 * @return The row count
+	 */
+	int getRowCount() {
+
+		return rowCount;
+	}
+
+	/**
+	 * Get the number of matches the table keeps for each word
+	 *
+	 * @return The k it was built with
+	 */
+	int getMaxNumberOfMatches() {
+
+		return maxNumberOfMatches;
+	}
+
+	/**
+	 * See if the table can answer a search
+	 *
+	 * @param row The row of the word
+	 * @param count The number of matches wanted
+	 * @return True if the table has at least that many matches for the row
+	 */
+	boolean covers(int row, int count) {
+
+		return row >= 0 && row < rowCount && count <= maxNumberOfMatches;
+	}
+
+	/**
+	 * Get the best matches of a row from the table
+	 *
+	 * @param store The store the row ids belong to
+	 * @param row The row of the word; the table has to cover it
+	 * @param count The number of matches wanted
+	 * @return The matches, best first
+	 */
+	WordMatches getMatches(VectorStore store, int row, int count) {
+		ByteBuffer chunk;
+		int offset;
+		int[] ids;
+		float[] scores;
+		int id;
+		int found;
+
+		chunk = chunks[row / rowsPerChunk];
+		offset = (row % rowsPerChunk) * maxNumberOfMatches * 8;
+		ids = new int[count];
+		scores = new float[count];
+		found = 0;
+		while (found < count) {
+			id = chunk.getInt(offset + found * 4);
+			if (id == NO_MATCH) {
+				break;
+			}
+			ids[found] = id;
+			scores[found] = chunk.getFloat(offset + (maxNumberOfMatches + found) * 4);
+			found++;
+		}
+		if (found < count) {
+			ids = Arrays.copyOf(ids, found);
+			scores = Arrays.copyOf(scores, found);
+		}
+		return new WordMatches(store, ids, scores);
+	}
+
+	/**
+	 * BlockTask finds the best matches of a block of rows, leaving each row out of its own matches
+	 */
+	private static final class BlockTask implements Callable<TopKHeap[]> {
+		private final VectorStore store;
+		private final SearchBackend exactBackend;
+		private final int fromRow;
+		private final int toRow;
+		private final int maxNumberOfMatches;
+
+		BlockTask(VectorStore store, SearchBackend exactBackend, int fromRow, int toRow, int maxNumberOfMatches) {
+
+			this.store = store;
+			this.exactBackend = exactBackend;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+			this.maxNumberOfMatches = maxNumberOfMatches;
+		}
+
+		@Override
+		public TopKHeap[] call() {
+			float[][] vectors;
+			int[][] ignores;
+
+			vectors = new float[toRow - fromRow][];
+			ignores = new int[toRow - fromRow][];
+			for (int row = fromRow; row < toRow; row++) {
+				vectors[row - fromRow] = store.getVector(row);
+				ignores[row - fromRow] = new int[] { row };
+			}
+			return exactBackend.search(vectors, ignores, maxNumberOfMatches, null);
+		}
+	}
+}
@@ -0,0 +1,539 @@
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ProductQuantizationIndex is a very compact search backend. Each vector is cut into subspaceCount
+ *   pieces, and each piece is replaced by the number (one byte) of the nearest of 256 centroids that
+ *   k-means found for that piece, so a 500-float vector shrinks to e.g. 50 bytes. To search, we work out
+ *   the dot product of each piece of the query with every centroid of that piece once, and then the
+ *   (approximate) distance of any word is just subspaceCount table lookups added up.
+ *   <p>
+ *   The index only holds the codes; the words and the full vectors come from the store it was built
+ *   from, so it has to be used with the same BIN file. Wrap it in a RerankingSearchBackend to get exact
+ *   distances for the best matches.
+ *
+ * @author hulles
+ *
+ */
+final class ProductQuantizationIndex implements SearchBackend {
+	private final static int MAGIC = 0x57325650;
+	private final static int VERSION = 2;
+	private final static int MAX_CENTROIDS = 256;
+	private final static int MAX_CHUNK_CODES = Integer.MAX_VALUE - 8;
+	private final static long RANDOM_SEED = 20131016L;
+	// rows per partition when searching with a pool
+	private final static int PARTITION_ROWS = 1 << 16;
+	// what the scans get through, for WordToVecMetrics
+	private final static LongAdder vectorsScanned = WordToVecMetrics.getCounter("vectors.scanned");
+	private final static LongAdder candidatesAccepted = WordToVecMetrics.getCounter("candidates.accepted");
+	private final int size;
+	private final int vectorSize;
+	private final int subspaceCount;
+	private final int centroidCount;
+	// subspace m covers dimensions subspaceStarts[m] up to subspaceStarts[m + 1]
+	private final int[] subspaceStarts;
+	// the centroids of subspace m, one after the other
+	private final float[][] centroids;
+	private final int rowsPerChunk;
+	private final byte[][] codeChunks;
+
+	private ProductQuantizationIndex(int size, int vectorSize, int subspaceCount, int centroidCount) {
+		int chunkCount;
+		int rows;
+
+		if (subspaceCount < 1 || subspaceCount > vectorSize) {
+			throw new IllegalArgumentException("Subspace count must be between 1 and the vector size");
+		}
+		this.size = size;
+		this.vectorSize = vectorSize;
+		this.subspaceCount = subspaceCount;
+		this.centroidCount = centroidCount;
+		subspaceStarts = new int[subspaceCount + 1];
+		for (int subspaceIx = 0; subspaceIx <= subspaceCount; subspaceIx++) {
+			subspaceStarts[subspaceIx] = subspaceIx * vectorSize / subspaceCount;
+		}
+		centroids = new float[subspaceCount][];
+		for (int subspaceIx = 0; subspaceIx < subspaceCount; subspaceIx++) {
+			centroids[subspaceIx] = new float[centroidCount * getSubspaceSize(subspaceIx)];
+		}
+		rowsPerChunk = MAX_CHUNK_CODES / subspaceCount;
+		chunkCount = (int) (((long) size + rowsPerChunk - 1) / rowsPerChunk);
+		codeChunks = new byte[chunkCount][];
+		for (int chunkIx = 0; chunkIx < chunkCount; chunkIx++) {
+			rows = Math.min(rowsPerChunk, size - chunkIx * rowsPerChunk);
+			codeChunks[chunkIx] = new byte[rows * subspaceCount];
+		}
+	}
+
+	/**
+	 * Build an index from the (normalized) vectors of a store
+	 *
+	 * @param store The store
+	 * @param subspaceCount The number of pieces to cut each vector into, which is the number of bytes per word
+	 * @param trainingSize The number of vectors to train the centroids on
+	 * @param iterations The number of k-means iterations
+	 * @param pool The pool to build in parallel with, or null to build on the calling thread
+	 * @return The index
+	 */
+	static ProductQuantizationIndex build(VectorStore store, int subspaceCount, int trainingSize, int iterations,
+			ForkJoinPool pool) {
+		ProductQuantizationIndex index;
+		float[][] training;
+		int[] trainingRows;
+		List<Callable<Void>> tasks;
+		long startNanos;
+
+		SharedUtils.checkNotNull(store);
+		if (store.size() < 1) {
+			throw new WordToVecException("Can't build an index of an empty store");
+		}
+		startNanos = System.nanoTime();
+		trainingRows = sampleRows(store.size(), Math.max(1, Math.min(trainingSize, store.size())));
+		training = new float[trainingRows.length][];
+		for (int sampleIx = 0; sampleIx < trainingRows.length; sampleIx++) {
+			training[sampleIx] = store.getVector(trainingRows[sampleIx]);
+		}
+		index = new ProductQuantizationIndex(store.size(), store.getVectorSize(), subspaceCount,
+				Math.min(MAX_CENTROIDS, training.length));
+		System.out.println("Training product quantizer: " + subspaceCount + " subspaces, " + index.centroidCount +
+				" centroids, " + training.length + " training vectors");
+		tasks = new ArrayList<Callable<Void>>(subspaceCount);
+		for (int subspaceIx = 0; subspaceIx < subspaceCount; subspaceIx++) {
+			tasks.add(index.new TrainTask(subspaceIx, training, iterations));
+		}
+		SharedUtils.runTasks(tasks, pool);
+		System.out.println("Encoding " + store.size() + " vectors");
+		tasks.clear();
+		for (int fromRow = 0; fromRow < store.size(); fromRow += PARTITION_ROWS) {
+			tasks.add(index.new EncodeTask(store, fromRow, Math.min(store.size(), fromRow + PARTITION_ROWS)));
+		}
+		SharedUtils.runTasks(tasks, pool);
+		WordToVecMetrics.stopTimer("build.pq", startNanos);
+		return index;
+	}
+
+	/**
+	 * Pick rows spread through the whole vocabulary, the same ones every time
+	 *
+	 * @param size The number of rows
+	 * @param count The number of rows to pick
+	 * @return The picked rows
+	 */
+	static int[] sampleRows(int size, int count) {
+		int[] rows;
+		Random random;
+		int pickIx;
+		int swap;
+
+		// a partial Fisher-Yates shuffle of the first count rows
+		random = new Random(RANDOM_SEED);
+		rows = new int[size];
+		for (int row = 0; row < size; row++) {
+			rows[row] = row;
+		}
+		for (int ix = 0; ix < count; ix++) {
+			pickIx = ix + random.nextInt(size - ix);
+			swap = rows[ix];
+			rows[ix] = rows[pickIx];
+			rows[pickIx] = swap;
+		}
+		return Arrays.copyOf(rows, count);
+	}
+
+	private int getSubspaceSize(int subspaceIx) {
+
+		return subspaceStarts[subspaceIx + 1] - subspaceStarts[subspaceIx];
+	}
+
+	/**
+	 * Find the nearest centroid (by Euclidean distance) to a piece of a vector
+	 *
+	 * @param subspaceIx The subspace
+	 * @param vector The vector
+	 * @param offset The offset of the piece in the vector
+	 * @param centroidLimit The number of centroids to consider
+	 * @return The number of the nearest centroid
+	 */
+	private int nearestCentroid(int subspaceIx, float[] vector, int offset, int centroidLimit) {
+		float[] subspaceCentroids;
+		int subspaceSize;
+		int best;
+		float bestDistance;
+		float distance;
+		float diff;
+
+		subspaceCentroids = centroids[subspaceIx];
+		subspaceSize = getSubspaceSize(subspaceIx);
+		best = 0;
+		bestDistance = Float.MAX_VALUE;
+		for (int centroidIx = 0; centroidIx < centroidLimit; centroidIx++) {
+			distance = 0f;
+			for (int ix = 0; ix < subspaceSize; ix++) {
+				diff = vector[offset + ix] - subspaceCentroids[centroidIx * subspaceSize + ix];
+				distance += diff * diff;
+			}
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = centroidIx;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Get the memory taken by the codes and centroids, in bytes
+	 *
+	 * @return The size of the index
+	 */
+	long getIndexBytes() {
+
+		return (long) size * subspaceCount + (long) centroidCount * vectorSize * 4;
+	}
+
+	int size() {
+
+		return size;
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		return getIndexBytes();
+	}
+
+	@Override
+	public TopKHeap[] search(float[][] vectors, int[][] ignores, int maxNumberOfMatches, ForkJoinPool pool) {
+		float[][] tables;
+		TopKHeap[] bestMatches;
+		List<Callable<TopKHeap[]>> tasks;
+
+		SharedUtils.checkNotNull(vectors);
+		SharedUtils.checkNotNull(ignores);
+		tables = new float[vectors.length][];
+		for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+			tables[queryIx] = buildTable(vectors[queryIx]);
+		}
+		if (pool == null || size <= PARTITION_ROWS) {
+			bestMatches = TopKHeap.newHeaps(vectors.length, maxNumberOfMatches);
+			scanCodes(tables, ignores, bestMatches, 0, size);
+			return bestMatches;
+		}
+		tasks = new ArrayList<Callable<TopKHeap[]>>();
+		for (int fromRow = 0; fromRow < size; fromRow += PARTITION_ROWS) {
+			tasks.add(new SearchTask(tables, ignores, maxNumberOfMatches, fromRow, Math.min(size, fromRow + PARTITION_ROWS)));
+		}
+		bestMatches = null;
+		for (TopKHeap[] partitionMatches : SharedUtils.runTasks(tasks, pool)) {
+			if (bestMatches == null) {
+				bestMatches = partitionMatches;
+				continue;
+			}
+			for (int queryIx = 0; queryIx < bestMatches.length; queryIx++) {
+				bestMatches[queryIx].merge(partitionMatches[queryIx]);
+			}
+		}
+		return bestMatches;
+	}
+
+	/**
+	 * Work out the dot product of each piece of the query with every centroid for that piece
+	 *
+	 * @param vector The normalized query vector
+	 * @return The lookup table; the entry for centroid c of subspace m is at m * centroidCount + c
+	 */
+	private float[] buildTable(float[] vector) {
+		float[] table;
+		float[] subspaceCentroids;
+		int subspaceSize;
+		int start;
+		float sum;
+
+		if (vector.length != vectorSize) {
+			throw new WordToVecException("Vector size mismatch");
+		}
+		table = new float[subspaceCount * centroidCount];
+		for (int subspaceIx = 0; subspaceIx < subspaceCount; subspaceIx++) {
+			subspaceCentroids = centroids[subspaceIx];
+			subspaceSize = getSubspaceSize(subspaceIx);
+			start = subspaceStarts[subspaceIx];
+			for (int centroidIx = 0; centroidIx < centroidCount; centroidIx++) {
+				sum = 0f;
+				for (int ix = 0; ix < subspaceSize; ix++) {
+					sum += vector[start + ix] * subspaceCentroids[centroidIx * subspaceSize + ix];
+				}
+				table[subspaceIx * centroidCount + centroidIx] = sum;
+			}
+		}
+		return table;
+	}
+
+	/**
+	 * Score a range of rows from their codes with the lookup tables
+	 *
+	 * @param tables The lookup table for each query
+	 * @param ignores Row ids to ignore for each query
+	 * @param bestMatches The heaps that collect the best matches for each query
+	 * @param fromRow The first row, inclusive
+	 * @param toRow The last row, exclusive
+	 */
+	private void scanCodes(float[][] tables, int[][] ignores, TopKHeap[] bestMatches, int fromRow, int toRow) {
+		byte[] chunk;
+		float[] table;
+		float[] leastBestDistances;
+		int offset;
+		float distance;
+		int accepted;
+
+		leastBestDistances = new float[tables.length];
+		accepted = 0;
+		for (int queryIx = 0; queryIx < tables.length; queryIx++) {
+			leastBestDistances[queryIx] = bestMatches[queryIx].getLeastScore();
+		}
+		for (int row = fromRow; row < toRow; row++) {
+			chunk = codeChunks[row / rowsPerChunk];
+			offset = (row % rowsPerChunk) * subspaceCount;
+			for (int queryIx = 0; queryIx < tables.length; queryIx++) {
+				table = tables[queryIx];
+				distance = 0f;
+				for (int subspaceIx = 0; subspaceIx < subspaceCount; subspaceIx++) {
+					distance += table[subspaceIx * centroidCount + (chunk[offset + subspaceIx] & 0xFF)];
+				}
+				if (distance > leastBestDistances[queryIx] && !SearchBackend.isIgnored(ignores[queryIx], row)) {
+					bestMatches[queryIx].offer(row, distance);
+					leastBestDistances[queryIx] = bestMatches[queryIx].getLeastScore();
+					accepted++;
+				}
+			}
+		}
+		vectorsScanned.add((long) (toRow - fromRow) * tables.length);
+		candidatesAccepted.add(accepted);
+	}
+
+	/**
+	 * Save the index to a file, along with a hash of the store's words so load can tell if it's given
+	 *   a different file
+	 *
+	 * @param fileName The file to write
+	 * @param store The store the index was built from
+	 */
+	void save(String fileName, VectorStore store) {
+		DataOutputStream out;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(store);
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 20));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(size);
+				out.writeInt(vectorSize);
+				out.writeLong(NeighborTable.getVocabularyHash(store, size));
+				out.writeInt(subspaceCount);
+				out.writeInt(centroidCount);
+				for (float[] subspaceCentroids : centroids) {
+					for (float value : subspaceCentroids) {
+						out.writeFloat(value);
+					}
+				}
+				for (byte[] chunk : codeChunks) {
+					out.write(chunk);
+				}
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to write product quantization index");
+		}
+	}
+
+	/**
+	 * Load an index from a file; it has to have been built from the same BIN file, loaded with the same
+	 *   load options, as the store
+	 *
+	 * @param fileName The file to read
+	 * @param store The store the index goes with
+	 * @return The index
+	 */
+	static ProductQuantizationIndex load(String fileName, VectorStore store) {
+		DataInputStream in;
+		ProductQuantizationIndex index;
+		int indexSize;
+		int indexVectorSize;
+		long vocabularyHash;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(store);
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 20));
+			try {
+				if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+					throw new WordToVecException("Not a product quantization index file: " + fileName);
+				}
+				indexSize = in.readInt();
+				indexVectorSize = in.readInt();
+				vocabularyHash = in.readLong();
+				if (indexSize != store.size() || indexVectorSize != store.getVectorSize() ||
+						vocabularyHash != NeighborTable.getVocabularyHash(store, indexSize)) {
+					throw new WordToVecException("Product quantization index doesn't match the loaded file");
+				}
+				index = new ProductQuantizationIndex(indexSize, indexVectorSize, in.readInt(), in.readInt());
+				for (float[] subspaceCentroids : index.centroids) {
+					for (int ix = 0; ix < subspaceCentroids.length; ix++) {
+						subspaceCentroids[ix] = in.readFloat();
+					}
+				}
+				for (byte[] chunk : index.codeChunks) {
+					in.readFully(chunk);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to read product quantization index");
+		}
+		return index;
+	}
+
+	/**
+	 * TrainTask runs k-means on one subspace of the training vectors
+	 */
+	private final class TrainTask implements Callable<Void> {
+		private final int subspaceIx;
+		private final float[][] training;
+		private final int iterations;
+
+		TrainTask(int subspaceIx, float[][] training, int iterations) {
+
+			this.subspaceIx = subspaceIx;
+			this.training = training;
+			this.iterations = iterations;
+		}
+
+		@Override
+		public Void call() {
+			float[] subspaceCentroids;
+			double[] sums;
+			int[] counts;
+			int[] seeds;
+			int subspaceSize;
+			int start;
+			int centroidIx;
+			Random random;
+
+			subspaceCentroids = centroids[subspaceIx];
+			subspaceSize = getSubspaceSize(subspaceIx);
+			start = subspaceStarts[subspaceIx];
+			random = new Random(RANDOM_SEED + subspaceIx);
+			// start from distinct training vectors
+			seeds = sampleRows(training.length, centroidCount);
+			for (centroidIx = 0; centroidIx < centroidCount; centroidIx++) {
+				System.arraycopy(training[seeds[centroidIx]], start, subspaceCentroids, centroidIx * subspaceSize, subspaceSize);
+			}
+			sums = new double[subspaceCentroids.length];
+			counts = new int[centroidCount];
+			for (int iteration = 0; iteration < iterations; iteration++) {
+				Arrays.fill(sums, 0.0);
+				Arrays.fill(counts, 0);
+				for (float[] vector : training) {
+					centroidIx = nearestCentroid(subspaceIx, vector, start, centroidCount);
+					counts[centroidIx]++;
+					for (int ix = 0; ix < subspaceSize; ix++) {
+						sums[centroidIx * subspaceSize + ix] += vector[start + ix];
+					}
+				}
+				for (centroidIx = 0; centroidIx < centroidCount; centroidIx++) {
+					if (counts[centroidIx] == 0) {
+						// an empty cluster gets a fresh start from a random training vector
+						System.arraycopy(training[random.nextInt(training.length)], start, subspaceCentroids,
+								centroidIx * subspaceSize, subspaceSize);
+						continue;
+					}
+					for (int ix = 0; ix < subspaceSize; ix++) {
+						subspaceCentroids[centroidIx * subspaceSize + ix] =
+								(float) (sums[centroidIx * subspaceSize + ix] / counts[centroidIx]);
+					}
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * EncodeTask works out the codes for a range of rows
+	 */
+	private final class EncodeTask implements Callable<Void> {
+		private final VectorStore store;
+		private final int fromRow;
+		private final int toRow;
+
+		EncodeTask(VectorStore store, int fromRow, int toRow) {
+
+			this.store = store;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		public Void call() {
+			float[] vector;
+			byte[] chunk;
+			int offset;
+
+			for (int row = fromRow; row < toRow; row++) {
+				vector = store.getVector(row);
+				chunk = codeChunks[row / rowsPerChunk];
+				offset = (row % rowsPerChunk) * subspaceCount;
+				for (int subspaceIx = 0; subspaceIx < subspaceCount; subspaceIx++) {
+					chunk[offset + subspaceIx] = (byte) nearestCentroid(subspaceIx, vector,
+							subspaceStarts[subspaceIx], centroidCount);
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * SearchTask scans a partition of the rows for search
+	 */
+	private final class SearchTask implements Callable<TopKHeap[]> {
+		private final float[][] tables;
+		private final int[][] ignores;
+		private final int maxNumberOfMatches;
+		private final int fromRow;
+		private final int toRow;
+
+		SearchTask(float[][] tables, int[][] ignores, int maxNumberOfMatches, int fromRow, int toRow) {
+
+			this.tables = tables;
+			this.ignores = ignores;
+			this.maxNumberOfMatches = maxNumberOfMatches;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+
+		@Override
+		public TopKHeap[] call() {
+			TopKHeap[] bestMatches;
+
+			bestMatches = TopKHeap.newHeaps(tables.length, maxNumberOfMatches);
+			scanCodes(tables, ignores, bestMatches, fromRow, toRow);
+			return bestMatches;
+		}
+	}
+}
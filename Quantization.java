@@ -0,0 +1,15 @@
+
+/**
+ * Quantization is how a QuantizedVectorStore squeezes the (normalized) vectors down
+ * 
+ * @author hulles
+ *
+ */
+public enum Quantization {
+	/** One byte per value, with a scale for each dimension; a quarter of the memory of floats */
+	INT8_PER_DIMENSION,
+	/** One byte per value, with a scale for each vector; a quarter of the memory of floats */
+	INT8_PER_VECTOR,
+	/** A 16-bit half-precision float per value; half the memory of floats */
+	FLOAT16
+}
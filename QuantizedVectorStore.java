@@ -0,0 +1,417 @@
+
+/**
+ * QuantizedVectorStore keeps a compressed copy of the normalized vectors of another store, as bytes
+ *   (with a scale for each dimension or for each vector) or as half-precision floats, which cuts the
+ *   memory the vectors take by a factor of 2 to 4. Searches scan the compressed codes, so the distances
+ *   are a little off; RerankingSearchBackend fixes that up by re-scoring the best candidates against the
+ *   full-precision source store, which is usually a MappedVectorStore so the full vectors stay on disk.
+ *   <p>
+ *   The queries are quantized too, once per search, so the scans are integer (int8) or half-precision
+ *   (FLOAT16) dot products done by the distance kernel, a register's worth at a time with the SIMD kernel,
+ *   and a scan reads a quarter or a half of the bytes a FlatVectorStore scan does. Each row of codes (and
+ *   each quantized query) is padded with zeros to a multiple of 32 values, so the SIMD kernel never has
+ *   to finish a row off one value at a time; for 300 dimensions that's 320 codes.
+ *   <p>
+ *   Words, row ids and getVector all come straight from the source store.
+ *
+ * @author hulles
+ *
+ */
+final class QuantizedVectorStore implements VectorStore {
+	private final static int MAX_CHUNK_CODES = Integer.MAX_VALUE - 8;
+	private final static float INT8_MAX = 127f;
+	// the smallest normal half-precision float, 2^-14
+	private final static float HALF_MIN_NORMAL = 0x1p-14f;
+	// rows of codes are padded with zeros to a multiple of this, so the kernels never have a scalar tail
+	private final static int CODE_ALIGNMENT = 32;
+	private final static DistanceKernel kernel = DistanceKernels.getDefault();
+	private final VectorStore source;
+	private final Quantization quantization;
+	private final int vectorSize;
+	private final int codeSize;
+	private final int size;
+	private final int rowsPerChunk;
+	private final byte[][] byteChunks;
+	private final short[][] halfChunks;
+	// per dimension or per vector, depending on the quantization
+	private final float[] scales;
+
+	/**
+	 * Build the compressed copy of a store
+	 *
+	 * @param source The full-precision store
+	 * @param quantization How to compress the vectors
+	 */
+	QuantizedVectorStore(VectorStore source, Quantization quantization) {
+		int chunkCount;
+		int rows;
+
+		SharedUtils.checkNotNull(source);
+		SharedUtils.checkNotNull(quantization);
+		this.source = source;
+		this.quantization = quantization;
+		vectorSize = source.getVectorSize();
+		codeSize = (vectorSize + CODE_ALIGNMENT - 1) / CODE_ALIGNMENT * CODE_ALIGNMENT;
+		size = source.size();
+		rowsPerChunk = Math.max(1, MAX_CHUNK_CODES / codeSize);
+		chunkCount = (int) (((long) size + rowsPerChunk - 1) / rowsPerChunk);
+		if (quantization == Quantization.FLOAT16) {
+			byteChunks = null;
+			halfChunks = new short[chunkCount][];
+			scales = null;
+		} else {
+			byteChunks = new byte[chunkCount][];
+			halfChunks = null;
+			scales = new float[quantization == Quantization.INT8_PER_DIMENSION ? vectorSize : size];
+		}
+		for (int chunkIx = 0; chunkIx < chunkCount; chunkIx++) {
+			rows = Math.min(rowsPerChunk, size - chunkIx * rowsPerChunk);
+			if (halfChunks != null) {
+				halfChunks[chunkIx] = new short[rows * codeSize];
+			} else {
+				byteChunks[chunkIx] = new byte[rows * codeSize];
+			}
+		}
+		System.out.println("Quantizing store for " + size + " word vectors as " + quantization);
+		if (quantization == Quantization.INT8_PER_DIMENSION) {
+			findDimensionScales();
+		}
+		encode();
+	}
+
+	/**
+	 * For INT8_PER_DIMENSION, find the largest magnitude in each dimension across all the vectors
+	 */
+	private void findDimensionScales() {
+		float[] vector;
+
+		for (int row = 0; row < size; row++) {
+			vector = source.getVector(row);
+			for (int ix = 0; ix < vectorSize; ix++) {
+				scales[ix] = Math.max(scales[ix], Math.abs(vector[ix]));
+			}
+		}
+		for (int ix = 0; ix < vectorSize; ix++) {
+			scales[ix] = scales[ix] / INT8_MAX;
+		}
+	}
+
+	/**
+	 * Compress all the vectors into the chunks
+	 */
+	private void encode() {
+		float[] vector;
+		float maxAbs;
+		float scale;
+		int offset;
+		byte[] byteChunk;
+		short[] halfChunk;
+
+		for (int row = 0; row < size; row++) {
+			vector = source.getVector(row);
+			offset = (row % rowsPerChunk) * codeSize;
+			if (quantization == Quantization.FLOAT16) {
+				halfChunk = halfChunks[row / rowsPerChunk];
+				for (int ix = 0; ix < vectorSize; ix++) {
+					halfChunk[offset + ix] = toHalf(vector[ix]);
+				}
+				continue;
+			}
+			byteChunk = byteChunks[row / rowsPerChunk];
+			if (quantization == Quantization.INT8_PER_VECTOR) {
+				maxAbs = 0f;
+				for (float value : vector) {
+					maxAbs = Math.max(maxAbs, Math.abs(value));
+				}
+				scales[row] = maxAbs / INT8_MAX;
+			}
+			for (int ix = 0; ix < vectorSize; ix++) {
+				scale = quantization == Quantization.INT8_PER_VECTOR ? scales[row] : scales[ix];
+				byteChunk[offset + ix] = scale == 0f ? 0 :
+						(byte) Math.max(-INT8_MAX, Math.min(INT8_MAX, Math.round(vector[ix] / scale)));
+			}
+		}
+	}
+
+	/**
+	 * Get the full-precision store the codes were made from
+	 *
+	 * @return The source store
+	 */
+	VectorStore getSource() {
+
+		return source;
+	}
+
+	Quantization getQuantization() {
+
+		return quantization;
+	}
+
+	/**
+	 * Get the memory taken by the compressed vectors, in bytes
+	 *
+	 * @return The size of the codes and scales
+	 */
+	long getCodeBytes() {
+
+		return (long) size * codeSize * (quantization == Quantization.FLOAT16 ? 2 : 1) +
+				(scales == null ? 0 : scales.length * 4L);
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		return getCodeBytes();
+	}
+
+	@Override
+	public int size() {
+
+		return size;
+	}
+
+	@Override
+	public int getVectorSize() {
+
+		return vectorSize;
+	}
+
+	@Override
+	public int getId(CharSequence word) {
+
+		return source.getId(word);
+	}
+
+	@Override
+	public int getId(byte[] bytes, int offset, int length) {
+
+		return source.getId(bytes, offset, length);
+	}
+
+	@Override
+	public String getWord(int row) {
+
+		return source.getWord(row);
+	}
+
+	@Override
+	public float[] getVector(int row) {
+
+		return source.getVector(row);
+	}
+
+	@Override
+	public void addVector(int row, float weight, float[] sum) {
+
+		source.addVector(row, weight, sum);
+	}
+
+	@Override
+	public float score(float[] vector, int row) {
+
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Bad row " + row);
+		}
+		return scoreCodes(quantize(new float[][] { vector }), 0, row);
+	}
+
+	@Override
+	public QueryBlock prepareQueries(float[][] vectors) {
+
+		return quantize(vectors);
+	}
+
+	/**
+	 * Quantize the queries the same way as the rows. For INT8_PER_DIMENSION the dimension scales are folded
+	 *   into the query first, so the scan doesn't have to multiply them in for every row; then each query
+	 *   gets a scale of its own so its biggest value is 127.
+	 *
+	 * @param vectors The normalized query vectors
+	 * @return The quantized queries
+	 */
+	private QuantizedQueries quantize(float[][] vectors) {
+		QuantizedQueries queries;
+		float[] query;
+		float maxAbs;
+		float scale;
+		byte[] codes;
+		short[] halves;
+
+		queries = new QuantizedQueries(this, vectors);
+		query = new float[vectorSize];
+		for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+			if (vectors[queryIx].length != vectorSize) {
+				throw new IllegalArgumentException("Vector size mismatch");
+			}
+			if (quantization == Quantization.FLOAT16) {
+				halves = new short[codeSize];
+				for (int ix = 0; ix < vectorSize; ix++) {
+					halves[ix] = toHalf(vectors[queryIx][ix]);
+				}
+				queries.halves[queryIx] = halves;
+				continue;
+			}
+			maxAbs = 0f;
+			for (int ix = 0; ix < vectorSize; ix++) {
+				query[ix] = quantization == Quantization.INT8_PER_DIMENSION ?
+						vectors[queryIx][ix] * scales[ix] : vectors[queryIx][ix];
+				maxAbs = Math.max(maxAbs, Math.abs(query[ix]));
+			}
+			scale = maxAbs / INT8_MAX;
+			codes = new byte[codeSize];
+			for (int ix = 0; ix < vectorSize; ix++) {
+				codes[ix] = scale == 0f ? 0 : (byte) Math.round(query[ix] / scale);
+			}
+			queries.codes[queryIx] = codes;
+			queries.scales[queryIx] = scale;
+		}
+		return queries;
+	}
+
+	/**
+	 * Walk the rows chunk by chunk like FlatVectorStore does, scoring each row's codes against every
+	 *   quantized query before moving on
+	 */
+	@Override
+	public void scan(QueryBlock queries, int fromRow, int toRow, float[][] distances) {
+		QuantizedQueries quantizedQueries;
+		byte[][] codes;
+		short[][] halves;
+		float[] queryScales;
+		byte[] byteChunk;
+		short[] halfChunk;
+		int row;
+		int lastRow;
+		int offset;
+		int distanceIx;
+		float rowScale;
+
+		if (queries instanceof QuantizedQueries && ((QuantizedQueries) queries).store == this) {
+			quantizedQueries = (QuantizedQueries) queries;
+		} else {
+			quantizedQueries = quantize(queries.getVectors());
+		}
+		codes = quantizedQueries.codes;
+		halves = quantizedQueries.halves;
+		queryScales = quantizedQueries.scales;
+		distanceIx = 0;
+		row = fromRow;
+		while (row < toRow) {
+			lastRow = Math.min(toRow, (row / rowsPerChunk + 1) * rowsPerChunk);
+			offset = (row % rowsPerChunk) * codeSize;
+			if (quantization == Quantization.FLOAT16) {
+				halfChunk = halfChunks[row / rowsPerChunk];
+				for (; row < lastRow; row++, offset += codeSize, distanceIx++) {
+					for (int queryIx = 0; queryIx < halves.length; queryIx++) {
+						distances[queryIx][distanceIx] = kernel.dotHalves(halves[queryIx], 0, halfChunk, offset,
+								codeSize);
+					}
+				}
+				continue;
+			}
+			byteChunk = byteChunks[row / rowsPerChunk];
+			for (; row < lastRow; row++, offset += codeSize, distanceIx++) {
+				rowScale = quantization == Quantization.INT8_PER_VECTOR ? scales[row] : 1f;
+				for (int queryIx = 0; queryIx < codes.length; queryIx++) {
+					distances[queryIx][distanceIx] = queryScales[queryIx] * rowScale *
+							kernel.dot(codes[queryIx], 0, byteChunk, offset, codeSize);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculate the (approximate) cosine distance of a quantized query and the codes in a row
+	 *
+	 * @param queries The quantized queries
+	 * @param queryIx The query
+	 * @param row The row
+	 * @return The approximate cosine distance
+	 */
+	private float scoreCodes(QuantizedQueries queries, int queryIx, int row) {
+		int offset;
+		float score;
+
+		offset = (row % rowsPerChunk) * codeSize;
+		if (quantization == Quantization.FLOAT16) {
+			return kernel.dotHalves(queries.halves[queryIx], 0, halfChunks[row / rowsPerChunk], offset,
+					codeSize);
+		}
+		score = queries.scales[queryIx] * kernel.dot(queries.codes[queryIx], 0, byteChunks[row / rowsPerChunk],
+				offset, codeSize);
+		if (quantization == Quantization.INT8_PER_VECTOR) {
+			score *= scales[row];
+		}
+		return score;
+	}
+
+	/**
+	 * Convert a vector value to a half-precision code. Values too small for a normal half (under about
+	 *   6e-5) become zero; they make no difference to a cosine distance, and decoding subnormal halves
+	 *   goes through subnormal floats, which can slow a scan down several times over.
+	 *
+	 * @param value The value
+	 * @return The half-precision bits
+	 */
+	private static short toHalf(float value) {
+
+		return floatToHalf(Math.abs(value) < HALF_MIN_NORMAL ? 0f : value);
+	}
+
+	/**
+	 * Convert a float to the bits of an IEEE 754 half-precision float, rounding to nearest
+	 *
+	 * @param value The float
+	 * @return The half-precision bits
+	 */
+	static short floatToHalf(float value) {
+		int bits;
+		int sign;
+		int magnitude;
+		int exponent;
+
+		bits = Float.floatToIntBits(value);
+		sign = (bits >>> 16) & 0x8000;
+		magnitude = bits & 0x7FFFFFFF;
+		if (magnitude >= 0x7F800000) {
+			// infinity or NaN
+			return (short) (sign | 0x7C00 | (magnitude > 0x7F800000 ? 0x200 : 0));
+		}
+		if (magnitude >= 0x477FF000) {
+			// too big, round to infinity
+			return (short) (sign | 0x7C00);
+		}
+		if (magnitude >= 0x38800000) {
+			// normal half: rebias the exponent and round the mantissa
+			return (short) (sign | ((magnitude - 0x38000000 + 0x1000) >>> 13));
+		}
+		if (magnitude < 0x33000000) {
+			// too small, round to zero
+			return (short) sign;
+		}
+		// subnormal half
+		exponent = magnitude >>> 23;
+		return (short) (sign | ((((magnitude & 0x7FFFFF) | 0x800000) + (0x800000 >>> (exponent - 102))) >>> (126 - exponent)));
+	}
+
+	/**
+	 * QuantizedQueries are queries quantized for one QuantizedVectorStore, as int8 codes with a scale each,
+	 *   or as half-precision floats
+	 */
+	private static final class QuantizedQueries extends QueryBlock {
+		private final QuantizedVectorStore store;
+		private final byte[][] codes;
+		private final float[] scales;
+		private final short[][] halves;
+
+		QuantizedQueries(QuantizedVectorStore store, float[][] vectors) {
+
+			super(vectors);
+			this.store = store;
+			codes = new byte[vectors.length][];
+			scales = new float[vectors.length];
+			halves = new short[vectors.length][];
+		}
+	}
+}
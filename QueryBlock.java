@@ -0,0 +1,44 @@
+
+/**
+ * QueryBlock is a block of normalized query vectors, got ready by VectorStore.prepareQueries to be scored
+ *   against the rows of that store. Most stores score the floats as they are; a QuantizedVectorStore
+ *   hands back a QueryBlock of its own that also holds the queries quantized the same way as its rows,
+ *   so a search quantizes them once instead of once for every block of rows it scans.
+ *
+ * @author hulles
+ *
+ */
+class QueryBlock {
+	private final float[][] vectors;
+
+	/**
+	 * Wrap a block of query vectors
+	 *
+	 * @param vectors The normalized query vectors
+	 */
+	QueryBlock(float[][] vectors) {
+
+		SharedUtils.checkNotNull(vectors);
+		this.vectors = vectors;
+	}
+
+	/**
+	 * Get the query vectors
+	 *
+	 * @return The normalized query vectors
+	 */
+	final float[][] getVectors() {
+
+		return vectors;
+	}
+
+	/**
+	 * Get the number of queries
+	 *
+	 * @return The number of queries
+	 */
+	final int size() {
+
+		return vectors.length;
+	}
+}
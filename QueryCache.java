@@ -0,0 +1,293 @@
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QueryCache keeps the results of recent word and analogy searches so the popular ones don't cost a whole
+ *   scan every time. It's keyed on the search words; each entry remembers how many matches it was asked
+ *   for, so a cached search for 50 matches also answers a search for 10 (the best 10 of 50 are the best 10).
+ *   <p>
+ *   When it's full the least recently used entry goes. The entries are spread over several segments, each
+ *   with its own lock and its own share of the room, so concurrent searches don't all queue on one lock;
+ *   the price is that "least recently used" is per segment rather than overall, which doesn't matter much.
+ *
+ * @author hulles
+ *
+ */
+final public class QueryCache {
+	private final static int SEGMENT_COUNT = 16;
+	private final Segment[] segments;
+	private final int maxEntries;
+	private final LongAdder hits;
+	private final LongAdder misses;
+	private final LongAdder evictions;
+
+	/**
+	 * Create an empty cache
+	 *
+	 * @param maxEntries The most searches to keep
+	 */
+	QueryCache(int maxEntries) {
+		int segmentCount;
+
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("Cache needs at least one entry");
+		}
+		this.maxEntries = maxEntries;
+		hits = new LongAdder();
+		misses = new LongAdder();
+		evictions = new LongAdder();
+		segmentCount = Math.min(SEGMENT_COUNT, maxEntries);
+		segments = new Segment[segmentCount];
+		for (int segmentIx = 0; segmentIx < segmentCount; segmentIx++) {
+			// hand out the remainder one each so the segments add up to maxEntries
+			segments[segmentIx] = new Segment(maxEntries / segmentCount + (segmentIx < maxEntries % segmentCount ? 1 : 0),
+					evictions);
+		}
+	}
+
+	/**
+	 * Make the key for a word search
+	 *
+	 * @param word The search word
+	 * @return The key
+	 */
+	static Key wordKey(String word) {
+
+		return new Key(word, null, null);
+	}
+
+	/**
+	 * Make the key for an analogy search
+	 *
+	 * @param word1 The first word
+	 * @param word2 The second word
+	 * @param word3 The third word
+	 * @return The key
+	 */
+	static Key analogyKey(String word1, String word2, String word3) {
+
+		return new Key(word1, word2, word3);
+	}
+
+	/**
+	 * Look up a search
+	 *
+	 * @param key The search key
+	 * @param maxNumberOfMatches The number of matches wanted
+	 * @return The matches, or null if the search isn't cached with at least that many matches
+	 */
+	WordMatches get(Key key, int maxNumberOfMatches) {
+		Segment segment;
+		Entry entry;
+
+		segment = getSegment(key);
+		synchronized (segment) {
+			entry = segment.get(key);
+		}
+		if (entry == null || entry.maxNumberOfMatches < maxNumberOfMatches) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.matches.head(maxNumberOfMatches);
+	}
+
+	/**
+	 * Cache a search, unless there's already an entry with more matches
+	 *
+	 * @param key The search key
+	 * @param maxNumberOfMatches The number of matches that were asked for
+	 * @param matches The matches
+	 */
+	void put(Key key, int maxNumberOfMatches, WordMatches matches) {
+		Segment segment;
+		Entry entry;
+
+		SharedUtils.checkNotNull(matches);
+		segment = getSegment(key);
+		synchronized (segment) {
+			entry = segment.get(key);
+			if (entry == null || entry.maxNumberOfMatches < maxNumberOfMatches) {
+				segment.put(key, new Entry(maxNumberOfMatches, matches));
+			}
+		}
+	}
+
+	/**
+	 * See whether a search is cached with at least this many matches, without counting a hit or a miss
+	 *
+	 * @param key The search key
+	 * @param maxNumberOfMatches The number of matches wanted
+	 * @return True if it's cached
+	 */
+	boolean contains(Key key, int maxNumberOfMatches) {
+		Segment segment;
+		Entry entry;
+
+		segment = getSegment(key);
+		synchronized (segment) {
+			entry = segment.get(key);
+		}
+		return entry != null && entry.maxNumberOfMatches >= maxNumberOfMatches;
+	}
+
+	/**
+	 * Get the most searches the cache keeps
+	 *
+	 * @return The maximum number of entries
+	 */
+	public int getMaxEntries() {
+
+		return maxEntries;
+	}
+
+	private Segment getSegment(Key key) {
+
+		SharedUtils.checkNotNull(key);
+		return segments[(key.hash & Integer.MAX_VALUE) % segments.length];
+	}
+
+	/**
+	 * Get the number of searches in the cache
+	 *
+	 * @return The number of entries
+	 */
+	public int size() {
+		int size;
+
+		size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Get the number of searches answered from the cache
+	 *
+	 * @return The hit count
+	 */
+	public long getHitCount() {
+
+		return hits.sum();
+	}
+
+	/**
+	 * Get the number of searches that weren't in the cache
+	 *
+	 * @return The miss count
+	 */
+	public long getMissCount() {
+
+		return misses.sum();
+	}
+
+	/**
+	 * Get the number of entries thrown out to make room
+	 *
+	 * @return The eviction count
+	 */
+	public long getEvictionCount() {
+
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		long hitCount;
+		long missCount;
+
+		hitCount = getHitCount();
+		missCount = getMissCount();
+		return String.format("Query cache: %,d entries, %,d hits, %,d misses (%.1f%% hits), %,d evictions", size(),
+				hitCount, missCount, 100.0 * hitCount / Math.max(1, hitCount + missCount), getEvictionCount());
+	}
+
+	/**
+	 * Key is the search words; word2 and word3 are null for a word search
+	 */
+	static final class Key {
+		private final String word1;
+		private final String word2;
+		private final String word3;
+		private final int hash;
+
+		private Key(String word1, String word2, String word3) {
+
+			SharedUtils.checkNotNull(word1);
+			this.word1 = word1;
+			this.word2 = word2;
+			this.word3 = word3;
+			hash = 31 * (31 * word1.hashCode() + (word2 == null ? 0 : word2.hashCode())) +
+					(word3 == null ? 0 : word3.hashCode());
+		}
+
+		@Override
+		public int hashCode() {
+
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			Key other;
+
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			other = (Key) obj;
+			return hash == other.hash && word1.equals(other.word1) && equalWords(word2, other.word2) &&
+					equalWords(word3, other.word3);
+		}
+
+		private static boolean equalWords(String word, String otherWord) {
+
+			return word == null ? otherWord == null : word.equals(otherWord);
+		}
+	}
+
+	/**
+	 * Entry is the cached matches and how many were asked for, which can be more than there are
+	 */
+	private static final class Entry {
+		private final int maxNumberOfMatches;
+		private final WordMatches matches;
+
+		Entry(int maxNumberOfMatches, WordMatches matches) {
+
+			this.maxNumberOfMatches = maxNumberOfMatches;
+			this.matches = matches;
+		}
+	}
+
+	/**
+	 * Segment is one least-recently-used share of the cache; callers lock it
+	 */
+	private static final class Segment extends LinkedHashMap<Key, Entry> {
+		private static final long serialVersionUID = 1L;
+		private final int maxEntries;
+		private final LongAdder evictions;
+
+		Segment(int maxEntries, LongAdder evictions) {
+
+			// access order, so the eldest entry is the least recently used
+			super(16, 0.75f, true);
+			this.maxEntries = maxEntries;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+
+			if (size() > maxEntries) {
+				evictions.increment();
+				return true;
+			}
+			return false;
+		}
+	}
+}
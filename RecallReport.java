@@ -0,0 +1,149 @@
+
+import java.util.logging.Level;
+
+/**
+ * RecallReport compares an approximate search backend with the exact one: recall@k is the fraction of
+ *   the true k best matches that the approximate backend also finds, averaged over a sample of words.
+ *   It also times both backends, one query at a time, so you can see what the recall costs or saves.
+ *
+ * @author hulles
+ *
+ */
+final public class RecallReport {
+	private final static Level LOGLEVEL = Level.INFO;
+	private final static String REPORT = "recall@%d = %.4f over %d queries; exact %.3f ms/query, approximate %.3f ms/query";
+	private final int queryCount;
+	private final int maxNumberOfMatches;
+	private final double recall;
+	private final double exactMillis;
+	private final double approximateMillis;
+
+	private RecallReport(int queryCount, int maxNumberOfMatches, double recall, double exactMillis,
+			double approximateMillis) {
+
+		this.queryCount = queryCount;
+		this.maxNumberOfMatches = maxNumberOfMatches;
+		this.recall = recall;
+		this.exactMillis = exactMillis;
+		this.approximateMillis = approximateMillis;
+	}
+
+	/**
+	 * Measure the recall of an approximate backend, using a sample of words spread evenly through the
+	 *   vocabulary as the queries
+	 *
+	 * @param store The store to take the query words from
+	 * @param exact The exact backend
+	 * @param approximate The approximate backend
+	 * @param queryCount The number of words to sample
+	 * @param maxNumberOfMatches The k in recall@k
+	 * @return The report
+	 */
+	static RecallReport measure(VectorStore store, SearchBackend exact, SearchBackend approximate,
+			int queryCount, int maxNumberOfMatches) {
+		float[][] queryVectors;
+		int[][] ignores;
+		int[] exactIds;
+		float[] exactScores;
+		int[] approximateIds;
+		float[] approximateScores;
+		int exactCount;
+		int approximateCount;
+		int row;
+		long found;
+		long wanted;
+		long exactNanos;
+		long approximateNanos;
+		long startNanos;
+		TopKHeap heap;
+		RecallReport report;
+
+		SharedUtils.checkNotNull(store);
+		SharedUtils.checkNotNull(exact);
+		SharedUtils.checkNotNull(approximate);
+		queryCount = Math.min(queryCount, store.size());
+		if (queryCount < 1 || maxNumberOfMatches < 1) {
+			throw new IllegalArgumentException("Need at least one query and one match");
+		}
+		exactIds = new int[maxNumberOfMatches];
+		exactScores = new float[maxNumberOfMatches];
+		approximateIds = new int[maxNumberOfMatches];
+		approximateScores = new float[maxNumberOfMatches];
+		found = 0;
+		wanted = 0;
+		exactNanos = 0;
+		approximateNanos = 0;
+		for (int queryIx = 0; queryIx < queryCount; queryIx++) {
+			row = (int) ((long) queryIx * store.size() / queryCount);
+			queryVectors = new float[][] {store.getVector(row)};
+			ignores = new int[][] {{row}};
+			startNanos = System.nanoTime();
+			heap = exact.search(queryVectors, ignores, maxNumberOfMatches, null)[0];
+			exactNanos += System.nanoTime() - startNanos;
+			exactCount = heap.drain(exactIds, exactScores);
+			startNanos = System.nanoTime();
+			heap = approximate.search(queryVectors, ignores, maxNumberOfMatches, null)[0];
+			approximateNanos += System.nanoTime() - startNanos;
+			approximateCount = heap.drain(approximateIds, approximateScores);
+			wanted += exactCount;
+			for (int exactIx = 0; exactIx < exactCount; exactIx++) {
+				for (int approximateIx = 0; approximateIx < approximateCount; approximateIx++) {
+					if (exactIds[exactIx] == approximateIds[approximateIx]) {
+						found++;
+						break;
+					}
+				}
+			}
+		}
+		report = new RecallReport(queryCount, maxNumberOfMatches, wanted == 0 ? 1.0 : (double) found / wanted,
+				exactNanos / 1e6 / queryCount, approximateNanos / 1e6 / queryCount);
+		SharedUtils.log(LOGLEVEL, "RecallReport: " + report);
+		return report;
+	}
+
+	public int getQueryCount() {
+
+		return queryCount;
+	}
+
+	public int getMaxNumberOfMatches() {
+
+		return maxNumberOfMatches;
+	}
+
+	/**
+	 * Get the recall@k
+	 *
+	 * @return The fraction of the true best matches that were found, from 0 to 1
+	 */
+	public double getRecall() {
+
+		return recall;
+	}
+
+	/**
+	 * Get the average time of an exact search
+	 *
+	 * @return The milliseconds per query
+	 */
+	public double getExactMillis() {
+
+		return exactMillis;
+	}
+
+	/**
+	 * Get the average time of an approximate search
+	 *
+	 * @return The milliseconds per query
+	 */
+	public double getApproximateMillis() {
+
+		return approximateMillis;
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format(REPORT, maxNumberOfMatches, recall, queryCount, exactMillis, approximateMillis);
+	}
+}
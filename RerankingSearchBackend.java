@@ -0,0 +1,66 @@
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * RerankingSearchBackend asks an approximate backend for a few times more candidates than we want, then
+ *   re-scores the candidates against the full-precision vectors and keeps the best of them. The
+ *   distances it returns are exact, and as long as the true best matches are somewhere among the
+ *   candidates, so is the order.
+ *
+ * @author hulles
+ *
+ */
+final class RerankingSearchBackend implements SearchBackend {
+	private final SearchBackend candidateBackend;
+	private final VectorStore exactStore;
+	private final int rerankFactor;
+
+	/**
+	 * Create the backend
+	 *
+	 * @param candidateBackend The approximate backend that finds the candidates
+	 * @param exactStore The full-precision store to re-score the candidates against
+	 * @param rerankFactor How many candidates to get for each match we want
+	 */
+	RerankingSearchBackend(SearchBackend candidateBackend, VectorStore exactStore, int rerankFactor) {
+
+		SharedUtils.checkNotNull(candidateBackend);
+		SharedUtils.checkNotNull(exactStore);
+		if (rerankFactor < 1) {
+			throw new IllegalArgumentException("Rerank factor must be at least 1");
+		}
+		this.candidateBackend = candidateBackend;
+		this.exactStore = exactStore;
+		this.rerankFactor = rerankFactor;
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		return candidateBackend.getMemoryBytes();
+	}
+
+	@Override
+	public TopKHeap[] search(float[][] vectors, int[][] ignores, int maxNumberOfMatches, ForkJoinPool pool) {
+		TopKHeap[] candidates;
+		TopKHeap[] bestMatches;
+		int[] ids;
+		float[] scores;
+		int candidateCount;
+		int count;
+
+		// a big k times the factor can overflow, and there's no point asking for more rows than there are
+		candidateCount = (int) Math.min((long) maxNumberOfMatches * rerankFactor, exactStore.size());
+		candidates = candidateBackend.search(vectors, ignores, candidateCount, pool);
+		bestMatches = TopKHeap.newHeaps(vectors.length, Math.min(maxNumberOfMatches, candidateCount));
+		ids = new int[candidateCount];
+		scores = new float[ids.length];
+		for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+			count = candidates[queryIx].drain(ids, scores);
+			for (int candidateIx = 0; candidateIx < count; candidateIx++) {
+				bestMatches[queryIx].offer(ids[candidateIx], exactStore.score(vectors[queryIx], ids[candidateIx]));
+			}
+		}
+		return bestMatches;
+	}
+}
@@ -0,0 +1,117 @@
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * ScalarDistanceKernel is the plain-Java distance kernel, one float at a time. The products are added
+ *   up in a double, just like the original word2vec programs do it. It runs anywhere, and it's what we
+ *   fall back to when the Vector API isn't available.
+ *
+ * @author hulles
+ *
+ */
+final class ScalarDistanceKernel implements DistanceKernel {
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double sum = 0.0;
+
+		for (int ix = 0; ix < length; ix++) {
+			sum += a[aOffset + ix] * b[bOffset + ix];
+		}
+		return (float) sum;
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, ByteBuffer b, int bOffset, int length) {
+		double sum = 0.0;
+
+		checkOrder(b);
+		for (int ix = 0; ix < length; ix++, bOffset += 4) {
+			sum += a[aOffset + ix] * b.getFloat(bOffset);
+		}
+		return (float) sum;
+	}
+
+	@Override
+	public float length(ByteBuffer b, int bOffset, int length) {
+		double sum = 0.0;
+		float value;
+
+		checkOrder(b);
+		for (int ix = 0; ix < length; ix++, bOffset += 4) {
+			value = b.getFloat(bOffset);
+			sum += value * value;
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	@Override
+	public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		int sum = 0;
+
+		for (int ix = 0; ix < length; ix++) {
+			sum += a[aOffset + ix] * b[bOffset + ix];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dotHalves(short[] a, int aOffset, short[] b, int bOffset, int length) {
+		double sum = 0.0;
+
+		for (int ix = 0; ix < length; ix++) {
+			sum += halfToFloat(a[aOffset + ix]) * halfToFloat(b[bOffset + ix]);
+		}
+		return (float) sum;
+	}
+
+	/**
+	 * Decode a finite half-precision float: the exponent and mantissa bits shifted into place make a float
+	 *   2^112 times too small (subnormals included), so scale it back up
+	 *
+	 * @param half The half-precision bits
+	 * @return The float
+	 */
+	static float halfToFloat(short half) {
+
+		return Float.intBitsToFloat(((half & 0x8000) << 16) | ((half & 0x7FFF) << 13)) * 0x1p112f;
+	}
+
+	@Override
+	public float cosine(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double sum = 0.0;
+		double aLen = 0.0;
+		double bLen = 0.0;
+		float aValue;
+		float bValue;
+
+		for (int ix = 0; ix < length; ix++) {
+			aValue = a[aOffset + ix];
+			bValue = b[bOffset + ix];
+			sum += aValue * bValue;
+			aLen += aValue * aValue;
+			bLen += bValue * bValue;
+		}
+		return (float) (sum / Math.sqrt(aLen * bLen));
+	}
+
+	@Override
+	public float euclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		double sum = 0.0;
+		float diff;
+
+		for (int ix = 0; ix < length; ix++) {
+			diff = a[aOffset + ix] - b[bOffset + ix];
+			sum += diff * diff;
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	private static void checkOrder(ByteBuffer b) {
+
+		if (b.order() != ByteOrder.LITTLE_ENDIAN) {
+			throw new IllegalArgumentException("Buffer must be little-endian");
+		}
+	}
+}
@@ -0,0 +1,48 @@
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * SearchBackend finds the best matches for a block of search vectors. The exact backend scans every
+ *   vector in the store; the others trade a little accuracy for a lot of speed or memory.
+ *
+ * @author hulles
+ *
+ */
+interface SearchBackend {
+
+	/**
+	 * Find the best matches for a block of normalized search vectors
+	 *
+	 * @param vectors The normalized search vectors
+	 * @param ignores Row ids to leave out of the matches for each search vector
+	 * @param maxNumberOfMatches The number of matches to find for each search vector
+	 * @param pool The pool to search in parallel with, or null to search on the calling thread
+	 * @return A heap of the best matches for each search vector
+	 */
+	TopKHeap[] search(float[][] vectors, int[][] ignores, int maxNumberOfMatches, ForkJoinPool pool);
+
+	/**
+	 * Get the memory the backend holds on to beyond the store it searches, in bytes; like the stores,
+	 *   anything mapped from a file doesn't count
+	 *
+	 * @return The memory size
+	 */
+	long getMemoryBytes();
+
+	/**
+	 * See if a row is one of the rows to ignore
+	 * 
+	 * @param ignores The ignored rows (there are only ever a few)
+	 * @param row The row to check
+	 * @return True if the row should be ignored
+	 */
+	static boolean isIgnored(int[] ignores, int row) {
+
+		for (int ignore : ignores) {
+			if (ignore == row) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
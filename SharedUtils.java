@@ -1,5 +1,11 @@
 
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -83,4 +89,38 @@ final public class SharedUtils {
     public static void log(Level level, String message) {
     	logger.log(level, message);
     }
+
+	/**
+	 * Run a list of tasks on the pool, or on this thread if there's no pool
+	 *
+	 * @param tasks The tasks
+	 * @param pool The pool, or null
+	 * @return The results of the tasks, in order
+	 */
+	public static <T> List<T> runTasks(List<? extends Callable<T>> tasks, ForkJoinPool pool) {
+		List<T> results;
+
+		results = new ArrayList<T>(tasks.size());
+		try {
+			if (pool == null) {
+				for (Callable<T> task : tasks) {
+					results.add(task.call());
+				}
+			} else {
+				for (Future<T> future : pool.invokeAll(tasks)) {
+					results.add(future.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WordToVecException("Interrupted");
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			throw new WordToVecException("Error running task: " + e.getCause().getMessage());
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error running task: " + e.getMessage());
+		}
+		return results;
+	}
 }
@@ -0,0 +1,299 @@
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * SimdDistanceKernel uses the (incubating) Java Vector API to work on as many floats at a time as the
+ *   CPU's vector registers hold, using fused multiply-adds into a vector of partial sums. It has to be
+ *   compiled and run with --add-modules jdk.incubator.vector; DistanceKernels only picks it if the module
+ *   is there, so nothing else in the toolbox depends on it.
+ *   <p>
+ *   The partial sums are floats rather than a double, so results differ from ScalarDistanceKernel in the
+ *   last few bits.
+ *   <p>
+ *   The int8 codes of a QuantizedVectorStore are loaded half a register at a time, widened to a register
+ *   of shorts and multiplied there, which can't overflow since the codes are between -127 and 127; two
+ *   products are added as shorts, and then each int lane adds up the pair of shorts it holds. The
+ *   half-precision codes are read as ints too, two halves to a lane, and each half is turned into a float
+ *   by shifting its bits into place and scaling by 2^112. Widening anything but the first part of a
+ *   register isn't always compiled into vector instructions on JDK 17, which is why it's done this way.
+ *   <p>
+ *   FloatVector.fromByteBuffer went away in JDK 20, so vectors in a byte buffer are bulk-copied into a
+ *   float array of the thread's own first and loaded from there, which compiles and runs the same on
+ *   every JDK from 17 on. The thread also keeps a float view of the last buffer it read, since the mapped
+ *   stores hand us the same few chunks over and over.
+ *
+ * @author hulles
+ *
+ */
+final class SimdDistanceKernel implements DistanceKernel {
+	private final static VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+	private final static int LANES = SPECIES.length();
+	// the same register size as the floats, so widening a part of one gives a full register of ints
+	private final static VectorSpecies<Integer> INT_SPECIES = IntVector.SPECIES_PREFERRED;
+	private final static VectorSpecies<Short> SHORT_SPECIES = ShortVector.SPECIES_PREFERRED;
+	// half the size, so widening them makes one register of shorts
+	private final static VectorSpecies<Byte> BYTE_SPECIES =
+			VectorSpecies.of(byte.class, VectorShape.forBitSize(SHORT_SPECIES.vectorBitSize() / 2));
+	private final static ThreadLocal<Scratch> scratches = new ThreadLocal<Scratch>();
+
+	@Override
+	public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector sums;
+		FloatVector aVector;
+		FloatVector bVector;
+		int upperBound;
+		int ix;
+		float sum;
+
+		sums = FloatVector.zero(SPECIES);
+		upperBound = SPECIES.loopBound(length);
+		for (ix = 0; ix < upperBound; ix += LANES) {
+			aVector = FloatVector.fromArray(SPECIES, a, aOffset + ix);
+			bVector = FloatVector.fromArray(SPECIES, b, bOffset + ix);
+			sums = aVector.fma(bVector, sums);
+		}
+		sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; ix < length; ix++) {
+			sum += a[aOffset + ix] * b[bOffset + ix];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dot(float[] a, int aOffset, ByteBuffer b, int bOffset, int length) {
+
+		return dot(a, aOffset, load(b, bOffset, length), 0, length);
+	}
+
+	@Override
+	public float length(ByteBuffer b, int bOffset, int length) {
+		FloatVector sums;
+		FloatVector bVector;
+		float[] floats;
+		int upperBound;
+		int ix;
+		float sum;
+
+		floats = load(b, bOffset, length);
+		sums = FloatVector.zero(SPECIES);
+		upperBound = SPECIES.loopBound(length);
+		for (ix = 0; ix < upperBound; ix += LANES) {
+			bVector = FloatVector.fromArray(SPECIES, floats, ix);
+			sums = bVector.fma(bVector, sums);
+		}
+		sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; ix < length; ix++) {
+			sum += floats[ix] * floats[ix];
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	@Override
+	public int dot(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+		IntVector sums;
+		IntVector pairs;
+		int step;
+		int upperBound;
+		int ix;
+		int sum;
+
+		sums = IntVector.zero(INT_SPECIES);
+		step = BYTE_SPECIES.length() * 2;
+		upperBound = length - length % step;
+		for (ix = 0; ix < upperBound; ix += step) {
+			// at most 2 * 127 * 127 = 32258, which still fits in a short
+			pairs = toShorts(a, aOffset + ix).mul(toShorts(b, bOffset + ix))
+					.add(toShorts(a, aOffset + ix + step / 2).mul(toShorts(b, bOffset + ix + step / 2)))
+					.reinterpretAsInts();
+			sums = addPairs(sums, pairs);
+		}
+		// then half a step, if there's that much left
+		if (ix + step / 2 <= length) {
+			pairs = toShorts(a, aOffset + ix).mul(toShorts(b, bOffset + ix)).reinterpretAsInts();
+			sums = addPairs(sums, pairs);
+			ix += step / 2;
+		}
+		sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; ix < length; ix++) {
+			sum += a[aOffset + ix] * b[bOffset + ix];
+		}
+		return sum;
+	}
+
+	@Override
+	public float dotHalves(short[] a, int aOffset, short[] b, int bOffset, int length) {
+		FloatVector sums;
+		IntVector aPairs;
+		IntVector bPairs;
+		int upperBound;
+		int ix;
+		float sum;
+
+		sums = FloatVector.zero(SPECIES);
+		upperBound = SHORT_SPECIES.loopBound(length);
+		for (ix = 0; ix < upperBound; ix += SHORT_SPECIES.length()) {
+			aPairs = ShortVector.fromArray(SHORT_SPECIES, a, aOffset + ix).reinterpretAsInts();
+			bPairs = ShortVector.fromArray(SHORT_SPECIES, b, bOffset + ix).reinterpretAsInts();
+			// the low half of each lane, shifted up to the top, then the high half
+			sums = toFloats(aPairs.lanewise(VectorOperators.LSHL, 16))
+					.fma(toFloats(bPairs.lanewise(VectorOperators.LSHL, 16)), sums);
+			sums = toFloats(aPairs).fma(toFloats(bPairs), sums);
+		}
+		sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; ix < length; ix++) {
+			sum += ScalarDistanceKernel.halfToFloat(a[aOffset + ix]) *
+					ScalarDistanceKernel.halfToFloat(b[bOffset + ix]);
+		}
+		return sum;
+	}
+
+	/**
+	 * Add both the shorts in each int lane to the sums
+	 *
+	 * @param sums The sums
+	 * @param pairs The lanes, each holding two shorts
+	 * @return The new sums
+	 */
+	private static IntVector addPairs(IntVector sums, IntVector pairs) {
+
+		return sums.add(pairs.lanewise(VectorOperators.LSHL, 16).lanewise(VectorOperators.ASHR, 16))
+				.add(pairs.lanewise(VectorOperators.ASHR, 16));
+	}
+
+	private static ShortVector toShorts(byte[] bytes, int offset) {
+
+		return (ShortVector) ByteVector.fromArray(BYTE_SPECIES, bytes, offset)
+				.convertShape(VectorOperators.B2S, SHORT_SPECIES, 0);
+	}
+
+	/**
+	 * Turn the half-precision floats in the top 16 bits of each lane into floats, the way
+	 *   ScalarDistanceKernel.halfToFloat does it
+	 *
+	 * @param halves The lanes, with a half in the top bits; the bottom bits don't matter
+	 * @return The floats
+	 */
+	private static FloatVector toFloats(IntVector halves) {
+
+		// the arithmetic shift copies the sign bit down as it goes, and the mask clears the copies
+		return halves.lanewise(VectorOperators.ASHR, 3).and(0x8FFFE000).reinterpretAsFloats().mul(0x1p112f);
+	}
+
+	/**
+	 * Copy a vector of little-endian floats out of a byte buffer into the thread's scratch array
+	 *
+	 * @param b The buffer holding the vector
+	 * @param bOffset The byte offset of the vector in its buffer
+	 * @param length The vector size
+	 * @return The scratch array, with the vector at the start of it
+	 */
+	private static float[] load(ByteBuffer b, int bOffset, int length) {
+		Scratch scratch;
+		int byteIndex;
+
+		if (b.order() != ByteOrder.LITTLE_ENDIAN) {
+			throw new IllegalArgumentException("Buffer must be little-endian");
+		}
+		scratch = scratches.get();
+		if (scratch == null) {
+			scratch = new Scratch();
+			scratches.set(scratch);
+		}
+		if (scratch.floats.length < length) {
+			scratch.floats = new float[length];
+		}
+		byteIndex = bOffset - b.position();
+		if (byteIndex >= 0 && (byteIndex & 3) == 0) {
+			// a float view starts at the buffer's position, so it's only good while that doesn't move
+			if (scratch.source != b || scratch.sourcePosition != b.position()) {
+				scratch.view = b.asFloatBuffer();
+				scratch.source = b;
+				scratch.sourcePosition = b.position();
+			}
+			scratch.view.get(byteIndex >> 2, scratch.floats, 0, length);
+		} else {
+			for (int ix = 0; ix < length; ix++) {
+				scratch.floats[ix] = b.getFloat(bOffset + ix * 4);
+			}
+		}
+		return scratch.floats;
+	}
+
+	@Override
+	public float cosine(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector sums;
+		FloatVector aLens;
+		FloatVector bLens;
+		FloatVector aVector;
+		FloatVector bVector;
+		int upperBound;
+		int ix;
+		float sum;
+		float aLen;
+		float bLen;
+
+		sums = FloatVector.zero(SPECIES);
+		aLens = FloatVector.zero(SPECIES);
+		bLens = FloatVector.zero(SPECIES);
+		upperBound = SPECIES.loopBound(length);
+		for (ix = 0; ix < upperBound; ix += LANES) {
+			aVector = FloatVector.fromArray(SPECIES, a, aOffset + ix);
+			bVector = FloatVector.fromArray(SPECIES, b, bOffset + ix);
+			sums = aVector.fma(bVector, sums);
+			aLens = aVector.fma(aVector, aLens);
+			bLens = bVector.fma(bVector, bLens);
+		}
+		sum = sums.reduceLanes(VectorOperators.ADD);
+		aLen = aLens.reduceLanes(VectorOperators.ADD);
+		bLen = bLens.reduceLanes(VectorOperators.ADD);
+		for (; ix < length; ix++) {
+			sum += a[aOffset + ix] * b[bOffset + ix];
+			aLen += a[aOffset + ix] * a[aOffset + ix];
+			bLen += b[bOffset + ix] * b[bOffset + ix];
+		}
+		return (float) (sum / Math.sqrt((double) aLen * bLen));
+	}
+
+	@Override
+	public float euclidean(float[] a, int aOffset, float[] b, int bOffset, int length) {
+		FloatVector sums;
+		FloatVector diffs;
+		int upperBound;
+		int ix;
+		float sum;
+		float diff;
+
+		sums = FloatVector.zero(SPECIES);
+		upperBound = SPECIES.loopBound(length);
+		for (ix = 0; ix < upperBound; ix += LANES) {
+			diffs = FloatVector.fromArray(SPECIES, a, aOffset + ix).sub(FloatVector.fromArray(SPECIES, b, bOffset + ix));
+			sums = diffs.fma(diffs, sums);
+		}
+		sum = sums.reduceLanes(VectorOperators.ADD);
+		for (; ix < length; ix++) {
+			diff = a[aOffset + ix] - b[bOffset + ix];
+			sum += diff * diff;
+		}
+		return (float) Math.sqrt(sum);
+	}
+
+	/**
+	 * Scratch is one thread's copy of the vector it's working on, and the float view it copied it from
+	 */
+	private static final class Scratch {
+		float[] floats = new float[0];
+		ByteBuffer source;
+		FloatBuffer view;
+		int sourcePosition;
+	}
+}
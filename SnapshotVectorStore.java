@@ -0,0 +1,452 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * SnapshotVectorStore opens a snapshot file, which is a word2vec BIN file turned into something we can
+ *   memory-map and use as is: the vectors are already normalized and sit in one aligned block, the words
+ *   are UTF-8 in one blob with an offset for each row, and the word-to-row hash table is in the file too.
+ *   Opening a snapshot doesn't read anything but the header, so it takes no time however big the file is;
+ *   the OS pages the rest in as the searches touch it.
+ *   <p>
+ *   The layout, all little-endian, is
+ *   <pre>
+ *   header        HEADER_BYTES: magic, version, sizes, section offsets, data checksum, header checksum
+ *   vectors       size x vectorSize normalized floats, starting on a VECTOR_ALIGNMENT boundary
+ *   word offsets  size + 1 ints; row r's word is bytes wordOffsets[r] up to wordOffsets[r + 1] of the blob
+ *   word bytes    the UTF-8 blob
+ *   hash table    a power of two number of int slots holding row + 1 (0 is empty), FNV-1a hash of the
+ *                 UTF-8 bytes, linear probing; the last three sections are a Vocabulary as is
+ *   </pre>
+ *   The data checksum is a CRC32 of everything after the header. Checking it means reading the whole
+ *   file, so open only checks the header; call verifyChecksum if you want the rest checked.
+ *
+ * @author hulles
+ *
+ */
+final class SnapshotVectorStore implements VectorStore {
+	private final static int MAGIC = 0x57325653;
+	private final static int VERSION = 1;
+	private final static int HEADER_BYTES = 128;
+	// where the header checksum goes; it covers the header bytes before it
+	private final static int HEADER_CHECKSUM_POSITION = HEADER_BYTES - 4;
+	private final static int VECTOR_ALIGNMENT = 4096;
+	private final static int MAX_CHUNK_BYTES = Integer.MAX_VALUE - 8;
+	private final static int WRITE_BLOCK_BYTES = 1 << 20;
+	private final static DistanceKernel kernel = DistanceKernels.getDefault();
+	private final String fileName;
+	private final int size;
+	private final int vectorSize;
+	private final int rowsPerChunk;
+	private final ByteBuffer[] vectorChunks;
+	private final Vocabulary vocabulary;
+	private final long dataChecksum;
+
+	private SnapshotVectorStore(String fileName) throws IOException {
+		FileChannel channel;
+		ByteBuffer header;
+		CRC32 crc;
+		long vectorsOffset;
+		long wordOffsetsOffset;
+		long wordBytesOffset;
+		long wordBytesLength;
+		long tableOffset;
+		int tableSlots;
+		int rows;
+
+		this.fileName = fileName;
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		try {
+			if (channel.size() < HEADER_BYTES) {
+				throw new WordToVecException("Not a snapshot file: " + fileName);
+			}
+			header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != MAGIC) {
+				throw new WordToVecException("Not a snapshot file: " + fileName);
+			}
+			if (header.getInt(4) != VERSION) {
+				throw new WordToVecException("Unsupported snapshot version " + header.getInt(4) + ": " + fileName);
+			}
+			crc = new CRC32();
+			crc.update(header.duplicate().position(0).limit(HEADER_CHECKSUM_POSITION));
+			if ((int) crc.getValue() != header.getInt(HEADER_CHECKSUM_POSITION)) {
+				throw new WordToVecException("Snapshot header is corrupt: " + fileName);
+			}
+			size = header.getInt(8);
+			vectorSize = header.getInt(12);
+			vectorsOffset = header.getLong(16);
+			wordOffsetsOffset = header.getLong(24);
+			wordBytesOffset = header.getLong(32);
+			wordBytesLength = header.getLong(40);
+			tableOffset = header.getLong(48);
+			tableSlots = header.getInt(56);
+			dataChecksum = header.getLong(64);
+			if (tableOffset + tableSlots * 4L != channel.size()) {
+				throw new WordToVecException("Snapshot file is truncated: " + fileName);
+			}
+			rowsPerChunk = MAX_CHUNK_BYTES / (vectorSize * 4);
+			vectorChunks = new ByteBuffer[(size + rowsPerChunk - 1) / rowsPerChunk];
+			for (int chunkIx = 0; chunkIx < vectorChunks.length; chunkIx++) {
+				rows = Math.min(rowsPerChunk, size - chunkIx * rowsPerChunk);
+				vectorChunks[chunkIx] = channel.map(FileChannel.MapMode.READ_ONLY,
+						vectorsOffset + (long) chunkIx * rowsPerChunk * vectorSize * 4,
+						(long) rows * vectorSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			vocabulary = Vocabulary.wrap(channel.map(FileChannel.MapMode.READ_ONLY, wordBytesOffset, wordBytesLength),
+					channel.map(FileChannel.MapMode.READ_ONLY, wordOffsetsOffset, (size + 1L) * 4)
+							.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(),
+					channel.map(FileChannel.MapMode.READ_ONLY, tableOffset, tableSlots * 4L)
+							.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer(), size);
+		} finally {
+			// the mappings survive closing the channel
+			channel.close();
+		}
+	}
+
+	/**
+	 * Open a snapshot file
+	 *
+	 * @param fileName The snapshot file
+	 * @return The store
+	 */
+	static SnapshotVectorStore open(String fileName) {
+		SnapshotVectorStore store;
+
+		SharedUtils.checkNotNull(fileName);
+		try {
+			store = new SnapshotVectorStore(fileName);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to map snapshot file");
+		}
+		System.out.println("Opened snapshot store for " + store.size + " word vectors, dimension " + store.vectorSize);
+		return store;
+	}
+
+	/**
+	 * See if a file is a snapshot, by its magic number; anything else is taken to be a BIN file
+	 *
+	 * @param fileName The file
+	 * @return True if it's a snapshot
+	 */
+	static boolean isSnapshot(String fileName) {
+		FileChannel channel;
+		ByteBuffer magic;
+
+		SharedUtils.checkNotNull(fileName);
+		magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			try {
+				while (magic.hasRemaining() && channel.read(magic) >= 0) {
+					// keep reading
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to open file");
+		}
+		return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+	}
+
+	/**
+	 * Read the whole file and check it against the checksum in the header
+	 *
+	 * @return True if the data is intact
+	 */
+	boolean verifyChecksum() {
+		FileChannel channel;
+		ByteBuffer buffer;
+		CRC32 crc;
+
+		crc = new CRC32();
+		buffer = ByteBuffer.allocateDirect(WRITE_BLOCK_BYTES);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			try {
+				channel.position(HEADER_BYTES);
+				while (channel.read(buffer) >= 0) {
+					buffer.flip();
+					crc.update(buffer);
+					buffer.clear();
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to read snapshot file");
+		}
+		return crc.getValue() == dataChecksum;
+	}
+
+	@Override
+	public long getMemoryBytes() {
+
+		// it's all mapped from the snapshot file, vocabulary included
+		return 0;
+	}
+
+	@Override
+	public int size() {
+
+		return size;
+	}
+
+	@Override
+	public int getVectorSize() {
+
+		return vectorSize;
+	}
+
+	@Override
+	public int getId(CharSequence word) {
+
+		return vocabulary.getId(word);
+	}
+
+	@Override
+	public int getId(byte[] bytes, int offset, int length) {
+
+		return vocabulary.getId(bytes, offset, length);
+	}
+
+	@Override
+	public String getWord(int row) {
+
+		return vocabulary.getWord(row);
+	}
+
+	/**
+	 * Get the vocabulary, which is read straight out of the mapped file
+	 *
+	 * @return The vocabulary
+	 */
+	Vocabulary getVocabulary() {
+
+		return vocabulary;
+	}
+
+	@Override
+	public float[] getVector(int row) {
+		float[] vector;
+		ByteBuffer chunk;
+		int offset;
+
+		checkRow(row);
+		vector = new float[vectorSize];
+		chunk = vectorChunks[row / rowsPerChunk];
+		offset = (row % rowsPerChunk) * vectorSize * 4;
+		for (int ix = 0; ix < vectorSize; ix++, offset += 4) {
+			vector[ix] = chunk.getFloat(offset);
+		}
+		return vector;
+	}
+
+	@Override
+	public void addVector(int row, float weight, float[] sum) {
+		ByteBuffer chunk;
+		int offset;
+
+		checkRow(row);
+		chunk = vectorChunks[row / rowsPerChunk];
+		offset = (row % rowsPerChunk) * vectorSize * 4;
+		for (int ix = 0; ix < vectorSize; ix++, offset += 4) {
+			sum[ix] += weight * chunk.getFloat(offset);
+		}
+	}
+
+	@Override
+	public float score(float[] vector, int row) {
+
+		checkRow(row);
+		return kernel.dot(vector, 0, vectorChunks[row / rowsPerChunk], (row % rowsPerChunk) * vectorSize * 4,
+				vectorSize);
+	}
+
+	@Override
+	public QueryBlock prepareQueries(float[][] vectors) {
+
+		return new QueryBlock(vectors);
+	}
+
+	@Override
+	public void scan(QueryBlock queries, int fromRow, int toRow, float[][] distances) {
+		float[][] vectors;
+		ByteBuffer chunk;
+		int offset;
+
+		vectors = queries.getVectors();
+		for (int row = fromRow; row < toRow; row++) {
+			chunk = vectorChunks[row / rowsPerChunk];
+			offset = (row % rowsPerChunk) * vectorSize * 4;
+			for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+				distances[queryIx][row - fromRow] = kernel.dot(vectors[queryIx], 0, chunk, offset, vectorSize);
+			}
+		}
+	}
+
+	private void checkRow(int row) {
+
+		if (row < 0 || row >= size) {
+			throw new IndexOutOfBoundsException("Bad row " + row);
+		}
+	}
+
+	/**
+	 * Write a snapshot of a store, e.g. a mapped BIN file
+	 *
+	 * @param source The store
+	 * @param fileName The snapshot file to write
+	 */
+	static void write(VectorStore source, String fileName) {
+		FileChannel channel;
+		SnapshotWriter writer;
+		ByteBuffer header;
+		CRC32 crc;
+		int[] offsets;
+		int[] slots;
+		byte[] bytes;
+		int tableSlots;
+		int slot;
+		long vectorsOffset;
+		long wordOffsetsOffset;
+		long wordBytesOffset;
+		long tableOffset;
+		long startNanos;
+
+		SharedUtils.checkNotNull(source);
+		SharedUtils.checkNotNull(fileName);
+		startNanos = System.nanoTime();
+		System.out.println("Writing snapshot of " + source.size() + " word vectors to " + fileName);
+		// the word offsets and the hash table are worked out first, the bytes are encoded again as they're written
+		tableSlots = Vocabulary.getTableSlots(source.size());
+		offsets = new int[source.size() + 1];
+		slots = new int[tableSlots];
+		for (int row = 0; row < source.size(); row++) {
+			bytes = source.getWord(row).getBytes(StandardCharsets.UTF_8);
+			if ((long) offsets[row] + bytes.length > Integer.MAX_VALUE) {
+				throw new WordToVecException("Vocabulary is too big for a snapshot");
+			}
+			offsets[row + 1] = offsets[row] + bytes.length;
+			slot = Vocabulary.hash(bytes, 0, bytes.length) & (tableSlots - 1);
+			while (slots[slot] != 0) {
+				slot = (slot + 1) & (tableSlots - 1);
+			}
+			slots[slot] = row + 1;
+		}
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				writer = new SnapshotWriter(channel, HEADER_BYTES);
+				writer.align(VECTOR_ALIGNMENT);
+				vectorsOffset = writer.position;
+				for (int row = 0; row < source.size(); row++) {
+					for (float value : source.getVector(row)) {
+						writer.putInt(Float.floatToRawIntBits(value));
+					}
+				}
+				wordOffsetsOffset = writer.position;
+				for (int offset : offsets) {
+					writer.putInt(offset);
+				}
+				wordBytesOffset = writer.position;
+				for (int row = 0; row < source.size(); row++) {
+					writer.putBytes(source.getWord(row).getBytes(StandardCharsets.UTF_8));
+				}
+				writer.align(4);
+				tableOffset = writer.position;
+				for (int value : slots) {
+					writer.putInt(value);
+				}
+				writer.flush();
+				header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(source.size()).putInt(source.getVectorSize());
+				header.putLong(vectorsOffset).putLong(wordOffsetsOffset).putLong(wordBytesOffset);
+				header.putLong(offsets[source.size()]).putLong(tableOffset).putInt(tableSlots).putInt(0);
+				header.putLong(writer.crc.getValue());
+				crc = new CRC32();
+				crc.update(header.array(), 0, HEADER_CHECKSUM_POSITION);
+				header.putInt(HEADER_CHECKSUM_POSITION, (int) crc.getValue());
+				header.clear();
+				while (header.hasRemaining()) {
+					channel.write(header, header.position());
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to write snapshot file");
+		}
+		WordToVecMetrics.stopTimer("snapshot.write", startNanos);
+	}
+
+	/**
+	 * SnapshotWriter buffers the data sections and keeps their checksum
+	 */
+	private static final class SnapshotWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final CRC32 crc;
+		private long position;
+
+		SnapshotWriter(FileChannel channel, long position) throws IOException {
+
+			this.channel = channel;
+			this.position = position;
+			buffer = ByteBuffer.allocate(WRITE_BLOCK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+			crc = new CRC32();
+			channel.position(position);
+		}
+
+		void putInt(int value) throws IOException {
+
+			if (buffer.remaining() < 4) {
+				flush();
+			}
+			buffer.putInt(value);
+			position += 4;
+		}
+
+		void putBytes(byte[] bytes) throws IOException {
+
+			for (byte b : bytes) {
+				if (!buffer.hasRemaining()) {
+					flush();
+				}
+				buffer.put(b);
+			}
+			position += bytes.length;
+		}
+
+		/**
+		 * Pad with zeros up to a multiple of the alignment
+		 */
+		void align(int alignment) throws IOException {
+
+			while (position % alignment != 0) {
+				putBytes(new byte[] {0});
+			}
+		}
+
+		void flush() throws IOException {
+
+			buffer.flip();
+			crc.update(buffer.array(), 0, buffer.limit());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
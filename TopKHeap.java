@@ -0,0 +1,196 @@
+
+/**
+ * TopKHeap keeps the k best (row id, score) pairs seen so far in a bounded min-heap of primitives, so
+ *   nothing gets boxed or allocated while scanning. The root of the heap is the worst of the best, which
+ *   is the score a new candidate has to beat. Higher scores are better; for equal scores the lower row id
+ *   is better, which is the order a single scan through the rows finds them in.
+ *
+ * @author hulles
+ *
+ */
+final class TopKHeap {
+	private final int[] ids;
+	private final float[] scores;
+	private int size;
+
+	/**
+	 * Create a new heap
+	 *
+	 * @param k The number of best matches to keep
+	 */
+	TopKHeap(int k) {
+
+		if (k < 0) {
+			throw new IllegalArgumentException("Negative number of matches");
+		}
+		ids = new int[k];
+		scores = new float[k];
+		size = 0;
+	}
+
+	/**
+	 * Create a new heap for each search vector
+	 * 
+	 * @param count The number of search vectors
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The heaps
+	 */
+	static TopKHeap[] newHeaps(int count, int maxNumberOfMatches) {
+		TopKHeap[] heaps;
+
+		heaps = new TopKHeap[count];
+		for (int heapIx = 0; heapIx < count; heapIx++) {
+			heaps[heapIx] = new TopKHeap(maxNumberOfMatches);
+		}
+		return heaps;
+	}
+
+	/**
+	 * Empty the heap so it can be reused
+	 */
+	void clear() {
+
+		size = 0;
+	}
+
+	int size() {
+
+		return size;
+	}
+
+	int capacity() {
+
+		return ids.length;
+	}
+
+	/**
+	 * Get the score a new candidate has to beat to get into the heap
+	 *
+	 * @return The least score in a full heap, or negative infinity if the heap isn't full yet
+	 */
+	float getLeastScore() {
+
+		if (size < ids.length) {
+			return Float.NEGATIVE_INFINITY;
+		}
+		return scores[0];
+	}
+
+	/**
+	 * Offer a candidate to the heap
+	 *
+	 * @param id The row id of the candidate
+	 * @param score The score of the candidate
+	 * @return True if the candidate made it into the heap
+	 */
+	boolean offer(int id, float score) {
+
+		if (score != score) {
+			// NaN, from a zero-length vector
+			return false;
+		}
+		if (size < ids.length) {
+			ids[size] = id;
+			scores[size] = score;
+			siftUp(size++);
+			return true;
+		}
+		if (size == 0 || !isBetter(id, score, ids[0], scores[0])) {
+			return false;
+		}
+		ids[0] = id;
+		scores[0] = score;
+		siftDown(0, size);
+		return true;
+	}
+
+	/**
+	 * Offer all the entries of another heap to this one
+	 *
+	 * @param other The other heap
+	 */
+	void merge(TopKHeap other) {
+
+		SharedUtils.checkNotNull(other);
+		for (int ix = 0; ix < other.size; ix++) {
+			offer(other.ids[ix], other.scores[ix]);
+		}
+	}
+
+	/**
+	 * Empty the heap into arrays, best first
+	 *
+	 * @param outIds Receives the row ids; must hold at least size() entries
+	 * @param outScores Receives the scores; must hold at least size() entries
+	 * @return The number of entries
+	 */
+	int drain(int[] outIds, float[] outScores) {
+		int count;
+
+		count = size;
+		// heap sort: the root is always the worst remaining, so fill from the back
+		while (size > 0) {
+			size--;
+			outIds[size] = ids[0];
+			outScores[size] = scores[0];
+			ids[0] = ids[size];
+			scores[0] = scores[size];
+			siftDown(0, size);
+		}
+		return count;
+	}
+
+	/**
+	 * See if one candidate is better than another
+	 */
+	private static boolean isBetter(int id, float score, int otherId, float otherScore) {
+
+		return score > otherScore || (score == otherScore && id < otherId);
+	}
+
+	private void siftUp(int ix) {
+		int parentIx;
+		int id;
+		float score;
+
+		id = ids[ix];
+		score = scores[ix];
+		while (ix > 0) {
+			parentIx = (ix - 1) >>> 1;
+			if (!isBetter(ids[parentIx], scores[parentIx], id, score)) {
+				break;
+			}
+			ids[ix] = ids[parentIx];
+			scores[ix] = scores[parentIx];
+			ix = parentIx;
+		}
+		ids[ix] = id;
+		scores[ix] = score;
+	}
+
+	private void siftDown(int ix, int heapSize) {
+		int childIx;
+		int id;
+		float score;
+
+		if (heapSize == 0) {
+			return;
+		}
+		id = ids[ix];
+		score = scores[ix];
+		while ((childIx = 2 * ix + 1) < heapSize) {
+			// pick the worse child
+			if (childIx + 1 < heapSize && isBetter(ids[childIx], scores[childIx], ids[childIx + 1], scores[childIx + 1])) {
+				childIx++;
+			}
+			if (!isBetter(id, score, ids[childIx], scores[childIx])) {
+				break;
+			}
+			ids[ix] = ids[childIx];
+			scores[ix] = scores[childIx];
+			ix = childIx;
+		}
+		ids[ix] = id;
+		scores[ix] = score;
+	}
+}
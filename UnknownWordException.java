@@ -0,0 +1,26 @@
+
+/**
+ * UnknownWordException is a search for a word that isn't in the vocabulary. The message is just the
+ *   word, as it always has been for these.
+ *
+ * @author hulles
+ *
+ */
+public class UnknownWordException extends WordToVecException {
+	private static final long serialVersionUID = 4409672213617585094L;
+
+	public UnknownWordException(String word) {
+
+		super(word);
+	}
+
+	/**
+	 * Get the word that wasn't found
+	 *
+	 * @return The word
+	 */
+	public String getWord() {
+
+		return getMessage();
+	}
+}
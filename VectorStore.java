@@ -0,0 +1,107 @@
+
+/**
+ * VectorStore is what the search code needs from a loaded word2vec file: words by row id, row ids by word,
+ *   and cosine distances between a (normalized) vector and the rows. How and where the vectors are kept
+ *   is up to the implementation.
+ *
+ * @author hulles
+ *
+ */
+interface VectorStore {
+
+	/**
+	 * Get the number of rows (words) in the store
+	 *
+	 * @return The number of rows
+	 */
+	int size();
+
+	/**
+	 * Get the dimension of the vectors
+	 *
+	 * @return The vector size
+	 */
+	int getVectorSize();
+
+	/**
+	 * Get the row id of a word
+	 *
+	 * @param word The word
+	 * @return The row id, or -1 if the word isn't in the store
+	 */
+	int getId(CharSequence word);
+
+	/**
+	 * Get the row id of a word given as UTF-8 bytes, e.g. straight out of a file
+	 *
+	 * @param bytes The array holding the word
+	 * @param offset The offset of the word in the array
+	 * @param length The length of the word in bytes
+	 * @return The row id, or -1 if the word isn't in the store
+	 */
+	int getId(byte[] bytes, int offset, int length);
+
+	/**
+	 * Get the word in the given row
+	 *
+	 * @param row The row
+	 * @return The word
+	 */
+	String getWord(int row);
+
+	/**
+	 * Get a copy of the normalized vector in the given row
+	 *
+	 * @param row The row
+	 * @return A NEW float[] with the vector values
+	 */
+	float[] getVector(int row);
+
+	/**
+	 * Add the normalized vector in the given row, times a weight, to a running sum, without allocating
+	 *   anything the way getVector does
+	 *
+	 * @param row The row
+	 * @param weight The weight
+	 * @param sum The sum to add to
+	 */
+	void addVector(int row, float weight, float[] sum);
+
+	/**
+	 * Calculate the cosine distance of a normalized vector against one row
+	 *
+	 * @param vector The normalized vector
+	 * @param row The row
+	 * @return The cosine distance
+	 */
+	float score(float[] vector, int row);
+
+	/**
+	 * Get a block of normalized query vectors ready to scan. Do it once per search, not once per block of
+	 *   rows, since some stores (QuantizedVectorStore) have work to do on them first.
+	 *
+	 * @param vectors The normalized query vectors
+	 * @return The queries, for scan
+	 */
+	QueryBlock prepareQueries(float[][] vectors);
+
+	/**
+	 * Calculate the cosine distances of a block of query vectors against a range of rows.
+	 *   Each row should be read once and scored against all the queries while it's in the cache, so
+	 *   one pass over the vectors serves the whole block.
+	 *
+	 * @param queries The queries, from prepareQueries
+	 * @param fromRow The first row, inclusive
+	 * @param toRow The last row, exclusive
+	 * @param distances Receives the distance of query q against row fromRow + n in distances[q][n]
+	 */
+	void scan(QueryBlock queries, int fromRow, int toRow, float[][] distances);
+
+	/**
+	 * Get the memory the store holds on to, heap or off-heap, in bytes. Vectors that are mapped from a
+	 *   file don't count, since the OS can page them out again.
+	 *
+	 * @return The memory size
+	 */
+	long getMemoryBytes();
+}
@@ -0,0 +1,437 @@
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Vocabulary is the word-to-row-id dictionary that goes along with a vector store. Words are given
+ *   row ids in the order they are added, so the ids line up with the rows of the vectors.
+ *   <p>
+ *   I used to keep a HashMap of Strings here, but for the big files 4.9 million Strings, Integers and
+ *   hash entries cost more than a hundred bytes a word on the heap. Now the words are stored as UTF-8,
+ *   one after the other, in a single byte arena, with an int offset for each row and an open-addressing
+ *   table of row ids hashed (FNV-1a) on the UTF-8 bytes; all three live in direct buffers, off the heap.
+ *   Looking up a word encodes it on the fly, so a lookup by CharSequence or byte[] doesn't allocate
+ *   anything. A SnapshotVectorStore wraps the same three sections straight out of its mapped file.
+ *   <p>
+ *   Adding words isn't thread-safe, but once the vocabulary is built any number of threads can look
+ *   words up.
+ *
+ * @author hulles
+ *
+ */
+final class Vocabulary {
+	private final static int FNV_OFFSET = 0x811C9DC5;
+	private final static int FNV_PRIME = 0x01000193;
+	// a guess at the UTF-8 bytes per word, for sizing the arena
+	private final static int AVERAGE_WORD_BYTES = 12;
+	private final static int MIN_TABLE_SLOTS = 16;
+	private final boolean readOnly;
+	private ByteBuffer wordBytes;
+	// size + 1 offsets; row r's word is wordBytes wordOffsets[r] up to wordOffsets[r + 1]
+	private IntBuffer wordOffsets;
+	// row + 1 for each used slot, 0 for empty ones; the number of slots is a power of two
+	private IntBuffer table;
+	private int tableMask;
+	private int size;
+
+	/**
+	 * Create a new vocabulary
+	 *
+	 * @param capacity The expected number of words
+	 */
+	Vocabulary(int capacity) {
+
+		if (capacity < 0) {
+			throw new IllegalArgumentException("Negative vocabulary capacity");
+		}
+		readOnly = false;
+		wordBytes = ByteBuffer.allocateDirect(Math.max(16, capacity * AVERAGE_WORD_BYTES));
+		wordOffsets = allocateInts(capacity + 1);
+		table = allocateInts(getTableSlots(capacity));
+		tableMask = table.capacity() - 1;
+		size = 0;
+	}
+
+	private Vocabulary(ByteBuffer wordBytes, IntBuffer wordOffsets, IntBuffer table, int size) {
+
+		readOnly = true;
+		this.wordBytes = wordBytes;
+		this.wordOffsets = wordOffsets;
+		this.table = table;
+		this.size = size;
+		tableMask = table.capacity() - 1;
+	}
+
+	/**
+	 * Wrap a finished vocabulary whose sections are already laid out in buffers, e.g. mapped from a
+	 *   snapshot file; it can't be added to
+	 *
+	 * @param wordBytes The UTF-8 words, one after the other
+	 * @param wordOffsets The size + 1 word offsets
+	 * @param table The hash table, a power of two number of slots
+	 * @param size The number of words
+	 * @return The vocabulary
+	 */
+	static Vocabulary wrap(ByteBuffer wordBytes, IntBuffer wordOffsets, IntBuffer table, int size) {
+
+		SharedUtils.checkNotNull(wordBytes);
+		SharedUtils.checkNotNull(wordOffsets);
+		SharedUtils.checkNotNull(table);
+		if (Integer.bitCount(table.capacity()) != 1 || wordOffsets.capacity() < size + 1) {
+			throw new WordToVecException("Bad vocabulary sections");
+		}
+		return new Vocabulary(wordBytes, wordOffsets, table, size);
+	}
+
+	/**
+	 * Get the number of hash table slots for a number of words, which keeps the table at most half full
+	 *
+	 * @param wordCount The number of words
+	 * @return A power of two number of slots
+	 */
+	static int getTableSlots(int wordCount) {
+
+		return Math.max(MIN_TABLE_SLOTS, Integer.highestOneBit(Math.max(1, wordCount) * 2 - 1) << 1);
+	}
+
+	private static IntBuffer allocateInts(int count) {
+
+		return ByteBuffer.allocateDirect(count * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	/**
+	 * Add a word to the vocabulary if it isn't already there
+	 *
+	 * @param word The word to add
+	 * @return The row id of the word, new or existing
+	 */
+	int add(CharSequence word) {
+		int id;
+		int position;
+		int codePoint;
+		int bytes;
+		int length;
+
+		SharedUtils.checkNotNull(word);
+		if (readOnly) {
+			throw new UnsupportedOperationException("Vocabulary is read-only");
+		}
+		id = getId(word);
+		if (id >= 0) {
+			return id;
+		}
+		if (size + 1 == wordOffsets.capacity()) {
+			wordOffsets = growInts(wordOffsets, wordOffsets.capacity() * 2);
+		}
+		if ((size + 1) * 2 > table.capacity()) {
+			rehash(table.capacity() * 2);
+		}
+		position = wordOffsets.get(size);
+		ensureBytes(position + getByteLength(word));
+		for (int charIx = 0; charIx < word.length(); charIx += Character.charCount(codePoint)) {
+			codePoint = codePointAt(word, charIx);
+			bytes = encode(codePoint);
+			length = getByteLength(codePoint);
+			for (int byteIx = 0; byteIx < length; byteIx++) {
+				wordBytes.put(position++, (byte) (bytes >>> (byteIx * 8)));
+			}
+		}
+		wordOffsets.put(size + 1, position);
+		insert(size, hash(word));
+		return size++;
+	}
+
+	/**
+	 * Get the row id of a word
+	 *
+	 * @param word The word to look up
+	 * @return The row id, or -1 if the word isn't in the vocabulary
+	 */
+	int getId(CharSequence word) {
+		int slot;
+		int row;
+
+		SharedUtils.checkNotNull(word);
+		slot = hash(word) & tableMask;
+		while ((row = table.get(slot) - 1) >= 0) {
+			if (wordEquals(row, word)) {
+				return row;
+			}
+			slot = (slot + 1) & tableMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the row id of a word given as UTF-8 bytes
+	 *
+	 * @param bytes The array holding the word
+	 * @param offset The offset of the word in the array
+	 * @param length The length of the word in bytes
+	 * @return The row id, or -1 if the word isn't in the vocabulary
+	 */
+	int getId(byte[] bytes, int offset, int length) {
+		int slot;
+		int row;
+
+		SharedUtils.checkNotNull(bytes);
+		slot = hash(bytes, offset, length) & tableMask;
+		while ((row = table.get(slot) - 1) >= 0) {
+			if (wordEquals(row, bytes, offset, length)) {
+				return row;
+			}
+			slot = (slot + 1) & tableMask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the word for a row id
+	 *
+	 * @param id The row id
+	 * @return The word
+	 */
+	String getWord(int id) {
+		byte[] bytes;
+		int start;
+
+		if (id < 0 || id >= size) {
+			throw new IndexOutOfBoundsException("Bad word id " + id);
+		}
+		start = wordOffsets.get(id);
+		bytes = new byte[wordOffsets.get(id + 1) - start];
+		for (int ix = 0; ix < bytes.length; ix++) {
+			bytes[ix] = wordBytes.get(start + ix);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Get the number of words in the vocabulary
+	 *
+	 * @return The number of words
+	 */
+	int size() {
+
+		return size;
+	}
+
+	/**
+	 * Get the off-heap memory the vocabulary takes, in bytes
+	 *
+	 * @return The size of the arena, offsets and table
+	 */
+	long getMemoryBytes() {
+
+		return wordBytes.capacity() + wordOffsets.capacity() * 4L + table.capacity() * 4L;
+	}
+
+	private boolean wordEquals(int row, CharSequence word) {
+		int position;
+		int end;
+		int codePoint;
+		int bytes;
+		int length;
+
+		position = wordOffsets.get(row);
+		end = wordOffsets.get(row + 1);
+		for (int charIx = 0; charIx < word.length(); charIx += Character.charCount(codePoint)) {
+			codePoint = codePointAt(word, charIx);
+			bytes = encode(codePoint);
+			length = getByteLength(codePoint);
+			if (position + length > end) {
+				return false;
+			}
+			for (int byteIx = 0; byteIx < length; byteIx++) {
+				if (wordBytes.get(position++) != (byte) (bytes >>> (byteIx * 8))) {
+					return false;
+				}
+			}
+		}
+		return position == end;
+	}
+
+	private boolean wordEquals(int row, byte[] bytes, int offset, int length) {
+		int start;
+
+		start = wordOffsets.get(row);
+		if (wordOffsets.get(row + 1) - start != length) {
+			return false;
+		}
+		for (int ix = 0; ix < length; ix++) {
+			if (wordBytes.get(start + ix) != bytes[offset + ix]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void insert(int row, int hash) {
+		int slot;
+
+		slot = hash & tableMask;
+		while (table.get(slot) != 0) {
+			slot = (slot + 1) & tableMask;
+		}
+		table.put(slot, row + 1);
+	}
+
+	private void rehash(int slots) {
+		int start;
+
+		table = allocateInts(slots);
+		tableMask = slots - 1;
+		for (int row = 0; row < size; row++) {
+			start = wordOffsets.get(row);
+			insert(row, hash(wordBytes, start, wordOffsets.get(row + 1) - start));
+		}
+	}
+
+	private void ensureBytes(int needed) {
+		ByteBuffer newBytes;
+
+		if (needed < 0) {
+			throw new WordToVecException("Vocabulary is too big");
+		}
+		if (needed <= wordBytes.capacity()) {
+			return;
+		}
+		newBytes = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE - 8,
+				Math.max(needed, wordBytes.capacity() * 2L)));
+		wordBytes.clear();
+		newBytes.put(wordBytes);
+		wordBytes = newBytes;
+	}
+
+	private static IntBuffer growInts(IntBuffer ints, int count) {
+		IntBuffer newInts;
+
+		newInts = allocateInts(count);
+		ints.clear();
+		newInts.put(ints);
+		return newInts;
+	}
+
+	/**
+	 * Get the code point at a char index, the way String.getBytes sees it: a surrogate that isn't half
+	 *   of a pair becomes '?'
+	 */
+	private static int codePointAt(CharSequence word, int charIx) {
+		char c;
+
+		c = word.charAt(charIx);
+		if (Character.isHighSurrogate(c) && charIx + 1 < word.length() &&
+				Character.isLowSurrogate(word.charAt(charIx + 1))) {
+			return Character.toCodePoint(c, word.charAt(charIx + 1));
+		}
+		if (Character.isSurrogate(c)) {
+			return '?';
+		}
+		return c;
+	}
+
+	private static int getByteLength(int codePoint) {
+
+		if (codePoint < 0x80) {
+			return 1;
+		}
+		if (codePoint < 0x800) {
+			return 2;
+		}
+		if (codePoint < 0x10000) {
+			return 3;
+		}
+		return 4;
+	}
+
+	/**
+	 * Get the number of UTF-8 bytes in a word
+	 *
+	 * @param word The word
+	 * @return The byte length
+	 */
+	static int getByteLength(CharSequence word) {
+		int length;
+		int codePoint;
+
+		length = 0;
+		for (int charIx = 0; charIx < word.length(); charIx += Character.charCount(codePoint)) {
+			codePoint = codePointAt(word, charIx);
+			length += getByteLength(codePoint);
+		}
+		return length;
+	}
+
+	/**
+	 * Encode a code point as UTF-8, packed into an int with the first byte lowest
+	 */
+	private static int encode(int codePoint) {
+
+		if (codePoint < 0x80) {
+			return codePoint;
+		}
+		if (codePoint < 0x800) {
+			return (0xC0 | codePoint >>> 6) | (0x80 | codePoint & 0x3F) << 8;
+		}
+		if (codePoint < 0x10000) {
+			return (0xE0 | codePoint >>> 12) | (0x80 | codePoint >>> 6 & 0x3F) << 8 |
+					(0x80 | codePoint & 0x3F) << 16;
+		}
+		return (0xF0 | codePoint >>> 18) | (0x80 | codePoint >>> 12 & 0x3F) << 8 |
+				(0x80 | codePoint >>> 6 & 0x3F) << 16 | (0x80 | codePoint & 0x3F) << 24;
+	}
+
+	/**
+	 * Hash the UTF-8 bytes of a word with 32-bit FNV-1a, without encoding it into an array
+	 *
+	 * @param word The word
+	 * @return The hash
+	 */
+	static int hash(CharSequence word) {
+		int hash;
+		int codePoint;
+		int bytes;
+		int length;
+
+		hash = FNV_OFFSET;
+		for (int charIx = 0; charIx < word.length(); charIx += Character.charCount(codePoint)) {
+			codePoint = codePointAt(word, charIx);
+			bytes = encode(codePoint);
+			length = getByteLength(codePoint);
+			for (int byteIx = 0; byteIx < length; byteIx++) {
+				hash = (hash ^ ((bytes >>> (byteIx * 8)) & 0xFF)) * FNV_PRIME;
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Hash UTF-8 bytes with 32-bit FNV-1a
+	 *
+	 * @param bytes The array holding the word
+	 * @param offset The offset of the word in the array
+	 * @param length The length of the word in bytes
+	 * @return The hash
+	 */
+	static int hash(byte[] bytes, int offset, int length) {
+		int hash;
+
+		hash = FNV_OFFSET;
+		for (int ix = offset; ix < offset + length; ix++) {
+			hash = (hash ^ (bytes[ix] & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+
+	private static int hash(ByteBuffer bytes, int offset, int length) {
+		int hash;
+
+		hash = FNV_OFFSET;
+		for (int ix = offset; ix < offset + length; ix++) {
+			hash = (hash ^ (bytes.get(ix) & 0xFF)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
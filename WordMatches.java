@@ -0,0 +1,120 @@
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * WordMatches is the result of a search: the row ids and cosine distances of the best matches, best
+ *   first, in parallel arrays. The words themselves are only looked up when asked for, and the
+ *   WordDistance list is only built on request.
+ *
+ * @author hulles
+ *
+ */
+final public class WordMatches {
+	private final VectorStore store;
+	private final int[] ids;
+	private final float[] scores;
+
+	/**
+	 * Create the matches by draining a heap
+	 *
+	 * @param store The vector store the row ids belong to
+	 * @param heap The heap with the best matches, which is emptied
+	 */
+	WordMatches(VectorStore store, TopKHeap heap) {
+
+		SharedUtils.checkNotNull(store);
+		SharedUtils.checkNotNull(heap);
+		this.store = store;
+		ids = new int[heap.size()];
+		scores = new float[heap.size()];
+		heap.drain(ids, scores);
+	}
+
+	/**
+	 * Create the matches from arrays of row ids and distances, best first, which it keeps
+	 *
+	 * @param store The vector store the row ids belong to
+	 * @param ids The row ids
+	 * @param scores The cosine distances
+	 */
+	WordMatches(VectorStore store, int[] ids, float[] scores) {
+
+		this.store = store;
+		this.ids = ids;
+		this.scores = scores;
+	}
+
+	/**
+	 * Get just the best few of the matches, which is what a search for fewer matches would have found
+	 *
+	 * @param count The number of matches wanted
+	 * @return The first count matches; this if there aren't more than that anyway
+	 */
+	WordMatches head(int count) {
+
+		if (count >= ids.length) {
+			return this;
+		}
+		return new WordMatches(store, Arrays.copyOf(ids, count), Arrays.copyOf(scores, count));
+	}
+
+	/**
+	 * Get the number of matches, which can be less than the number asked for if the vocabulary is small
+	 *
+	 * @return The number of matches
+	 */
+	public int size() {
+
+		return ids.length;
+	}
+
+	/**
+	 * Get the row id of a match
+	 *
+	 * @param ix The index of the match, 0 being the best
+	 * @return The row id
+	 */
+	public int getId(int ix) {
+
+		return ids[ix];
+	}
+
+	/**
+	 * Get the cosine distance of a match
+	 *
+	 * @param ix The index of the match, 0 being the best
+	 * @return The cosine distance
+	 */
+	public float getScore(int ix) {
+
+		return scores[ix];
+	}
+
+	/**
+	 * Get the word of a match
+	 *
+	 * @param ix The index of the match, 0 being the best
+	 * @return The word
+	 */
+	public String getWord(int ix) {
+
+		return store.getWord(ids[ix]);
+	}
+
+	/**
+	 * Build the list of WordDistances for the matches
+	 *
+	 * @return A NEW list of WordDistances, best first
+	 */
+	public List<WordDistance> toWordDistances() {
+		List<WordDistance> distances;
+
+		distances = new ArrayList<WordDistance>(ids.length);
+		for (int ix = 0; ix < ids.length; ix++) {
+			distances.add(new WordDistance(store.getWord(ids[ix]), (double) scores[ix]));
+		}
+		return distances;
+	}
+}
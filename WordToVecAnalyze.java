@@ -1,9 +1,7 @@
 
-import java.util.Map;
-
 /**
  * WordToVecAnalyze loads the word2vec file and performs a simple analysis of the words contained in it. 
- *   The vector values of the map are not used. I wrote this simply out of curiosity, and to see if there
+ *   The vector values of the store are not used. I wrote this simply out of curiosity, and to see if there
  *   was any garbage in the file I could filter out to save some time and aggravation. I ended up just removing
  *   the 1-character entries from the word2vec file.
  *   
@@ -13,10 +11,10 @@ import java.util.Map;
  *
  */
 final public class WordToVecAnalyze {
-	private Map<String, float[]> words;
+	private VectorStore words;
 	
 	/**
-	 * Load the map and analyze the word keys in it.
+	 * Load the store and analyze the words in it.
 	 * 
 	 * @param fileName the name of the word2vec BIN FORMAT file, e.g. vectors.bin
 	 */
@@ -26,12 +24,12 @@ final public class WordToVecAnalyze {
 		SharedUtils.checkNotNull(fileName);
 		loader = new WordToVecLoader();
 		loader.load(fileName);
-		words = loader.getMap();
+		words = loader.getStore();
 		calculateStats();
 	}
 	
 	/**
-	 * Calculate statistics for the words contained in the map and dump the results to
+	 * Calculate statistics for the words contained in the store and dump the results to
 	 *   System.out.
 	 * 
 	 */
@@ -49,8 +47,10 @@ final public class WordToVecAnalyze {
 		int punctuationSize = 0;
 		int digitSize = 0;
 		char c;
+		String word;
 		
-		for (String word : words.keySet()) {
+		for (int row = 0; row < words.size(); row++) {
+			word = words.getWord(row);
 			len = word.length();
 			if (len < minLen) minLen = len;
 			if (len > maxLen) maxLen = len;
@@ -65,8 +65,8 @@ final public class WordToVecAnalyze {
 			sum += len;
 		}
 		mean = sum / words.size();
-		for (String word : words.keySet()) {
-			len = word.length();
+		for (int row = 0; row < words.size(); row++) {
+			len = words.getWord(row).length();
 			temp += (mean - len) * (mean - len);
 		}
 		variance = temp / words.size();
@@ -0,0 +1,349 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WordToVecBatcher gathers word, analogy and vector searches from lots of threads into batches, so that
+ *   one pass over the vectors answers a whole batch instead of each search making its own pass. When
+ *   hundreds of searches come in at once, scanning the vectors once for each of them is mostly waiting on
+ *   memory; scanning once for 64 of them does 64 times the work for about the same memory traffic.
+ *   <p>
+ *   The searches return CompletableFutures right away. A scheduler thread takes the first waiting search,
+ *   waits up to maxDelayMicros for more to turn up (or until it has maxBatchSize of them), and searches the
+ *   lot together. While it's searching, new searches pile up for the next batch, so the busier it gets the
+ *   bigger the batches get. Each future gets its own matches, or an UnknownWordException if a word isn't in
+ *   the vocabulary. Searches the query cache or the neighbor table can answer don't wait for a scan.
+ *   <p>
+ *   The futures are completed on the scheduler thread, so anything hung on them with thenApply and friends
+ *   runs there too and holds up the next batch; use the Async versions for anything slow.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecBatcher implements AutoCloseable {
+	private final static LongAdder batches = WordToVecMetrics.getCounter("batcher.batches");
+	private final static LongAdder queries = WordToVecMetrics.getCounter("batcher.queries");
+	private final WordToVecSearch search;
+	private final WordToVecModel fixedModel;
+	private final BlockingQueue<PendingQuery> pending;
+	private final Thread scheduler;
+	private volatile int maxBatchSize = 64;
+	private volatile long maxDelayNanos = 500000;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a batcher that searches whatever model a WordToVecSearch has when each batch goes out
+	 *
+	 * @param search The WordToVecSearch
+	 */
+	public WordToVecBatcher(WordToVecSearch search) {
+
+		this(checked(search), null);
+	}
+
+	/**
+	 * Create a batcher that always searches the same model, e.g. one from a WordToVecRegistry
+	 *
+	 * @param model The model
+	 */
+	public WordToVecBatcher(WordToVecModel model) {
+
+		this(null, checked(model));
+	}
+
+	private WordToVecBatcher(WordToVecSearch search, WordToVecModel model) {
+
+		this.search = search;
+		this.fixedModel = model;
+		pending = new LinkedBlockingQueue<PendingQuery>();
+		scheduler = new Thread(new Scheduler(), "word2vec-batcher");
+		scheduler.setDaemon(true);
+		scheduler.start();
+	}
+
+	/**
+	 * Check a constructor argument before this(...) hands it on, so a null never gets as far as starting
+	 *   the scheduler thread
+	 *
+	 * @param reference The argument
+	 * @return The argument
+	 */
+	private static <T> T checked(T reference) {
+
+		SharedUtils.checkNotNull(reference);
+		return reference;
+	}
+
+	/**
+	 * Set the most searches in one batch; the default is 64, which is what one pass over the vectors
+	 *   handles
+	 *
+	 * @param maxBatchSize The batch size
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("Batch size must be at least 1");
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * Set how long the first search in a batch waits for others to join it; the default is 500 microseconds,
+	 *   which is small next to a scan of a big file
+	 *
+	 * @param maxDelayMicros The wait in microseconds; 0 sends whatever's waiting straight away
+	 */
+	public void setMaxDelayMicros(long maxDelayMicros) {
+
+		if (maxDelayMicros < 0) {
+			throw new IllegalArgumentException("Delay can't be negative");
+		}
+		this.maxDelayNanos = maxDelayMicros * 1000;
+	}
+
+	/**
+	 * Get the closest matches to a word, like WordToVecSearch.matchWord
+	 *
+	 * @param word The word to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A future for the matches
+	 */
+	public CompletableFuture<WordMatches> matchWord(String word, int maxNumberOfMatches) {
+
+		SharedUtils.checkNotNull(word);
+		return submit(new PendingQuery(new String[] { word }, null, maxNumberOfMatches));
+	}
+
+	/**
+	 * Get the possible analogues to three words, like WordToVecSearch.matchAnalogy
+	 *
+	 * @param word1 Word1 is to...
+	 * @param word2 ...word2 as...
+	 * @param word3 ...word3 is to the matches
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A future for the matches
+	 */
+	public CompletableFuture<WordMatches> matchAnalogy(String word1, String word2, String word3,
+			int maxNumberOfMatches) {
+
+		SharedUtils.checkNotNull(word1);
+		SharedUtils.checkNotNull(word2);
+		SharedUtils.checkNotNull(word3);
+		return submit(new PendingQuery(new String[] { word1, word2, word3 }, null, maxNumberOfMatches));
+	}
+
+	/**
+	 * Get the closest matches to an arbitrary vector, like WordToVecSearch.matchVector
+	 *
+	 * @param vector The vector to match; it doesn't need to be normalized
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A future for the matches
+	 */
+	public CompletableFuture<WordMatches> matchVector(float[] vector, int maxNumberOfMatches) {
+
+		SharedUtils.checkNotNull(vector);
+		return submit(new PendingQuery(null, vector.clone(), maxNumberOfMatches));
+	}
+
+	private CompletableFuture<WordMatches> submit(PendingQuery query) {
+
+		if (query.maxNumberOfMatches < 0) {
+			throw new IllegalArgumentException("Negative number of matches");
+		}
+		pending.add(query);
+		// close may have drained the queue just before we added to it
+		if (closed) {
+			failPending();
+		}
+		return query.future;
+	}
+
+	/**
+	 * Stop the scheduler. Searches that haven't gone out in a batch yet fail with a WordToVecException.
+	 */
+	@Override
+	public void close() {
+
+		closed = true;
+		scheduler.interrupt();
+		failPending();
+	}
+
+	private void failPending() {
+		PendingQuery query;
+
+		while ((query = pending.poll()) != null) {
+			query.future.completeExceptionally(new WordToVecException("Batcher closed"));
+		}
+	}
+
+	private WordToVecModel getModel() {
+
+		return fixedModel != null ? fixedModel : search.getModel();
+	}
+
+	/**
+	 * Work out the search vectors of a batch, answer what can be answered without a scan, and search the
+	 *   rest in one go
+	 *
+	 * @param batch The searches
+	 */
+	private void runBatch(List<PendingQuery> batch) {
+		WordToVecModel model;
+		VectorStore store;
+		QueryCache cache;
+		NeighborTable neighborTable;
+		List<PendingQuery> searches;
+		int[][] ignores;
+		float[][] vectors;
+		int[] rows;
+		WordMatches matches;
+		List<WordMatches> batchMatches;
+		int maxNumberOfMatches;
+		PendingQuery query;
+
+		batches.increment();
+		queries.add(batch.size());
+		try {
+			model = getModel();
+			store = model.getStore();
+			cache = model.getQueryCache();
+			neighborTable = model.getNeighborTable();
+			searches = new ArrayList<PendingQuery>(batch.size());
+			maxNumberOfMatches = 0;
+			for (PendingQuery pendingQuery : batch) {
+				if (pendingQuery.words == null) {
+					if (pendingQuery.vector.length != store.getVectorSize()) {
+						pendingQuery.future.completeExceptionally(new IllegalArgumentException("Vector size mismatch"));
+						continue;
+					}
+					pendingQuery.rows = new int[0];
+					pendingQuery.searchVector = WordToVecLoader.normalize(pendingQuery.vector);
+				} else {
+					if (cache != null) {
+						matches = cache.get(pendingQuery.getKey(), pendingQuery.maxNumberOfMatches);
+						if (matches != null) {
+							pendingQuery.future.complete(matches);
+							continue;
+						}
+					}
+					rows = new int[pendingQuery.words.length];
+					for (int wordIx = 0; wordIx < rows.length; wordIx++) {
+						rows[wordIx] = store.getId(pendingQuery.words[wordIx]);
+						if (rows[wordIx] < 0) {
+							pendingQuery.future.completeExceptionally(new UnknownWordException(pendingQuery.words[wordIx]));
+							break;
+						}
+					}
+					if (pendingQuery.future.isDone()) {
+						continue;
+					}
+					if (rows.length == 1 && neighborTable != null &&
+							neighborTable.covers(rows[0], pendingQuery.maxNumberOfMatches)) {
+						pendingQuery.future.complete(neighborTable.getMatches(store, rows[0],
+								pendingQuery.maxNumberOfMatches));
+						continue;
+					}
+					pendingQuery.rows = rows;
+					pendingQuery.searchVector = rows.length == 1 ? store.getVector(rows[0]) :
+							WordToVecModel.getAnalogyVector(store, rows[0], rows[1], rows[2]);
+				}
+				searches.add(pendingQuery);
+				maxNumberOfMatches = Math.max(maxNumberOfMatches, pendingQuery.maxNumberOfMatches);
+			}
+			if (searches.isEmpty()) {
+				return;
+			}
+			ignores = new int[searches.size()][];
+			vectors = new float[searches.size()][];
+			for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+				ignores[queryIx] = searches.get(queryIx).rows;
+				vectors[queryIx] = searches.get(queryIx).searchVector;
+			}
+			batchMatches = model.searchBatch(ignores, vectors, maxNumberOfMatches);
+			for (int queryIx = 0; queryIx < vectors.length; queryIx++) {
+				query = searches.get(queryIx);
+				matches = batchMatches.get(queryIx);
+				if (cache != null && query.words != null) {
+					cache.put(query.getKey(), maxNumberOfMatches, matches);
+				}
+				// the best few of a search for more matches are what a search for fewer would have found
+				query.future.complete(matches.head(query.maxNumberOfMatches));
+			}
+		} catch (RuntimeException e) {
+			for (PendingQuery pendingQuery : batch) {
+				pendingQuery.future.completeExceptionally(e);
+			}
+		}
+	}
+
+	/**
+	 * PendingQuery is a search waiting for a batch: words for a word or analogy search, or a vector
+	 */
+	private static final class PendingQuery {
+		private final String[] words;
+		private final float[] vector;
+		private final int maxNumberOfMatches;
+		private final CompletableFuture<WordMatches> future;
+		// filled in when the batch goes out
+		private int[] rows;
+		private float[] searchVector;
+
+		PendingQuery(String[] words, float[] vector, int maxNumberOfMatches) {
+
+			this.words = words;
+			this.vector = vector;
+			this.maxNumberOfMatches = maxNumberOfMatches;
+			future = new CompletableFuture<WordMatches>();
+		}
+
+		QueryCache.Key getKey() {
+
+			return words.length == 1 ? QueryCache.wordKey(words[0]) :
+					QueryCache.analogyKey(words[0], words[1], words[2]);
+		}
+	}
+
+	/**
+	 * Scheduler gathers the waiting searches into batches and runs them until the batcher is closed
+	 */
+	private final class Scheduler implements Runnable {
+
+		@Override
+		public void run() {
+			List<PendingQuery> batch;
+			PendingQuery query;
+			long deadline;
+			long remaining;
+
+			batch = new ArrayList<PendingQuery>();
+			while (!closed) {
+				batch.clear();
+				try {
+					batch.add(pending.take());
+					deadline = System.nanoTime() + maxDelayNanos;
+					while (batch.size() < maxBatchSize) {
+						remaining = deadline - System.nanoTime();
+						query = remaining > 0 ? pending.poll(remaining, TimeUnit.NANOSECONDS) : pending.poll();
+						if (query == null) {
+							break;
+						}
+						batch.add(query);
+					}
+				} catch (InterruptedException e) {
+					// closed; the searches we already took still get answered
+				}
+				if (!batch.isEmpty()) {
+					runBatch(batch);
+				}
+			}
+			failPending();
+		}
+	}
+}
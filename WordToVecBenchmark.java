@@ -0,0 +1,496 @@
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * WordToVecBenchmark times the things we care about when we change something: loading the file, the
+ *   distance kernel, keeping the best matches, and whole word match and analogy searches with each store
+ *   and search backend. The searches are run from 1, 2, 4... threads at once, since that's where the
+ *   locking and the memory bandwidth show up. If the BIN file doesn't exist, WordToVecGenerator makes one
+ *   first, so it runs anywhere.
+ *   <p>
+ *   It's a plain main program rather than a JMH suite, since there's no build to hang JMH on, but it does
+ *   what matters: each benchmark warms up before it's measured, the results are consumed so the JIT can't
+ *   throw the work away, and the latencies go in a LatencyHistogram so we get p50 and p99 as well as
+ *   throughput. The results are printed as a table at the end, one row per benchmark, variant and thread
+ *   count.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecBenchmark {
+	private final static String ROW_FORMAT = "%-10s %-16s %7s %14s %12s %12s %12s";
+	private final static int MATCHES = 40;
+	private final static int QUERY_WORDS = 1000;
+	private final static long RANDOM_SEED = 20131016L;
+	private final static int LOAD_RUNS = 3;
+	// kernel and heap benchmarks do this much work per timed call, since a single dot is only nanoseconds
+	private final static int DOTS_PER_CALL = 1000;
+	private final static int KERNEL_VECTORS = 1024;
+	private final static int HEAP_SCORES = 100000;
+	// middle-of-the-road index settings
+	private final static int HNSW_M = 16;
+	private final static int HNSW_EF_CONSTRUCTION = 100;
+	private final static int HNSW_EF_SEARCH = 64;
+	private final static int RECALL_QUERIES = 100;
+	// keeps the JIT from deciding the results aren't needed
+	private static volatile float sink;
+	private final String fileName;
+	private final int[] threadCounts;
+	private final long warmupNanos;
+	private final long measureNanos;
+	private final List<String> results;
+
+	/**
+	 * Set up a benchmark run
+	 *
+	 * @param fileName The BIN file to benchmark with
+	 * @param threadCounts The numbers of threads to run the searches with
+	 * @param seconds How long to measure each benchmark; it warms up for half that long first
+	 */
+	public WordToVecBenchmark(String fileName, int[] threadCounts, int seconds) {
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(threadCounts);
+		if (threadCounts.length == 0 || seconds < 1) {
+			throw new IllegalArgumentException("Need at least one thread count and one second");
+		}
+		for (int threadCount : threadCounts) {
+			if (threadCount < 1) {
+				throw new IllegalArgumentException("Thread counts must be at least 1");
+			}
+		}
+		this.fileName = fileName;
+		this.threadCounts = threadCounts.clone();
+		measureNanos = seconds * 1000000000L;
+		warmupNanos = measureNanos / 2;
+		results = new ArrayList<String>();
+	}
+
+	/**
+	 * Run all the benchmarks and print the results
+	 */
+	public void run() {
+
+		benchmarkLoads();
+		benchmarkKernels();
+		benchmarkSearches();
+		System.out.println();
+		System.out.println(String.format(ROW_FORMAT, "benchmark", "variant", "threads", "ops/s", "mean/op",
+				"p50/call", "p99/call"));
+		for (String result : results) {
+			System.out.println(result);
+		}
+	}
+
+	/**
+	 * Time each of the ways to load the file. The parallel loader gets each thread count.
+	 */
+	private void benchmarkLoads() {
+		double megabytes;
+		WordToVecSearch search;
+		LatencyHistogram histogram;
+		long startNanos;
+
+		megabytes = new File(fileName).length() / 1048576.0;
+		for (String mode : new String[] { "bin", "map", "int8", "parallel" }) {
+			for (int threadCount : mode.equals("parallel") ? threadCounts : new int[] { 1 }) {
+				histogram = new LatencyHistogram("load." + mode);
+				for (int run = 0; run < LOAD_RUNS; run++) {
+					search = new WordToVecSearch();
+					startNanos = System.nanoTime();
+					switch (mode) {
+					case "bin":
+						search.loadFile(fileName);
+						break;
+					case "map":
+						search.mapFile(fileName);
+						break;
+					case "int8":
+						search.loadQuantized(fileName, Quantization.INT8_PER_DIMENSION);
+						break;
+					default:
+						search.loadFile(fileName, threadCount);
+						break;
+					}
+					histogram.recordSince(startNanos);
+					sink += search.getModel().size();
+				}
+				results.add(String.format(ROW_FORMAT, "load", mode, threadCount,
+						String.format("%.1f MB/s", megabytes * 1e9 / histogram.getMeanNanos()),
+						LatencyHistogram.formatNanos(histogram.getMeanNanos()),
+						LatencyHistogram.formatNanos(histogram.getPercentileNanos(50)),
+						LatencyHistogram.formatNanos(histogram.getPercentileNanos(99))));
+			}
+		}
+	}
+
+	/**
+	 * Time the distance kernels and the best-match heap on their own
+	 */
+	private void benchmarkKernels() {
+		WordToVecSearch search;
+		VectorStore store;
+		float[][] vectors;
+		float[] scores;
+		Random random;
+
+		search = new WordToVecSearch();
+		search.loadFile(fileName);
+		store = search.getModel().getStore();
+		random = new Random(RANDOM_SEED);
+		vectors = new float[Math.min(KERNEL_VECTORS, store.size())][];
+		for (int i = 0; i < vectors.length; i++) {
+			vectors[i] = store.getVector(random.nextInt(store.size()));
+		}
+		scores = new float[HEAP_SCORES];
+		for (int i = 0; i < scores.length; i++) {
+			scores[i] = random.nextFloat() * 2 - 1;
+		}
+		for (int threadCount : threadCounts) {
+			measure("distance", "default", threadCount, new KernelOperation(DistanceKernels.getDefault(), vectors));
+			measure("distance", "scalar", threadCount, new KernelOperation(DistanceKernels.getScalar(), vectors));
+			measure("topk", "k=" + MATCHES, threadCount, new HeapOperation(scores));
+		}
+	}
+
+	/**
+	 * Time word matches and analogies with each store and backend. The searches scan on the calling thread
+	 *   (parallelism 1), so the thread count is the number of searches running at once.
+	 */
+	private void benchmarkSearches() {
+		WordToVecSearch search;
+		String[] words;
+		Random random;
+		int clusterCount;
+
+		for (String variant : new String[] { "flat/exact", "mapped/exact", "int8/exact", "flat/hnsw",
+				"flat/ivf", "flat/pq+rerank" }) {
+			search = new WordToVecSearch();
+			if (variant.startsWith("mapped")) {
+				search.mapFile(fileName);
+			} else if (variant.startsWith("int8")) {
+				search.loadQuantized(fileName, Quantization.INT8_PER_DIMENSION);
+			} else {
+				search.loadFile(fileName);
+			}
+			switch (variant) {
+			case "flat/hnsw":
+				search.buildHnsw(fileName + ".hnsw", HNSW_M, HNSW_EF_CONSTRUCTION, HNSW_EF_SEARCH);
+				break;
+			case "flat/ivf":
+				clusterCount = Math.max(1, (int) Math.sqrt(search.getModel().size()));
+				search.buildIvf(fileName + ".ivf", clusterCount, Math.max(1, clusterCount / 16));
+				break;
+			case "flat/pq+rerank":
+				search.buildProductQuantization(fileName + ".pq", Math.max(1, search.getModel().getVectorSize() / 4),
+						true);
+				break;
+			default:
+				break;
+			}
+			if (!variant.endsWith("exact")) {
+				System.out.println(variant + ": " + search.measureRecall(RECALL_QUERIES, MATCHES));
+			}
+			random = new Random(RANDOM_SEED);
+			words = new String[QUERY_WORDS];
+			for (int i = 0; i < words.length; i++) {
+				words[i] = search.getModel().getStore().getWord(random.nextInt(search.getModel().size()));
+			}
+			for (int threadCount : threadCounts) {
+				measure("matches", variant, threadCount, new MatchOperation(search.getModel(), words));
+				measure("analogy", variant, threadCount, new AnalogyOperation(search.getModel(), words));
+			}
+		}
+	}
+
+	/**
+	 * Run an operation from some threads for the warm-up time, then again for the measuring time, and
+	 *   add a row to the results
+	 *
+	 * @param benchmark The benchmark name
+	 * @param variant The variant, e.g. the store and backend
+	 * @param threadCount The number of threads
+	 * @param operation The operation
+	 */
+	private void measure(String benchmark, String variant, int threadCount, Operation operation) {
+		LatencyHistogram histogram;
+		Worker[] workers;
+		long operations;
+
+		System.out.println("Benchmarking " + benchmark + " " + variant + " with " + threadCount + " threads");
+		runWorkers(threadCount, operation, null, warmupNanos);
+		histogram = new LatencyHistogram(benchmark);
+		workers = runWorkers(threadCount, operation, histogram, measureNanos);
+		operations = 0;
+		for (Worker worker : workers) {
+			operations += worker.operations;
+		}
+		results.add(String.format(ROW_FORMAT, benchmark, variant, threadCount,
+				String.format("%,.0f", operations * 1e9 / measureNanos),
+				LatencyHistogram.formatNanos(operations == 0 ? 0 : measureNanos * threadCount / operations),
+				LatencyHistogram.formatNanos(histogram.getPercentileNanos(50)),
+				LatencyHistogram.formatNanos(histogram.getPercentileNanos(99))));
+	}
+
+	private static Worker[] runWorkers(int threadCount, Operation operation, LatencyHistogram histogram,
+			long nanos) {
+		Worker[] workers;
+		Thread[] threads;
+		CountDownLatch startLatch;
+
+		workers = new Worker[threadCount];
+		threads = new Thread[threadCount];
+		startLatch = new CountDownLatch(1);
+		for (int threadIx = 0; threadIx < threadCount; threadIx++) {
+			workers[threadIx] = new Worker(operation, histogram, nanos, threadIx, startLatch);
+			threads[threadIx] = new Thread(workers[threadIx], "word2vec-benchmark-" + threadIx);
+			threads[threadIx].start();
+		}
+		startLatch.countDown();
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new WordToVecException("Interrupted during benchmark");
+			}
+		}
+		return workers;
+	}
+
+	/**
+	 * Run the benchmarks from the command line
+	 *
+	 * @param args The BIN file name (made if it doesn't exist), then optionally the vocabulary size and
+	 *   vector size to make it with (100000 and 100), the thread counts (1,2,4) and the seconds to measure
+	 *   each benchmark (5), e.g. synthetic.bin 1000000 300 1,4,8 10
+	 */
+	public static void main(String[] args) {
+		String fileName;
+		int vocabSize;
+		int vectorSize;
+		String[] counts;
+		int[] threadCounts;
+		int seconds;
+
+		if (args.length < 1) {
+			System.out.println("Usage: WordToVecBenchmark fileName [vocabSize vectorSize [threadCounts [seconds]]]");
+			return;
+		}
+		fileName = args[0];
+		vocabSize = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		vectorSize = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		counts = (args.length > 3 ? args[3] : "1,2,4").split(",");
+		threadCounts = new int[counts.length];
+		for (int i = 0; i < counts.length; i++) {
+			threadCounts[i] = Integer.parseInt(counts[i].trim());
+		}
+		seconds = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+		if (!new File(fileName).exists()) {
+			WordToVecGenerator.generate(fileName, vocabSize, vectorSize);
+		}
+		new WordToVecBenchmark(fileName, threadCounts, seconds).run();
+	}
+
+	/**
+	 * Operation is one timed call of a benchmark; it has to be safe to call from several threads at once
+	 */
+	private interface Operation {
+
+		/**
+		 * Do the work once
+		 *
+		 * @param iteration Which call this is on this thread, offset by thread, to pick the inputs
+		 * @return Something from the results, so the work can't be optimized away
+		 */
+		float run(int iteration);
+
+		/**
+		 * Get the number of operations each call does
+		 *
+		 * @return The operation count
+		 */
+		int getOperationsPerCall();
+	}
+
+	/**
+	 * Worker calls an operation over and over until its time is up
+	 */
+	private static final class Worker implements Runnable {
+		private final Operation operation;
+		private final LatencyHistogram histogram;
+		private final long nanos;
+		private final int firstIteration;
+		private final CountDownLatch startLatch;
+		long operations;
+
+		Worker(Operation operation, LatencyHistogram histogram, long nanos, int threadIx, CountDownLatch startLatch) {
+
+			this.operation = operation;
+			this.histogram = histogram;
+			this.nanos = nanos;
+			// start each thread somewhere else in the inputs
+			this.firstIteration = threadIx * 7919;
+			this.startLatch = startLatch;
+			operations = 0;
+		}
+
+		@Override
+		public void run() {
+			long endNanos;
+			long startNanos;
+			float result;
+			int iteration;
+
+			try {
+				startLatch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			result = 0;
+			iteration = firstIteration;
+			endNanos = System.nanoTime() + nanos;
+			do {
+				startNanos = System.nanoTime();
+				result += operation.run(iteration++);
+				if (histogram != null) {
+					histogram.recordSince(startNanos);
+				}
+				operations += operation.getOperationsPerCall();
+			} while (System.nanoTime() < endNanos);
+			sink += result;
+		}
+	}
+
+	/**
+	 * KernelOperation takes the dot products of pairs of vectors
+	 */
+	private static final class KernelOperation implements Operation {
+		private final DistanceKernel kernel;
+		private final float[][] vectors;
+
+		KernelOperation(DistanceKernel kernel, float[][] vectors) {
+
+			this.kernel = kernel;
+			this.vectors = vectors;
+		}
+
+		@Override
+		public float run(int iteration) {
+			float total;
+			int first;
+			float[] a;
+			float[] b;
+
+			total = 0;
+			first = iteration * DOTS_PER_CALL;
+			for (int i = 0; i < DOTS_PER_CALL; i++) {
+				a = vectors[Math.floorMod(first + i, vectors.length)];
+				b = vectors[Math.floorMod(first + i + 1, vectors.length)];
+				total += kernel.dot(a, 0, b, 0, a.length);
+			}
+			return total;
+		}
+
+		@Override
+		public int getOperationsPerCall() {
+
+			return DOTS_PER_CALL;
+		}
+	}
+
+	/**
+	 * HeapOperation keeps the best matches of a vocabulary's worth of scores, which is what every scan
+	 *   does besides the distances
+	 */
+	private static final class HeapOperation implements Operation {
+		private final float[] scores;
+
+		HeapOperation(float[] scores) {
+
+			this.scores = scores;
+		}
+
+		@Override
+		public float run(int iteration) {
+			TopKHeap heap;
+
+			heap = new TopKHeap(MATCHES);
+			for (int i = 0; i < scores.length; i++) {
+				heap.offer(i, scores[i]);
+			}
+			return heap.getLeastScore();
+		}
+
+		@Override
+		public int getOperationsPerCall() {
+
+			return scores.length;
+		}
+	}
+
+	/**
+	 * MatchOperation finds the best matches of a word
+	 */
+	private static final class MatchOperation implements Operation {
+		private final WordToVecModel model;
+		private final String[] words;
+
+		MatchOperation(WordToVecModel model, String[] words) {
+
+			this.model = model;
+			this.words = words;
+		}
+
+		@Override
+		public float run(int iteration) {
+			WordMatches matches;
+
+			matches = model.matchWord(words[Math.floorMod(iteration, words.length)], MATCHES);
+			return matches.size() == 0 ? 0 : matches.getScore(0);
+		}
+
+		@Override
+		public int getOperationsPerCall() {
+
+			return 1;
+		}
+	}
+
+	/**
+	 * AnalogyOperation does an analogy with three of the words
+	 */
+	private static final class AnalogyOperation implements Operation {
+		private final WordToVecModel model;
+		private final String[] words;
+
+		AnalogyOperation(WordToVecModel model, String[] words) {
+
+			this.model = model;
+			this.words = words;
+		}
+
+		@Override
+		public float run(int iteration) {
+			WordMatches matches;
+			int first;
+
+			first = iteration * 3;
+			matches = model.matchAnalogy(words[Math.floorMod(first, words.length)],
+					words[Math.floorMod(first + 1, words.length)], words[Math.floorMod(first + 2, words.length)],
+					MATCHES);
+			return matches.size() == 0 ? 0 : matches.getScore(0);
+		}
+
+		@Override
+		public int getOperationsPerCall() {
+
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,832 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * WordToVecEmbedder turns a phrase or a whole document into one vector, the (optionally weighted) average
+ *   of the vectors of its words. It's the usual cheap sentence embedding, and it works surprisingly well,
+ *   especially with SIF weights.
+ *   <p>
+ *   It's meant for embedding millions of documents, so nothing in the per-document path allocates: words
+ *   are looked up in the vocabulary straight from the text (a CharSequence, or UTF-8 bytes from a file)
+ *   without making Strings, the vectors are added up in place with VectorStore.addVector instead of being
+ *   copied out with getVector, and the caller supplies the array the embedding goes in, so it can be used
+ *   over and over. An embedder can be shared by any number of threads.
+ *   <p>
+ *   embedFile does a whole file of documents, one per line, in parallel. Like loadTextFile it splits the
+ *   file into ranges on line boundaries and reads them through small buffers in two passes: the first just
+ *   counts the lines of each range, so the second knows where each range's embeddings go in the output file
+ *   and every thread can write its own part of the file as it goes. Each thread has its own read buffer,
+ *   word buffer, sum and write buffer, and that's all it needs however big the file is.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecEmbedder {
+	private final static String THROUGHPUT = "Embedded %,d documents (%,.1f MB) in %s with %d threads: %,.0f documents/s, %,.1f MB/s";
+	private final static int MAGIC = 0x57324445;
+	private final static int VERSION = 1;
+	private final static int HEADER_BYTES = 32;
+	// ranges per thread, so a slow thread doesn't hold everyone up at the end
+	private final static int RANGES_PER_THREAD = 4;
+	private final static int READ_BUFFER_BYTES = 1 << 16;
+	private final static int WRITE_BUFFER_BYTES = 1 << 20;
+	private final static int INITIAL_TOKEN_BYTES = 64;
+	private final static float DEFAULT_SIF_PARAMETER = 1e-3f;
+	// Euler's constant, for guessing word frequencies from ranks
+	private final static double EULER_GAMMA = 0.5772156649;
+	private final VectorStore store;
+	private final int vectorSize;
+	private final ThreadLocal<TokenView> tokenViews;
+	private int threadCount;
+	private volatile boolean normalize;
+	private EmbeddingWeighting weighting;
+	private float sifParameter;
+	// from countCorpus, if it's been run
+	private long[] wordCounts;
+	private int[] documentCounts;
+	private long corpusDocuments;
+	private long corpusWords;
+	// null means every word weighs 1
+	private volatile float[] weights;
+
+	/**
+	 * Create an embedder for a model's vectors. It keeps using the vectors it starts with, even if a
+	 *   WordToVecSearch loads something else later.
+	 *
+	 * @param model The model, e.g. from WordToVecSearch.getModel
+	 */
+	public WordToVecEmbedder(WordToVecModel model) {
+
+		SharedUtils.checkNotNull(model);
+		store = model.getStore();
+		vectorSize = store.getVectorSize();
+		tokenViews = new ThreadLocal<TokenView>();
+		threadCount = Runtime.getRuntime().availableProcessors();
+		normalize = false;
+		weighting = EmbeddingWeighting.NONE;
+		sifParameter = DEFAULT_SIF_PARAMETER;
+		weights = null;
+	}
+
+	/**
+	 * Get the dimension of the embeddings, i.e. the length the output arrays need to be
+	 *
+	 * @return The vector size
+	 */
+	public int getVectorSize() {
+
+		return vectorSize;
+	}
+
+	/**
+	 * Set the number of threads embedFile and countCorpus use
+	 *
+	 * @param threadCount The thread count; the default is the number of processors
+	 */
+	public synchronized void setThreadCount(int threadCount) {
+
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Set whether the embeddings are normalized to length 1 instead of being left as the weighted average;
+	 *   for cosine distances it makes no difference, but it saves normalizing them again later
+	 *
+	 * @param normalize True to normalize the embeddings
+	 */
+	public synchronized void setNormalize(boolean normalize) {
+
+		this.normalize = normalize;
+	}
+
+	/**
+	 * Set how the words of a document are weighted
+	 *
+	 * @param weighting The weighting; the default is NONE
+	 */
+	public synchronized void setWeighting(EmbeddingWeighting weighting) {
+
+		SharedUtils.checkNotNull(weighting);
+		if (weighting == EmbeddingWeighting.IDF && documentCounts == null) {
+			throw new WordToVecException("IDF weighting needs document frequencies; run countCorpus first");
+		}
+		this.weighting = weighting;
+		updateWeights();
+	}
+
+	/**
+	 * Set the "a" of SIF weighting, a / (a + p(word)); smaller values push common words down harder
+	 *
+	 * @param sifParameter The parameter; the default is 0.001
+	 */
+	public synchronized void setSifParameter(float sifParameter) {
+
+		if (!(sifParameter > 0)) {
+			throw new IllegalArgumentException("SIF parameter must be more than 0");
+		}
+		this.sifParameter = sifParameter;
+		updateWeights();
+	}
+
+	/**
+	 * Count how often each word turns up in a corpus, one document per line, and in how many documents, for
+	 *   IDF and SIF weights. The words are counted the same way embedFile reads them, in parallel.
+	 *
+	 * @param fileName The corpus
+	 */
+	public void countCorpus(String fileName) {
+		FileChannel channel;
+		List<CorpusTask> tasks;
+		long[] rangeStarts;
+		long[] newWordCounts;
+		int[] newDocumentCounts;
+		long documents;
+		long words;
+		long startNanos;
+		int taskThreads;
+		ForkJoinPool pool;
+
+		SharedUtils.checkNotNull(fileName);
+		startNanos = System.nanoTime();
+		synchronized (this) {
+			taskThreads = threadCount;
+		}
+		newWordCounts = new long[store.size()];
+		newDocumentCounts = new int[store.size()];
+		documents = 0;
+		words = 0;
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			try {
+				// one range per thread, since each range has its own counts the size of the vocabulary
+				rangeStarts = splitRanges(channel, taskThreads);
+				tasks = new ArrayList<CorpusTask>(taskThreads);
+				for (int rangeIx = 0; rangeIx < rangeStarts.length - 1; rangeIx++) {
+					tasks.add(new CorpusTask(channel, rangeStarts[rangeIx], rangeStarts[rangeIx + 1]));
+				}
+				pool = new ForkJoinPool(taskThreads);
+				try {
+					for (long count : SharedUtils.runTasks(tasks, pool)) {
+						documents += count;
+					}
+				} finally {
+					pool.shutdown();
+				}
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error reading corpus");
+		}
+		for (CorpusTask task : tasks) {
+			for (int row = 0; row < newWordCounts.length; row++) {
+				newWordCounts[row] += task.wordCounts[row];
+				newDocumentCounts[row] += task.documentCounts[row];
+				words += task.wordCounts[row];
+			}
+		}
+		synchronized (this) {
+			wordCounts = newWordCounts;
+			documentCounts = newDocumentCounts;
+			corpusDocuments = documents;
+			corpusWords = words;
+			updateWeights();
+		}
+		System.out.println(String.format("Counted %,d known words in %,d documents", words, documents));
+		WordToVecMetrics.stopTimer("embed.count", startNanos);
+	}
+
+	/**
+	 * Work out the weight of every row for the current weighting
+	 */
+	private void updateWeights() {
+		float[] newWeights;
+		double harmonic;
+		double probability;
+
+		if (weighting == EmbeddingWeighting.NONE) {
+			weights = null;
+			return;
+		}
+		newWeights = new float[store.size()];
+		// Zipf's law: the word of rank r turns up about 1 / (r * H(V)) of the time
+		harmonic = Math.log(Math.max(1, newWeights.length)) + EULER_GAMMA;
+		for (int row = 0; row < newWeights.length; row++) {
+			if (weighting == EmbeddingWeighting.IDF) {
+				newWeights[row] = (float) (Math.log((1.0 + corpusDocuments) / (1.0 + documentCounts[row])) + 1.0);
+			} else {
+				if (wordCounts != null) {
+					probability = corpusWords == 0 ? 0 : (double) wordCounts[row] / corpusWords;
+				} else {
+					probability = 1.0 / ((row + 1) * harmonic);
+				}
+				newWeights[row] = (float) (sifParameter / (sifParameter + probability));
+			}
+		}
+		weights = newWeights;
+	}
+
+	/**
+	 * Look up the words of a text, e.g. to embed it more than once or to keep the ids around
+	 *
+	 * @param text The text; words are separated by whitespace (Character.isWhitespace, as in embedFile)
+	 * @param ids Receives the row id of each word, or -1 for a word that isn't in the vocabulary
+	 * @return The number of words found, which stops at the length of ids
+	 */
+	public int tokenize(CharSequence text, int[] ids) {
+		TokenView token;
+		int count;
+		int start;
+
+		SharedUtils.checkNotNull(text);
+		SharedUtils.checkNotNull(ids);
+		token = getTokenView();
+		count = 0;
+		start = -1;
+		for (int charIx = 0; charIx <= text.length() && count < ids.length; charIx++) {
+			if (charIx == text.length() || Character.isWhitespace(text.charAt(charIx))) {
+				if (start >= 0) {
+					token.set(text, start, charIx);
+					ids[count++] = store.getId(token);
+					start = -1;
+				}
+			} else if (start < 0) {
+				start = charIx;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Embed a text
+	 *
+	 * @param text The text; words are separated by whitespace, and words that aren't in the vocabulary
+	 *   are left out
+	 * @param output Receives the embedding, all zeros if none of the words are in the vocabulary; its length
+	 *   has to be the vector size
+	 * @return The number of words that went into the embedding
+	 */
+	public int embed(CharSequence text, float[] output) {
+		TokenView token;
+		float[] rowWeights;
+		float weight;
+		float weightSum;
+		int found;
+		int start;
+		int row;
+
+		SharedUtils.checkNotNull(text);
+		checkOutput(output);
+		rowWeights = weights;
+		token = getTokenView();
+		Arrays.fill(output, 0f);
+		weightSum = 0f;
+		found = 0;
+		start = -1;
+		for (int charIx = 0; charIx <= text.length(); charIx++) {
+			if (charIx == text.length() || Character.isWhitespace(text.charAt(charIx))) {
+				if (start >= 0) {
+					token.set(text, start, charIx);
+					row = store.getId(token);
+					if (row >= 0) {
+						weight = rowWeights == null ? 1f : rowWeights[row];
+						store.addVector(row, weight, output);
+						weightSum += weight;
+						found++;
+					}
+					start = -1;
+				}
+			} else if (start < 0) {
+				start = charIx;
+			}
+		}
+		finish(output, weightSum, found);
+		return found;
+	}
+
+	/**
+	 * Embed a document that's already been looked up, e.g. with tokenize
+	 *
+	 * @param ids The row ids of the words; -1s are left out
+	 * @param count The number of ids to use
+	 * @param output Receives the embedding, all zeros if there aren't any words; its length has to be the
+	 *   vector size
+	 * @return The number of words that went into the embedding
+	 */
+	public int embed(int[] ids, int count, float[] output) {
+		float[] rowWeights;
+		float weight;
+		float weightSum;
+		int found;
+
+		SharedUtils.checkNotNull(ids);
+		checkOutput(output);
+		if (count < 0 || count > ids.length) {
+			throw new IllegalArgumentException("Bad id count");
+		}
+		rowWeights = weights;
+		Arrays.fill(output, 0f);
+		weightSum = 0f;
+		found = 0;
+		for (int idIx = 0; idIx < count; idIx++) {
+			if (ids[idIx] >= 0) {
+				weight = rowWeights == null ? 1f : rowWeights[ids[idIx]];
+				store.addVector(ids[idIx], weight, output);
+				weightSum += weight;
+				found++;
+			}
+		}
+		finish(output, weightSum, found);
+		return found;
+	}
+
+	private void checkOutput(float[] output) {
+
+		SharedUtils.checkNotNull(output);
+		if (output.length != vectorSize) {
+			throw new IllegalArgumentException("Output size mismatch");
+		}
+	}
+
+	/**
+	 * Turn a weighted sum of vectors into the average, or into a unit vector if we're normalizing
+	 *
+	 * @param sum The sum
+	 * @param weightSum The sum of the weights
+	 * @param found The number of vectors in the sum
+	 */
+	private void finish(float[] sum, float weightSum, int found) {
+		double len;
+		float scale;
+
+		if (found == 0) {
+			return;
+		}
+		if (normalize) {
+			len = 0.0;
+			for (float value : sum) {
+				len += value * value;
+			}
+			scale = len > 0 ? (float) (1.0 / Math.sqrt(len)) : 0f;
+		} else {
+			scale = weightSum > 0 ? 1f / weightSum : 0f;
+		}
+		for (int ix = 0; ix < sum.length; ix++) {
+			sum[ix] *= scale;
+		}
+	}
+
+	private TokenView getTokenView() {
+		TokenView token;
+
+		token = tokenViews.get();
+		if (token == null) {
+			token = new TokenView();
+			tokenViews.set(token);
+		}
+		return token;
+	}
+
+	/**
+	 * Embed a file of documents, one per line, into a binary file: a 32-byte header (the int 0x57324445,
+	 *   the version, the document count as a long and the vector size, all little-endian), then one row of
+	 *   vector size little-endian floats for each line, in order. Lines without any known words get a row
+	 *   of zeros, so row n is always line n. Words are split on the same whitespace as embed splits on.
+	 *
+	 * @param fileName The documents, as UTF-8 text
+	 * @param outputFileName The file to write the embeddings to
+	 * @return The number of documents
+	 */
+	public long embedFile(String fileName, String outputFileName) {
+		FileChannel channel;
+		FileChannel outputChannel;
+		List<Callable<Long>> countTasks;
+		List<EmbedTask> embedTasks;
+		List<Long> lineCounts;
+		ByteBuffer header;
+		long[] rangeStarts;
+		long documents;
+		long fileSize;
+		long startNanos;
+		long elapsedMillis;
+		double seconds;
+		double megabytes;
+		int taskThreads;
+		ForkJoinPool pool;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(outputFileName);
+		startNanos = System.nanoTime();
+		synchronized (this) {
+			taskThreads = threadCount;
+		}
+		pool = new ForkJoinPool(taskThreads);
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			outputChannel = FileChannel.open(Paths.get(outputFileName), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			try {
+				fileSize = channel.size();
+				rangeStarts = splitRanges(channel, taskThreads * RANGES_PER_THREAD);
+
+				// pass 1: the lines in each range
+				countTasks = new ArrayList<Callable<Long>>(rangeStarts.length - 1);
+				for (int rangeIx = 0; rangeIx < rangeStarts.length - 1; rangeIx++) {
+					countTasks.add(new LineCountTask(channel, rangeStarts[rangeIx], rangeStarts[rangeIx + 1]));
+				}
+				lineCounts = SharedUtils.runTasks(countTasks, pool);
+
+				// pass 2: the embeddings, each range written where its first line goes
+				embedTasks = new ArrayList<EmbedTask>(rangeStarts.length - 1);
+				documents = 0;
+				for (int rangeIx = 0; rangeIx < rangeStarts.length - 1; rangeIx++) {
+					embedTasks.add(new EmbedTask(channel, rangeStarts[rangeIx], rangeStarts[rangeIx + 1],
+							outputChannel, HEADER_BYTES + documents * vectorSize * 4));
+					documents += lineCounts.get(rangeIx);
+				}
+				header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putLong(documents).putInt(vectorSize);
+				header.clear();
+				while (header.hasRemaining()) {
+					outputChannel.write(header, header.position());
+				}
+				SharedUtils.runTasks(embedTasks, pool);
+			} finally {
+				channel.close();
+				outputChannel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error embedding file");
+		} finally {
+			pool.shutdown();
+		}
+		elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+		seconds = Math.max(elapsedMillis, 1) / 1000.0;
+		megabytes = fileSize / (1024.0 * 1024.0);
+		System.out.println(String.format(THROUGHPUT, documents, megabytes,
+				SharedUtils.formatElapsedMillis(elapsedMillis), taskThreads, documents / seconds, megabytes / seconds));
+		WordToVecMetrics.stopTimer("embed.file", startNanos);
+		return documents;
+	}
+
+	/**
+	 * Split a file into ranges that start at the beginning of a line
+	 *
+	 * @param channel The file
+	 * @param rangeCount The number of ranges to aim for
+	 * @return The start of each range and, last, the end of the file
+	 */
+	private static long[] splitRanges(FileChannel channel, int rangeCount) throws IOException {
+		long[] starts;
+		ByteBuffer buffer;
+		long fileSize;
+		long position;
+		boolean found;
+
+		fileSize = channel.size();
+		starts = new long[rangeCount + 1];
+		buffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+		starts[0] = 0;
+		for (int rangeIx = 1; rangeIx < rangeCount; rangeIx++) {
+			position = Math.max(fileSize * rangeIx / rangeCount, starts[rangeIx - 1]);
+			if (position > 0) {
+				// back up one so a range that already starts a line stays put
+				position--;
+				found = false;
+				while (!found && position < fileSize) {
+					buffer.clear();
+					if (channel.read(buffer, position) < 0) {
+						break;
+					}
+					for (int ix = 0; ix < buffer.position(); ix++) {
+						if (buffer.get(ix) == '\n') {
+							position += ix;
+							found = true;
+							break;
+						}
+					}
+					if (!found) {
+						position += buffer.position();
+					}
+				}
+				position = Math.min(position + 1, fileSize);
+			}
+			starts[rangeIx] = position;
+		}
+		starts[rangeCount] = fileSize;
+		return starts;
+	}
+
+	/**
+	 * TokenView is a word of a CharSequence, looked up in place of a substring
+	 */
+	private static final class TokenView implements CharSequence {
+		private CharSequence text;
+		private int start;
+		private int end;
+
+		void set(CharSequence text, int start, int end) {
+
+			this.text = text;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public int length() {
+
+			return end - start;
+		}
+
+		@Override
+		public char charAt(int index) {
+
+			return text.charAt(start + index);
+		}
+
+		@Override
+		public CharSequence subSequence(int fromIndex, int toIndex) {
+
+			return text.subSequence(start + fromIndex, start + toIndex);
+		}
+
+		@Override
+		public String toString() {
+
+			return text.subSequence(start, end).toString();
+		}
+	}
+
+	/**
+	 * DocumentTask reads the lines of a range as documents, handing each word (as a row id, or -1 if it
+	 *   isn't in the vocabulary) and the end of each document to the subclass. Every line is a document,
+	 *   including a last line without a newline; the ranges start at the beginning of a line, so each
+	 *   line belongs to exactly one range.
+	 */
+	private abstract class DocumentTask implements Callable<Long> {
+		private final FileChannel channel;
+		private final long start;
+		private final long end;
+		private final boolean wantWords;
+		private final byte[] bytes;
+		private final ByteBuffer buffer;
+		private byte[] token;
+
+		DocumentTask(FileChannel channel, long start, long end, boolean wantWords) {
+
+			this.channel = channel;
+			this.start = start;
+			this.end = end;
+			this.wantWords = wantWords;
+			bytes = new byte[READ_BUFFER_BYTES];
+			buffer = ByteBuffer.wrap(bytes);
+			token = new byte[INITIAL_TOKEN_BYTES];
+		}
+
+		abstract void addWord(int row);
+
+		abstract void endDocument() throws IOException;
+
+		@Override
+		public Long call() throws IOException {
+			long position;
+			long documents;
+			boolean inDocument;
+			int limit;
+			int tokenLength;
+			byte b;
+
+			position = start;
+			documents = 0;
+			inDocument = false;
+			tokenLength = 0;
+			while (position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(bytes.length, end - position));
+				while (buffer.hasRemaining()) {
+					// positional reads, so the threads can share the channel
+					if (channel.read(buffer, position + buffer.position()) < 0) {
+						break;
+					}
+				}
+				limit = buffer.position();
+				if (limit == 0) {
+					break;
+				}
+				for (int ix = 0; ix < limit; ix++) {
+					b = bytes[ix];
+					if (b == '\n') {
+						if (tokenLength > 0) {
+							addWord(store.getId(token, 0, tokenLength));
+							tokenLength = 0;
+						}
+						endDocument();
+						documents++;
+						inDocument = false;
+						continue;
+					}
+					inDocument = true;
+					if (!wantWords) {
+						continue;
+					}
+					// the same separators as embed: the ASCII ones here, the multi-byte ones once they're complete
+					if (b >= 0 && Character.isWhitespace(b)) {
+						if (tokenLength > 0) {
+							addWord(store.getId(token, 0, tokenLength));
+							tokenLength = 0;
+						}
+					} else {
+						if (tokenLength == token.length) {
+							token = Arrays.copyOf(token, token.length * 2);
+						}
+						token[tokenLength++] = b;
+						if ((b & 0xC0) == 0x80 && endsWithWhitespace(token, tokenLength)) {
+							tokenLength -= 3;
+							if (tokenLength > 0) {
+								addWord(store.getId(token, 0, tokenLength));
+								tokenLength = 0;
+							}
+						}
+					}
+				}
+				position += limit;
+			}
+			if (tokenLength > 0) {
+				addWord(store.getId(token, 0, tokenLength));
+			}
+			if (inDocument) {
+				endDocument();
+				documents++;
+			}
+			finishRange();
+			return documents;
+		}
+
+		void finishRange() throws IOException {
+
+			// nothing to do unless the subclass has something buffered
+		}
+	}
+
+	/**
+	 * See if a word's UTF-8 bytes end with a character Character.isWhitespace calls whitespace. The only
+	 *   ones outside ASCII (U+1680, U+2000 to U+200A less U+2007, U+2028, U+2029, U+205F and U+3000) are all
+	 *   three bytes long, and checking the end of the word rather than the buffer copes with a character
+	 *   that's split between two reads.
+	 *
+	 * @param token The word so far
+	 * @param length The length of the word
+	 * @return True if the last three bytes are a whitespace character
+	 */
+	private static boolean endsWithWhitespace(byte[] token, int length) {
+		int codePoint;
+
+		if (length < 3 || (token[length - 3] & 0xF0) != 0xE0 || (token[length - 2] & 0xC0) != 0x80) {
+			return false;
+		}
+		codePoint = ((token[length - 3] & 0x0F) << 12) | ((token[length - 2] & 0x3F) << 6) | (token[length - 1] & 0x3F);
+		return Character.isWhitespace(codePoint);
+	}
+
+	/**
+	 * LineCountTask just counts the documents in a range
+	 */
+	private final class LineCountTask extends DocumentTask {
+
+		LineCountTask(FileChannel channel, long start, long end) {
+
+			super(channel, start, end, false);
+		}
+
+		@Override
+		void addWord(int row) {
+
+			// not looking at the words
+		}
+
+		@Override
+		void endDocument() {
+
+			// the base class counts them
+		}
+	}
+
+	/**
+	 * CorpusTask counts the words of a range and the documents each word turns up in
+	 */
+	private final class CorpusTask extends DocumentTask {
+		private final long[] wordCounts;
+		private final int[] documentCounts;
+		// the document (plus one) each row was last seen in, so it's only counted once per document
+		private final int[] lastDocuments;
+		private int document;
+
+		CorpusTask(FileChannel channel, long start, long end) {
+
+			super(channel, start, end, true);
+			wordCounts = new long[store.size()];
+			documentCounts = new int[store.size()];
+			lastDocuments = new int[store.size()];
+			document = 1;
+		}
+
+		@Override
+		void addWord(int row) {
+
+			if (row < 0) {
+				return;
+			}
+			wordCounts[row]++;
+			if (lastDocuments[row] != document) {
+				lastDocuments[row] = document;
+				documentCounts[row]++;
+			}
+		}
+
+		@Override
+		void endDocument() {
+
+			document++;
+		}
+	}
+
+	/**
+	 * EmbedTask embeds the documents of a range and writes them to the output file, starting at the row of
+	 *   the range's first document
+	 */
+	private final class EmbedTask extends DocumentTask {
+		private final FileChannel outputChannel;
+		private final float[] rowWeights;
+		private final float[] sum;
+		private final ByteBuffer output;
+		private long outputPosition;
+		private float weightSum;
+		private int found;
+
+		EmbedTask(FileChannel channel, long start, long end, FileChannel outputChannel, long outputPosition) {
+
+			super(channel, start, end, true);
+			this.outputChannel = outputChannel;
+			this.outputPosition = outputPosition;
+			rowWeights = weights;
+			sum = new float[vectorSize];
+			output = ByteBuffer.allocate(Math.max(1, WRITE_BUFFER_BYTES / (vectorSize * 4)) * vectorSize * 4)
+					.order(ByteOrder.LITTLE_ENDIAN);
+			weightSum = 0f;
+			found = 0;
+		}
+
+		@Override
+		void addWord(int row) {
+			float weight;
+
+			if (row < 0) {
+				return;
+			}
+			weight = rowWeights == null ? 1f : rowWeights[row];
+			store.addVector(row, weight, sum);
+			weightSum += weight;
+			found++;
+		}
+
+		@Override
+		void endDocument() throws IOException {
+
+			finish(sum, weightSum, found);
+			for (float value : sum) {
+				output.putFloat(value);
+			}
+			if (!output.hasRemaining()) {
+				finishRange();
+			}
+			Arrays.fill(sum, 0f);
+			weightSum = 0f;
+			found = 0;
+		}
+
+		@Override
+		void finishRange() throws IOException {
+
+			output.flip();
+			while (output.hasRemaining()) {
+				outputPosition += outputChannel.write(output, outputPosition);
+			}
+			output.clear();
+		}
+	}
+}
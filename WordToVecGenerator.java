@@ -0,0 +1,113 @@
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * WordToVecGenerator writes a made-up word2vec BIN file of whatever size we want, so we can load and
+ *   search something GoogleNews-sized without downloading GoogleNews. The words are w0, w1, w2... and
+ *   the vectors are scattered around a few thousand random centers, so the near neighbors mean something
+ *   to the approximate backends (uniformly random vectors would all be about equally far apart).
+ *   <p>
+ *   The same seed always gives the same file, byte for byte, so benchmark runs on different machines
+ *   are searching the same vectors.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecGenerator {
+	private final static long DEFAULT_SEED = 20131016L;
+	// words per center, more or less
+	private final static int WORDS_PER_CENTER = 1000;
+	private final static int MAX_CENTERS = 4096;
+	// how far the words stray from their center, compared to the spread of the centers
+	private final static float NOISE = 0.5f;
+	private final static int WRITE_BUFFER_BYTES = 1 << 20;
+
+	private WordToVecGenerator() {
+		// only static methods, no need to instantiate it
+	}
+
+	/**
+	 * Write a BIN file of random vectors
+	 *
+	 * @param fileName The file to write, e.g. synthetic-100000x100.bin
+	 * @param vocabSize The number of words
+	 * @param vectorSize The number of floats in each vector
+	 * @param seed The random seed
+	 */
+	public static void generate(String fileName, int vocabSize, int vectorSize, long seed) {
+		Random random;
+		int centerCount;
+		float[] centers;
+		ByteBuffer vector;
+		int centerOffset;
+		long startNanos;
+
+		SharedUtils.checkNotNull(fileName);
+		if (vocabSize < 1 || vectorSize < 1) {
+			throw new IllegalArgumentException("Vocabulary and vector sizes must be at least 1");
+		}
+		startNanos = System.nanoTime();
+		System.out.println(String.format("Generating %,d word vectors, dimension %d, in %s", vocabSize,
+				vectorSize, fileName));
+		random = new Random(seed);
+		centerCount = Math.min(MAX_CENTERS, vocabSize / WORDS_PER_CENTER + 1);
+		centers = new float[centerCount * vectorSize];
+		for (int i = 0; i < centers.length; i++) {
+			centers[i] = (float) random.nextGaussian();
+		}
+		vector = ByteBuffer.allocate(vectorSize * 4);
+		vector.order(ByteOrder.LITTLE_ENDIAN);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName), WRITE_BUFFER_BYTES)) {
+			out.write((vocabSize + " " + vectorSize + "\n").getBytes(StandardCharsets.UTF_8));
+			for (int row = 0; row < vocabSize; row++) {
+				centerOffset = random.nextInt(centerCount) * vectorSize;
+				vector.clear();
+				for (int i = 0; i < vectorSize; i++) {
+					vector.putFloat(centers[centerOffset + i] + NOISE * (float) random.nextGaussian());
+				}
+				out.write(("w" + row + " ").getBytes(StandardCharsets.UTF_8));
+				out.write(vector.array());
+				out.write('\n');
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to write generated file " + fileName);
+		}
+		WordToVecMetrics.stopTimer("generate", startNanos);
+	}
+
+	/**
+	 * Write a BIN file of random vectors with the default seed
+	 *
+	 * @param fileName The file to write
+	 * @param vocabSize The number of words
+	 * @param vectorSize The number of floats in each vector
+	 */
+	public static void generate(String fileName, int vocabSize, int vectorSize) {
+
+		generate(fileName, vocabSize, vectorSize, DEFAULT_SEED);
+	}
+
+	/**
+	 * Generate a file from the command line
+	 *
+	 * @param args The file name, vocabulary size, vector size and (optionally) seed, e.g.
+	 *   synthetic.bin 5000000 500
+	 */
+	public static void main(String[] args) {
+
+		if (args.length < 3) {
+			System.out.println("Usage: WordToVecGenerator fileName vocabSize vectorSize [seed]");
+			return;
+		}
+		generate(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+				args.length > 3 ? Long.parseLong(args[3]) : DEFAULT_SEED);
+	}
+}
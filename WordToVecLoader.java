@@ -1,96 +1,295 @@
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.BufferUnderflowException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
 import java.nio.channels.FileChannel;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 
 final class WordToVecLoader {
-	private final static Level LOGLEVEL = Level.INFO;
 	private final static String DUMPVALUE = "%.8f";
-	private long channelStart;
+	private final static String THROUGHPUT = "Loaded %,d records (%,.1f MB) in %s with %d threads: %,.0f records/s, %,.1f MB/s";
+	// ranges per loader thread, so a slow thread doesn't hold everyone up at the end
+	private final static int RANGES_PER_THREAD = 4;
+	// the two phases of loadParallel: finding the records, then decoding the vectors
+	private final static LatencyHistogram loadIndexLatency = WordToVecMetrics.getHistogram("load.parallel.index");
+	private final static LatencyHistogram loadDecodeLatency = WordToVecMetrics.getHistogram("load.parallel.decode");
 	private int vocabSize = 0;
 	private int vectorSize = 0;
-	private Map<String, float[]> wordVectors = null;
+	private VectorStore wordVectors = null;
+	private LoadOptions options = new LoadOptions();
 	
 	WordToVecLoader() {
 	}
 	
 	/**
-	 * Return the map that has already been loaded
+	 * Set which records the load methods load; the default is every good word
 	 * 
-	 * @return The map of words and vectors
+	 * @param options The load options
 	 */
-	Map<String, float[]> getMap() {
+	void setOptions(LoadOptions options) {
+		
+		SharedUtils.checkNotNull(options);
+		this.options = options;
+	}
+	
+	/**
+	 * Return the vector store that has already been loaded
+	 * 
+	 * @return The store of words and vectors
+	 */
+	VectorStore getStore() {
 		if (wordVectors == null) {
-			System.err.println("You need to call the load method before accessing the map");
+			System.err.println("You need to call the load method before accessing the store");
 			return null;
 		}
 		return wordVectors;
 	}
 	
 	/**
-	 * Load the word2vec BIN format file using nio
+	 * Load the word2vec BIN format file, streaming it through a BinRecordReader with the read buffer
+	 *   size from the options
 	 * 
 	 * @param fileName The BIN format file to load
 	 */
 	void load(String fileName) {
+		BinRecordReader reader;
+		long startNanos;
+		
+		SharedUtils.checkNotNull(fileName);
+		if (openSnapshot(fileName)) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		reader = new BinRecordReader(fileName, options.getReadBufferBytes());
+		try {
+			vocabSize = reader.getVocabSize();
+			vectorSize = reader.getVectorSize();
+			// load it!
+			loadMap(reader);
+		} finally {
+			reader.close();
+		}
+		WordToVecMetrics.stopTimer("load.bin", startNanos);
+	}
+	
+	/**
+	 * Memory-map the word2vec BIN format file instead of loading it; the vectors are read in place
+	 *   from the mapped file by a MappedVectorStore
+	 * 
+	 * @param fileName The BIN format file to map
+	 */
+	void map(String fileName) {
+		MappedVectorStore mappedStore;
+		long startNanos;
+		
+		SharedUtils.checkNotNull(fileName);
+		if (openSnapshot(fileName)) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		mappedStore = mapStore(fileName, options);
+		vocabSize = mappedStore.size();
+		vectorSize = mappedStore.getVectorSize();
+		wordVectors = mappedStore;
+		System.out.println("Mapped store with " + mappedStore.getDupeCount() + " duplicates ignored");
+		WordToVecMetrics.stopTimer("load.map", startNanos);
+	}
+	
+	/**
+	 * Memory-map the word2vec BIN format file and build a compressed copy of its normalized vectors on the
+	 *   heap; the full-precision vectors stay in the mapped file for re-ranking
+	 * 
+	 * @param fileName The BIN format file to load
+	 * @param quantization How to compress the vectors
+	 */
+	void loadQuantized(String fileName, Quantization quantization) {
+		VectorStore mappedStore;
+		QuantizedVectorStore quantizedStore;
+		long startNanos;
+		
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(quantization);
+		startNanos = System.nanoTime();
+		if (SnapshotVectorStore.isSnapshot(fileName)) {
+			mappedStore = SnapshotVectorStore.open(fileName);
+		} else {
+			mappedStore = mapStore(fileName, options);
+		}
+		vocabSize = mappedStore.size();
+		vectorSize = mappedStore.getVectorSize();
+		quantizedStore = new QuantizedVectorStore(mappedStore, quantization);
+		wordVectors = quantizedStore;
+		System.out.println(String.format("Quantized store uses %,d bytes for vectors instead of %,d", 
+				quantizedStore.getCodeBytes(), (long) vocabSize * vectorSize * 4));
+		WordToVecMetrics.stopTimer("load.quantize", startNanos);
+	}
+	
+	/**
+	 * Load the word2vec BIN format file using several threads. The file is mapped first, which finds
+	 *   all the record boundaries in one fast pass that skips over the vectors; then the threads decode,
+	 *   normalize and store ranges of the vectors in parallel. The result is the same store that load
+	 *   builds.
+	 * 
+	 * @param fileName The BIN format file to load
+	 * @param threadCount The number of loader threads
+	 */
+	void loadParallel(String fileName, int threadCount) {
+		File file;
+		MappedVectorStore mappedStore;
+		FlatVectorStore flatStore;
+		ExecutorService executor;
+		List<Future<Void>> futures;
+		int rangeCount;
+		int rangeSize;
+		int size;
+		long startNanos;
+		long phaseNanos;
+		long elapsedMillis;
+		double seconds;
+		double megabytes;
+		
+		SharedUtils.checkNotNull(fileName);
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		if (openSnapshot(fileName)) {
+			return;
+		}
+		startNanos = System.nanoTime();
+		mappedStore = mapStore(fileName, options);
+		loadIndexLatency.recordSince(startNanos);
+		phaseNanos = System.nanoTime();
+		vectorSize = mappedStore.getVectorSize();
+		size = mappedStore.size();
+		System.out.println("Loading store for " + size + " word vectors, dimension " + vectorSize + 
+				", with " + threadCount + " threads");
+		flatStore = new FlatVectorStore(mappedStore.getVocabulary(), vectorSize);
+		rangeCount = threadCount * RANGES_PER_THREAD;
+		rangeSize = Math.max(1, (size + rangeCount - 1) / rangeCount);
+		executor = Executors.newFixedThreadPool(threadCount);
+		futures = new ArrayList<Future<Void>>(rangeCount);
+		try {
+			for (int fromRow = 0; fromRow < size; fromRow += rangeSize) {
+				futures.add(executor.submit(new DecodeTask(mappedStore, flatStore, fromRow, 
+						Math.min(size, fromRow + rangeSize))));
+			}
+			for (Future<Void> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WordToVecException("Interrupted while loading vectors");
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+			throw new WordToVecException("Error loading vectors");
+		} finally {
+			executor.shutdownNow();
+		}
+		loadDecodeLatency.recordSince(phaseNanos);
+		wordVectors = flatStore;
+		System.out.println("Loaded store with " + mappedStore.getDupeCount() + " duplicates ignored");
+		
+		// report the throughput so we can see how it scales with threads
+		elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+		seconds = Math.max(elapsedMillis, 1) / 1000.0;
+		file = new File(fileName);
+		megabytes = file.length() / (1024.0 * 1024.0);
+		vocabSize = mappedStore.getRecordCount();
+		System.out.println(String.format(THROUGHPUT, vocabSize, megabytes, 
+				SharedUtils.formatElapsedMillis(elapsedMillis), threadCount, vocabSize / seconds, megabytes / seconds));
+		WordToVecMetrics.stopTimer("load.parallel", startNanos);
+	}
+	
+	/**
+	 * Load a word2vec TEXT format file (or fastText .vec, or GloVe) using several threads; the result is
+	 *   the same store that load builds from the BIN file
+	 * 
+	 * @param fileName The TEXT format file to load
+	 * @param threadCount The number of loader threads
+	 */
+	void loadText(String fileName, int threadCount) {
+		
+		SharedUtils.checkNotNull(fileName);
+		wordVectors = WordToVecTextLoader.load(fileName, threadCount, options);
+		vocabSize = wordVectors.size();
+		vectorSize = wordVectors.getVectorSize();
+	}
+	
+	/**
+	 * If the file is a snapshot rather than a BIN file, open it; a snapshot is already normalized and 
+	 *   mapped, so there's nothing to load whichever way we were asked to load it
+	 * 
+	 * @param fileName The file to load
+	 * @return True if the file was a snapshot, false if it's a BIN file and still needs loading
+	 */
+	private boolean openSnapshot(String fileName) {
+		long startNanos;
+		
+		if (!SnapshotVectorStore.isSnapshot(fileName)) {
+			return false;
+		}
+		if (!options.isDefault()) {
+			// a snapshot is mapped whole; the options have to be given when it's made
+			SharedUtils.log(Level.WARNING, "WordToVecLoader: load options are ignored for snapshot " + fileName);
+		}
+		startNanos = System.nanoTime();
+		wordVectors = SnapshotVectorStore.open(fileName);
+		vocabSize = wordVectors.size();
+		vectorSize = wordVectors.getVectorSize();
+		WordToVecMetrics.stopTimer("load.snapshot", startNanos);
+		return true;
+	}
+	
+	/**
+	 * Convert a word2vec BIN format file to a snapshot file, which opens almost instantly from then on
+	 * 
+	 * @param fileName The BIN format file to convert
+	 * @param snapshotFileName The snapshot file to write
+	 * @param options Which records go into the snapshot
+	 */
+	static void convert(String fileName, String snapshotFileName, LoadOptions options) {
+		
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(snapshotFileName);
+		SharedUtils.checkNotNull(options);
+		SnapshotVectorStore.write(mapStore(fileName, options), snapshotFileName);
+	}
+	
+	/**
+	 * Map the file into a MappedVectorStore
+	 * 
+	 * @param fileName The BIN format file to map
+	 * @param options Which records to use
+	 * @return The mapped store
+	 */
+	private static MappedVectorStore mapStore(String fileName, LoadOptions options) {
 		FileInputStream fileStream = null;
 		FileChannel channel = null;
-		ByteBuffer buffer;
-		long fileSize;
-		int bufferSize;
-		ByteOrder byteOrder = ByteOrder.LITTLE_ENDIAN;
 		
-		SharedUtils.checkNotNull(fileName);
-		WordToVecTimer.startTimer("LOADER");
 		try {
 			fileStream = new FileInputStream(fileName);
 		} catch (FileNotFoundException e) {
 			e.printStackTrace();
-			closeResources(fileStream, channel);
 			throw new WordToVecException("Unable to open file");
 		}
-		
-		// get an nio file channel
 		channel = fileStream.getChannel();
 		try {
-			fileSize = channel.size();
+			return new MappedVectorStore(channel, options);
 		} catch (IOException e) {
 			e.printStackTrace();
+			throw new WordToVecException("Unable to map file");
+		} finally {
+			// the mapping survives closing the channel
 			closeResources(fileStream, channel);
-			throw new WordToVecException("Unable to get file size");
 		}
-		
-		// allocate a (probably large) buffer in direct memory (i.e. not on the heap)
-		bufferSize = (int) Math.min(fileSize, Integer.MAX_VALUE);
-		buffer = ByteBuffer.allocateDirect(bufferSize);
-		buffer.order(byteOrder);
-		channelStart = 0;
-		try {
-			channel.read(buffer);
-		} catch (IOException e) {
-			e.printStackTrace();
-			closeResources(fileStream, channel);
-			throw new WordToVecException("Error reading file");
-		}
-		buffer.rewind();
-		// read first line to get vocabulary size and layer size
-		getFirstLine(buffer);
-		if (!(vocabSize > 0) || !(vectorSize > 0)) {
-			closeResources(fileStream, channel);
-			throw new WordToVecException("Invalid vocab size and/or vector size");
-		}
-		
-		// load it!
-		loadMap(fileStream, channel, buffer);
-		WordToVecTimer.stopTimer("LOADER");
 	}
 	
 	/**
@@ -116,66 +315,68 @@ final class WordToVecLoader {
 	}	
 	
 	/**
-	 * Load the java util collections map from the ByteBuffer. I ran times on the Guava ImmutableMap and the
-	 *   times were close to the same as using the POJ map, so I used the latter and avoided the external library.
+	 * Normalize the vector values into an existing array, for when we don't want to allocate
+	 * 
+	 * @param vector The vector (i.e. float[]) to normalize
+	 * @param newVector Receives the normalized values; it can be the same array as vector
+	 */
+	static void normalize(float[] vector, float[] newVector) {
+		double len = 0.0;
+		
+		SharedUtils.checkNotNull(vector);
+		SharedUtils.checkNotNull(newVector);
+		for (float val : vector) {
+			len += val * val;
+		}
+		len = Math.sqrt(len);
+		for (int ix = 0; ix < vector.length; ix++) {
+			newVector[ix] = (float) (vector[ix] / len);
+		}
+	}
+	
+	/**
+	 * Load the flat vector store from the reader. I originally used a LinkedHashMap of words to float[]s,
+	 *   but for the big files the millions of little arrays and hash entries ate the heap alive, so now the
+	 *   vectors go into one flat block and the words go into a separate dictionary of row ids.
 	 *   
-	 * @param fileStream The file stream in case we need to close it
-	 * @param channel The nio file channel
-	 * @param buffer The nio ByteBuffer
+	 * @param reader The reader, just past the header
 	 */
-	private void loadMap(FileInputStream fileStream, FileChannel channel, ByteBuffer buffer) {
+	private void loadMap(BinRecordReader reader) {
 		String word;
 		float[] vector;
-		float[] newVector;
 		int dupeCount;
-		float[] oldVector;
+		FlatVectorStore flatStore;
 		
-		SharedUtils.checkNotNull(fileStream);
-		SharedUtils.checkNotNull(channel);
-		SharedUtils.checkNotNull(buffer);
+		SharedUtils.checkNotNull(reader);
 		
-		// we use a LinkedHashMap to get decent performance from sequential access
-		wordVectors = new LinkedHashMap<String, float[]>(vocabSize);
+		// rows are allocated up front for as many words as the options can accept; rejected words just leave
+		//  a few unused at the end
+		flatStore = new FlatVectorStore(options.getCapacity(vocabSize), vectorSize);
 		dupeCount = 0;
-		System.out.println("Loading map for " + vocabSize + " word vectors, dimension " + vectorSize);
+		System.out.println("Loading store for " + vocabSize + " word vectors, dimension " + vectorSize);
 		
-		// we already know the number of words from reading the first line
-		// we use the convenience of nio buffer.mark and buffer.reset to make sure that we don't split 
-		//  across a buffer boundary
-		for (int lineIx = 0; lineIx < vocabSize; lineIx++) { 
-			buffer.mark();
-			// read word
-			try {
-				word = getWord(buffer);
-			} catch (BufferUnderflowException U) {
-				refillBuffer(fileStream, channel, buffer);
-				lineIx--;
-				continue;
-			}
-			// read vectors
-			try {
-				vector = getVector(buffer);
-			} catch (BufferUnderflowException U) {
-				refillBuffer(fileStream, channel, buffer);
-				lineIx--;
+		// the store copies the vector, so one array does for every record
+		vector = new float[vectorSize];
+		for (int lineIx = 0; lineIx < vocabSize && !options.isFinished(lineIx) && reader.next(); lineIx++) { 
+			word = reader.getWord();
+			// if the options reject the word, its vector is stepped over without being decoded
+			if (!options.accept(word, lineIx)) {
 				continue;
 			}
+			reader.readVector(vector);
 			
-			// if the word is valid, put the word and associated vector into the map
-			if (goodWord(word)) {
-//				System.out.println("BEFORE:");
-//				dumpArray(vector);
-				newVector = normalize(vector);
-//				System.out.println("AFTER:");
-//				dumpArray(newVector);
-				oldVector =  wordVectors.put(word, newVector);
-				if (oldVector != null) {
-					dupeCount++;
-				}
+			// the word is valid, so put the word and associated vector into the store
+//			System.out.println("BEFORE:");
+//			dumpArray(vector);
+			normalize(vector, vector);
+//			System.out.println("AFTER:");
+//			dumpArray(vector);
+			if (flatStore.put(word, vector)) {
+				dupeCount++;
 			}
 		}
-		closeResources(fileStream, channel);
-		System.out.println("Loaded map with " + dupeCount + " duplicates ignored");
+		wordVectors = flatStore;
+		System.out.println("Loaded store with " + dupeCount + " duplicates ignored");
 	}
 	
 	/**
@@ -184,117 +385,12 @@ final class WordToVecLoader {
 	 * @param word The word to validate
 	 * @return True if the word is valid, false otherwise
 	 */
-	private static boolean goodWord(String word) {
+	static boolean goodWord(String word) {
 		
 		SharedUtils.checkNotNull(word);
 		return (word.length() > 1);
 	}
 	
-	/**
-	 * We refill the buffer after resetting to the earlier mark
-	 * 
-	 * @param fileStream The original file stream, in case we need to close it
-	 * @param channel The nio file channel
-	 * @param buffer The nio ByteBuffer, which we like lots...
-	 */
-	private void refillBuffer(FileInputStream fileStream, FileChannel channel, ByteBuffer buffer) {
-		long bytes;
-		
-		SharedUtils.checkNotNull(fileStream);
-		SharedUtils.checkNotNull(channel);
-		SharedUtils.checkNotNull(buffer);
-		buffer.reset();
-		SharedUtils.log(LOGLEVEL, "WordToVecLoader: refilling");
-		SharedUtils.log(LOGLEVEL, "WordToVecLoader: channelStart = " + channelStart);
-		channelStart = channelStart + buffer.position();
-		SharedUtils.log(LOGLEVEL, "WordToVecLoader: buffer position = " + buffer.position());
-		SharedUtils.log(LOGLEVEL, "WordToVecLoader: new channelStart = " + channelStart);
-		try {
-			buffer.clear();
-			channel.position(channelStart);
-			bytes = channel.read(buffer);
-			buffer.rewind();
-			SharedUtils.log(LOGLEVEL, "WordToVecLoader: after read, bytes read = " + bytes);
-			SharedUtils.log(LOGLEVEL, "WordToVecLoader: after read, channel position = " + channel.position());
-		} catch (IOException e) {
-			e.printStackTrace();
-			closeResources(fileStream, channel);
-			throw new WordToVecException("Error refilling file");
-		}
-	}
-	
-	/**
-	 * Winkle the first text line out of the buffer, which has the word and vector counts, and set global
-	 *   variables to those values
-	 * 
-	 * @param buffer The nio ByteBuffer with the data
-	 */
-	private void getFirstLine(ByteBuffer buffer) {
-		StringBuilder sb;
-		char c;
-		String[] tokens;
-		
-		SharedUtils.checkNotNull(buffer);
-		sb = new StringBuilder();
-		c = (char) buffer.get();
-		while (c != '\n') {
-			sb.append(c);
-			c = (char) buffer.get();
-		}
-		String firstLine = sb.toString();
-		tokens = firstLine.split(" ");
-		vocabSize = Integer.parseInt(tokens[0]);
-		vectorSize = Integer.parseInt(tokens[1]);
-	}
-	
-	/**
-	 * Get the vocabulary word from the buffer
-	 * 
-	 * @param buffer The nio ByteBuffer
-	 * @return The vocabulary word as a String
-	 * @throws BufferUnderflowException
-	 */
-	private static String getWord(ByteBuffer buffer) throws BufferUnderflowException {
-		StringBuilder sb;
-		char c;
-		
-		SharedUtils.checkNotNull(buffer);
-		sb = new StringBuilder();
-		c = (char) buffer.get();
-		while (c != ' ') {
-			// ignore newlines in front of words (some binary files have newline,
-			// some don't) [per Medallia Word2VecModel]
-			if (c != '\n') {
-				sb.append(c);
-			}
-			c = (char) buffer.get();
-		}
-		return sb.toString().trim();
-	}
-	
-	/**
-	 * Get a vector (i.e. a float[] whose length is equal to vectorSize). I decided to not convert it to
-	 *   a collection just for simplicity and convenience; I'm not sure it would buy us anything to do so
-	 * 
-	 * @param buffer
-	 * @return The newly-retrieved vector (float[])
-	 * @throws BufferUnderflowException
-	 */
-	private float[] getVector(ByteBuffer buffer) throws BufferUnderflowException {
-		FloatBuffer floatBuffer;
-		float[] vector;
-		
-		SharedUtils.checkNotNull(buffer);
-		vector = new float[vectorSize];
-		
-		// this next line is why I like the nio ByteBuffer...
-		floatBuffer = buffer.asFloatBuffer();
-		floatBuffer.get(vector);
-		// floats are 4 bytes
-		buffer.position(buffer.position() + (floatBuffer.position() * 4));
-		return vector;
-	}
-	
 	/**
 	 * Close the resources we might have open
 	 * 
@@ -346,4 +442,35 @@ final class WordToVecLoader {
 			System.out.println("[" + ix + "]" + valStr);
 		}
 	}
+	
+	/**
+	 * DecodeTask decodes, normalizes and stores a range of rows for loadParallel
+	 */
+	private static final class DecodeTask implements Callable<Void> {
+		private final MappedVectorStore mappedStore;
+		private final FlatVectorStore flatStore;
+		private final int fromRow;
+		private final int toRow;
+		
+		DecodeTask(MappedVectorStore mappedStore, FlatVectorStore flatStore, int fromRow, int toRow) {
+			
+			this.mappedStore = mappedStore;
+			this.flatStore = flatStore;
+			this.fromRow = fromRow;
+			this.toRow = toRow;
+		}
+		
+		@Override
+		public Void call() {
+			float[] vector;
+			
+			vector = new float[flatStore.getVectorSize()];
+			for (int row = fromRow; row < toRow; row++) {
+				mappedStore.readVector(row, vector);
+				normalize(vector, vector);
+				flatStore.setVector(row, vector);
+			}
+			return null;
+		}
+	}
 }
@@ -0,0 +1,408 @@
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * WordToVecMetrics keeps the toolbox's measurements: latency histograms for the operations (loads, matches,
+ *   analogies and so on), counters (vectors scanned, candidates accepted into the best matches, loader
+ *   refills) and gauges (e.g. model memory). It took over from WordToVecTimer, which could only write a
+ *   log line in milliseconds.
+ *   <p>
+ *   Everything's kept in static maps, like the timers were, so any class can record without having a
+ *   metrics object handed to it. The classes that record on every search look their histograms and
+ *   counters up once into static fields, so recording is just a couple of atomic adds. The metrics can be
+ *   read through JMX (registerMBean) or sent to a MetricsReporter now and then (startReporting).
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecMetrics {
+	private final static Level LOGLEVEL = Level.INFO;
+	private final static String MBEAN_NAME = "word2vec:type=Metrics";
+	private final static ConcurrentMap<String, LatencyHistogram> histograms;
+	private final static ConcurrentMap<String, LongAdder> counters;
+	private final static ConcurrentMap<String, MetricsGauge> gauges;
+	private static ScheduledExecutorService reportExecutor = null;
+	private static ObjectName mbeanName = null;
+
+	private WordToVecMetrics() {
+		// only static methods, no need to instantiate it
+	}
+
+	static {
+		histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+		counters = new ConcurrentHashMap<String, LongAdder>();
+		gauges = new ConcurrentHashMap<String, MetricsGauge>();
+	}
+
+	/**
+	 * Get the histogram with a name, creating it the first time
+	 *
+	 * @param name The name, e.g. "matches"
+	 * @return The histogram
+	 */
+	public static LatencyHistogram getHistogram(String name) {
+		LatencyHistogram histogram;
+		LatencyHistogram existing;
+
+		SharedUtils.checkNotNull(name);
+		histogram = histograms.get(name);
+		if (histogram == null) {
+			histogram = new LatencyHistogram(name);
+			existing = histograms.putIfAbsent(name, histogram);
+			if (existing != null) {
+				histogram = existing;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Get the counter with a name, creating it the first time
+	 *
+	 * @param name The name, e.g. "vectors.scanned"
+	 * @return The counter
+	 */
+	public static LongAdder getCounter(String name) {
+		LongAdder counter;
+		LongAdder existing;
+
+		SharedUtils.checkNotNull(name);
+		counter = counters.get(name);
+		if (counter == null) {
+			counter = new LongAdder();
+			existing = counters.putIfAbsent(name, counter);
+			if (existing != null) {
+				counter = existing;
+			}
+		}
+		return counter;
+	}
+
+	/**
+	 * Add a gauge, replacing any gauge with the same name
+	 *
+	 * @param name The name, e.g. "model.bytes"
+	 * @param gauge The gauge
+	 */
+	public static void registerGauge(String name, MetricsGauge gauge) {
+
+		SharedUtils.checkNotNull(name);
+		SharedUtils.checkNotNull(gauge);
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Remove a gauge
+	 *
+	 * @param name The name
+	 */
+	public static void unregisterGauge(String name) {
+
+		SharedUtils.checkNotNull(name);
+		gauges.remove(name);
+	}
+
+	/**
+	 * Record the latency of an operation that started at startNanos and log it, the way WordToVecTimer
+	 *   used to; it's meant for the occasional things like loads, not for every search
+	 *
+	 * @param name The histogram name
+	 * @param startNanos The System.nanoTime() when the operation started
+	 * @return The latency in nanoseconds
+	 */
+	static long stopTimer(String name, long startNanos) {
+		long nanos;
+
+		nanos = getHistogram(name).recordSince(startNanos);
+		SharedUtils.log(LOGLEVEL, "Timer " + name + ": " + SharedUtils.formatElapsedMillis(nanos / 1000000));
+		return nanos;
+	}
+
+	/**
+	 * Get the histograms
+	 *
+	 * @return A NEW map of the (live) histograms by name
+	 */
+	public static SortedMap<String, LatencyHistogram> getHistograms() {
+
+		return new TreeMap<String, LatencyHistogram>(histograms);
+	}
+
+	/**
+	 * Get the counters
+	 *
+	 * @return A NEW map of the counter values by name
+	 */
+	public static SortedMap<String, Long> getCounters() {
+		SortedMap<String, Long> values;
+
+		values = new TreeMap<String, Long>();
+		for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+			values.put(counter.getKey(), counter.getValue().sum());
+		}
+		return values;
+	}
+
+	/**
+	 * Get the gauges
+	 *
+	 * @return A NEW map of the gauge values by name
+	 */
+	public static SortedMap<String, Long> getGauges() {
+		SortedMap<String, Long> values;
+
+		values = new TreeMap<String, Long>();
+		for (Map.Entry<String, MetricsGauge> gauge : gauges.entrySet()) {
+			values.put(gauge.getKey(), gauge.getValue().getValue());
+		}
+		return values;
+	}
+
+	/**
+	 * Send the metrics to a reporter right now
+	 *
+	 * @param reporter The reporter
+	 */
+	public static void report(MetricsReporter reporter) {
+
+		SharedUtils.checkNotNull(reporter);
+		reporter.report(getHistograms(), getCounters(), getGauges());
+	}
+
+	/**
+	 * Send the metrics to a reporter regularly, on a background thread, until stopReporting is called
+	 *
+	 * @param reporter The reporter, e.g. a LogMetricsReporter
+	 * @param period The time between reports
+	 * @param unit The unit of the period
+	 */
+	public static synchronized void startReporting(MetricsReporter reporter, long period, TimeUnit unit) {
+
+		SharedUtils.checkNotNull(reporter);
+		SharedUtils.checkNotNull(unit);
+		if (period <= 0) {
+			throw new IllegalArgumentException("Report period must be positive");
+		}
+		stopReporting();
+		reportExecutor = Executors.newSingleThreadScheduledExecutor(new ReporterThreadFactory());
+		reportExecutor.scheduleAtFixedRate(new ReportTask(reporter), period, period, unit);
+	}
+
+	/**
+	 * Stop the regular reports
+	 */
+	public static synchronized void stopReporting() {
+
+		if (reportExecutor != null) {
+			reportExecutor.shutdown();
+			reportExecutor = null;
+		}
+	}
+
+	/**
+	 * Register the metrics with the platform MBean server as word2vec:type=Metrics, so they show up in
+	 *   JConsole, VisualVM and anything else that reads JMX. Each histogram shows as name.count,
+	 *   name.meanNanos, name.p50Nanos, name.p99Nanos, name.p999Nanos and name.maxNanos.
+	 */
+	public static synchronized void registerMBean() {
+		MBeanServer server;
+
+		if (mbeanName != null) {
+			return;
+		}
+		server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			mbeanName = new ObjectName(MBEAN_NAME);
+			server.registerMBean(new MetricsMBean(), mbeanName);
+		} catch (JMException e) {
+			e.printStackTrace();
+			mbeanName = null;
+			throw new WordToVecException("Unable to register metrics MBean");
+		}
+	}
+
+	/**
+	 * Take the metrics back out of the platform MBean server
+	 */
+	public static synchronized void unregisterMBean() {
+
+		if (mbeanName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		mbeanName = null;
+	}
+
+	/**
+	 * ReportTask sends the metrics to the reporter; a reporter that throws doesn't stop later reports
+	 */
+	private static final class ReportTask implements Runnable {
+		private final MetricsReporter reporter;
+
+		ReportTask(MetricsReporter reporter) {
+
+			this.reporter = reporter;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				report(reporter);
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * ReporterThreadFactory makes a daemon thread, so reporting doesn't keep the JVM running
+	 */
+	private static final class ReporterThreadFactory implements ThreadFactory {
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread;
+
+			thread = new Thread(runnable, "word2vec-metrics");
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * MetricsMBean shows the metrics through JMX. The attributes are worked out each time they're asked
+	 *   for, since new histograms, counters and gauges can turn up at any time.
+	 */
+	private static final class MetricsMBean implements DynamicMBean {
+		private final static String[] HISTOGRAM_ATTRIBUTES = {
+			"count", "meanNanos", "p50Nanos", "p99Nanos", "p999Nanos", "maxNanos"
+		};
+
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException {
+			int dot;
+			LatencyHistogram histogram;
+			LongAdder counter;
+			MetricsGauge gauge;
+
+			SharedUtils.checkNotNull(attribute);
+			counter = counters.get(attribute);
+			if (counter != null) {
+				return counter.sum();
+			}
+			gauge = gauges.get(attribute);
+			if (gauge != null) {
+				return gauge.getValue();
+			}
+			dot = attribute.lastIndexOf('.');
+			histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+			if (histogram != null) {
+				switch (attribute.substring(dot + 1)) {
+				case "count":
+					return histogram.getCount();
+				case "meanNanos":
+					return histogram.getMeanNanos();
+				case "p50Nanos":
+					return histogram.getPercentileNanos(50);
+				case "p99Nanos":
+					return histogram.getPercentileNanos(99);
+				case "p999Nanos":
+					return histogram.getPercentileNanos(99.9);
+				case "maxNanos":
+					return histogram.getMaxNanos();
+				default:
+					break;
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes) {
+			AttributeList list;
+
+			list = new AttributeList();
+			for (String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch (AttributeNotFoundException e) {
+					// JMX leaves out the ones it can't get
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+
+			throw new AttributeNotFoundException("The metrics are read-only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes) {
+
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+
+			// there aren't any operations, just attributes
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			List<MBeanAttributeInfo> attributes;
+
+			attributes = new ArrayList<MBeanAttributeInfo>();
+			for (String name : new TreeMap<String, LatencyHistogram>(histograms).keySet()) {
+				for (String suffix : HISTOGRAM_ATTRIBUTES) {
+					attributes.add(newAttributeInfo(name + "." + suffix, "Latency histogram " + name));
+				}
+			}
+			for (String name : new TreeMap<String, LongAdder>(counters).keySet()) {
+				attributes.add(newAttributeInfo(name, "Counter " + name));
+			}
+			for (String name : new TreeMap<String, MetricsGauge>(gauges).keySet()) {
+				attributes.add(newAttributeInfo(name, "Gauge " + name));
+			}
+			return new MBeanInfo(WordToVecMetrics.class.getName(), "word2vec metrics",
+					attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+		}
+
+		private static MBeanAttributeInfo newAttributeInfo(String name, String description) {
+
+			return new MBeanAttributeInfo(name, "java.lang.Long", description, true, false, false);
+		}
+	}
+}
@@ -0,0 +1,616 @@
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+/**
+ * WordToVecModel is one loaded word2vec model, ready to search: the vectors, the search backend, the scan
+ *   pool, the query cache and the neighbor table, if there is one. It never changes once it's made --
+ *   changing the backend or the cache makes a new model -- so any number of threads can search the same
+ *   model at once without locking, and a model handed out keeps working the same way however the
+ *   WordToVecSearch it came from changes afterwards.
+ *   <p>
+ *   Get one from WordToVecSearch.getModel, and put it in a WordToVecRegistry to serve several models.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecModel {
+	private final static Level LOGLEVEL = Level.INFO;
+	// the number of queries that share one pass over the vectors in a batch
+	private final static int QUERY_BLOCK = 64;
+	// these are recorded on every search, so they're looked up once
+	private final static LatencyHistogram matchesLatency = WordToVecMetrics.getHistogram("matches");
+	private final static LatencyHistogram analogyLatency = WordToVecMetrics.getHistogram("analogy");
+	private final static LatencyHistogram batchLatency = WordToVecMetrics.getHistogram("batch");
+	private final static LongAdder neighborTableHits = WordToVecMetrics.getCounter("neighbor.table.hits");
+	private final VectorStore wordVectors;
+	private final VectorStore fullVectors;
+	private final SearchBackend backend;
+	private final SearchBackend exactBackend;
+	private final ForkJoinPool scanPool;
+	private final QueryCache queryCache;
+	private final NeighborTable neighborTable;
+
+	/**
+	 * Create a model
+	 *
+	 * @param wordVectors The store the matches come from
+	 * @param fullVectors The full-precision vectors, which are the same store unless it's compressed
+	 * @param backend The search backend
+	 * @param exactBackend The exact search backend for the full-precision vectors
+	 * @param scanPool The pool for parallel scans, or null to scan on the calling thread
+	 * @param queryCache The query cache, or null for none
+	 */
+	WordToVecModel(VectorStore wordVectors, VectorStore fullVectors, SearchBackend backend, SearchBackend exactBackend,
+			ForkJoinPool scanPool, QueryCache queryCache) {
+
+		SharedUtils.checkNotNull(wordVectors);
+		SharedUtils.checkNotNull(fullVectors);
+		SharedUtils.checkNotNull(backend);
+		SharedUtils.checkNotNull(exactBackend);
+		this.wordVectors = wordVectors;
+		this.fullVectors = fullVectors;
+		this.backend = backend;
+		this.exactBackend = exactBackend;
+		this.scanPool = scanPool;
+		this.queryCache = queryCache;
+		this.neighborTable = null;
+	}
+
+	private WordToVecModel(WordToVecModel model, SearchBackend backend, ForkJoinPool scanPool, QueryCache queryCache,
+			NeighborTable neighborTable) {
+
+		this.wordVectors = model.wordVectors;
+		this.fullVectors = model.fullVectors;
+		this.backend = backend;
+		this.exactBackend = model.exactBackend;
+		this.scanPool = scanPool;
+		this.queryCache = queryCache;
+		this.neighborTable = neighborTable;
+	}
+
+	/**
+	 * Make a copy of the model that searches with a different backend. It gets a new, empty cache of the
+	 *   same size, since the old backend's matches might not be the new one's.
+	 *
+	 * @param newBackend The search backend
+	 * @return The new model
+	 */
+	WordToVecModel withBackend(SearchBackend newBackend) {
+
+		return new WordToVecModel(this, newBackend, scanPool,
+				queryCache == null ? null : new QueryCache(queryCache.getMaxEntries()), neighborTable);
+	}
+
+	/**
+	 * Make a copy of the model that scans with a different pool
+	 *
+	 * @param newScanPool The pool, or null to scan on the calling thread
+	 * @return The new model
+	 */
+	WordToVecModel withScanPool(ForkJoinPool newScanPool) {
+
+		return new WordToVecModel(this, backend, newScanPool, queryCache, neighborTable);
+	}
+
+	/**
+	 * Make a copy of the model with a different query cache
+	 *
+	 * @param newQueryCache The cache, or null for none
+	 * @return The new model
+	 */
+	WordToVecModel withQueryCache(QueryCache newQueryCache) {
+
+		return new WordToVecModel(this, backend, scanPool, newQueryCache, neighborTable);
+	}
+
+	/**
+	 * Make a copy of the model that answers word matches from a neighbor table when it can
+	 *
+	 * @param newNeighborTable The table, or null for none
+	 * @return The new model
+	 */
+	WordToVecModel withNeighborTable(NeighborTable newNeighborTable) {
+
+		return new WordToVecModel(this, backend, scanPool, queryCache, newNeighborTable);
+	}
+
+	VectorStore getStore() {
+
+		return wordVectors;
+	}
+
+	VectorStore getFullVectors() {
+
+		return fullVectors;
+	}
+
+	SearchBackend getBackend() {
+
+		return backend;
+	}
+
+	SearchBackend getExactBackend() {
+
+		return exactBackend;
+	}
+
+	ForkJoinPool getScanPool() {
+
+		return scanPool;
+	}
+
+	NeighborTable getNeighborTable() {
+
+		return neighborTable;
+	}
+
+	/**
+	 * Get the number of words in the model
+	 *
+	 * @return The vocabulary size
+	 */
+	public int size() {
+
+		return wordVectors.size();
+	}
+
+	/**
+	 * Get the number of floats in each vector
+	 *
+	 * @return The vector size
+	 */
+	public int getVectorSize() {
+
+		return wordVectors.getVectorSize();
+	}
+
+	/**
+	 * Get the memory the model holds on to: the stores, plus whatever the backend adds. Anything mapped
+	 *   from a file (a MAP or snapshot load, index files) doesn't count, since the OS can page it out.
+	 *
+	 * @return The memory size in bytes
+	 */
+	public long getMemoryBytes() {
+		long bytes;
+
+		bytes = wordVectors.getMemoryBytes() + backend.getMemoryBytes();
+		if (fullVectors != wordVectors) {
+			bytes += fullVectors.getMemoryBytes();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Get the query cache, e.g. for its hit, miss and eviction counts
+	 *
+	 * @return The cache, or null if there isn't one
+	 */
+	public QueryCache getQueryCache() {
+
+		return queryCache;
+	}
+
+	/**
+	 * Measure the recall@k of the search backend against an exact search of the full-precision vectors,
+	 *   using a sample of the words as queries. For an exact backend it's always 1.
+	 *
+	 * @param queryCount The number of words to sample
+	 * @param maxNumberOfMatches The k in recall@k
+	 * @return The report
+	 */
+	public RecallReport measureRecall(int queryCount, int maxNumberOfMatches) {
+
+		return RecallReport.measure(wordVectors, exactBackend, backend, queryCount, maxNumberOfMatches);
+	}
+
+	/**
+	 * Run an analogy question file like questions-words.txt and report the accuracy per section and in
+	 *   total, like compute-accuracy in the original word2vec. The questions are scored in blocks, in
+	 *   parallel on the scan pool, with an exact search of the full-precision vectors whatever the backend.
+	 *
+	 * @param fileName The question file
+	 * @param maxRank The number of most frequent words to use, e.g. 30000 like compute-accuracy
+	 * @return The report
+	 */
+	public AccuracyReport measureAccuracy(String fileName, int maxRank) {
+
+		return AccuracyReport.evaluate(fullVectors, fileName, maxRank, scanPool);
+	}
+
+	/**
+	 * Fill the cache with the matches for a list of words, e.g. the most popular ones, so the first searches
+	 *   for them are fast too. The words are searched in blocks like matchWordsBatch; words that aren't in
+	 *   the vocabulary or are already cached are skipped.
+	 *
+	 * @param words The words to search for
+	 * @param maxNumberOfMatches The number of matches to cache for each word
+	 */
+	public void warmCache(List<String> words, int maxNumberOfMatches) {
+		List<String> searchWords;
+		List<WordMatches> matches;
+		long startNanos;
+
+		SharedUtils.checkNotNull(words);
+		if (queryCache == null) {
+			throw new WordToVecException("The query cache is turned off");
+		}
+		searchWords = new ArrayList<String>(words.size());
+		for (String word : words) {
+			SharedUtils.checkNotNull(word);
+			if (wordVectors.getId(word) >= 0 && !queryCache.contains(QueryCache.wordKey(word), maxNumberOfMatches)) {
+				searchWords.add(word);
+			}
+		}
+		startNanos = System.nanoTime();
+		matches = matchWordsBatch(searchWords, maxNumberOfMatches);
+		for (int wordIx = 0; wordIx < searchWords.size(); wordIx++) {
+			queryCache.put(QueryCache.wordKey(searchWords.get(wordIx)), maxNumberOfMatches, matches.get(wordIx));
+		}
+		WordToVecMetrics.stopTimer("cache.warm", startNanos);
+		System.out.println("Warmed cache with " + searchWords.size() + " words");
+	}
+
+	/**
+	 * Fill the cache from a query log with one search per line: a single word for a word search, or three
+	 *   words separated by blanks for an analogy. Other lines, and searches with words that aren't in the
+	 *   vocabulary, are skipped.
+	 *
+	 * @param fileName The query log file (UTF-8)
+	 * @param maxNumberOfMatches The number of matches to cache for each search
+	 */
+	public void warmCacheFromLog(String fileName, int maxNumberOfMatches) {
+		List<String> words;
+		String line;
+		String[] tokens;
+		int analogyCount;
+
+		SharedUtils.checkNotNull(fileName);
+		if (queryCache == null) {
+			throw new WordToVecException("The query cache is turned off");
+		}
+		words = new ArrayList<String>();
+		analogyCount = 0;
+		try (BufferedReader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+			while ((line = reader.readLine()) != null) {
+				tokens = line.trim().split("\\s+");
+				if (tokens.length == 1 && !tokens[0].isEmpty()) {
+					words.add(tokens[0]);
+				} else if (tokens.length == 3 && wordVectors.getId(tokens[0]) >= 0 &&
+						wordVectors.getId(tokens[1]) >= 0 && wordVectors.getId(tokens[2]) >= 0) {
+					// matchAnalogy caches it
+					matchAnalogy(tokens[0], tokens[1], tokens[2], maxNumberOfMatches);
+					analogyCount++;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error reading query log");
+		}
+		warmCache(words, maxNumberOfMatches);
+		System.out.println("Warmed cache with " + analogyCount + " analogies");
+	}
+
+	/**
+	 * Get the specified number of closest matches to word from the file; comparable to the original
+	 *   word2vec 'distance.c' program in that it returns the cosine distance of word matches
+	 *
+	 * @param word The word to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A list of "matching" WordDistances
+	 * @throws WordToVecException
+	 */
+	public List<WordDistance> getWordMatches(String word, Integer maxNumberOfMatches)  throws WordToVecException {
+
+		SharedUtils.checkNotNull(maxNumberOfMatches);
+		return matchWord(word, maxNumberOfMatches).toWordDistances();
+	}
+
+	/**
+	 * Get the specified number of closest matches to word from the file as row ids and distances, without
+	 *   building any WordDistances
+	 *
+	 * @param word The word to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	public WordMatches matchWord(String word, int maxNumberOfMatches)  throws WordToVecException {
+		int row;
+		WordMatches matches;
+		long startNanos;
+
+		SharedUtils.checkNotNull(word);
+		startNanos = System.nanoTime();
+		if (queryCache != null) {
+			matches = queryCache.get(QueryCache.wordKey(word), maxNumberOfMatches);
+			if (matches != null) {
+				matchesLatency.recordSince(startNanos);
+				return matches;
+			}
+		}
+		row = wordVectors.getId(word);
+		if (row < 0) {
+			throw new UnknownWordException(word);
+		}
+		if (neighborTable != null && neighborTable.covers(row, maxNumberOfMatches)) {
+			// it's already worked out, no need to scan or cache anything
+			matches = neighborTable.getMatches(wordVectors, row, maxNumberOfMatches);
+			neighborTableHits.increment();
+			matchesLatency.recordSince(startNanos);
+			return matches;
+		}
+		matches = getVectorMatches(new int[] {row}, wordVectors.getVector(row), maxNumberOfMatches);
+		if (queryCache != null) {
+			queryCache.put(QueryCache.wordKey(word), maxNumberOfMatches, matches);
+		}
+		matchesLatency.recordSince(startNanos);
+		return matches;
+	}
+
+	/**
+	 * Gets a list of possible analogues to the provided three words; see the original C word-analogy.c program
+	 *   for more details. The logic is: word1 is to word2 as word3 is to...?
+	 * @param word1
+	 * @param word2
+	 * @param word3
+	 * @param maxNumberOfMatches
+	 * @return A list of "matching" WordDistances
+	 * @throws WordToVecException
+	 */
+	public List<WordDistance> getAnalogy(String word1, String word2, String word3, Integer maxNumberOfMatches)  throws WordToVecException {
+
+		SharedUtils.checkNotNull(maxNumberOfMatches);
+		return matchAnalogy(word1, word2, word3, maxNumberOfMatches).toWordDistances();
+	}
+
+	/**
+	 * Gets the possible analogues to the provided three words as row ids and distances, without building
+	 *   any WordDistances
+	 * @param word1
+	 * @param word2
+	 * @param word3
+	 * @param maxNumberOfMatches
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	public WordMatches matchAnalogy(String word1, String word2, String word3, int maxNumberOfMatches)  throws WordToVecException {
+		int row1;
+		int row2;
+		int row3;
+		float[] searchVector;
+		WordMatches matches;
+		long startNanos;
+
+		SharedUtils.checkNotNull(word1);
+		SharedUtils.checkNotNull(word2);
+		SharedUtils.checkNotNull(word3);
+		startNanos = System.nanoTime();
+		if (queryCache != null) {
+			matches = queryCache.get(QueryCache.analogyKey(word1, word2, word3), maxNumberOfMatches);
+			if (matches != null) {
+				analogyLatency.recordSince(startNanos);
+				return matches;
+			}
+		}
+		row1 = wordVectors.getId(word1);
+		if (row1 < 0) {
+			throw new UnknownWordException(word1);
+		}
+		row2 = wordVectors.getId(word2);
+		if (row2 < 0) {
+			throw new UnknownWordException(word2);
+		}
+		row3 = wordVectors.getId(word3);
+		if (row3 < 0) {
+			throw new UnknownWordException(word3);
+		}
+		searchVector = getAnalogyVector(wordVectors, row1, row2, row3);
+		matches = getVectorMatches(new int[] {row1, row2, row3}, searchVector, maxNumberOfMatches);
+		if (queryCache != null) {
+			queryCache.put(QueryCache.analogyKey(word1, word2, word3), maxNumberOfMatches, matches);
+		}
+		analogyLatency.recordSince(startNanos);
+		return matches;
+	}
+
+	/**
+	 * Work out the search vector for an analogy: word1 is to word2 as word3 is to word2 - word1 + word3
+	 *
+	 * @param store The store
+	 * @param row1 The row of word1
+	 * @param row2 The row of word2
+	 * @param row3 The row of word3
+	 * @return The normalized search vector
+	 */
+	static float[] getAnalogyVector(VectorStore store, int row1, int row2, int row3) {
+		float[] result1;
+		float[] result2;
+		float[] result3;
+		float[] searchFor;
+
+		result1 = store.getVector(row1);
+		result2 = store.getVector(row2);
+		result3 = store.getVector(row3);
+		searchFor = new float[result1.length];
+		for (int ix = 0; ix < searchFor.length; ix++) {
+			searchFor[ix] = result2[ix] - result1[ix] + result3[ix];
+		}
+		return WordToVecLoader.normalize(searchFor);
+	}
+
+	/**
+	 * Get the specified number of closest matches for each of a list of words. This gives the same results
+	 *   as calling getWordMatches for each word, but the words are searched in blocks, so that each pass
+	 *   over the vectors serves a whole block of words instead of just one.
+	 *
+	 * @param words The words to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return A list of "matching" WordDistances for each word, in the same order as the words
+	 * @throws WordToVecException
+	 */
+	public List<List<WordDistance>> getWordMatchesBatch(List<String> words, int maxNumberOfMatches) throws WordToVecException {
+		List<WordMatches> batchMatches;
+		List<List<WordDistance>> distances;
+
+		batchMatches = matchWordsBatch(words, maxNumberOfMatches);
+		distances = new ArrayList<List<WordDistance>>(batchMatches.size());
+		for (WordMatches matches : batchMatches) {
+			distances.add(matches.toWordDistances());
+		}
+		return distances;
+	}
+
+	/**
+	 * Get the specified number of closest matches for each of a list of words as row ids and distances;
+	 *   see getWordMatchesBatch
+	 *
+	 * @param words The words to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches for each word, in the same order as the words
+	 * @throws WordToVecException
+	 */
+	public List<WordMatches> matchWordsBatch(List<String> words, int maxNumberOfMatches) throws WordToVecException {
+		int[][] ignores;
+		float[][] vectors;
+		int row;
+		List<WordMatches> matches;
+		long startNanos;
+
+		SharedUtils.checkNotNull(words);
+		startNanos = System.nanoTime();
+		ignores = new int[words.size()][];
+		vectors = new float[words.size()][];
+		for (int wordIx = 0; wordIx < words.size(); wordIx++) {
+			SharedUtils.checkNotNull(words.get(wordIx));
+			row = wordVectors.getId(words.get(wordIx));
+			if (row < 0) {
+				throw new UnknownWordException(words.get(wordIx));
+			}
+			ignores[wordIx] = new int[] {row};
+			vectors[wordIx] = wordVectors.getVector(row);
+		}
+		matches = getVectorMatches(ignores, vectors, maxNumberOfMatches);
+		batchLatency.recordSince(startNanos);
+		return matches;
+	}
+
+	/**
+	 * Get the specified number of closest matches to an arbitrary vector, e.g. a sum of word vectors
+	 *
+	 * @param vector The vector to match; it doesn't need to be normalized
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	public WordMatches matchVector(float[] vector, int maxNumberOfMatches) throws WordToVecException {
+
+		SharedUtils.checkNotNull(vector);
+		return matchVectorsBatch(Collections.singletonList(vector), maxNumberOfMatches).get(0);
+	}
+
+	/**
+	 * Get the specified number of closest matches for each of a list of arbitrary vectors, searched in
+	 *   blocks like matchWordsBatch
+	 *
+	 * @param vectors The vectors to match; they don't need to be normalized
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches for each vector, in the same order as the vectors
+	 * @throws WordToVecException
+	 */
+	public List<WordMatches> matchVectorsBatch(List<float[]> vectors, int maxNumberOfMatches) throws WordToVecException {
+		int[][] ignores;
+		float[][] searchVectors;
+
+		SharedUtils.checkNotNull(vectors);
+		ignores = new int[vectors.size()][];
+		searchVectors = new float[vectors.size()][];
+		for (int vectorIx = 0; vectorIx < vectors.size(); vectorIx++) {
+			SharedUtils.checkNotNull(vectors.get(vectorIx));
+			if (vectors.get(vectorIx).length != wordVectors.getVectorSize()) {
+				throw new IllegalArgumentException("Vector size mismatch");
+			}
+			ignores[vectorIx] = new int[0];
+			searchVectors[vectorIx] = WordToVecLoader.normalize(vectors.get(vectorIx));
+		}
+		return getVectorMatches(ignores, searchVectors, maxNumberOfMatches);
+	}
+
+	/**
+	 * Search a batch of normalized vectors that were put together by the caller, e.g. WordToVecBatcher
+	 *
+	 * @param ignores Row ids to leave out of the matches for each search vector
+	 * @param vectors The normalized search vectors
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches for each search vector
+	 * @throws WordToVecException
+	 */
+	List<WordMatches> searchBatch(int[][] ignores, float[][] vectors, int maxNumberOfMatches) throws WordToVecException {
+		List<WordMatches> matches;
+		long startNanos;
+
+		startNanos = System.nanoTime();
+		matches = getVectorMatches(ignores, vectors, maxNumberOfMatches);
+		batchLatency.recordSince(startNanos);
+		return matches;
+	}
+
+	/**
+	 * This is the heart of the whole shooting match, for a single search vector.
+	 *
+	 * @param ignores Row ids to ignore in the store (the search word(s) themselves)
+	 * @param thisVector The vector of the word we're matching
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	private WordMatches getVectorMatches(int[] ignores, float[] thisVector, int maxNumberOfMatches) throws WordToVecException {
+
+		SharedUtils.checkNotNull(ignores);
+		SharedUtils.checkNotNull(thisVector);
+		return getVectorMatches(new int[][] {ignores}, new float[][] {thisVector}, maxNumberOfMatches).get(0);
+	}
+
+	/**
+	 * This is the heart of the whole shooting match. We take the search vectors a block at a time and hand
+	 *   each block to the search backend. The exact backend walks the rows of the vector store a tile at a
+	 *   time (split into partitions across the scan pool, if there is one) and evaluates each vector against
+	 *   the search vectors, using a sum of the products of the two vectors to get a scalar that we can use to
+	 *   evaluate the closeness of the match (the cosine distance).
+	 *
+	 * @param ignores Row ids to ignore in the store for each search vector (the search word(s) themselves)
+	 * @param vectors The normalized search vectors
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches for each search vector
+	 * @throws WordToVecException
+	 */
+	private List<WordMatches> getVectorMatches(int[][] ignores, float[][] vectors, int maxNumberOfMatches) throws WordToVecException {
+		TopKHeap[] bestMatches;
+		int[][] blockIgnores;
+		float[][] blockVectors;
+		List<WordMatches> matches;
+
+		SharedUtils.log(LOGLEVEL, "WordToVecModel: searching vector store");
+		matches = new ArrayList<WordMatches>(vectors.length);
+		for (int fromQuery = 0; fromQuery < vectors.length; fromQuery += QUERY_BLOCK) {
+			blockIgnores = Arrays.copyOfRange(ignores, fromQuery, Math.min(vectors.length, fromQuery + QUERY_BLOCK));
+			blockVectors = Arrays.copyOfRange(vectors, fromQuery, Math.min(vectors.length, fromQuery + QUERY_BLOCK));
+			bestMatches = backend.search(blockVectors, blockIgnores, maxNumberOfMatches, scanPool);
+			for (TopKHeap heap : bestMatches) {
+				matches.add(new WordMatches(wordVectors, heap));
+			}
+		}
+		SharedUtils.log(LOGLEVEL, "WordToVecModel: built match table for search");
+		return matches;
+	}
+}
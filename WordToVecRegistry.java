@@ -0,0 +1,145 @@
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WordToVecRegistry serves several models from one process under names like "general", "domain" and
+ *   "multilingual". Looking a model up doesn't lock anything, and since the models never change, any number
+ *   of threads can search them at once. Registering a model under a name that's already taken swaps it in
+ *   for the old one: searches already running finish on the old model, and new ones get the new model.
+ *   <p>
+ *   For example:
+ *   <pre>
+ *   WordToVecSearch loader = new WordToVecSearch();
+ *   loader.mapFile("domain-vectors.bin");
+ *   registry.register("domain", loader.getModel());
+ *   ...
+ *   registry.getModel("domain").getWordMatches("scratched", 20);
+ *   </pre>
+ *   Each registered model gets a "registry.<i>id</i>.model.<i>name</i>.bytes" gauge in WordToVecMetrics with
+ *   its memory size, where the id tells the registries in a process apart, so two of them can both have a
+ *   "general" model without fighting over one gauge.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecRegistry {
+	private final static AtomicInteger nextId = new AtomicInteger();
+	private final ConcurrentMap<String, WordToVecModel> models;
+	private final int registryId;
+
+	/**
+	 * Create an empty registry
+	 */
+	public WordToVecRegistry() {
+
+		models = new ConcurrentHashMap<String, WordToVecModel>();
+		registryId = nextId.getAndIncrement();
+	}
+
+	/**
+	 * Get the id that tells this registry's gauges apart from other registries'
+	 *
+	 * @return The id
+	 */
+	public int getRegistryId() {
+
+		return registryId;
+	}
+
+	/**
+	 * Register a model, replacing any model already registered under the name
+	 *
+	 * @param name The name of the model
+	 * @param model The model
+	 * @return The model it replaced, or null if there wasn't one
+	 */
+	public WordToVecModel register(String name, WordToVecModel model) {
+
+		SharedUtils.checkNotNull(name);
+		SharedUtils.checkNotNull(model);
+		WordToVecMetrics.registerGauge(getGaugeName(name), new MemoryGauge(name));
+		return models.put(name, model);
+	}
+
+	/**
+	 * Get a registered model
+	 *
+	 * @param name The name of the model
+	 * @return The model
+	 * @throws WordToVecException If there's no model with that name
+	 */
+	public WordToVecModel getModel(String name) throws WordToVecException {
+		WordToVecModel model;
+
+		SharedUtils.checkNotNull(name);
+		model = models.get(name);
+		if (model == null) {
+			throw new WordToVecException("No model named " + name);
+		}
+		return model;
+	}
+
+	/**
+	 * See if there's a model registered under a name
+	 *
+	 * @param name The name of the model
+	 * @return True if there is one
+	 */
+	public boolean hasModel(String name) {
+
+		SharedUtils.checkNotNull(name);
+		return models.containsKey(name);
+	}
+
+	/**
+	 * Take a model out of the registry. Searches that already have it keep working.
+	 *
+	 * @param name The name of the model
+	 * @return The model, or null if there wasn't one
+	 */
+	public WordToVecModel unregister(String name) {
+
+		SharedUtils.checkNotNull(name);
+		WordToVecMetrics.unregisterGauge(getGaugeName(name));
+		return models.remove(name);
+	}
+
+	/**
+	 * Get the names of the registered models
+	 *
+	 * @return A NEW set of the names, sorted
+	 */
+	public Set<String> getNames() {
+
+		return new TreeSet<String>(models.keySet());
+	}
+
+	private String getGaugeName(String name) {
+
+		return "registry." + registryId + ".model." + name + ".bytes";
+	}
+
+	/**
+	 * MemoryGauge reads the memory size of whatever model is registered under its name right now
+	 */
+	private final class MemoryGauge implements MetricsGauge {
+		private final String name;
+
+		MemoryGauge(String name) {
+
+			this.name = name;
+		}
+
+		@Override
+		public long getValue() {
+			WordToVecModel model;
+
+			model = models.get(name);
+			return model == null ? 0 : model.getMemoryBytes();
+		}
+	}
+}
@@ -1,56 +1,508 @@
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.logging.Level;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * WordToVecSearch is the class that uses the loaded word2vec BIN file for word matches (aka distance in
  *   the original C version) and analogies
+ *   <p>
+ *   Each load, and each change of search backend, parallelism or cache, makes a new WordToVecModel and 
+ *   publishes it in one go, so searches running on other threads see either the old model or the new one
+ *   and never half of each. Searches don't lock anything. To serve several models from one process, load
+ *   each with its own WordToVecSearch and put getModel() in a WordToVecRegistry.
  *   
  * @author hulles
  *
  */
 final public class WordToVecSearch {
 	private final static String DISTANCE_FORMAT = "(%.4f)";
-	private final static Level LOGLEVEL = Level.INFO;
+	// candidates per match that approximate backends get for re-ranking
+	private final static int RERANK_FACTOR = 4;
+	// training vectors and k-means iterations for product quantization
+	private final static int PQ_TRAINING_SIZE = 65536;
+	private final static int PQ_ITERATIONS = 20;
+	// training vectors per cluster and k-means iterations for the IVF index
+	private final static int IVF_TRAINING_PER_CLUSTER = 64;
+	private final static int IVF_ITERATIONS = 10;
 	private static WordToVecSearch instance = null;
-	private Map<String, float[]> wordVectors;
+	private volatile WordToVecModel model = null;
+	private ForkJoinPool scanPool = null;
+	private LoadOptions loadOptions = new LoadOptions();
+	private int cacheSize = 0;
 	
-	private WordToVecSearch() {
-		// that's a big map; we only want one of these laying around...
+	/**
+	 * Create a WordToVecSearch of your own, e.g. for each of several models; most programs just want the
+	 *   one from getInstance
+	 */
+	public WordToVecSearch() {
+		// that's a big store; we usually only want one of these laying around...
 	}
 	
 	/**
-	 * Get the instance of WordToVecSearch, possibly creating it
+	 * Get the instance of WordToVecSearch, possibly creating it. The instance's model memory shows up as the
+	 *   "model.bytes" gauge in WordToVecMetrics.
 	 * 
 	 * @return The instance
 	 */
 	public synchronized static WordToVecSearch getInstance() {
 		if (instance == null) {
 			instance = new WordToVecSearch();
+			WordToVecMetrics.registerGauge("model.bytes", new MemoryGauge(instance));
 		}
 		return instance;
 	}
 	
+	/**
+	 * Set which words the load methods load from now on, e.g. only the 200,000 most frequent ones plus a
+	 *   list of domain terms. The rest of the file is skipped over, and the store only takes up room for
+	 *   the words that can make it.
+	 * 
+	 * @param options The load options
+	 */
+	public synchronized void setLoadOptions(LoadOptions options) {
+		
+		SharedUtils.checkNotNull(options);
+		loadOptions = options;
+	}
+	
 	/**
 	 * Load the word2vec BIN FORMAT file
 	 * 
 	 * @param fileName The name of the file (e.g. vectors.bin)
 	 */
-	public void loadFile(String fileName) {
+	public synchronized void loadFile(String fileName) {
 		WordToVecLoader loader;
 		
 		SharedUtils.checkNotNull(fileName);
 		loader = new WordToVecLoader();
+		loader.setOptions(loadOptions);
 		loader.load(fileName);
-		wordVectors = loader.getMap();
+		setStore(loader.getStore());
 		loader = null;
 	}
 	
+	/**
+	 * Convert a word2vec BIN FORMAT file to a snapshot file. A snapshot holds the normalized vectors, the
+	 *   words and the word lookup table ready to memory-map, so loadFile, mapFile or loadQuantized open it
+	 *   in next to no time, with no parsing; they tell the two formats apart by themselves.
+	 * 
+	 * @param fileName The name of the BIN file (e.g. vectors.bin)
+	 * @param snapshotFileName The name of the snapshot file to write (e.g. vectors.snap)
+	 */
+	public static void convertFile(String fileName, String snapshotFileName) {
+		
+		WordToVecLoader.convert(fileName, snapshotFileName, new LoadOptions());
+	}
+	
+	/**
+	 * Convert just the words the options accept from a word2vec BIN FORMAT file to a snapshot file
+	 * 
+	 * @param fileName The name of the BIN file (e.g. vectors.bin)
+	 * @param snapshotFileName The name of the snapshot file to write (e.g. vectors.snap)
+	 * @param options Which words go into the snapshot
+	 */
+	public static void convertFile(String fileName, String snapshotFileName, LoadOptions options) {
+		
+		WordToVecLoader.convert(fileName, snapshotFileName, options);
+	}
+	
+	/**
+	 * Load the word2vec BIN FORMAT file using several threads, which is a lot faster on a multi-core box
+	 * 
+	 * @param fileName The name of the file (e.g. vectors.bin)
+	 * @param threadCount The number of loader threads, e.g. Runtime.getRuntime().availableProcessors()
+	 */
+	public synchronized void loadFile(String fileName, int threadCount) {
+		WordToVecLoader loader;
+		
+		SharedUtils.checkNotNull(fileName);
+		loader = new WordToVecLoader();
+		loader.setOptions(loadOptions);
+		loader.loadParallel(fileName, threadCount);
+		setStore(loader.getStore());
+		loader = null;
+	}
+	
+	/**
+	 * Load a word2vec TEXT FORMAT file (fastText .vec and GloVe files work too) using several threads.
+	 *   The searches work exactly as they do for a BIN file.
+	 * 
+	 * @param fileName The name of the file (e.g. vectors.txt)
+	 * @param threadCount The number of loader threads, e.g. Runtime.getRuntime().availableProcessors()
+	 */
+	public synchronized void loadTextFile(String fileName, int threadCount) {
+		WordToVecLoader loader;
+		
+		SharedUtils.checkNotNull(fileName);
+		loader = new WordToVecLoader();
+		loader.setOptions(loadOptions);
+		loader.loadText(fileName, threadCount);
+		setStore(loader.getStore());
+		loader = null;
+	}
+	
+	/**
+	 * Memory-map the word2vec BIN FORMAT file instead of loading it onto the heap. This starts up much
+	 *   faster and uses hardly any heap, and the OS can share the file between JVMs; the trade-off is that
+	 *   the vectors are normalized on the fly during searches.
+	 * 
+	 * @param fileName The name of the file (e.g. vectors.bin)
+	 */
+	public synchronized void mapFile(String fileName) {
+		WordToVecLoader loader;
+		
+		SharedUtils.checkNotNull(fileName);
+		loader = new WordToVecLoader();
+		loader.setOptions(loadOptions);
+		loader.map(fileName);
+		setStore(loader.getStore());
+		loader = null;
+	}
+	
+	/**
+	 * Load the word2vec BIN FORMAT file as compressed vectors, which take 2 to 4 times less memory. The file
+	 *   is memory-mapped, searches scan the compressed vectors, and the best candidates are re-ranked against 
+	 *   the full-precision vectors in the mapped file. Use measureRecall to see how much accuracy the 
+	 *   compression costs.
+	 * 
+	 * @param fileName The name of the file (e.g. vectors.bin)
+	 * @param quantization How to compress the vectors
+	 */
+	public synchronized void loadQuantized(String fileName, Quantization quantization) {
+		WordToVecLoader loader;
+		QuantizedVectorStore quantizedStore;
+		
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(quantization);
+		loader = new WordToVecLoader();
+		loader.setOptions(loadOptions);
+		loader.loadQuantized(fileName, quantization);
+		quantizedStore = (QuantizedVectorStore) loader.getStore();
+		model = new WordToVecModel(quantizedStore, quantizedStore.getSource(), 
+				new RerankingSearchBackend(new ExactSearchBackend(quantizedStore), quantizedStore.getSource(), RERANK_FACTOR), 
+				new ExactSearchBackend(quantizedStore.getSource()), scanPool, newQueryCache());
+		loader = null;
+	}
+	
+	/**
+	 * Measure the recall@k of the current search backend against an exact search of the full-precision 
+	 *   vectors, using a sample of the words as queries. For an exact backend it's always 1.
+	 * 
+	 * @param queryCount The number of words to sample
+	 * @param maxNumberOfMatches The k in recall@k
+	 * @return The report
+	 */
+	public RecallReport measureRecall(int queryCount, int maxNumberOfMatches) {
+		
+		return getModel().measureRecall(queryCount, maxNumberOfMatches);
+	}
+	
+	/**
+	 * Run an analogy question file like questions-words.txt and report the accuracy per section and in
+	 *   total, like compute-accuracy in the original word2vec; the questions are scored in parallel with
+	 *   the threads set with setParallelism. With maxRank as big as the vocabulary the answers are the
+	 *   same ones getAnalogy gives with exact search.
+	 * 
+	 * @param fileName The question file
+	 * @param maxRank The number of most frequent words to use, e.g. 30000 like compute-accuracy
+	 * @return The report
+	 */
+	public AccuracyReport measureAccuracy(String fileName, int maxRank) {
+		
+		return getModel().measureAccuracy(fileName, maxRank);
+	}
+	
+	/**
+	 * Build a product quantization index of the loaded vectors, save it to a file and start searching 
+	 *   with it. Each word takes subspaceCount bytes in the index (500-float vectors with 50 subspaces
+	 *   is 40 times smaller than the floats). Building takes a while, so after the first time use 
+	 *   loadProductQuantization with the saved file.
+	 * 
+	 * @param indexFileName The file to save the index to
+	 * @param subspaceCount The number of bytes per word, which has to divide up the vector size sensibly
+	 * @param rerank True to re-rank the best candidates against the full-precision vectors
+	 */
+	public synchronized void buildProductQuantization(String indexFileName, int subspaceCount, boolean rerank) {
+		ProductQuantizationIndex index;
+		
+		SharedUtils.checkNotNull(indexFileName);
+		index = ProductQuantizationIndex.build(getModel().getFullVectors(), subspaceCount, PQ_TRAINING_SIZE, 
+				PQ_ITERATIONS, scanPool);
+		index.save(indexFileName, getModel().getFullVectors());
+		useProductQuantization(index, rerank);
+	}
+	
+	/**
+	 * Load a product quantization index saved by buildProductQuantization and start searching with it.
+	 *   It has to have been built from the same BIN file that's loaded. Mapping the BIN file with mapFile
+	 *   first keeps the full-precision vectors off the heap.
+	 * 
+	 * @param indexFileName The saved index file
+	 * @param rerank True to re-rank the best candidates against the full-precision vectors
+	 */
+	public synchronized void loadProductQuantization(String indexFileName, boolean rerank) {
+		
+		SharedUtils.checkNotNull(indexFileName);
+		useProductQuantization(ProductQuantizationIndex.load(indexFileName, getModel().getFullVectors()), rerank);
+	}
+	
+	private void useProductQuantization(ProductQuantizationIndex index, boolean rerank) {
+		WordToVecModel oldModel;
+		
+		System.out.println("Product quantization index: " + index.getIndexBytes() + " bytes");
+		oldModel = getModel();
+		model = oldModel.withBackend(rerank ? 
+				new RerankingSearchBackend(index, oldModel.getFullVectors(), RERANK_FACTOR) : index);
+	}
+	
+	/**
+	 * Build an HNSW graph of the loaded vectors, save it to a file and start searching with it. Searches 
+	 *   of the graph only look at a few thousand vectors, so they're very fast even for millions of words,
+	 *   at the price of sometimes missing a match (see measureRecall). The build uses the threads set with
+	 *   setParallelism and can take a long time, so after the first time use loadHnsw with the saved file.
+	 * 
+	 * @param indexFileName The file to save the graph to
+	 * @param m The number of links per word, e.g. 16; more is better recall, more memory and a slower build
+	 * @param efConstruction How hard the build looks for good links, e.g. 200
+	 * @param efSearch How hard searches look for matches, e.g. 100; more is better recall and slower
+	 */
+	public synchronized void buildHnsw(String indexFileName, int m, int efConstruction, int efSearch) {
+		HnswIndex index;
+		
+		SharedUtils.checkNotNull(indexFileName);
+		index = HnswIndex.build(getModel().getFullVectors(), m, efConstruction, efSearch, scanPool);
+		index.save(indexFileName);
+		useHnsw(index);
+	}
+	
+	/**
+	 * Memory-map an HNSW graph saved by buildHnsw and start searching with it. It has to have been built 
+	 *   from the same BIN file that's loaded. Call it again with a different efSearch to trade speed for
+	 *   recall; mapping the file again is cheap.
+	 * 
+	 * @param indexFileName The saved graph file
+	 * @param efSearch How hard searches look for matches, e.g. 100; more is better recall and slower
+	 */
+	public synchronized void loadHnsw(String indexFileName, int efSearch) {
+		
+		SharedUtils.checkNotNull(indexFileName);
+		useHnsw(HnswIndex.load(indexFileName, getModel().getFullVectors(), efSearch));
+	}
+	
+	private void useHnsw(HnswIndex index) {
+		
+		System.out.println("HNSW index: " + index.getIndexBytes() + " bytes");
+		model = getModel().withBackend(index);
+	}
+	
+	/**
+	 * Cluster the loaded vectors into an IVF (inverted file) index, save it to a file and start searching 
+	 *   with it. A search only scans the probeCount clusters closest to the search vector, so with 2,000 
+	 *   clusters and 20 probes it looks at about 1% of the vectors. The index file holds its own copy of 
+	 *   the vectors, grouped by cluster, which is memory-mapped rather than loaded. After the first time use
+	 *   loadIvf with the saved file.
+	 * 
+	 * @param indexFileName The file to save the index to
+	 * @param clusterCount The number of clusters, e.g. the square root of the vocabulary size
+	 * @param probeCount The number of clusters to scan for each search
+	 */
+	public synchronized void buildIvf(String indexFileName, int clusterCount, int probeCount) {
+		
+		SharedUtils.checkNotNull(indexFileName);
+		IvfIndex.build(getModel().getFullVectors(), indexFileName, clusterCount, clusterCount * IVF_TRAINING_PER_CLUSTER, 
+				IVF_ITERATIONS, scanPool);
+		loadIvf(indexFileName, probeCount);
+	}
+	
+	/**
+	 * Memory-map an IVF index saved by buildIvf and start searching with it. It has to have been built 
+	 *   from the same BIN file that's loaded.
+	 * 
+	 * @param indexFileName The saved index file
+	 * @param probeCount The number of clusters to scan for each search
+	 */
+	public synchronized void loadIvf(String indexFileName, int probeCount) {
+		WordToVecModel oldModel;
+		
+		SharedUtils.checkNotNull(indexFileName);
+		oldModel = getModel();
+		model = oldModel.withBackend(IvfIndex.load(indexFileName, oldModel.getFullVectors(), probeCount));
+	}
+	
+	/**
+	 * Change the number of clusters the IVF index scans for each search, trading speed for recall; it
+	 *   takes effect with the next search
+	 * 
+	 * @param probeCount The number of clusters to scan for each search
+	 */
+	public synchronized void setProbeCount(int probeCount) {
+		WordToVecModel oldModel;
+		
+		oldModel = getModel();
+		if (!(oldModel.getBackend() instanceof IvfIndex)) {
+			throw new WordToVecException("Not searching with an IVF index");
+		}
+		model = oldModel.withBackend(((IvfIndex) oldModel.getBackend()).withProbeCount(probeCount));
+	}
+	
+	/**
+	 * Work out the best matches of the most frequent words ahead of time, save them to a file and start 
+	 *   answering word matches for those words from it. It's an exact search of every one of the words, in 
+	 *   parallel with the threads set with setParallelism, so for a big vocabulary it's something to run 
+	 *   overnight once and then use loadNeighborTable with the saved file.
+	 * 
+	 * @param tableFileName The file to save the table to
+	 * @param rowCount The number of most frequent words to work out, e.g. 500000
+	 * @param maxNumberOfMatches The number of matches to keep for each word; searches for more than this
+	 *   still scan
+	 */
+	public synchronized void buildNeighborTable(String tableFileName, int rowCount, int maxNumberOfMatches) {
+		
+		SharedUtils.checkNotNull(tableFileName);
+		NeighborTable.build(getModel().getFullVectors(), tableFileName, rowCount, maxNumberOfMatches, scanPool);
+		loadNeighborTable(tableFileName);
+	}
+	
+	/**
+	 * Map a table saved by buildNeighborTable and answer word matches from it whenever it has the word and 
+	 *   enough matches for it; other searches scan as usual. The table has to be built from the same file,
+	 *   loaded with the same load options. Loading another file drops the table.
+	 * 
+	 * @param tableFileName The saved table file
+	 */
+	public synchronized void loadNeighborTable(String tableFileName) {
+		
+		SharedUtils.checkNotNull(tableFileName);
+		model = getModel().withNeighborTable(NeighborTable.load(tableFileName, getModel().getFullVectors()));
+	}
+	
+	/**
+	 * Go back to searching with the exact backend after using an approximate one
+	 */
+	public synchronized void useExactSearch() {
+		WordToVecModel oldModel;
+		
+		oldModel = getModel();
+		model = oldModel.withBackend(oldModel.getExactBackend());
+	}
+	
+	/**
+	 * Get the model that searches use right now. It won't change, so hang on to it to search the same model
+	 *   throughout something, or register it in a WordToVecRegistry.
+	 * 
+	 * @return The current model
+	 */
+	public WordToVecModel getModel() {
+		WordToVecModel currentModel;
+		
+		currentModel = model;
+		if (currentModel == null) {
+			throw new WordToVecException("No word2vec file has been loaded");
+		}
+		return currentModel;
+	}
+	
+	/**
+	 * Get the model that searches use right now, if there is one
+	 * 
+	 * @return The current model, or null if no file has been loaded
+	 */
+	WordToVecModel getModelIfLoaded() {
+		
+		return model;
+	}
+	
+	/**
+	 * Start using a newly-loaded store, searching it with the exact backend
+	 * 
+	 * @param store The store
+	 */
+	private void setStore(VectorStore store) {
+		SearchBackend exactBackend;
+		
+		exactBackend = new ExactSearchBackend(store);
+		model = new WordToVecModel(store, store, exactBackend, exactBackend, scanPool, newQueryCache());
+	}
+	
+	/**
+	 * Keep the results of the most recent word and analogy searches, so that popular searches are answered
+	 *   without a scan. A cached search also answers searches for fewer matches. Each model has its own 
+	 *   cache, so a new, empty one comes along whenever a file is loaded or the search backend changes.
+	 * 
+	 * @param maxEntries The most searches to keep; 0 (the default) turns the cache off
+	 */
+	public synchronized void setCacheSize(int maxEntries) {
+		
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("Cache size can't be negative");
+		}
+		cacheSize = maxEntries;
+		if (model != null) {
+			model = model.withQueryCache(newQueryCache());
+		}
+	}
+	
+	private QueryCache newQueryCache() {
+		
+		return cacheSize == 0 ? null : new QueryCache(cacheSize);
+	}
+	
+	/**
+	 * Get the query cache of the current model, e.g. for its hit, miss and eviction counts
+	 * 
+	 * @return The cache, or null if there isn't one
+	 */
+	public QueryCache getQueryCache() {
+		
+		return getModel().getQueryCache();
+	}
+	
+	/**
+	 * Fill the cache with the matches for a list of words, e.g. the most popular ones, so the first searches
+	 *   for them are fast too. The words are searched in blocks like matchWordsBatch; words that aren't in
+	 *   the vocabulary or are already cached are skipped.
+	 * 
+	 * @param words The words to search for
+	 * @param maxNumberOfMatches The number of matches to cache for each word
+	 */
+	public void warmCache(List<String> words, int maxNumberOfMatches) {
+		
+		getModel().warmCache(words, maxNumberOfMatches);
+	}
+	
+	/**
+	 * Fill the cache from a query log with one search per line: a single word for a word search, or three
+	 *   words separated by blanks for an analogy. Other lines, and searches with words that aren't in the 
+	 *   vocabulary, are skipped.
+	 * 
+	 * @param fileName The query log file (UTF-8)
+	 * @param maxNumberOfMatches The number of matches to cache for each search
+	 */
+	public void warmCacheFromLog(String fileName, int maxNumberOfMatches) {
+		
+		getModel().warmCacheFromLog(fileName, maxNumberOfMatches);
+	}
+	
+	/**
+	 * Set the number of threads used to scan the vectors for each search. The vectors are split into
+	 *   partitions which are scanned in parallel, and the best matches of the partitions are merged at the
+	 *   end; the results are exactly the same as a single-threaded scan.
+	 * 
+	 * @param parallelism The number of scan threads; 1 (the default) scans on the calling thread
+	 */
+	public synchronized void setParallelism(int parallelism) {
+		
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1");
+		}
+		// the old pool isn't shut down, since models handed out earlier may still be scanning with it;
+		//  its threads die off by themselves once it's idle
+		scanPool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+		if (model != null) {
+			model = model.withScanPool(scanPool);
+		}
+	}
+	
 	/**
 	 * Get the specified number of closest matches to word from the file; comparable to the original 
 	 *   word2vec 'distance.c' program in that it returns the cosine distance of word matches
@@ -61,19 +513,22 @@ final public class WordToVecSearch {
 	 * @throws WordToVecException
 	 */
 	public List<WordDistance> getWordMatches(String word, Integer maxNumberOfMatches)  throws WordToVecException {
-		float[] result;
-		List<WordDistance> matches;
 
-		SharedUtils.checkNotNull(word);
-		SharedUtils.checkNotNull(maxNumberOfMatches);
-		WordToVecTimer.startTimer("MATCHES");
-		result = wordVectors.get(word);
-		if (result == null) {
-			throw new WordToVecException(word);
-		}
-		matches = getVectorMatches(Collections.singletonList(word), result, maxNumberOfMatches);
-		WordToVecTimer.stopTimer("MATCHES");
-		return matches;
+		return getModel().getWordMatches(word, maxNumberOfMatches);
+	}
+	
+	/**
+	 * Get the specified number of closest matches to word from the file as row ids and distances, without
+	 *   building any WordDistances
+	 *   
+	 * @param word The word to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	public WordMatches matchWord(String word, int maxNumberOfMatches)  throws WordToVecException {
+
+		return getModel().matchWord(word, maxNumberOfMatches);
 	}
 	
 	/**
@@ -87,134 +542,81 @@ final public class WordToVecSearch {
 	 * @throws WordToVecException
 	 */
 	public List<WordDistance> getAnalogy(String word1, String word2, String word3, Integer maxNumberOfMatches)  throws WordToVecException {
-		float[] result1;
-		float[] result2;
-		float[] result3;
-		float[] searchFor;
-		float[] searchVector;
-		List<String> ignores;
-		List<WordDistance> matches;
 
-		SharedUtils.checkNotNull(word1);
-		SharedUtils.checkNotNull(word2);
-		SharedUtils.checkNotNull(word3);
-		SharedUtils.checkNotNull(maxNumberOfMatches);
-		WordToVecTimer.startTimer("ANALOGY");
-		result1 = wordVectors.get(word1);
-		if (result1 == null) {
-			throw new WordToVecException(word1);
-		}
-		result2 = wordVectors.get(word2);
-		if (result2 == null) {
-			throw new WordToVecException(word2);
-		}
-		result3 = wordVectors.get(word3);
-		if (result3 == null) {
-			throw new WordToVecException(word3);
-		}
-		ignores = new ArrayList<String>(3);
-		ignores.add(word1);
-		ignores.add(word2);
-		ignores.add(word3);
-		searchFor = new float[result1.length];
-		for (int ix = 0; ix < searchFor.length; ix++) {
-			searchFor[ix] = result2[ix] - result1[ix] + result3[ix];
-		}
-		searchVector = WordToVecLoader.normalize(searchFor);
-		matches = getVectorMatches(ignores, searchVector, maxNumberOfMatches);
-		WordToVecTimer.stopTimer("ANALOGY");
-		return matches;
+		return getModel().getAnalogy(word1, word2, word3, maxNumberOfMatches);
 	}
 	
 	/**
-	 * This is the heart of the whole shooting match. We convert the wordVectors map to an entry set and evaluate
-	 *   each vector against the provided vector. We use a sum of the products of the two vectors to
-	 *   get a scalar that we can use to evaluate the closeness of the match (the cosine distance).
+	 * Gets the possible analogues to the provided three words as row ids and distances, without building
+	 *   any WordDistances
+	 * @param word1
+	 * @param word2
+	 * @param word3
+	 * @param maxNumberOfMatches
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	public WordMatches matchAnalogy(String word1, String word2, String word3, int maxNumberOfMatches)  throws WordToVecException {
+
+		return getModel().matchAnalogy(word1, word2, word3, maxNumberOfMatches);
+	}
+	
+	/**
+	 * Get the specified number of closest matches for each of a list of words. This gives the same results 
+	 *   as calling getWordMatches for each word, but the words are searched in blocks, so that each pass
+	 *   over the vectors serves a whole block of words instead of just one.
 	 *   
-	 * @param ignores Words to ignore in the file (the search word(s) themselves
-	 * @param thisVector The vector of the word we're matching
+	 * @param words The words to match
 	 * @param maxNumberOfMatches Self-explanatory
-	 * @return A list of "matching" WordDistances
+	 * @return A list of "matching" WordDistances for each word, in the same order as the words
 	 * @throws WordToVecException
 	 */
-	private List<WordDistance> getVectorMatches(List<String> ignores, float[] thisVector, Integer maxNumberOfMatches) throws WordToVecException {
-		Set<Entry<String, float[]>> entrySet;
-		Double distance;
-		List<WordDistance> bestMatches;
-		WordDistance wDistance;
-		Double leastBestDistance = 0.0;
-		
-		SharedUtils.checkNotNull(thisVector);
-		SharedUtils.checkNotNull(maxNumberOfMatches);
-		entrySet = wordVectors.entrySet();
-		bestMatches = new ArrayList<WordDistance>(maxNumberOfMatches);
-		wDistance = new WordDistance("init", 0.0);
-		bestMatches.addAll(Collections.nCopies(maxNumberOfMatches, wDistance));
-		SharedUtils.log(LOGLEVEL, "WordToVecSearch: searching entry table");
-		for (Entry<String, float[]> entry : entrySet) {
-			if (ignores.contains(entry.getKey())) {
-				continue;
-			}
-//			System.out.println("SEARCH:");
-//			WordToVecLoader.dumpArray(entry.getValue());
-			distance = calculateDistance(thisVector, entry.getValue());
-			if (distance > leastBestDistance) {
-				// then it belongs in the bestMatches list
-				leastBestDistance = updateBestMatches(distance, bestMatches, entry.getKey());
-			}
-		}
-		SharedUtils.log(LOGLEVEL, "WordToVecSearch: built match table for search");
-		return bestMatches;
-	}
-	
-	/**
-	 * For a given word, insert it into its position in the bestMatches list and remove the last item
-	 *   so the list remains the same size
-	 * @param distance The cosine distance of the word
-	 * @param bestMatches The list of WordDistances that are the best matches so far
-	 * @param word The matching word we're inserting into the list
-	 * @return The (new) smallest cosine distance of the bestMatches list 
-	 */
-	private static Double updateBestMatches(Double distance, List<WordDistance> bestMatches, String word) {
-		WordDistance wordDistance;
-		WordDistance newWordDistance;
-		
-//		SharedUtils.checkNotNull(distance);
-//		SharedUtils.checkNotNull(distances);
-//		SharedUtils.checkNotNull(word);
-		for (int listIx = 0; listIx < bestMatches.size(); listIx++) {
-			wordDistance = bestMatches.get(listIx);
-			if (distance > wordDistance.getDistance()) {
-				newWordDistance = new WordDistance(word, distance);
-				bestMatches.add(listIx, newWordDistance);
-				bestMatches.remove(bestMatches.size() - 1);
-				break;
-			}
-		}
-		return bestMatches.get(bestMatches.size() - 1).getDistance();
+	public List<List<WordDistance>> getWordMatchesBatch(List<String> words, int maxNumberOfMatches) throws WordToVecException {
+
+		return getModel().getWordMatchesBatch(words, maxNumberOfMatches);
 	}
 	
 	/**
-	 * Calculate the cosine distance of the from and to vectors
-	 * 
-	 * @param from The from vector
-	 * @param to The to vector
-	 * @return The distance of the vectors
-	 */
-	private static Double calculateDistance(float[] from, float[] to) {
-		double sum = 0.0;
-		
-//		SharedUtils.checkNotNull(from);
-//		SharedUtils.checkNotNull(to);
-//		if (from.length != to.length) {
-//			throw new IllegalArgumentException();
-//		}
-		for (int ix = 0; ix < from.length; ix++) {
-			sum += from[ix] * to[ix];
-		}
-		return sum;
+	 * Get the specified number of closest matches for each of a list of words as row ids and distances;
+	 *   see getWordMatchesBatch
+	 *   
+	 * @param words The words to match
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches for each word, in the same order as the words
+	 * @throws WordToVecException
+	 */
+	public List<WordMatches> matchWordsBatch(List<String> words, int maxNumberOfMatches) throws WordToVecException {
+
+		return getModel().matchWordsBatch(words, maxNumberOfMatches);
+	}
+	
+	/**
+	 * Get the specified number of closest matches to an arbitrary vector, e.g. a sum of word vectors
+	 *   
+	 * @param vector The vector to match; it doesn't need to be normalized
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches
+	 * @throws WordToVecException
+	 */
+	public WordMatches matchVector(float[] vector, int maxNumberOfMatches) throws WordToVecException {
+
+		return getModel().matchVector(vector, maxNumberOfMatches);
 	}
+	
+	/**
+	 * Get the specified number of closest matches for each of a list of arbitrary vectors, searched in
+	 *   blocks like matchWordsBatch
+	 *   
+	 * @param vectors The vectors to match; they don't need to be normalized
+	 * @param maxNumberOfMatches Self-explanatory
+	 * @return The matches for each vector, in the same order as the vectors
+	 * @throws WordToVecException
+	 */
+	public List<WordMatches> matchVectorsBatch(List<float[]> vectors, int maxNumberOfMatches) throws WordToVecException {
 
+		return getModel().matchVectorsBatch(vectors, maxNumberOfMatches);
+	}
+	
 	/**
 	 * Simple formatter for WordDistance result list
 	 * 
@@ -226,9 +628,6 @@ final public class WordToVecSearch {
 		
 		sb = new StringBuilder();
 		for (WordDistance match : matches) {
-			if (match.getToWord().equals("init")) {
-				continue;
-			}
 			if (sb.length() > 0) {
 				sb.append(", ");
 			}
@@ -251,6 +650,7 @@ final public class WordToVecSearch {
 		List<WordDistance> distances;
 		
 		searcher = WordToVecSearch.getInstance();
+		searcher.setParallelism(Runtime.getRuntime().availableProcessors());
 //		searcher.loadFile("/home/hulles/Word2Vec/trunk/GoogleNews-vectors-negative300.bin");
 		searcher.loadFile("/home/hulles/Word2Vec/trunk/big-vectors.bin");
 		distances = searcher.getWordMatches("scratched", 20);
@@ -259,4 +659,23 @@ final public class WordToVecSearch {
 		System.out.println("dog bone cat = " + formatResult(distances));
 	}
 	
+	/**
+	 * MemoryGauge reads the memory size of a WordToVecSearch's current model
+	 */
+	private static final class MemoryGauge implements MetricsGauge {
+		private final WordToVecSearch search;
+		
+		MemoryGauge(WordToVecSearch search) {
+			
+			this.search = search;
+		}
+		
+		@Override
+		public long getValue() {
+			WordToVecModel current;
+			
+			current = search.model;
+			return current == null ? 0 : current.getMemoryBytes();
+		}
+	}
 }
@@ -0,0 +1,1127 @@
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * WordToVecServer answers searches over HTTP with JSON, so any number of clients (and languages) can share
+ *   one loaded model instead of each loading its own 11GB copy. It's just the JDK's HttpServer, so there's
+ *   still nothing to download. The endpoints are:
+ *   <pre>
+ *   GET  /matches?word=king&amp;k=10                  the best matches of a word
+ *   GET  /analogy?w1=man&amp;w2=king&amp;w3=woman&amp;k=10     word1 is to word2 as word3 is to...
+ *   GET  /vector?word=king                        the normalized vector of a word
+ *   POST /batch  {"words": ["king", "queen"], "k": 10}  the best matches of a list of words in one pass
+ *   GET  /health                                  whether it's up, and the vocabulary size
+ *   GET  /metrics                                 the WordToVecMetrics histograms, counters and gauges
+ *   </pre>
+ *   Searches run on a fixed pool of maxConcurrent threads, with room for maxQueued more to wait their turn;
+ *   past that a request is turned away right away with a 429, so a flood of requests can't pile up until
+ *   nothing gets answered in time. A request that isn't answered within the timeout gets a 504. Unknown
+ *   words get a 404, bad parameters a 400 and a request body over a megabyte a 413, each with an
+ *   {"error": ...} body; with no file loaded the searches and /health get a 503. /health and /metrics don't
+ *   search, so they're answered right away however busy the searches are.
+ *   <p>
+ *   There's no authentication, so it only listens on the loopback address unless you say otherwise with
+ *   setBindAddress.
+ *   <p>
+ *   Each request searches whatever model the WordToVecSearch has when the request comes in, so you can load
+ *   a new file or switch backends while it's serving.
+ *   <p>
+ *   This would be a natural fit for virtual threads, but they aren't in the JDK we build with, so it uses
+ *   ordinary bounded pools; since searches are CPU-bound anyway, more threads than cores wouldn't help.
+ *
+ * @author hulles
+ *
+ */
+final public class WordToVecServer {
+	private final static Level LOGLEVEL = Level.INFO;
+	private final static String JSON_TYPE = "application/json; charset=utf-8";
+	private final static int DEFAULT_MATCHES = 10;
+	private final static int MAX_BODY_BYTES = 1 << 20;
+	private final static int BACKLOG = 128;
+	// extra exchange threads, so a 429 can still be sent when all the others are waiting on searches
+	private final static int SPARE_EXCHANGE_THREADS = 4;
+	private final static LatencyHistogram requestLatency = WordToVecMetrics.getHistogram("server.request");
+	private final static LongAdder rejected = WordToVecMetrics.getCounter("server.rejected");
+	private final static LongAdder timeouts = WordToVecMetrics.getCounter("server.timeouts");
+	private final WordToVecSearch search;
+	private final int port;
+	private int maxConcurrent = Runtime.getRuntime().availableProcessors();
+	private int maxQueued = Runtime.getRuntime().availableProcessors() * 4;
+	private long timeoutMillis = 5000;
+	private int maxMatches = 1000;
+	private int maxBatchWords = 1000;
+	private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+	private HttpServer server = null;
+	private ExecutorService exchangePool = null;
+	private ExecutorService searchPool = null;
+	private Semaphore admissions = null;
+
+	/**
+	 * Create a server for the model(s) loaded in a WordToVecSearch
+	 *
+	 * @param search The WordToVecSearch with a file loaded
+	 * @param port The port to listen on, e.g. 8080; 0 picks a free one
+	 */
+	public WordToVecServer(WordToVecSearch search, int port) {
+
+		SharedUtils.checkNotNull(search);
+		if (port < 0 || port > 65535) {
+			throw new IllegalArgumentException("Bad port number " + port);
+		}
+		this.search = search;
+		this.port = port;
+	}
+
+	/**
+	 * Set the number of searches that run at once; the default is the number of processors
+	 *
+	 * @param maxConcurrent The number of search threads
+	 */
+	public synchronized void setMaxConcurrent(int maxConcurrent) {
+
+		checkStopped();
+		if (maxConcurrent < 1) {
+			throw new IllegalArgumentException("Max concurrent searches must be at least 1");
+		}
+		this.maxConcurrent = maxConcurrent;
+	}
+
+	/**
+	 * Set the number of searches that can wait for a search thread before requests get a 429; the default is
+	 *   four per processor
+	 *
+	 * @param maxQueued The number of waiting searches
+	 */
+	public synchronized void setMaxQueued(int maxQueued) {
+
+		checkStopped();
+		if (maxQueued < 0) {
+			throw new IllegalArgumentException("Max queued searches can't be negative");
+		}
+		this.maxQueued = maxQueued;
+	}
+
+	/**
+	 * Set how long a request can take, waiting included, before it gets a 504; the default is 5 seconds
+	 *
+	 * @param timeoutMillis The timeout in milliseconds
+	 */
+	public synchronized void setTimeoutMillis(long timeoutMillis) {
+
+		checkStopped();
+		if (timeoutMillis < 1) {
+			throw new IllegalArgumentException("Timeout must be at least 1 ms");
+		}
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Set the most matches a request can ask for; the default is 1000
+	 *
+	 * @param maxMatches The largest k
+	 */
+	public synchronized void setMaxMatches(int maxMatches) {
+
+		checkStopped();
+		if (maxMatches < 1) {
+			throw new IllegalArgumentException("Max matches must be at least 1");
+		}
+		this.maxMatches = maxMatches;
+	}
+
+	/**
+	 * Set the most words a /batch request can ask about; the default is 1000
+	 *
+	 * @param maxBatchWords The largest number of words
+	 */
+	public synchronized void setMaxBatchWords(int maxBatchWords) {
+
+		checkStopped();
+		if (maxBatchWords < 1) {
+			throw new IllegalArgumentException("Max batch words must be at least 1");
+		}
+		this.maxBatchWords = maxBatchWords;
+	}
+
+	/**
+	 * Set the address to listen on. The default is the loopback address, so only programs on the same
+	 *   machine can reach it; anything wider has to be asked for, since the server has no authentication.
+	 *
+	 * @param bindAddress The address, e.g. InetAddress.getByName("0.0.0.0") for every interface
+	 */
+	public synchronized void setBindAddress(InetAddress bindAddress) {
+
+		SharedUtils.checkNotNull(bindAddress);
+		checkStopped();
+		this.bindAddress = bindAddress;
+	}
+
+	private void checkStopped() {
+
+		if (server != null) {
+			throw new WordToVecException("Can't change the server while it's running");
+		}
+	}
+
+	/**
+	 * Start answering requests
+	 */
+	public synchronized void start() {
+
+		if (server != null) {
+			return;
+		}
+		try {
+			server = HttpServer.create(new InetSocketAddress(bindAddress, port), BACKLOG);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to start server on port " + port);
+		}
+		admissions = new Semaphore(maxConcurrent + maxQueued);
+		searchPool = Executors.newFixedThreadPool(maxConcurrent, new ServerThreadFactory("word2vec-search-"));
+		exchangePool = Executors.newFixedThreadPool(maxConcurrent + maxQueued + SPARE_EXCHANGE_THREADS,
+				new ServerThreadFactory("word2vec-http-"));
+		server.setExecutor(exchangePool);
+		server.createContext("/matches", new MatchesHandler());
+		server.createContext("/analogy", new AnalogyHandler());
+		server.createContext("/vector", new VectorHandler());
+		server.createContext("/batch", new BatchHandler());
+		server.createContext("/health", new HealthHandler());
+		server.createContext("/metrics", new MetricsHandler());
+		server.start();
+		System.out.println("WordToVecServer listening on " + bindAddress.getHostAddress() + " port " + getPort() +
+				" with " + maxConcurrent + " search threads");
+	}
+
+	/**
+	 * Stop answering requests, giving the ones in progress a moment to finish
+	 */
+	public synchronized void stop() {
+
+		if (server == null) {
+			return;
+		}
+		server.stop(1);
+		exchangePool.shutdown();
+		searchPool.shutdown();
+		server = null;
+		exchangePool = null;
+		searchPool = null;
+		admissions = null;
+		SharedUtils.log(LOGLEVEL, "WordToVecServer: stopped");
+	}
+
+	/**
+	 * Get the port the server is listening on, which is handy if it was started on port 0
+	 *
+	 * @return The port
+	 */
+	public synchronized int getPort() {
+
+		return server == null ? port : server.getAddress().getPort();
+	}
+
+	/**
+	 * Get a request parameter as a number of matches
+	 *
+	 * @param params The request parameters
+	 * @return The k, DEFAULT_MATCHES if it isn't there
+	 * @throws IllegalArgumentException If it's not a number from 1 to maxMatches
+	 */
+	private int getMatchCount(Map<String, String> params) {
+		String value;
+		int count;
+
+		value = params.get("k");
+		if (value == null) {
+			return DEFAULT_MATCHES;
+		}
+		try {
+			count = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("k must be a number");
+		}
+		return checkMatchCount(count);
+	}
+
+	private int checkMatchCount(int count) {
+
+		if (count < 1 || count > maxMatches) {
+			throw new IllegalArgumentException("k must be from 1 to " + maxMatches);
+		}
+		return count;
+	}
+
+	private static String getRequired(Map<String, String> params, String name) {
+		String value;
+
+		value = params.get(name);
+		if (value == null || value.isEmpty()) {
+			throw new IllegalArgumentException("Missing parameter " + name);
+		}
+		return value;
+	}
+
+	private static Map<String, String> parseQuery(String query) {
+		Map<String, String> params;
+		int equals;
+
+		params = new HashMap<String, String>();
+		if (query == null) {
+			return params;
+		}
+		for (String pair : query.split("&")) {
+			if (pair.isEmpty()) {
+				continue;
+			}
+			equals = pair.indexOf('=');
+			if (equals < 0) {
+				params.put(URLDecoder.decode(pair, StandardCharsets.UTF_8), "");
+			} else {
+				params.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+						URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+			}
+		}
+		return params;
+	}
+
+	/**
+	 * Read the request body, up to MAX_BODY_BYTES
+	 *
+	 * @param exchange The exchange
+	 * @return The body
+	 * @throws BodyTooLargeException If the body is bigger than that
+	 */
+	private static String readBody(HttpExchange exchange) throws IOException {
+		ByteArrayOutputStream bytes;
+		String length;
+		byte[] buffer;
+		int count;
+
+		length = exchange.getRequestHeaders().getFirst("Content-Length");
+		if (length != null) {
+			try {
+				if (Long.parseLong(length.trim()) > MAX_BODY_BYTES) {
+					throw new BodyTooLargeException();
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad Content-Length");
+			}
+		}
+		bytes = new ByteArrayOutputStream();
+		buffer = new byte[8192];
+		try (InputStream in = exchange.getRequestBody()) {
+			while ((count = in.read(buffer)) > 0) {
+				// the length header can be missing or wrong, so count what actually arrives
+				if (bytes.size() + count > MAX_BODY_BYTES) {
+					throw new BodyTooLargeException();
+				}
+				bytes.write(buffer, 0, count);
+			}
+		}
+		return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	private static void sendJson(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] bytes;
+
+		bytes = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", JSON_TYPE);
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	private static String errorJson(String message) {
+		StringBuilder sb;
+
+		sb = new StringBuilder();
+		sb.append("{\"error\":");
+		appendString(sb, message == null ? "error" : message);
+		sb.append("}");
+		return sb.toString();
+	}
+
+	/**
+	 * Append a string to some JSON, quoted and escaped
+	 *
+	 * @param sb The JSON so far
+	 * @param value The string
+	 */
+	static void appendString(StringBuilder sb, String value) {
+		char c;
+
+		sb.append('"');
+		for (int ix = 0; ix < value.length(); ix++) {
+			c = value.charAt(ix);
+			switch (c) {
+			case '"':
+				sb.append("\\\"");
+				break;
+			case '\\':
+				sb.append("\\\\");
+				break;
+			case '\n':
+				sb.append("\\n");
+				break;
+			case '\r':
+				sb.append("\\r");
+				break;
+			case '\t':
+				sb.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					sb.append(String.format("\\u%04x", (int) c));
+				} else {
+					sb.append(c);
+				}
+				break;
+			}
+		}
+		sb.append('"');
+	}
+
+	private static void appendMatches(StringBuilder sb, WordMatches matches) {
+
+		sb.append("[");
+		for (int ix = 0; ix < matches.size(); ix++) {
+			if (ix > 0) {
+				sb.append(",");
+			}
+			sb.append("{\"word\":");
+			appendString(sb, matches.getWord(ix));
+			sb.append(",\"distance\":");
+			sb.append(matches.getScore(ix));
+			sb.append("}");
+		}
+		sb.append("]");
+	}
+
+	/**
+	 * Run the server from the command line
+	 *
+	 * @param args The BIN (or snapshot) file to map, the port (8080), and the number of searches to run at
+	 *   once (the number of processors), and the address to listen on (the loopback address)
+	 */
+	public static void main(String[] args) {
+		WordToVecSearch search;
+		WordToVecServer server;
+
+		if (args.length < 1) {
+			System.out.println("Usage: WordToVecServer fileName [port [maxConcurrent [bindAddress]]]");
+			return;
+		}
+		search = new WordToVecSearch();
+		search.mapFile(args[0]);
+		server = new WordToVecServer(search, args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+		if (args.length > 2) {
+			server.setMaxConcurrent(Integer.parseInt(args[2]));
+		}
+		if (args.length > 3) {
+			try {
+				server.setBindAddress(InetAddress.getByName(args[3]));
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new WordToVecException("Unknown bind address " + args[3]);
+			}
+		}
+		server.start();
+	}
+
+	/**
+	 * JsonHandler does what all the search endpoints have in common: admission (or a 429), running the
+	 *   search on the search pool with a timeout, and turning exceptions into error responses
+	 */
+	private abstract class JsonHandler implements HttpHandler {
+		private final String method;
+		private final boolean searches;
+
+		/**
+		 * Create the handler
+		 *
+		 * @param method The HTTP method it answers
+		 * @param searches True if it searches, so it has to go through admission and the search pool; the
+		 *   quick ones like /health are answered straight away, so they still work when the server's busy
+		 */
+		JsonHandler(String method, boolean searches) {
+
+			this.method = method;
+			this.searches = searches;
+		}
+
+		/**
+		 * Do the search; this runs on a search thread
+		 *
+		 * @param model The model to search; null if no file is loaded, which only happens for the quick ones
+		 * @param params The query parameters
+		 * @param body The request body, empty for a GET
+		 * @return The JSON response
+		 * @throws IllegalArgumentException If the request doesn't make sense
+		 * @throws UnknownWordException If a word isn't in the vocabulary
+		 */
+		abstract String answer(WordToVecModel model, Map<String, String> params, String body);
+
+		/**
+		 * Get the status to send with a quick handler's answer
+		 *
+		 * @param model The model, or null if no file is loaded
+		 * @return The HTTP status
+		 */
+		int getStatus(WordToVecModel model) {
+
+			return 200;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			Map<String, String> params;
+			String body;
+			Semaphore permits;
+			ExecutorService pool;
+			WordToVecModel model;
+			SearchTask task;
+			Future<String> future;
+			long startNanos;
+
+			startNanos = System.nanoTime();
+			try {
+				if (!exchange.getRequestMethod().equals(method)) {
+					exchange.getResponseHeaders().set("Allow", method);
+					sendJson(exchange, 405, errorJson("Use " + method));
+					return;
+				}
+				params = parseQuery(exchange.getRequestURI().getRawQuery());
+				model = search.getModelIfLoaded();
+				if (!searches) {
+					sendJson(exchange, getStatus(model), answer(model, params, ""));
+					return;
+				}
+				if (model == null) {
+					sendJson(exchange, 503, errorJson("No word2vec file has been loaded"));
+					return;
+				}
+				synchronized (WordToVecServer.this) {
+					permits = admissions;
+					pool = searchPool;
+				}
+				if (permits == null || !permits.tryAcquire()) {
+					rejected.increment();
+					exchange.getResponseHeaders().set("Retry-After", "1");
+					sendJson(exchange, 429, errorJson("Too many requests"));
+					return;
+				}
+				// the body is only read once we've been let in, so the 429 covers big batches too
+				try {
+					body = method.equals("POST") ? readBody(exchange) : "";
+				} catch (IOException | RuntimeException e) {
+					permits.release();
+					throw e;
+				}
+				task = new SearchTask(this, model, params, body, permits);
+				try {
+					future = pool.submit(task);
+				} catch (RuntimeException e) {
+					task.abandon();
+					throw e;
+				}
+				try {
+					sendJson(exchange, 200, future.get(timeoutMillis, TimeUnit.MILLISECONDS));
+				} catch (TimeoutException e) {
+					// a search that hasn't started never will; one that has finishes and gives back its permit
+					task.abandon();
+					future.cancel(false);
+					timeouts.increment();
+					sendJson(exchange, 504, errorJson("Timed out after " + timeoutMillis + " ms"));
+				} catch (ExecutionException e) {
+					sendError(exchange, e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					sendJson(exchange, 503, errorJson("Shutting down"));
+				}
+			} catch (RuntimeException e) {
+				sendError(exchange, e);
+			} finally {
+				exchange.close();
+				requestLatency.recordSince(startNanos);
+			}
+		}
+
+		private void sendError(HttpExchange exchange, Throwable cause) throws IOException {
+
+			if (cause instanceof BodyTooLargeException) {
+				sendJson(exchange, 413, errorJson(cause.getMessage()));
+			} else if (cause instanceof IllegalArgumentException) {
+				sendJson(exchange, 400, errorJson(cause.getMessage()));
+			} else if (cause instanceof UnknownWordException) {
+				sendJson(exchange, 404, errorJson("Unknown word: " + ((UnknownWordException) cause).getWord()));
+			} else if (cause instanceof WordToVecException) {
+				// the request was fine, the server just couldn't do it right now (interrupted, shutting down...)
+				sendJson(exchange, 503, errorJson(cause.getMessage()));
+			} else {
+				cause.printStackTrace();
+				sendJson(exchange, 500, errorJson(cause.toString()));
+			}
+		}
+	}
+
+	/**
+	 * BodyTooLargeException is a request body over MAX_BODY_BYTES, which gets a 413
+	 */
+	private static final class BodyTooLargeException extends IllegalArgumentException {
+		private static final long serialVersionUID = 1L;
+
+		BodyTooLargeException() {
+
+			super("Request body is over " + MAX_BODY_BYTES + " bytes");
+		}
+	}
+
+	/**
+	 * SearchTask runs a handler's search and gives back the admission permit when it's done, unless the
+	 *   request gave up on it before it got started
+	 */
+	private static final class SearchTask implements Callable<String> {
+		private final JsonHandler handler;
+		private final WordToVecModel model;
+		private final Map<String, String> params;
+		private final String body;
+		private final Semaphore permits;
+		private final AtomicBoolean claimed;
+
+		SearchTask(JsonHandler handler, WordToVecModel model, Map<String, String> params, String body,
+				Semaphore permits) {
+
+			this.handler = handler;
+			this.model = model;
+			this.params = params;
+			this.body = body;
+			this.permits = permits;
+			claimed = new AtomicBoolean(false);
+		}
+
+		/**
+		 * Give up on the search; if it hasn't started it won't, and the permit is given back now
+		 */
+		void abandon() {
+
+			if (claimed.compareAndSet(false, true)) {
+				permits.release();
+			}
+		}
+
+		@Override
+		public String call() {
+
+			if (!claimed.compareAndSet(false, true)) {
+				return null;
+			}
+			try {
+				return handler.answer(model, params, body);
+			} finally {
+				permits.release();
+			}
+		}
+	}
+
+	private final class MatchesHandler extends JsonHandler {
+
+		MatchesHandler() {
+
+			super("GET", true);
+		}
+
+		@Override
+		String answer(WordToVecModel model, Map<String, String> params, String body) {
+			String word;
+			int count;
+			StringBuilder sb;
+
+			word = getRequired(params, "word");
+			count = getMatchCount(params);
+			sb = new StringBuilder();
+			sb.append("{\"word\":");
+			appendString(sb, word);
+			sb.append(",\"matches\":");
+			appendMatches(sb, model.matchWord(word, count));
+			sb.append("}");
+			return sb.toString();
+		}
+	}
+
+	private final class AnalogyHandler extends JsonHandler {
+
+		AnalogyHandler() {
+
+			super("GET", true);
+		}
+
+		@Override
+		String answer(WordToVecModel model, Map<String, String> params, String body) {
+			String word1;
+			String word2;
+			String word3;
+			int count;
+			StringBuilder sb;
+
+			word1 = getRequired(params, "w1");
+			word2 = getRequired(params, "w2");
+			word3 = getRequired(params, "w3");
+			count = getMatchCount(params);
+			sb = new StringBuilder();
+			sb.append("{\"words\":[");
+			appendString(sb, word1);
+			sb.append(",");
+			appendString(sb, word2);
+			sb.append(",");
+			appendString(sb, word3);
+			sb.append("],\"matches\":");
+			appendMatches(sb, model.matchAnalogy(word1, word2, word3, count));
+			sb.append("}");
+			return sb.toString();
+		}
+	}
+
+	private final class VectorHandler extends JsonHandler {
+
+		VectorHandler() {
+
+			super("GET", true);
+		}
+
+		@Override
+		String answer(WordToVecModel model, Map<String, String> params, String body) {
+			String word;
+			int row;
+			float[] vector;
+			StringBuilder sb;
+
+			word = getRequired(params, "word");
+			row = model.getStore().getId(word);
+			if (row < 0) {
+				throw new UnknownWordException(word);
+			}
+			vector = model.getStore().getVector(row);
+			sb = new StringBuilder();
+			sb.append("{\"word\":");
+			appendString(sb, word);
+			sb.append(",\"vector\":[");
+			for (int ix = 0; ix < vector.length; ix++) {
+				if (ix > 0) {
+					sb.append(",");
+				}
+				sb.append(vector[ix]);
+			}
+			sb.append("]}");
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * BatchHandler matches a list of words in one pass over the vectors. Words that aren't in the vocabulary
+	 *   get an error entry of their own rather than failing the whole batch.
+	 */
+	private final class BatchHandler extends JsonHandler {
+
+		BatchHandler() {
+
+			super("POST", true);
+		}
+
+		@Override
+		String answer(WordToVecModel model, Map<String, String> params, String body) {
+			Object request;
+			Object words;
+			Object k;
+			List<String> known;
+			List<WordMatches> matches;
+			int count;
+			int knownIx;
+			StringBuilder sb;
+			boolean first;
+
+			request = new JsonReader(body).read();
+			if (!(request instanceof Map)) {
+				throw new IllegalArgumentException("Expected a JSON object");
+			}
+			words = ((Map<?, ?>) request).get("words");
+			if (!(words instanceof List)) {
+				throw new IllegalArgumentException("Expected \"words\": [...]");
+			}
+			if (((List<?>) words).size() > maxBatchWords) {
+				throw new IllegalArgumentException("At most " + maxBatchWords + " words in a batch");
+			}
+			k = ((Map<?, ?>) request).get("k");
+			if (k != null && !(k instanceof Double && (Double) k == Math.rint((Double) k))) {
+				throw new IllegalArgumentException("k must be a whole number");
+			}
+			// intValue saturates, so 1e10 is still too big rather than wrapping round
+			count = k == null ? DEFAULT_MATCHES : checkMatchCount(((Double) k).intValue());
+			known = new ArrayList<String>();
+			for (Object word : (List<?>) words) {
+				if (!(word instanceof String)) {
+					throw new IllegalArgumentException("Words must be strings");
+				}
+				if (model.getStore().getId((String) word) >= 0) {
+					known.add((String) word);
+				}
+			}
+			matches = model.matchWordsBatch(known, count);
+			sb = new StringBuilder();
+			sb.append("{\"results\":[");
+			knownIx = 0;
+			first = true;
+			for (Object word : (List<?>) words) {
+				if (!first) {
+					sb.append(",");
+				}
+				first = false;
+				sb.append("{\"word\":");
+				appendString(sb, (String) word);
+				if (model.getStore().getId((String) word) >= 0) {
+					sb.append(",\"matches\":");
+					appendMatches(sb, matches.get(knownIx++));
+				} else {
+					sb.append(",\"error\":\"Unknown word\"");
+				}
+				sb.append("}");
+			}
+			sb.append("]}");
+			return sb.toString();
+		}
+	}
+
+	private final class HealthHandler extends JsonHandler {
+
+		HealthHandler() {
+
+			super("GET", false);
+		}
+
+		@Override
+		int getStatus(WordToVecModel model) {
+
+			return model == null ? 503 : 200;
+		}
+
+		@Override
+		String answer(WordToVecModel model, Map<String, String> params, String body) {
+
+			if (model == null) {
+				return "{\"status\":\"no model\"}";
+			}
+			return "{\"status\":\"ok\",\"words\":" + model.size() + ",\"vectorSize\":" + model.getVectorSize() + "}";
+		}
+	}
+
+	private final class MetricsHandler extends JsonHandler {
+
+		MetricsHandler() {
+
+			super("GET", false);
+		}
+
+		@Override
+		String answer(WordToVecModel model, Map<String, String> params, String body) {
+			StringBuilder sb;
+			boolean first;
+
+			sb = new StringBuilder();
+			sb.append("{\"histograms\":{");
+			first = true;
+			for (LatencyHistogram histogram : WordToVecMetrics.getHistograms().values()) {
+				if (!first) {
+					sb.append(",");
+				}
+				first = false;
+				appendString(sb, histogram.getName());
+				sb.append(String.format(":{\"count\":%d,\"meanNanos\":%d,\"p50Nanos\":%d,\"p99Nanos\":%d,\"maxNanos\":%d}",
+						histogram.getCount(), histogram.getMeanNanos(), histogram.getPercentileNanos(50),
+						histogram.getPercentileNanos(99), histogram.getMaxNanos()));
+			}
+			sb.append("},\"counters\":");
+			appendLongs(sb, WordToVecMetrics.getCounters());
+			sb.append(",\"gauges\":");
+			appendLongs(sb, WordToVecMetrics.getGauges());
+			sb.append("}");
+			return sb.toString();
+		}
+
+		private void appendLongs(StringBuilder sb, Map<String, Long> values) {
+			boolean first;
+
+			sb.append("{");
+			first = true;
+			for (Map.Entry<String, Long> value : values.entrySet()) {
+				if (!first) {
+					sb.append(",");
+				}
+				first = false;
+				appendString(sb, value.getKey());
+				sb.append(":");
+				sb.append(value.getValue());
+			}
+			sb.append("}");
+		}
+	}
+
+	/**
+	 * JsonReader reads just enough JSON for the batch requests: objects become LinkedHashMaps, arrays
+	 *   ArrayLists, numbers Doubles, and true, false and null what you'd expect
+	 */
+	private static final class JsonReader {
+		// the batch requests are two levels deep; this is just to keep a body of [[[[... off the stack
+		private final static int MAX_DEPTH = 32;
+		private final String text;
+		private int position;
+		private int depth;
+
+		JsonReader(String text) {
+
+			this.text = text;
+			position = 0;
+			depth = 0;
+		}
+
+		Object read() {
+			Object value;
+
+			value = readValue();
+			skipSpace();
+			if (position < text.length()) {
+				throw new IllegalArgumentException("Unexpected text after JSON at " + position);
+			}
+			return value;
+		}
+
+		private Object readValue() {
+			Object value;
+			char c;
+
+			skipSpace();
+			if (position >= text.length()) {
+				throw new IllegalArgumentException("Unexpected end of JSON");
+			}
+			c = text.charAt(position);
+			switch (c) {
+			case '{':
+			case '[':
+				if (++depth > MAX_DEPTH) {
+					throw new IllegalArgumentException("JSON is nested more than " + MAX_DEPTH + " deep");
+				}
+				value = c == '{' ? readObject() : readArray();
+				depth--;
+				return value;
+			case '"':
+				return readString();
+			case 't':
+				expect("true");
+				return Boolean.TRUE;
+			case 'f':
+				expect("false");
+				return Boolean.FALSE;
+			case 'n':
+				expect("null");
+				return null;
+			default:
+				return readNumber();
+			}
+		}
+
+		private Map<String, Object> readObject() {
+			Map<String, Object> object;
+			String key;
+
+			object = new LinkedHashMap<String, Object>();
+			position++;
+			skipSpace();
+			if (peek() == '}') {
+				position++;
+				return object;
+			}
+			while (true) {
+				skipSpace();
+				if (peek() != '"') {
+					throw new IllegalArgumentException("Expected a key at " + position);
+				}
+				key = readString();
+				skipSpace();
+				expect(":");
+				object.put(key, readValue());
+				skipSpace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect("}");
+					return object;
+				}
+			}
+		}
+
+		private List<Object> readArray() {
+			List<Object> array;
+
+			array = new ArrayList<Object>();
+			position++;
+			skipSpace();
+			if (peek() == ']') {
+				position++;
+				return array;
+			}
+			while (true) {
+				array.add(readValue());
+				skipSpace();
+				if (peek() == ',') {
+					position++;
+				} else {
+					expect("]");
+					return array;
+				}
+			}
+		}
+
+		private String readString() {
+			StringBuilder sb;
+			char c;
+
+			sb = new StringBuilder();
+			position++;
+			while (true) {
+				if (position >= text.length()) {
+					throw new IllegalArgumentException("Unterminated string");
+				}
+				c = text.charAt(position++);
+				if (c == '"') {
+					return sb.toString();
+				}
+				if (c != '\\') {
+					sb.append(c);
+					continue;
+				}
+				if (position >= text.length()) {
+					throw new IllegalArgumentException("Unterminated string");
+				}
+				c = text.charAt(position++);
+				switch (c) {
+				case 'b':
+					sb.append('\b');
+					break;
+				case 'f':
+					sb.append('\f');
+					break;
+				case 'n':
+					sb.append('\n');
+					break;
+				case 'r':
+					sb.append('\r');
+					break;
+				case 't':
+					sb.append('\t');
+					break;
+				case 'u':
+					if (position + 4 > text.length()) {
+						throw new IllegalArgumentException("Bad \\u escape");
+					}
+					try {
+						sb.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Bad \\u escape");
+					}
+					position += 4;
+					break;
+				default:
+					sb.append(c);
+					break;
+				}
+			}
+		}
+
+		private Double readNumber() {
+			int start;
+
+			start = position;
+			while (position < text.length() && "+-0123456789.eE".indexOf(text.charAt(position)) >= 0) {
+				position++;
+			}
+			try {
+				return Double.valueOf(text.substring(start, position));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad JSON value at " + start);
+			}
+		}
+
+		private void expect(String token) {
+
+			if (!text.startsWith(token, position)) {
+				throw new IllegalArgumentException("Expected " + token + " at " + position);
+			}
+			position += token.length();
+		}
+
+		private char peek() {
+
+			return position < text.length() ? text.charAt(position) : 0;
+		}
+
+		private void skipSpace() {
+
+			while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+				position++;
+			}
+		}
+	}
+
+	/**
+	 * ServerThreadFactory names the server's threads and makes them daemons
+	 */
+	private static final class ServerThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count;
+
+		ServerThreadFactory(String prefix) {
+
+			this.prefix = prefix;
+			count = new AtomicInteger(0);
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread;
+
+			thread = new Thread(runnable, prefix + count.getAndIncrement());
+			// the HttpServer's own dispatcher thread keeps the JVM running
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -0,0 +1,585 @@
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Level;
+
+/**
+ * WordToVecTextLoader reads word2vec TEXT format files (and the same thing under other names: fastText
+ *   .vec files, GloVe files, which just don't have the "words dimension" first line) into the same flat
+ *   store that WordToVecLoader builds from a BIN file.
+ *   <p>
+ *   The file is split into byte ranges on line boundaries and read in two parallel passes through small
+ *   buffers, so it never holds a whole line, let alone the whole file. The first pass only collects the
+ *   words, which then go into the vocabulary in file order so the row ids (and which duplicate wins) come
+ *   out just like the BIN loader; the second pass parses the numbers straight into the store with a
+ *   parser that doesn't allocate anything. It gives the same floats as Float.parseFloat apart from the
+ *   odd last-bit difference from rounding through a double.
+ *
+ * @author hulles
+ *
+ */
+final class WordToVecTextLoader {
+	private final static Level LOGLEVEL = Level.INFO;
+	private final static String THROUGHPUT = "Loaded %,d text records (%,.1f MB) in %s with %d threads: %,.0f records/s, %,.1f MB/s";
+	// ranges per loader thread, so a slow thread doesn't hold everyone up at the end
+	private final static int RANGES_PER_THREAD = 4;
+	private final static int READ_BUFFER_BYTES = 1 << 16;
+	// the two passes
+	private final static LatencyHistogram wordsLatency = WordToVecMetrics.getHistogram("load.text.words");
+	private final static LatencyHistogram vectorsLatency = WordToVecMetrics.getHistogram("load.text.vectors");
+	// significant digits that fit in a long
+	private final static int MAX_DIGITS = 18;
+	private final static double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private final FileChannel channel;
+	private final LoadOptions options;
+	private final long fileSize;
+	private int vectorSize;
+	private long dataStart;
+	private int recordCount;
+
+	private WordToVecTextLoader(FileChannel channel, LoadOptions options) throws IOException {
+
+		this.channel = channel;
+		this.options = options;
+		fileSize = channel.size();
+	}
+
+	/**
+	 * Load a TEXT format file
+	 *
+	 * @param fileName The file to load
+	 * @param threadCount The number of loader threads
+	 * @param options Which records to load
+	 * @return The store
+	 */
+	static FlatVectorStore load(String fileName, int threadCount, LoadOptions options) {
+		FileChannel channel;
+		WordToVecTextLoader loader;
+		FlatVectorStore store;
+		long startNanos;
+		long elapsedMillis;
+		double seconds;
+		double megabytes;
+		int recordCount;
+
+		SharedUtils.checkNotNull(fileName);
+		SharedUtils.checkNotNull(options);
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("Thread count must be at least 1");
+		}
+		startNanos = System.nanoTime();
+		try {
+			channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Unable to open file");
+		}
+		try {
+			loader = new WordToVecTextLoader(channel, options);
+			store = loader.loadStore(threadCount);
+			recordCount = loader.recordCount;
+			megabytes = loader.fileSize / (1024.0 * 1024.0);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new WordToVecException("Error reading file");
+		} finally {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		elapsedMillis = (System.nanoTime() - startNanos) / 1000000;
+		seconds = Math.max(elapsedMillis, 1) / 1000.0;
+		System.out.println(String.format(THROUGHPUT, recordCount, megabytes,
+				SharedUtils.formatElapsedMillis(elapsedMillis), threadCount, recordCount / seconds, megabytes / seconds));
+		WordToVecMetrics.stopTimer("load.text", startNanos);
+		return store;
+	}
+
+	private FlatVectorStore loadStore(int threadCount) throws IOException {
+		ForkJoinPool pool;
+		long[] rangeStarts;
+		List<Callable<RangeWords>> wordTasks;
+		List<Callable<Void>> vectorTasks;
+		List<RangeWords> rangeWords;
+		Vocabulary vocabulary;
+		FlatVectorStore store;
+		int[][] recordRows;
+		int dupeCount;
+		long phaseNanos;
+
+		readHeader();
+		rangeStarts = splitRanges(threadCount * RANGES_PER_THREAD);
+		pool = new ForkJoinPool(threadCount);
+		try {
+			// pass 1: the words of each range
+			phaseNanos = System.nanoTime();
+			wordTasks = new ArrayList<Callable<RangeWords>>(rangeStarts.length - 1);
+			for (int rangeIx = 0; rangeIx < rangeStarts.length - 1; rangeIx++) {
+				wordTasks.add(new WordTask(rangeStarts[rangeIx], rangeStarts[rangeIx + 1]));
+			}
+			rangeWords = SharedUtils.runTasks(wordTasks, pool);
+			wordsLatency.recordSince(phaseNanos);
+			recordCount = 0;
+			for (RangeWords words : rangeWords) {
+				recordCount += words.count;
+			}
+			System.out.println("Loading store for " + recordCount + " text word vectors, dimension " + vectorSize +
+					", with " + threadCount + " threads");
+
+			// the vocabulary, in file order, with no more room than the options can accept
+			vocabulary = new Vocabulary(options.getCapacity(recordCount));
+			recordRows = new int[rangeWords.size()][];
+			dupeCount = assignRows(rangeWords, vocabulary, recordRows);
+			store = new FlatVectorStore(vocabulary, vectorSize);
+
+			// pass 2: the vectors
+			phaseNanos = System.nanoTime();
+			vectorTasks = new ArrayList<Callable<Void>>(rangeStarts.length - 1);
+			for (int rangeIx = 0; rangeIx < rangeStarts.length - 1; rangeIx++) {
+				vectorTasks.add(new VectorTask(rangeStarts[rangeIx], rangeStarts[rangeIx + 1], recordRows[rangeIx], store));
+			}
+			SharedUtils.runTasks(vectorTasks, pool);
+			vectorsLatency.recordSince(phaseNanos);
+		} finally {
+			pool.shutdown();
+		}
+		System.out.println("Loaded store with " + dupeCount + " duplicates ignored");
+		return store;
+	}
+
+	/**
+	 * Read the first line; if it's just two numbers it's the word2vec header, otherwise (GloVe) it's
+	 *   already a record and the dimension is the number of values on it
+	 */
+	private void readHeader() throws IOException {
+		RangeReader reader;
+		StringBuilder sb;
+		String[] tokens;
+		int headerWords;
+		int c;
+
+		reader = new RangeReader(0, fileSize);
+		sb = new StringBuilder();
+		while ((c = reader.read()) >= 0 && c != '\n') {
+			sb.append((char) c);
+		}
+		tokens = sb.toString().trim().split("[ \t]+");
+		if (tokens.length == 2 && tokens[0].matches("\\d+") && tokens[1].matches("\\d+")) {
+			headerWords = Integer.parseInt(tokens[0]);
+			vectorSize = Integer.parseInt(tokens[1]);
+			dataStart = reader.getPosition();
+			SharedUtils.log(LOGLEVEL, "WordToVecTextLoader: header says " + headerWords + " words");
+		} else {
+			vectorSize = tokens.length - 1;
+			dataStart = 0;
+		}
+		if (!(vectorSize > 0)) {
+			throw new WordToVecException("Invalid vector size");
+		}
+	}
+
+	/**
+	 * Split the data into ranges that start at the beginning of a line
+	 *
+	 * @param rangeCount The number of ranges to aim for
+	 * @return The start of each range and, last, the end of the data
+	 */
+	private long[] splitRanges(int rangeCount) throws IOException {
+		long[] starts;
+		RangeReader reader;
+		long position;
+		int c;
+
+		starts = new long[rangeCount + 1];
+		starts[0] = dataStart;
+		for (int rangeIx = 1; rangeIx < rangeCount; rangeIx++) {
+			position = dataStart + (fileSize - dataStart) * rangeIx / rangeCount;
+			position = Math.max(position, starts[rangeIx - 1]);
+			if (position > dataStart) {
+				// back up one so a range that already starts a line stays put
+				reader = new RangeReader(position - 1, fileSize);
+				while ((c = reader.read()) >= 0 && c != '\n') {
+					// skip to the end of the line
+				}
+				position = reader.getPosition();
+			}
+			starts[rangeIx] = position;
+		}
+		starts[rangeCount] = fileSize;
+		return starts;
+	}
+
+	/**
+	 * Put the words into the vocabulary in file order and work out which row each record goes in. Like
+	 *   the BIN loader, a duplicate word keeps its first row but gets the later vector, so the earlier
+	 *   record is dropped. Records the options reject are dropped too, so pass 2 skips their numbers
+	 *   without parsing them.
+	 *
+	 * @param rangeWords The words of each range
+	 * @param vocabulary The vocabulary to fill
+	 * @param recordRows Receives the row of each record of each range, or -1 to skip the record
+	 * @return The number of duplicates
+	 */
+	private int assignRows(List<RangeWords> rangeWords, Vocabulary vocabulary, int[][] recordRows) {
+		RangeWords words;
+		String word;
+		int[] lastRanges;
+		int[] lastRecords;
+		int start;
+		int row;
+		int oldSize;
+		int dupeCount;
+		int rank;
+
+		lastRanges = new int[options.getCapacity(recordCount)];
+		lastRecords = new int[lastRanges.length];
+		dupeCount = 0;
+		rank = 0;
+		for (int rangeIx = 0; rangeIx < rangeWords.size(); rangeIx++) {
+			words = rangeWords.get(rangeIx);
+			recordRows[rangeIx] = new int[words.count];
+			start = 0;
+			for (int recordIx = 0; recordIx < words.count; recordIx++) {
+				// this decodes exactly like BinRecordReader so both formats agree on the words
+				word = new String(words.bytes, start, words.ends[recordIx] - start, StandardCharsets.UTF_8).trim();
+				start = words.ends[recordIx];
+				recordRows[rangeIx][recordIx] = -1;
+				if (!options.accept(word, rank++)) {
+					continue;
+				}
+				oldSize = vocabulary.size();
+				row = vocabulary.add(word);
+				if (vocabulary.size() == oldSize) {
+					dupeCount++;
+					recordRows[lastRanges[row]][lastRecords[row]] = -1;
+				}
+				recordRows[rangeIx][recordIx] = row;
+				lastRanges[row] = rangeIx;
+				lastRecords[row] = recordIx;
+			}
+		}
+		return dupeCount;
+	}
+
+	private static boolean isBlank(int c) {
+
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	/**
+	 * Parse the next number on the line, without allocating anything in the usual case
+	 *
+	 * @param reader The reader, just before the number (or blanks before it)
+	 * @return The number
+	 */
+	private static float parseFloat(RangeReader reader) throws IOException {
+		boolean negative;
+		boolean exponentNegative;
+		boolean any;
+		long mantissa;
+		int digits;
+		int exponent;
+		int exponentValue;
+		int c;
+		double value;
+
+		while (isBlank(reader.peek())) {
+			reader.read();
+		}
+		negative = false;
+		c = reader.peek();
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			reader.read();
+		}
+		mantissa = 0;
+		digits = 0;
+		exponent = 0;
+		any = false;
+		while ((c = reader.peek()) >= '0' && c <= '9') {
+			reader.read();
+			any = true;
+			if (digits < MAX_DIGITS) {
+				mantissa = mantissa * 10 + (c - '0');
+				if (mantissa != 0) {
+					digits++;
+				}
+			} else {
+				exponent++;
+			}
+		}
+		if (c == '.') {
+			reader.read();
+			while ((c = reader.peek()) >= '0' && c <= '9') {
+				reader.read();
+				any = true;
+				if (digits < MAX_DIGITS) {
+					mantissa = mantissa * 10 + (c - '0');
+					if (mantissa != 0) {
+						digits++;
+					}
+					exponent--;
+				}
+			}
+		}
+		if (!any) {
+			throw new WordToVecException(c == '\n' || c < 0 ? "Too few values on a line" : "Bad number in file");
+		}
+		if (c == 'e' || c == 'E') {
+			reader.read();
+			exponentNegative = false;
+			c = reader.peek();
+			if (c == '-' || c == '+') {
+				exponentNegative = c == '-';
+				reader.read();
+			}
+			exponentValue = 0;
+			while ((c = reader.peek()) >= '0' && c <= '9') {
+				reader.read();
+				exponentValue = Math.min(exponentValue * 10 + (c - '0'), 100000);
+			}
+			exponent += exponentNegative ? -exponentValue : exponentValue;
+		}
+		if (c >= 0 && c != '\n' && !isBlank(c)) {
+			throw new WordToVecException("Bad number in file");
+		}
+		if (mantissa == 0) {
+			value = 0.0;
+		} else if (mantissa < (1L << 53) && exponent >= -22 && exponent <= 22) {
+			// both parts are exact doubles, so this rounds only once
+			value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+		} else {
+			// rare: long mantissas or big exponents
+			value = Double.parseDouble(mantissa + "E" + exponent);
+		}
+		return (float) (negative ? -value : value);
+	}
+
+	/**
+	 * RangeReader reads the bytes of a range of the file through a small buffer
+	 */
+	private final class RangeReader {
+		private final byte[] bytes;
+		private final ByteBuffer buffer;
+		private final long end;
+		private long bufferStart;
+		private int index;
+		private int limit;
+
+		RangeReader(long start, long end) {
+
+			this.end = end;
+			bytes = new byte[READ_BUFFER_BYTES];
+			buffer = ByteBuffer.wrap(bytes);
+			bufferStart = start;
+			index = 0;
+			limit = 0;
+		}
+
+		/**
+		 * Get the next byte without reading it
+		 *
+		 * @return The byte, 0 to 255, or -1 at the end of the range
+		 */
+		int peek() throws IOException {
+
+			if (index == limit && !fill()) {
+				return -1;
+			}
+			return bytes[index] & 0xFF;
+		}
+
+		/**
+		 * Read the next byte
+		 *
+		 * @return The byte, 0 to 255, or -1 at the end of the range
+		 */
+		int read() throws IOException {
+
+			if (index == limit && !fill()) {
+				return -1;
+			}
+			return bytes[index++] & 0xFF;
+		}
+
+		/**
+		 * Get the file position of the next byte
+		 *
+		 * @return The position
+		 */
+		long getPosition() {
+
+			return bufferStart + index;
+		}
+
+		private boolean fill() throws IOException {
+			int count;
+
+			bufferStart += limit;
+			index = 0;
+			limit = 0;
+			if (bufferStart >= end) {
+				return false;
+			}
+			buffer.clear();
+			buffer.limit((int) Math.min(bytes.length, end - bufferStart));
+			while (buffer.hasRemaining()) {
+				// positional reads, so the threads can share the channel
+				count = channel.read(buffer, bufferStart + buffer.position());
+				if (count < 0) {
+					break;
+				}
+			}
+			limit = buffer.position();
+			return limit > 0;
+		}
+	}
+
+	/**
+	 * RangeWords holds the words of a range, as the raw bytes one after the other
+	 */
+	private static final class RangeWords {
+		private byte[] bytes;
+		private int[] ends;
+		private int length;
+		private int count;
+
+		RangeWords() {
+
+			bytes = new byte[1024];
+			ends = new int[128];
+			length = 0;
+			count = 0;
+		}
+
+		void addByte(int b) {
+
+			if (length == bytes.length) {
+				bytes = Arrays.copyOf(bytes, bytes.length * 2);
+			}
+			bytes[length++] = (byte) b;
+		}
+
+		void endWord() {
+
+			if (count == ends.length) {
+				ends = Arrays.copyOf(ends, ends.length * 2);
+			}
+			ends[count++] = length;
+		}
+	}
+
+	/**
+	 * WordTask collects the words of a range, skipping over the numbers
+	 */
+	private final class WordTask implements Callable<RangeWords> {
+		private final long start;
+		private final long end;
+
+		WordTask(long start, long end) {
+
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public RangeWords call() throws IOException {
+			RangeReader reader;
+			RangeWords words;
+			int c;
+
+			reader = new RangeReader(start, end);
+			words = new RangeWords();
+			while ((c = reader.peek()) >= 0) {
+				if (c == '\n') {
+					// blank line
+					reader.read();
+					continue;
+				}
+				while ((c = reader.read()) >= 0 && c != ' ' && c != '\n') {
+					words.addByte(c);
+				}
+				words.endWord();
+				while (c >= 0 && c != '\n') {
+					c = reader.read();
+				}
+			}
+			return words;
+		}
+	}
+
+	/**
+	 * VectorTask parses and normalizes the vectors of a range into the store
+	 */
+	private final class VectorTask implements Callable<Void> {
+		private final long start;
+		private final long end;
+		private final int[] recordRows;
+		private final FlatVectorStore store;
+
+		VectorTask(long start, long end, int[] recordRows, FlatVectorStore store) {
+
+			this.start = start;
+			this.end = end;
+			this.recordRows = recordRows;
+			this.store = store;
+		}
+
+		@Override
+		public Void call() throws IOException {
+			RangeReader reader;
+			float[] vector;
+			int recordIx;
+			int c;
+
+			reader = new RangeReader(start, end);
+			vector = new float[vectorSize];
+			recordIx = 0;
+			while ((c = reader.peek()) >= 0) {
+				if (c == '\n') {
+					reader.read();
+					continue;
+				}
+				// the same line rules as WordTask, so the records line up
+				while ((c = reader.read()) >= 0 && c != ' ' && c != '\n') {
+					// skip the word
+				}
+				if (recordRows[recordIx] >= 0 && c == ' ') {
+					for (int ix = 0; ix < vectorSize; ix++) {
+						vector[ix] = parseFloat(reader);
+					}
+					while (isBlank(reader.peek())) {
+						reader.read();
+					}
+					c = reader.peek();
+					if (c >= 0 && c != '\n') {
+						throw new WordToVecException("Too many values on a line");
+					}
+					WordToVecLoader.normalize(vector, vector);
+					store.setVector(recordRows[recordIx], vector);
+				} else if (recordRows[recordIx] >= 0) {
+					throw new WordToVecException("Too few values on a line");
+				}
+				while (c >= 0 && c != '\n') {
+					c = reader.read();
+				}
+				recordIx++;
+			}
+			return null;
+		}
+	}
+}